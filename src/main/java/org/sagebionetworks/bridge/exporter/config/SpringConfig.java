@@ -30,10 +30,13 @@ import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.config.PropertiesConfig;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
 import org.sagebionetworks.bridge.dynamodb.DynamoScanHelper;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedThreadPoolExecutor;
 import org.sagebionetworks.bridge.exporter.notification.S3EventNotificationCallback;
+import org.sagebionetworks.bridge.exporter.record.RecordIdSourceFactory;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterSqsCallback;
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.exporter.worker.ExportWorker;
 import org.sagebionetworks.bridge.file.FileHelper;
 import org.sagebionetworks.bridge.heartbeat.HeartbeatLogger;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
@@ -119,7 +122,7 @@ public class SpringConfig {
 
     @Bean(name = "ddbRecordStudyUploadedOnIndex")
     public Index ddbRecordStudyUploadedOnIndex() {
-        return ddbRecordTable().getIndex("study-uploadedOn-index");
+        return ddbRecordTable().getIndex(RecordIdSourceFactory.STUDY_UPLOADED_ON_INDEX_NAME);
     }
 
     @Bean(name = "ddbRecordUploadDateIndex")
@@ -132,6 +135,11 @@ public class SpringConfig {
         return ddbClient().getTable(ddbPrefix() + "Study");
     }
 
+    @Bean(name = "ddbExportFreshnessTable")
+    public Table ddbExportFreshnessTable() {
+        return ddbClient().getTable(ddbPrefix() + "ExportFreshness");
+    }
+
     @Bean(name = "ddbExportTimeTable")
     public Table ddbExportTimeTable() {
         return ddbClient().getTable(ddbPrefix() + "ExportTime");
@@ -154,10 +162,15 @@ public class SpringConfig {
         return new DigestUtils(DigestUtils.getMd5Digest());
     }
 
+    @Bean
+    public AmazonS3Client s3Client() {
+        return new AmazonS3Client();
+    }
+
     @Bean
     public S3Helper s3Helper() {
         S3Helper s3Helper = new S3Helper();
-        s3Helper.setS3Client(new AmazonS3Client());
+        s3Helper.setS3Client(s3Client());
         return s3Helper;
     }
 
@@ -204,9 +217,38 @@ public class SpringConfig {
         return synapseClient;
     }
 
+    @Bean(name = "participantLookupExecutorService")
+    public ExecutorService participantLookupExecutorService() {
+        // Thread count bounds the number of concurrent participant lookups to Bridge.
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("participant.lookup.concurrency"));
+    }
+
+    @Bean(name = "recordPipelineExecutorService")
+    public ExecutorService recordPipelineExecutorService() {
+        // Pipeline stage threads block on their queues for the duration of a request, so this needs to grow to the
+        // total parallelism of all stages.
+        return Executors.newCachedThreadPool();
+    }
+
+    @Bean(name = "recordQueryExecutorService")
+    public ExecutorService recordQueryExecutorService() {
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("record.query.fanout.concurrency"));
+    }
+
+    @Bean(name = "synapseUploadExecutorService")
+    public ExecutorService synapseUploadExecutorService() {
+        // Thread count bounds the number of Synapse table imports we wait on at once at the end of an export. Synapse
+        // calls themselves are rate limited by the SynapseHelper.
+        return Executors.newFixedThreadPool(bridgeConfig().getInt("synapse.upload.concurrency"));
+    }
+
     @Bean(name = "workerExecutorService")
-    public ExecutorService workerExecutorService() {
-        return Executors.newFixedThreadPool(bridgeConfig().getInt("threadpool.worker.count"));
+    public InstrumentedThreadPoolExecutor workerExecutorService() {
+        // Latencies are tagged by handler type, so we can see which handlers are slow or stuck in the queue.
+        Config config = bridgeConfig();
+        return new InstrumentedThreadPoolExecutor("workerExecutor", config.getInt("threadpool.worker.count"),
+                config.getInt("threadpool.worker.queue.size"), task -> task instanceof ExportWorker ?
+                        ((ExportWorker) task).getHandlerType() : task.getClass().getSimpleName());
     }
 
     @Bean(name = "synapseColumnDefinitions")
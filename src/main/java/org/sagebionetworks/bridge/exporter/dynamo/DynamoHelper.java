@@ -1,6 +1,8 @@
 package org.sagebionetworks.bridge.exporter.dynamo;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -9,10 +11,17 @@ import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.GetItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.collect.Iterables;
 import com.jcabi.aspects.Cacheable;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -23,6 +32,9 @@ import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoScanHelper;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
@@ -42,23 +54,64 @@ public class DynamoHelper {
     private static final String STUDY_INFO_KEY_STUDY_ID_EXCLUDED_IN_EXPORT = "studyIdExcludedInExport";
     private static final String STUDY_INFO_KEY_USES_CUSTOM_EXPORT_SCHEDULE = "usesCustomExportSchedule";
 
+    // DDB limits BatchGetItem to 100 keys per call.
+    private static final int MAX_BATCH_GET_SIZE = 100;
+
+    // An eventually consistent read of an item up to 4KB costs half a read unit. Used as the estimate if DDB doesn't
+    // return consumed capacity.
+    private static final double MIN_READ_UNITS = 0.5;
+
+    static final String CONFIG_KEY_FRESHNESS_HISTORY_RETENTION_DAYS = "freshness.history.retention.days";
+    static final String EXPIRES_ON = "expiresOn";
+    static final String EXPORTED_ON = "exportedOn";
+    static final String FRESHNESS_MAX_LAG_MILLIS = "maxLagMillis";
+    static final String FRESHNESS_NUM_RECORDS = "numRecords";
+    static final String FRESHNESS_P50_LAG_MILLIS = "p50LagMillis";
+    static final String FRESHNESS_P90_LAG_MILLIS = "p90LagMillis";
+    static final String FRESHNESS_P99_LAG_MILLIS = "p99LagMillis";
     static final String IDENTIFIER = "identifier";
     static final String LAST_EXPORT_DATE_TIME = "lastExportDateTime";
+    static final String LAST_EXPORT_RECORD_COUNT = "lastExportRecordCount";
+    static final String RATE_LIMITER_DDB_WRITE = "ddb.write";
     static final String STUDY_ID = "studyId";
+    static final String TAG = "tag";
 
+    private DynamoDB ddbClient;
+    private DynamoReadThrottle ddbReadThrottle;
     private Table ddbStudyTable;
     private Table ddbExportTimeTable;
+    private Table ddbExportFreshnessTable;
     private DynamoScanHelper ddbScanHelper;
     private DateTimeZone timeZone;
+    private int freshnessHistoryRetentionDays;
 
-    // Rate limiter, used to limit the amount of traffic to DDB, specifically for when we loop over a potentially
-    // unbounded series of studies. Conservatively limit at 1 req/sec.
-    private final RateLimiter rateLimiter = RateLimiter.create(1.0);
+    // Rate limiter, used to limit the amount of write traffic to DDB, specifically for when we loop over a potentially
+    // unbounded series of studies. Conservatively limit at 1 req/sec. Reads go through the DDB read throttle instead.
+    private final InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter(RATE_LIMITER_DDB_WRITE, 1.0);
 
-    /** Config, used to get S3 bucket for record ID override files. */
+    /** Config, used to get the time zone and how long to keep data freshness history. */
     @Autowired
     final void setConfig(Config config) {
         timeZone = DateTimeZone.forID(config.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME));
+        freshnessHistoryRetentionDays = config.getInt(CONFIG_KEY_FRESHNESS_HISTORY_RETENTION_DAYS);
+    }
+
+    /** DDB client, used to batch get last export record counts from the Export Time table. */
+    @Autowired
+    final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
+    /** DDB read throttle, shared with all other DDB reads. */
+    @Autowired
+    final void setDdbReadThrottle(DynamoReadThrottle ddbReadThrottle) {
+        this.ddbReadThrottle = ddbReadThrottle;
+    }
+
+    /** Rate limiter registry. We register our rate limiter, so its wait time is published with the metrics. */
+    @Autowired
+    final void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        rateLimiterRegistry.register(rateLimiter);
     }
 
     /** Study table, used to get study config, like linked Synapse project. */
@@ -73,6 +126,15 @@ public class DynamoHelper {
         this.ddbExportTimeTable = ddbExportTimeTable;
     }
 
+    /**
+     * DDB Export Freshness Table. Hash key is study ID, range key is exportedOn (epoch millis). Rows expire through
+     * DDB TTL on the expiresOn attribute (epoch seconds).
+     */
+    @Resource(name = "ddbExportFreshnessTable")
+    final void setDdbExportFreshnessTable(Table ddbExportFreshnessTable) {
+        this.ddbExportFreshnessTable = ddbExportFreshnessTable;
+    }
+
     @Autowired
     final void setDdbScanHelper(DynamoScanHelper ddbScanHelper) {
         this.ddbScanHelper = ddbScanHelper;
@@ -87,7 +149,7 @@ public class DynamoHelper {
      */
     @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
     public StudyInfo getStudyInfo(String studyId) {
-        Item studyItem = ddbStudyTable.getItem("identifier", studyId);
+        Item studyItem = getItemThrottled(ddbStudyTable, "identifier", studyId);
         if (studyItem == null) {
             return null;
         }
@@ -160,8 +222,6 @@ public class DynamoHelper {
         // Filter out studies based on study configuration.
         Iterator<String> studyIdListIter = studyIdList.iterator();
         while (studyIdListIter.hasNext()) {
-            rateLimiter.acquire();
-
             String studyId = studyIdListIter.next();
 
             // Get study info to determine whether to include this study in the export job.
@@ -185,11 +245,9 @@ public class DynamoHelper {
             }
         } else if (request.getUseLastExportTime()) {
             for (String studyId : studyIdList) {
-                rateLimiter.acquire();
-
                 // If we're using last export time, query that for each study.
                 DateTime lastExportDateTime;
-                Item studyIdItem = ddbExportTimeTable.getItem(STUDY_ID, studyId);
+                Item studyIdItem = getItemThrottled(ddbExportTimeTable, STUDY_ID, studyId);
                 if (studyIdItem != null) {
                     lastExportDateTime = new DateTime(studyIdItem.getLong(LAST_EXPORT_DATE_TIME), timeZone);
                 } else {
@@ -211,15 +269,68 @@ public class DynamoHelper {
     }
 
     /**
-     * Helper method to update ddb exportTimeTable
+     * Gets the number of records each study exported in its last export, as recorded by
+     * {@link #updateExportTimeTable}. This is used to estimate how big this export will be. Studies with no recorded
+     * count are not in the returned map. Since this is only an estimate, errors are logged and treated as unknown.
+     *
+     * @param studyIds
+     *         study IDs to get record counts for
+     * @return map from study ID to last export record count
      */
-    public void updateExportTimeTable(List<String> studyIdsToUpdate, DateTime endDateTime) {
+    public Map<String, Integer> getLastExportRecordCounts(Collection<String> studyIds) {
+        Map<String, Integer> recordCountsByStudy = new HashMap<>();
+        for (List<String> oneStudyIdBatch : Iterables.partition(studyIds, MAX_BATCH_GET_SIZE)) {
+            TableKeysAndAttributes keys = new TableKeysAndAttributes(ddbExportTimeTable.getTableName())
+                    .withHashOnlyKeys(STUDY_ID, oneStudyIdBatch.toArray())
+                    .withAttributeNames(STUDY_ID, LAST_EXPORT_RECORD_COUNT);
+            try {
+                ddbReadThrottle.acquire();
+                BatchGetItemOutcome outcome = ddbClient.batchGetItem(ReturnConsumedCapacity.TOTAL, keys);
+                ddbReadThrottle.recordConsumedCapacity(outcome.getBatchGetItemResult().getConsumedCapacity(),
+                        MIN_READ_UNITS * oneStudyIdBatch.size());
+                for (List<Item> oneItemList : outcome.getTableItems().values()) {
+                    for (Item oneItem : oneItemList) {
+                        if (oneItem.get(LAST_EXPORT_RECORD_COUNT) != null) {
+                            recordCountsByStudy.put(oneItem.getString(STUDY_ID),
+                                    oneItem.getInt(LAST_EXPORT_RECORD_COUNT));
+                        }
+                    }
+                }
+
+                if (outcome.getUnprocessedKeys() != null && !outcome.getUnprocessedKeys().isEmpty()) {
+                    ddbReadThrottle.onThrottled();
+                    LOG.warn("Unprocessed keys getting last export record counts, treating as unknown");
+                }
+            } catch (RuntimeException ex) {
+                if (ex instanceof ProvisionedThroughputExceededException) {
+                    ddbReadThrottle.onThrottled();
+                }
+                LOG.error("Unable to get last export record counts for studies " +
+                        BridgeExporterUtil.COMMA_SPACE_JOINER.join(oneStudyIdBatch) + ": " + ex.getMessage(), ex);
+            }
+        }
+        return recordCountsByStudy;
+    }
+
+    /**
+     * Helper method to update ddb exportTimeTable. If a record count is given for a study, that's also saved, so the
+     * next export can estimate its size. See {@link #getLastExportRecordCounts}.
+     */
+    public void updateExportTimeTable(List<String> studyIdsToUpdate, DateTime endDateTime,
+            Map<String, Integer> recordCountsByStudy) {
         if (!studyIdsToUpdate.isEmpty() && endDateTime != null) {
             for (String studyId: studyIdsToUpdate) {
                 rateLimiter.acquire();
 
+                Item exportTimeItem = new Item().withPrimaryKey(STUDY_ID, studyId).withNumber(LAST_EXPORT_DATE_TIME,
+                        endDateTime.getMillis());
+                Integer recordCount = recordCountsByStudy.get(studyId);
+                if (recordCount != null) {
+                    exportTimeItem.withNumber(LAST_EXPORT_RECORD_COUNT, recordCount);
+                }
+
                 try {
-                    ddbExportTimeTable.putItem(new Item().withPrimaryKey(STUDY_ID, studyId).withNumber(LAST_EXPORT_DATE_TIME, endDateTime.getMillis()));
+                    ddbExportTimeTable.putItem(exportTimeItem);
                 } catch (RuntimeException ex) {
                     LOG.error("Unable to update export time table for study id: " + studyId +
                             ex.getMessage(), ex);
@@ -228,6 +339,71 @@ public class DynamoHelper {
         }
     }
 
+    /**
+     * Adds a row to each study's data freshness history: how long records took from upload to being imported into
+     * Synapse, for this export. Rows expire after the configured retention, so this is a rolling history that can be
+     * used to compare export schedules. Studies with no freshness data (for example, no records) are skipped.
+     *
+     * @param exportedOn
+     *         when the export finished
+     * @param tag
+     *         request tag, to tell scheduled exports from redrives, may be null
+     * @param freshnessByStudy
+     *         map from study ID to the lag between upload and import for each record the study exported
+     */
+    public void addFreshnessHistory(DateTime exportedOn, String tag,
+            Map<String, LatencyHistogram.Snapshot> freshnessByStudy) {
+        long expiresOn = TimeUnit.MILLISECONDS.toSeconds(exportedOn.getMillis()) + TimeUnit.DAYS.toSeconds(
+                freshnessHistoryRetentionDays);
+        for (Map.Entry<String, LatencyHistogram.Snapshot> oneEntry : freshnessByStudy.entrySet()) {
+            String studyId = oneEntry.getKey();
+            LatencyHistogram.Snapshot freshness = oneEntry.getValue();
+            if (freshness.getCount() == 0) {
+                continue;
+            }
+
+            Item freshnessItem = new Item().withPrimaryKey(STUDY_ID, studyId, EXPORTED_ON, exportedOn.getMillis())
+                    .withNumber(FRESHNESS_NUM_RECORDS, freshness.getCount())
+                    .withNumber(FRESHNESS_P50_LAG_MILLIS, TimeUnit.MICROSECONDS.toMillis(
+                            freshness.getValueAtPercentile(50.0)))
+                    .withNumber(FRESHNESS_P90_LAG_MILLIS, TimeUnit.MICROSECONDS.toMillis(
+                            freshness.getValueAtPercentile(90.0)))
+                    .withNumber(FRESHNESS_P99_LAG_MILLIS, TimeUnit.MICROSECONDS.toMillis(
+                            freshness.getValueAtPercentile(99.0)))
+                    .withNumber(FRESHNESS_MAX_LAG_MILLIS, TimeUnit.MICROSECONDS.toMillis(freshness.getMaxMicros()))
+                    .withNumber(EXPIRES_ON, expiresOn);
+            if (tag != null) {
+                freshnessItem.withString(TAG, tag);
+            }
+
+            rateLimiter.acquire();
+            try {
+                ddbExportFreshnessTable.putItem(freshnessItem);
+            } catch (RuntimeException ex) {
+                LOG.error("Unable to add freshness history for study id " + studyId + ": " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    // Helper method which gets a single item through the DDB read throttle, and records the capacity DDB says the read
+    // consumed. Items in the study and export time tables are small, so if DDB doesn't return consumed capacity, we
+    // assume the read cost the minimum.
+    private Item getItemThrottled(Table table, String hashKeyName, String hashKeyValue) {
+        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(hashKeyName, hashKeyValue)
+                .withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+
+        ddbReadThrottle.acquire();
+        try {
+            GetItemOutcome outcome = table.getItemOutcome(getItemSpec);
+            ddbReadThrottle.recordConsumedCapacity(Collections.singletonList(
+                    outcome.getGetItemResult().getConsumedCapacity()), MIN_READ_UNITS);
+            return outcome.getItem();
+        } catch (ProvisionedThroughputExceededException ex) {
+            ddbReadThrottle.onThrottled();
+            throw ex;
+        }
+    }
+
     /**
      * Helper function to parse ddb boolean value into boolean
      */
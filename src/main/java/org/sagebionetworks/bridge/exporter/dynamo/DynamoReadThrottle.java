@@ -0,0 +1,282 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Resource;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * <p>
+ * Adaptive throttle for DDB reads, shared by everything in Bridge-EX that reads from DDB. The rate is in read capacity
+ * units per second. Callers call {@link #acquire} before each read and report what the read cost with
+ * {@link #recordConsumedCapacity}. The cost of a read is paid by the next read, since we don't know the cost until
+ * DDB tells us.
+ * </p>
+ * <p>
+ * The rate is adjusted with additive-increase / multiplicative-decrease. Each adjustment period without throttling
+ * raises the rate by a fixed step, up to the target fraction of the record table's provisioned read capacity. Each
+ * throttling event (a ProvisionedThroughputExceededException or unprocessed keys in a batch get) cuts the rate by the
+ * decrease factor, down to the min rate. Increases and decreases are timed separately, so steady reads don't keep the
+ * rate from coming down while DDB is throttling. A decrease also restarts the increase period. If the table has no
+ * provisioned capacity (on-demand) or we can't describe it, the configured max rate is the ceiling instead.
+ * </p>
+ */
+@Component
+public class DynamoReadThrottle {
+    private static final Logger LOG = LoggerFactory.getLogger(DynamoReadThrottle.class);
+
+    // Eventually consistent reads cost half a read capacity unit per 4KB, or one unit per 8KB.
+    private static final double BYTES_PER_READ_UNIT = 8192.0;
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_ADJUST_PERIOD_MILLIS = "ddb.read.throttle.adjust.period.millis";
+    static final String CONFIG_KEY_DECREASE_FACTOR = "ddb.read.throttle.decrease.factor";
+    static final String CONFIG_KEY_INCREASE_STEP = "ddb.read.throttle.increase.step";
+    static final String CONFIG_KEY_INITIAL_RATE = "ddb.read.throttle.initial.rate";
+    static final String CONFIG_KEY_MAX_RATE = "ddb.read.throttle.max.rate";
+    static final String CONFIG_KEY_MIN_RATE = "ddb.read.throttle.min.rate";
+    static final String CONFIG_KEY_TARGET_FRACTION = "ddb.read.throttle.target.fraction";
+
+    static final String METRICS_RATE = "ddbReadThrottle.rate";
+    static final String METRICS_THROTTLE_EVENTS = "ddbReadThrottle.throttleEvents";
+    static final String METRICS_WAIT_MILLIS = "ddbReadThrottle.waitMillis";
+
+    // config attributes
+    private long adjustPeriodMillis;
+    private double decreaseFactor;
+    private double increaseStep;
+    private double maxRate;
+    private double minRate;
+    private double targetFraction;
+
+    // Spring helpers
+    private Table ddbRecordTable;
+
+    // Rate limiter, in read capacity units per second. Thread-safe on its own. The rate is adjusted under this
+    // object's lock.
+    private final RateLimiter rateLimiter = RateLimiter.create(1.0);
+
+    // Accumulated across all requests. Callers take the difference to get per-request values.
+    private final AtomicInteger numThrottleEvents = new AtomicInteger();
+    private final AtomicLong totalWaitMicros = new AtomicLong();
+
+    // The following are guarded by this object's lock. Ceiling is lazily initialized, since it requires a
+    // DescribeTable call.
+    private Double ceilingRate;
+    private long lastDecreaseMillis;
+    private long lastIncreaseMillis;
+    private double pendingUnits;
+    private double rate;
+
+    /** Config, used to get the initial rate, rate bounds, and AIMD parameters. */
+    @Autowired
+    final void setConfig(Config config) {
+        adjustPeriodMillis = config.getInt(CONFIG_KEY_ADJUST_PERIOD_MILLIS);
+        decreaseFactor = Double.parseDouble(config.get(CONFIG_KEY_DECREASE_FACTOR));
+        increaseStep = Double.parseDouble(config.get(CONFIG_KEY_INCREASE_STEP));
+        maxRate = Double.parseDouble(config.get(CONFIG_KEY_MAX_RATE));
+        minRate = Math.max(0.1, Double.parseDouble(config.get(CONFIG_KEY_MIN_RATE)));
+        targetFraction = Double.parseDouble(config.get(CONFIG_KEY_TARGET_FRACTION));
+
+        // Don't clamp to the ceiling yet. The record table might not be set yet, and we don't want to describe it
+        // until we actually read something.
+        synchronized (this) {
+            rate = Math.max(minRate, Math.min(Double.parseDouble(config.get(CONFIG_KEY_INITIAL_RATE)), maxRate));
+            rateLimiter.setRate(rate);
+        }
+    }
+
+    /** DDB Health Data Record table, described to get the provisioned read capacity. */
+    @Resource(name = "ddbRecordTable")
+    final void setDdbRecordTable(Table ddbRecordTable) {
+        this.ddbRecordTable = ddbRecordTable;
+    }
+
+    /**
+     * Blocks until the throttle allows another read. This pays for the capacity consumed by previous reads. Call this
+     * before each DDB read.
+     */
+    public void acquire() {
+        int permits;
+        synchronized (this) {
+            permits = (int) pendingUnits;
+            pendingUnits -= permits;
+        }
+
+        if (permits > 0) {
+            double waitSeconds = rateLimiter.acquire(permits);
+            totalWaitMicros.addAndGet((long) (waitSeconds * TimeUnit.SECONDS.toMicros(1)));
+        }
+    }
+
+    /**
+     * Records capacity consumed by a successful read, as returned by DDB. If DDB didn't return consumed capacity,
+     * the given estimate is used instead.
+     *
+     * @param consumedCapacityList
+     *         consumed capacity returned by DDB, may be null or empty
+     * @param estimatedUnits
+     *         estimated read capacity units, used if DDB didn't return consumed capacity
+     */
+    public void recordConsumedCapacity(List<ConsumedCapacity> consumedCapacityList, double estimatedUnits) {
+        double units = 0.0;
+        boolean hasConsumedCapacity = false;
+        if (consumedCapacityList != null) {
+            for (ConsumedCapacity oneConsumedCapacity : consumedCapacityList) {
+                if (oneConsumedCapacity != null && oneConsumedCapacity.getCapacityUnits() != null) {
+                    units += oneConsumedCapacity.getCapacityUnits();
+                    hasConsumedCapacity = true;
+                }
+            }
+        }
+        recordConsumedCapacity(hasConsumedCapacity ? units : estimatedUnits);
+    }
+
+    /**
+     * Records read capacity units consumed by a successful read. This also raises the rate if a full adjustment period
+     * has passed since the last increase or decrease.
+     *
+     * @param units
+     *         read capacity units consumed
+     */
+    public void recordConsumedCapacity(double units) {
+        synchronized (this) {
+            pendingUnits += units;
+
+            long nowMillis = now();
+            if (nowMillis - lastIncreaseMillis >= adjustPeriodMillis) {
+                // This also brings the rate down to the ceiling, if the initial rate was above it.
+                setRateLocked(rate + increaseStep);
+                lastIncreaseMillis = nowMillis;
+            }
+        }
+    }
+
+    /**
+     * Records that DDB throttled a read. This cuts the rate by the decrease factor. Throttling events within the same
+     * adjustment period are usually from the same burst, so the rate is cut at most once per period. Increases don't
+     * count towards this, so the rate is cut even if reads raised it earlier in the period. Cutting the rate also
+     * restarts the increase period, so the next increase is a full period later.
+     */
+    public void onThrottled() {
+        numThrottleEvents.incrementAndGet();
+        synchronized (this) {
+            long nowMillis = now();
+            if (nowMillis - lastDecreaseMillis >= adjustPeriodMillis) {
+                double oldRate = rate;
+                setRateLocked(rate * decreaseFactor);
+                lastDecreaseMillis = nowMillis;
+                lastIncreaseMillis = nowMillis;
+                LOG.warn("DDB read throttled, reducing rate from " + String.format("%.1f", oldRate) + " to " +
+                        String.format("%.1f", rate) + " read units/sec");
+            }
+        }
+    }
+
+    /** Current rate, in read capacity units per second. */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * Max rate the throttle will ramp up to, in read capacity units per second. This is the target fraction of the
+     * record table's provisioned read capacity, or the configured max rate if the table is on-demand.
+     */
+    public synchronized double getCeilingRate() {
+        return getCeilingRateLocked();
+    }
+
+    /** Total time callers have spent waiting on the throttle, in milliseconds, since the process started. */
+    public long getTotalWaitMillis() {
+        return TimeUnit.MICROSECONDS.toMillis(totalWaitMicros.get());
+    }
+
+    /**
+     * Publishes the current rate, and the wait time and throttling events since the given starting point, to the
+     * given metrics.
+     *
+     * @param metrics
+     *         metrics to write to
+     * @param waitMillisAtStart
+     *         value of {@link #getTotalWaitMillis} when the request started
+     * @param throttleEventsAtStart
+     *         value of {@link #getNumThrottleEvents} when the request started
+     */
+    public void publishMetrics(Metrics metrics, long waitMillisAtStart, int throttleEventsAtStart) {
+        metrics.addKeyValuePair(METRICS_RATE, String.format("%.1f", getRate()));
+        metrics.incrementCounter(METRICS_THROTTLE_EVENTS, getNumThrottleEvents() - throttleEventsAtStart);
+        metrics.incrementCounter(METRICS_WAIT_MILLIS, (int) (getTotalWaitMillis() - waitMillisAtStart));
+    }
+
+    /** Total number of throttling events since the process started. */
+    public int getNumThrottleEvents() {
+        return numThrottleEvents.get();
+    }
+
+    /**
+     * Estimates the read capacity units for reading the given item with an eventually consistent read, for reads
+     * where DDB doesn't tell us the consumed capacity. This uses the item's JSON size as an approximation of its DDB
+     * size.
+     */
+    public static double estimateReadUnits(Item item) {
+        return item.toJSON().length() / BYTES_PER_READ_UNIT;
+    }
+
+    // Sets the rate, clamped to the min rate and the ceiling. Must be called with this object's lock held.
+    private void setRateLocked(double newRate) {
+        rate = Math.max(minRate, Math.min(newRate, getCeilingRateLocked()));
+        rateLimiter.setRate(rate);
+    }
+
+    // Gets the max rate, which is the target fraction of the record table's provisioned read capacity. This describes
+    // the table once and caches the result. Must be called with this object's lock held.
+    private double getCeilingRateLocked() {
+        if (ceilingRate == null) {
+            ceilingRate = Math.max(minRate, describeCeilingRate());
+            LOG.info("DDB read throttle ceiling is " + String.format("%.1f", ceilingRate) + " read units/sec");
+        }
+        return ceilingRate;
+    }
+
+    // Helper method which describes the record table to compute the ceiling rate. Falls back to the max rate.
+    private double describeCeilingRate() {
+        if (ddbRecordTable == null) {
+            return maxRate;
+        }
+
+        ProvisionedThroughputDescription throughput;
+        try {
+            throughput = ddbRecordTable.describe().getProvisionedThroughput();
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error describing record table, using max DDB read rate: " + ex.getMessage(), ex);
+            return maxRate;
+        }
+
+        if (throughput == null || throughput.getReadCapacityUnits() == null ||
+                throughput.getReadCapacityUnits() <= 0) {
+            // On-demand tables have no provisioned capacity.
+            return maxRate;
+        }
+        return Math.min(maxRate, throughput.getReadCapacityUnits() * targetFraction);
+    }
+
+    // Current time in milliseconds. Package-scoped so unit tests can spy and control time.
+    long now() {
+        return System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,91 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import java.util.Iterator;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Wraps a lazily paginated DDB item iterable (like a query) so that reading it goes through the
+ * {@link DynamoReadThrottle}. The query results don't tell us their consumed capacity, so each item is charged its
+ * estimated size. Pages are fetched from hasNext(), so that's where we wait on the throttle.
+ *
+ * Optionally, reads are also limited by a rate limiter specific to this iterable (for example, one segment of a
+ * parallel scan), in read capacity units per second. This caps how much of the shared throttle any one reader can use.
+ */
+public class ThrottledItemIterable implements Iterable<Item> {
+    private final Iterable<Item> delegate;
+    private final RateLimiter localRateLimiter;
+    private final DynamoReadThrottle throttle;
+
+    /**
+     * Constructs the throttled iterable.
+     *
+     * @param throttle
+     *         throttle to wait on and report to
+     * @param delegate
+     *         DDB item iterable to wrap
+     */
+    public ThrottledItemIterable(DynamoReadThrottle throttle, Iterable<Item> delegate) {
+        this(throttle, null, delegate);
+    }
+
+    /**
+     * Constructs the throttled iterable with an additional local rate limit.
+     *
+     * @param throttle
+     *         throttle to wait on and report to
+     * @param localRateLimiter
+     *         rate limiter specific to this iterable, in read capacity units per second, or null for no local limit
+     * @param delegate
+     *         DDB item iterable to wrap
+     */
+    public ThrottledItemIterable(DynamoReadThrottle throttle, RateLimiter localRateLimiter, Iterable<Item> delegate) {
+        this.delegate = delegate;
+        this.localRateLimiter = localRateLimiter;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public Iterator<Item> iterator() {
+        Iterator<Item> delegateIterator = delegate.iterator();
+        return new Iterator<Item>() {
+            private double localReadUnitsOwed = 0.0;
+
+            @Override
+            public boolean hasNext() {
+                throttle.acquire();
+                try {
+                    return delegateIterator.hasNext();
+                } catch (ProvisionedThroughputExceededException ex) {
+                    throttle.onThrottled();
+                    throw ex;
+                }
+            }
+
+            @Override
+            public Item next() {
+                Item item;
+                try {
+                    item = delegateIterator.next();
+                } catch (ProvisionedThroughputExceededException ex) {
+                    throttle.onThrottled();
+                    throw ex;
+                }
+                double readUnits = DynamoReadThrottle.estimateReadUnits(item);
+                throttle.recordConsumedCapacity(readUnits);
+                if (localRateLimiter != null) {
+                    // Rate limiter permits are whole units. Carry the fraction over to the next item.
+                    localReadUnitsOwed += readUnits;
+                    int permits = (int) localReadUnitsOwed;
+                    if (permits > 0) {
+                        localReadUnitsOwed -= permits;
+                        localRateLimiter.acquire(permits);
+                    }
+                }
+                return item;
+            }
+        };
+    }
+}
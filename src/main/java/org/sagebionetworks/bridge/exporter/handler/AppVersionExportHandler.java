@@ -10,6 +10,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.ColumnType;
 
+import org.sagebionetworks.bridge.exporter.metrics.MetricName;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
@@ -23,6 +24,9 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
  * app version, upload date, and original table, along with any other relevant attributes.
  */
 public class AppVersionExportHandler extends SynapseExportHandler {
+    private static final MetricName<String> METRICS_UNIQUE_APP_VERSIONS = new MetricName<>("uniqueAppVersions[",
+            "]");
+
     private final static List<ColumnModel> APPVERSION_COLUMN_LIST;
     static {
         ImmutableList.Builder<ColumnModel> columnListBuilder = ImmutableList.builder();
@@ -80,7 +84,7 @@ public class AppVersionExportHandler extends SynapseExportHandler {
         PhoneAppVersionInfo phoneAppVersionInfo = PhoneAppVersionInfo.fromRecord(record);
         String appVersion = phoneAppVersionInfo.getAppVersion();
         if (StringUtils.isNotBlank(appVersion)) {
-            task.getMetrics().addKeyValuePair("uniqueAppVersions[" + getStudyId() + "]", appVersion);
+            task.getMetrics().addKeyValuePair(METRICS_UNIQUE_APP_VERSIONS, getStudyId(), appVersion);
         }
 
         // check isStudyIdExcludedInExport to see how we should format the originalTable value
@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
+import org.sagebionetworks.bridge.exporter.metrics.MetricName;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
@@ -25,6 +26,9 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 public class IosSurveyExportHandler extends ExportHandler {
     private static final Logger LOG = LoggerFactory.getLogger(IosSurveyExportHandler.class);
 
+    private static final MetricName<String> METRICS_ERROR_COUNT = new MetricName<>("surveyWorker[", "].errorCount");
+    private static final MetricName<String> METRICS_SURVEY_COUNT = new MetricName<>("surveyWorker[", "].surveyCount");
+
     @Override
     public void handle(ExportSubtask subtask) throws BridgeExporterException, IOException, SchemaNotFoundException {
         Metrics metrics = subtask.getParentTask().getMetrics();
@@ -33,10 +37,10 @@ public class IosSurveyExportHandler extends ExportHandler {
 
         try {
             processRecordAsSurvey(subtask);
-            metrics.incrementCounter("surveyWorker[" + studyId + "].surveyCount");
+            metrics.getCounter(METRICS_SURVEY_COUNT, studyId).increment();
         } catch (BridgeExporterException | IOException | RuntimeException | SchemaNotFoundException ex) {
             // Log metrics and rethrow.
-            metrics.incrementCounter("surveyWorker[" + studyId + "].errorCount");
+            metrics.getCounter(METRICS_ERROR_COUNT, studyId).increment();
             LOG.error("Error processing survey record " + recordId + " for study " + studyId + ": " + ex.getMessage(),
                     ex);
             throw ex;
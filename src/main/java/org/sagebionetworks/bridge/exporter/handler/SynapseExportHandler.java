@@ -11,6 +11,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.google.common.collect.ImmutableList;
@@ -29,6 +30,8 @@ import org.slf4j.LoggerFactory;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterNonRetryableException;
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
+import org.sagebionetworks.bridge.exporter.metrics.MetricName;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
@@ -47,6 +50,23 @@ import org.sagebionetworks.bridge.file.FileHelper;
 public abstract class SynapseExportHandler extends ExportHandler {
     private static final Logger LOG = LoggerFactory.getLogger(SynapseExportHandler.class);
 
+    /**
+     * Prefix of the per-study data freshness histograms: the lag from each record's upload to when its TSV finished
+     * importing into Synapse. Suffixed with the study ID.
+     */
+    public static final String METRICS_FRESHNESS_STUDY_PREFIX = Metrics.LATENCY_PREFIX + "freshness.study.";
+
+    // package-scoped to be available to unit tests
+    static final String METRICS_FRESHNESS_TABLE_PREFIX = Metrics.LATENCY_PREFIX + "freshness.table.";
+
+    // Per-table counters, keyed by handler, so we don't build the table key for each record.
+    private static final MetricName<SynapseExportHandler> METRICS_LINE_COUNT = new MetricName<>(
+            handler -> handler.getDdbTableKeyValue() + ".lineCount");
+    private static final MetricName<SynapseExportHandler> METRICS_ERROR_COUNT = new MetricName<>(
+            handler -> handler.getDdbTableKeyValue() + ".errorCount");
+    private static final MetricName<SynapseExportHandler> METRICS_PREVIOUSLY_IMPORTED_COUNT = new MetricName<>(
+            handler -> handler.getDdbTableKeyValue() + ".previouslyImportedCount");
+
     private List<ColumnModel> commonColumnList;
 
     private List<ColumnDefinition> columnDefinition;
@@ -93,10 +113,14 @@ public abstract class SynapseExportHandler extends ExportHandler {
     @Override
     public void handle(ExportSubtask subtask) throws BridgeExporterException, IOException, SchemaNotFoundException,
             SynapseException {
-        String tableKey = getDdbTableKeyValue();
         ExportTask task = subtask.getParentTask();
         Metrics metrics = task.getMetrics();
         String recordId = subtask.getRecordId();
+        if (task.isRecordPreviouslyImported(getDdbTableKeyValue(), recordId)) {
+            // A previous run of this request already imported this row in a TSV segment before it was restarted.
+            metrics.getCounter(METRICS_PREVIOUSLY_IMPORTED_COUNT, this).increment();
+            return;
+        }
 
         try {
             // get TSV info (init if necessary)
@@ -108,16 +132,34 @@ public abstract class SynapseExportHandler extends ExportHandler {
             rowValueMap.putAll(getCommonRowValueMap(subtask));
             rowValueMap.putAll(getTsvRowValueMap(subtask));
 
-            // write to TSV
-            tsvInfo.writeRow(rowValueMap);
-            // add one record into tsv
-            tsvInfo.addRecordId(recordId);
-            metrics.incrementCounter(tableKey + ".lineCount");
+            // If the segment was sealed since we got it, the task already has the next segment.
+            while (!tsvInfo.tryBeginRow()) {
+                tsvInfo = initTsvForTask(task);
+                tsvInfo.checkInitAndThrow();
+            }
+            try {
+                // write to TSV
+                tsvInfo.writeRow(rowValueMap);
+                // add one record into tsv
+                tsvInfo.addRecordId(recordId);
+                Long uploadedOn = getUploadedOn(subtask.getOriginalRecord());
+                if (uploadedOn != null) {
+                    tsvInfo.addUploadedOn(uploadedOn);
+                }
+            } finally {
+                tsvInfo.endRow();
+            }
+            metrics.getCounter(METRICS_LINE_COUNT, this).increment();
+
+            if (isSegmentFull(tsvInfo)) {
+                rollSegmentForTask(task, tsvInfo);
+            }
         } catch (BridgeExporterException | IOException | RuntimeException | SchemaNotFoundException |
                 SynapseException ex) {
             // Log metrics and rethrow.
-            metrics.incrementCounter(tableKey + ".errorCount");
-            LOG.error("Error processing record " + recordId + " for table " + tableKey + ": " + ex.getMessage(), ex);
+            metrics.getCounter(METRICS_ERROR_COUNT, this).increment();
+            LOG.error("Error processing record " + recordId + " for table " + getDdbTableKeyValue() + ": " +
+                    ex.getMessage(), ex);
             throw ex;
         }
     }
@@ -136,21 +178,7 @@ public abstract class SynapseExportHandler extends ExportHandler {
         try {
             // get column name list
             List<String> columnNameList = getColumnNameList(task);
-
-            // create TSV and writer
-            FileHelper fileHelper = getManager().getFileHelper();
-
-            // For the TSV filename, replace any characters that aren't alphanumeric, dash, or underscore. Since these
-            // are temp files, we don't need to worry about readability, so don't worry about replacing these
-            // characters with anything. Also append a short random string to (probabilistically) ensure uniqueness.
-            String filename = getDdbTableKeyValue().replaceAll("[^A-Za-z0-9\\-_]", "") +
-                    RandomStringUtils.randomAlphabetic(4) + ".tsv";
-
-            File tsvFile = fileHelper.newFile(task.getTmpDir(), filename);
-            Writer fileWriter = fileHelper.getWriter(tsvFile);
-
-            // create TSV info
-            tsvInfo = new TsvInfo(columnNameList, tsvFile, fileWriter);
+            tsvInfo = createTsv(task, columnNameList);
         } catch (BridgeExporterException | FileNotFoundException | SchemaNotFoundException | SynapseException ex) {
             LOG.error("Error initializing TSV for table " + getDdbTableKeyValue() + ": " + ex.getMessage(), ex);
             tsvInfo = new TsvInfo(ex);
@@ -160,6 +188,90 @@ public abstract class SynapseExportHandler extends ExportHandler {
         return tsvInfo;
     }
 
+    // Creates the TSV file and writer for the task, with the given columns.
+    private TsvInfo createTsv(ExportTask task, List<String> columnNameList) throws FileNotFoundException {
+        FileHelper fileHelper = getManager().getFileHelper();
+
+        // For the TSV filename, replace any characters that aren't alphanumeric, dash, or underscore. Since these
+        // are temp files, we don't need to worry about readability, so don't worry about replacing these
+        // characters with anything. Also append a short random string to (probabilistically) ensure uniqueness.
+        String filename = getDdbTableKeyValue().replaceAll("[^A-Za-z0-9\\-_]", "") +
+                RandomStringUtils.randomAlphabetic(4) + ".tsv";
+
+        File tsvFile = fileHelper.newFile(task.getTmpDir(), filename);
+        Writer fileWriter = fileHelper.getWriter(tsvFile);
+
+        // create TSV info. In sharded mode, shard files are created next to the TSV file.
+        TsvInfo.ShardWriterFactory shardWriterFactory = getManager().isTsvShardedEnabled() ?
+                fileHelper::getWriter : null;
+        TsvInfo tsvInfo = new TsvInfo(columnNameList, tsvFile, fileWriter, shardWriterFactory);
+        tsvInfo.setMetrics(task.getMetrics());
+        return tsvInfo;
+    }
+
+    // True if rolling segments are enabled and the given segment has reached the max rows or bytes.
+    private boolean isSegmentFull(TsvInfo tsvInfo) {
+        ExportWorkerManager manager = getManager();
+        int maxRows = manager.getTsvSegmentMaxRows();
+        long maxBytes = manager.getTsvSegmentMaxBytes();
+        return (maxRows > 0 && tsvInfo.getLineCount() >= maxRows) ||
+                (maxBytes > 0 && tsvInfo.getNumBytes() >= maxBytes);
+    }
+
+    /**
+     * Seals the task's current TSV segment and starts importing it to Synapse in the background, while new rows go to
+     * a new segment. This is called when a segment is full, and at the end of the stream for tables that have already
+     * rolled over, so that all of the table's segments are imported the same way. Does nothing if the segment was
+     * already rolled over, or if the request is restarting, since Synapse is failing. In that case, the rows stay in
+     * the current segment, which is exported by the restarted request, or uploaded with the rest of the table if the
+     * request can't restart.
+     *
+     * @param task
+     *         task the TSV belongs to
+     * @param tsvInfo
+     *         segment to seal
+     */
+    public synchronized void rollSegmentForTask(ExportTask task, TsvInfo tsvInfo) {
+        if (getTsvInfoForTask(task) != tsvInfo || tsvInfo.isSealed()) {
+            // Another thread already rolled over this segment.
+            return;
+        }
+        if (task.getRestartException() != null) {
+            // Synapse is failing. Don't import more segments.
+            return;
+        }
+
+        // The next segment has the same columns, so we don't need to check the Synapse table again. Set it in the
+        // task before sealing, so writers that see the sealed segment find the next one.
+        TsvInfo nextTsvInfo;
+        try {
+            nextTsvInfo = createTsv(task, tsvInfo.getColumnNameList());
+        } catch (FileNotFoundException ex) {
+            LOG.error("Error creating next TSV segment for table " + getDdbTableKeyValue() + ": " + ex.getMessage(),
+                    ex);
+            nextTsvInfo = new TsvInfo(ex);
+        }
+        nextTsvInfo.setSegmentIndex(tsvInfo.getSegmentIndex() + 1);
+        setTsvInfoForTask(task, nextTsvInfo);
+        tsvInfo.seal();
+
+        LOG.info("Rolling over TSV segment " + tsvInfo.getSegmentIndex() + " for table " + getDdbTableKeyValue() +
+                " with " + tsvInfo.getLineCount() + " lines");
+        getManager().importTsvSegmentAsync(task, this, tsvInfo);
+    }
+
+    /**
+     * If this table has rolled over to a later segment, this rolls over the last segment, so it's imported like the
+     * others. Called at the end of the stream, after all rows are written.
+     */
+    public void rollLastSegmentForTask(ExportTask task) {
+        TsvInfo tsvInfo = getTsvInfoForTask(task);
+        if (tsvInfo != null && tsvInfo.getInitError() == null && tsvInfo.getSegmentIndex() > 0 &&
+                tsvInfo.getLineCount() > 0) {
+            rollSegmentForTask(task, tsvInfo);
+        }
+    }
+
     // Gets the column name list from Synapse. If the Synapse table doesn't exist, this will create it. This is called
     // when initializing the TSV for a task.
     private List<String> getColumnNameList(ExportTask task) throws BridgeExporterException, SchemaNotFoundException,
@@ -343,13 +455,31 @@ public abstract class SynapseExportHandler extends ExportHandler {
      * Synapse.
      */
     public void uploadToSynapseForTask(ExportTask task) throws BridgeExporterException, IOException, SynapseException {
-        ExportWorkerManager manager = getManager();
         TsvInfo tsvInfo = getTsvInfoForTask(task);
         if (tsvInfo == null) {
             // No TSV. This means we never wrote any records. Skip.
             return;
         }
+        uploadTsvToSynapse(task, tsvInfo);
+    }
 
+    /**
+     * Uploads a sealed TSV segment to Synapse. This waits for rows that were in progress when the segment was sealed.
+     * Once the segment is imported, this tells the manager, so a restarted request doesn't import its rows again. See
+     * {@link #rollSegmentForTask}.
+     */
+    public void uploadSegmentToSynapse(ExportTask task, TsvInfo tsvInfo) throws BridgeExporterException,
+            InterruptedException, IOException, SynapseException {
+        tsvInfo.waitForRowsInProgress();
+        uploadTsvToSynapse(task, tsvInfo);
+        getManager().markSegmentImported(task, getDdbTableKeyValue(), tsvInfo.getRecordIds());
+    }
+
+    // Helper method which flushes the given TSV and uploads it to Synapse, then updates the records' exporter status
+    // and deletes the file.
+    private void uploadTsvToSynapse(ExportTask task, TsvInfo tsvInfo) throws BridgeExporterException, IOException,
+            SynapseException {
+        ExportWorkerManager manager = getManager();
         File tsvFile = tsvInfo.getFile();
         tsvInfo.flushAndCloseWriter();
 
@@ -364,6 +494,7 @@ public abstract class SynapseExportHandler extends ExportHandler {
                 throw new BridgeExporterException("Wrong number of lines processed importing to table=" +
                         synapseTableId + ", expected=" + lineCount + ", actual=" + linesProcessed);
             }
+            recordFreshness(task, tsvInfo);
 
             // call java sdk api to update records' exporter status
             postProcessTsv(tsvInfo);
@@ -375,6 +506,35 @@ public abstract class SynapseExportHandler extends ExportHandler {
         manager.getFileHelper().deleteFile(tsvFile);
     }
 
+    // Helper method which gets the record's upload time, falling back to its creation time for older records. Null if
+    // the record has neither.
+    private static Long getUploadedOn(Item record) {
+        if (record.get("uploadedOn") != null) {
+            return record.getLong("uploadedOn");
+        } else if (record.get("createdOn") != null) {
+            return record.getLong("createdOn");
+        } else {
+            return null;
+        }
+    }
+
+    // Helper method which records the lag from each record's upload to now, when its TSV finished importing into
+    // Synapse, in the task's per-study and per-table freshness histograms. Upload times are counted in buckets, so
+    // the lag is measured from the middle of each record's bucket.
+    private void recordFreshness(ExportTask task, TsvInfo tsvInfo) {
+        long importedOn = System.currentTimeMillis();
+        Metrics metrics = task.getMetrics();
+        LatencyHistogram studyHistogram = metrics.getLatencyHistogram(METRICS_FRESHNESS_STUDY_PREFIX + getStudyId());
+        LatencyHistogram tableHistogram = metrics.getLatencyHistogram(METRICS_FRESHNESS_TABLE_PREFIX +
+                getDdbTableKeyValue());
+        for (Map.Entry<Long, Integer> oneBucketEntry : tsvInfo.getUploadedOnCountsByBucket().entrySet()) {
+            long bucketMidpoint = oneBucketEntry.getKey() + TsvInfo.UPLOADED_ON_BUCKET_MILLIS / 2;
+            long lagNanos = TimeUnit.MILLISECONDS.toNanos(importedOn - bucketMidpoint);
+            studyHistogram.recordNanos(lagNanos, oneBucketEntry.getValue());
+            tableHistogram.recordNanos(lagNanos, oneBucketEntry.getValue());
+        }
+    }
+
     /** Table name (excluding prefix) of the DDB table that holds Synapse table IDs. */
     protected abstract String getDdbTableName();
 
@@ -5,13 +5,16 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.RateLimiter;
 import com.jcabi.aspects.Cacheable;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.exporter.metrics.StageLatencyTracker;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
@@ -29,11 +32,19 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 public class BridgeHelper {
     private static final int MAX_BATCH_SIZE = 25;
 
+    // package-scoped to be available to unit tests
+    static final String RATE_LIMITER_BRIDGE = "bridge";
+    static final String STAGE_GET_PARTICIPANT = "bridge.getParticipant";
+    static final String STAGE_GET_SCHEMA = "bridge.getSchema";
+
     private ClientManager bridgeClientManager;
 
+    // Defaults to a tracker of our own, so that this works without Spring.
+    private StageLatencyTracker stageLatencyTracker = new StageLatencyTracker();
+
     // Rate limiter, used to limit the amount of traffic to Bridge, specifically for when we loop over a potentially
     // unbounded series of studies. Conservatively limit at 1 req/sec.
-    private final RateLimiter rateLimiter = RateLimiter.create(1.0);
+    private final InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter(RATE_LIMITER_BRIDGE, 1.0);
 
     /** Bridge Client Manager, with credentials for Exporter account. This is used to refresh the session. */
     @Autowired
@@ -41,6 +52,18 @@ public class BridgeHelper {
         this.bridgeClientManager = bridgeClientManager;
     }
 
+    /** Rate limiter registry. We register our rate limiter, so its wait time is published with the metrics. */
+    @Autowired
+    public final void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        rateLimiterRegistry.register(rateLimiter);
+    }
+
+    /** Stage latency tracker, used to time calls to Bridge. */
+    @Autowired
+    public final void setStageLatencyTracker(StageLatencyTracker stageLatencyTracker) {
+        this.stageLatencyTracker = stageLatencyTracker;
+    }
+
     /**
      * Signals Bridge Server that the upload is completed and to begin processing the upload. Used by Upload
      * Auto-Complete.
@@ -57,10 +80,12 @@ public class BridgeHelper {
         }
     }
 
-    /** Gets the participant from Bridge for the specified study and health code. */
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
+    /**
+     * Gets the participant from Bridge for the specified study and health code. This isn't cached. For sharing scopes,
+     * use {@link SharingScopeCache}.
+     */
     public StudyParticipant getParticipantByHealthCode(String studyId, String healthCode) {
-        try {
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_GET_PARTICIPANT)) {
             return bridgeClientManager.getClient(ForWorkersApi.class).getParticipantInStudyByHealthCode(studyId,
                     healthCode, false).execute().body();
         } catch (IOException ex) {
@@ -100,7 +125,10 @@ public class BridgeHelper {
      *         if the schema doesn't exist
      */
     public UploadSchema getSchema(Metrics metrics, UploadSchemaKey schemaKey) throws SchemaNotFoundException {
-        UploadSchema schema = getSchemaCached(schemaKey);
+        UploadSchema schema;
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_GET_SCHEMA)) {
+            schema = getSchemaCached(schemaKey);
+        }
         if (schema == null) {
             metrics.addKeyValuePair("schemasNotFound", schemaKey.toString());
             throw new SchemaNotFoundException("Schema not found: " + schemaKey.toString());
@@ -24,6 +24,8 @@ import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
+import org.sagebionetworks.bridge.exporter.metrics.StageLatencyTracker;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.json.DefaultObjectMapper;
@@ -54,6 +56,10 @@ public class ExportHelper {
             .put("TimeOfDay", "dateComponentsAnswer")
             .build();
 
+    // package-scoped to be available to unit tests
+    static final String STAGE_PUT_ATTACHMENT = "ddb.putAttachment";
+    static final String STAGE_WRITE_ATTACHMENT = "s3.writeAttachment";
+
     // config attributes
     private String attachmentBucket;
 
@@ -62,6 +68,9 @@ public class ExportHelper {
     private DigestUtils md5DigestUtils;
     private S3Helper s3Helper;
 
+    // Defaults to a tracker of our own, so that this works without Spring.
+    private StageLatencyTracker stageLatencyTracker = new StageLatencyTracker();
+
     /** Config, used to get the S3 attachments bucket. */
     @Autowired
     public final void setConfig(Config config) {
@@ -86,6 +95,12 @@ public class ExportHelper {
         this.s3Helper = s3Helper;
     }
 
+    /** Stage latency tracker, used to time attachment writes to DDB and S3. */
+    @Autowired
+    public final void setStageLatencyTracker(StageLatencyTracker stageLatencyTracker) {
+        this.stageLatencyTracker = stageLatencyTracker;
+    }
+
     /**
      * Helper method to convert legacy surveys to a Synapse record.
      *
@@ -225,7 +240,9 @@ public class ExportHelper {
         Item attachment = new Item();
         attachment.withString("id", attachmentId);
         attachment.withString("recordId", recordId);
-        ddbAttachmentTable.putItem(attachment);
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_PUT_ATTACHMENT)) {
+            ddbAttachmentTable.putItem(attachment);
+        }
 
         // Calculate MD5 (hex-encoded).
         byte[] bytes = text.getBytes(Charsets.UTF_8);
@@ -237,7 +254,9 @@ public class ExportHelper {
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.addUserMetadata(BridgeExporterUtil.KEY_CUSTOM_CONTENT_MD5, md5HexEncoded);
         metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
-        s3Helper.writeBytesToS3(attachmentBucket, attachmentId, bytes, metadata);
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_WRITE_ATTACHMENT)) {
+            s3Helper.writeBytesToS3(attachmentBucket, attachmentId, bytes, metadata);
+        }
 
         return attachmentId;
     }
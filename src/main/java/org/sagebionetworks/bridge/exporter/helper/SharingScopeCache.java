@@ -0,0 +1,199 @@
+package org.sagebionetworks.bridge.exporter.helper;
+
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Resource;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+
+/**
+ * <p>
+ * Size-bounded cache of participant sharing scopes, keyed by study ID and health code. Participants usually have
+ * many records in an export, so this saves most of the Bridge calls for the sharing filter.
+ * </p>
+ * <p>
+ * Entries older than sharing.scope.cache.refresh.minutes are refreshed ahead: the cached value is returned, and the
+ * entry is reloaded from Bridge in the background. Entries older than sharing.scope.cache.ttl.minutes are never
+ * returned. They're reloaded synchronously instead. This bounds how stale a sharing scope can be, which matters when
+ * participants stop sharing, since a stale scope can export a participant who no longer shares. The TTL should be no
+ * longer than the 5 minutes the participant cache this replaced allowed. The cache holds at most
+ * sharing.scope.cache.max.size entries, evicting the least recently used.
+ * </p>
+ * <p>
+ * The cache lives in memory only. It carries over between requests handled by the same process, but it isn't
+ * persisted. Entries a later run could load would be past the TTL anyway, and persisting would write participants'
+ * health codes and sharing scopes to local disk.
+ * </p>
+ */
+@Component
+public class SharingScopeCache {
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_MAX_SIZE = "sharing.scope.cache.max.size";
+    static final String CONFIG_KEY_REFRESH_MINUTES = "sharing.scope.cache.refresh.minutes";
+    static final String CONFIG_KEY_TTL_MINUTES = "sharing.scope.cache.ttl.minutes";
+    static final String METRICS_EVICTIONS = "sharingScopeCache.evictions";
+    static final String METRICS_HITS = "sharingScopeCache.hits";
+    static final String METRICS_MISSES = "sharingScopeCache.misses";
+    static final String METRICS_SIZE = "sharingScopeCache.size";
+
+    // config vars
+    private long refreshMillis;
+    private long ttlMillis;
+
+    // Spring helpers
+    private BridgeHelper bridgeHelper;
+    private ExecutorService refreshExecutorService;
+
+    private LoadingCache<String, CachedSharingScope> cache;
+
+    /** Bridge helper, used to get participants. */
+    @Autowired
+    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
+        this.bridgeHelper = bridgeHelper;
+    }
+
+    /** Config, used to get cache size and expiry. */
+    @Autowired
+    public final void setConfig(Config config) {
+        refreshMillis = config.getInt(CONFIG_KEY_REFRESH_MINUTES) * MILLIS_PER_MINUTE;
+        ttlMillis = config.getInt(CONFIG_KEY_TTL_MINUTES) * MILLIS_PER_MINUTE;
+
+        cache = CacheBuilder.newBuilder().maximumSize(config.getInt(CONFIG_KEY_MAX_SIZE)).recordStats()
+                .build(new CacheLoader<String, CachedSharingScope>() {
+                    @Override
+                    public CachedSharingScope load(String key) {
+                        return fetch(key);
+                    }
+
+                    @Override
+                    public ListenableFuture<CachedSharingScope> reload(String key, CachedSharingScope oldValue) {
+                        ListenableFutureTask<CachedSharingScope> task = ListenableFutureTask.create(() -> fetch(key));
+                        refreshExecutorService.execute(task);
+                        return task;
+                    }
+                });
+    }
+
+    /** Executor for background refreshes. This shares the participant lookup threads, to bound calls to Bridge. */
+    @Resource(name = "participantLookupExecutorService")
+    public final void setRefreshExecutorService(ExecutorService refreshExecutorService) {
+        this.refreshExecutorService = refreshExecutorService;
+    }
+
+    /**
+     * Gets the participant's sharing scope, from the cache if possible.
+     *
+     * @param studyId
+     *         participant's study ID
+     * @param healthCode
+     *         participant's health code
+     * @return participant's sharing scope, may be null if the participant doesn't have one
+     */
+    public SharingScope getSharingScope(String studyId, String healthCode) {
+        String key = makeKey(studyId, healthCode);
+        try {
+            CachedSharingScope cached = cache.getUnchecked(key);
+            long ageMillis = now() - cached.fetchedMillis;
+            if (ageMillis >= ttlMillis) {
+                // Too old to use. This happens for entries that haven't been used since before the last refresh
+                // period.
+                cache.invalidate(key);
+                cached = cache.getUnchecked(key);
+            } else if (ageMillis >= refreshMillis) {
+                // Refresh ahead. This returns immediately, and the cache ignores concurrent refreshes of the same key.
+                cache.refresh(key);
+            }
+            return cached.sharingScope;
+        } catch (UncheckedExecutionException ex) {
+            // Re-throw the original exception, so callers see the same exceptions as calling Bridge directly.
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the participant's sharing scope if it's cached and not expired, without calling Bridge. This doesn't count
+     * as a hit or miss, and doesn't trigger a refresh.
+     *
+     * @param studyId
+     *         participant's study ID
+     * @param healthCode
+     *         participant's health code
+     * @return participant's cached sharing scope, NO_SHARING if the participant doesn't have one, or null if the
+     *         participant isn't cached
+     */
+    public SharingScope peekSharingScope(String studyId, String healthCode) {
+        CachedSharingScope cached = cache.asMap().get(makeKey(studyId, healthCode));
+        if (cached == null || now() - cached.fetchedMillis >= ttlMillis) {
+            return null;
+        }
+        return cached.sharingScope != null ? cached.sharingScope : SharingScope.NO_SHARING;
+    }
+
+    /** Cache stats, for use with {@link #publishMetrics}. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Writes hits, misses, and evictions since the given stats to the metrics, and the current cache size.
+     *
+     * @param metrics
+     *         metrics to write to
+     * @param statsAtStart
+     *         cache stats at the start of the request, from {@link #getStats}
+     */
+    public void publishMetrics(Metrics metrics, CacheStats statsAtStart) {
+        CacheStats requestStats = cache.stats().minus(statsAtStart);
+        metrics.incrementCounter(METRICS_HITS, (int) requestStats.hitCount());
+        metrics.incrementCounter(METRICS_MISSES, (int) requestStats.missCount());
+        metrics.incrementCounter(METRICS_EVICTIONS, (int) requestStats.evictionCount());
+        metrics.addKeyValuePair(METRICS_SIZE, String.valueOf(cache.size()));
+    }
+
+    // Helper method which gets the sharing scope from Bridge.
+    private CachedSharingScope fetch(String key) {
+        // Study IDs never contain colons, so the first colon separates the study ID from the health code.
+        int separatorIndex = key.indexOf(':');
+        String studyId = key.substring(0, separatorIndex);
+        String healthCode = key.substring(separatorIndex + 1);
+        SharingScope sharingScope = bridgeHelper.getParticipantByHealthCode(studyId, healthCode).getSharingScope();
+        return new CachedSharingScope(sharingScope, now());
+    }
+
+    // Helper method which makes the cache key for a participant.
+    private static String makeKey(String studyId, String healthCode) {
+        return studyId + ":" + healthCode;
+    }
+
+    // Current time in milliseconds. Package-scoped so unit tests can spy and control time.
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    // Cached sharing scope, with the time it was fetched from Bridge.
+    private static class CachedSharingScope {
+        final SharingScope sharingScope;
+        final long fetchedMillis;
+
+        CachedSharingScope(SharingScope sharingScope, long fetchedMillis) {
+            this.sharingScope = sharingScope;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * <p>
+ * HyperLogLog sketch, which estimates the number of distinct strings added to it in fixed memory. The relative
+ * standard error is about 1.04 / sqrt(m), where m = 2^precision is the number of registers. Each register is a single
+ * byte, packed 4 to an int, so for example precision 14 (0.81% error) takes 16 KB regardless of how many values are
+ * added.
+ * </p>
+ * <p>
+ * Adds don't lock. Registers are updated with compare-and-set, and the harmonic sum of the registers and the number of
+ * empty registers are maintained as the registers change, so computing the estimate doesn't scan the registers.
+ * </p>
+ */
+final class HyperLogLog {
+    // package-scoped to be available to unit tests
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 16;
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final int precision;
+    private final int numRegisters;
+    private final AtomicIntegerArray registers;
+    private final DoubleAdder harmonicSum = new DoubleAdder();
+    private final LongAdder numEmptyRegisters = new LongAdder();
+
+    /**
+     * Creates a sketch with the smallest precision whose relative standard error is at most the given error, within
+     * the supported precisions (4 to 16).
+     *
+     * @param maxRelativeError
+     *         max relative standard error of the estimate, for example 0.01 for 1%
+     * @return sketch
+     */
+    static HyperLogLog withMaxRelativeError(double maxRelativeError) {
+        double minNumRegisters = Math.pow(1.04 / maxRelativeError, 2);
+        int precision = (int) Math.ceil(Math.log(minNumRegisters) / Math.log(2));
+        return new HyperLogLog(Math.max(MIN_PRECISION, Math.min(precision, MAX_PRECISION)));
+    }
+
+    /**
+     * Creates a sketch with the given precision.
+     *
+     * @param precision
+     *         log2 of the number of registers, from 4 to 16
+     */
+    HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("precision must be between " + MIN_PRECISION + " and " +
+                    MAX_PRECISION);
+        }
+
+        this.precision = precision;
+        this.numRegisters = 1 << precision;
+        this.registers = new AtomicIntegerArray(numRegisters / 4);
+
+        // All registers start at zero, and each contributes 2^0 to the harmonic sum.
+        harmonicSum.add(numRegisters);
+        numEmptyRegisters.add(numRegisters);
+    }
+
+    /** Log2 of the number of registers. */
+    int getPrecision() {
+        return precision;
+    }
+
+    /** Relative standard error of the estimate, for this sketch's precision. */
+    double getRelativeError() {
+        return 1.04 / Math.sqrt(numRegisters);
+    }
+
+    /**
+     * Adds the value to the sketch. Adding the same value again doesn't change the sketch.
+     *
+     * @param value
+     *         value to add, must be non-null
+     */
+    void add(String value) {
+        long hash = HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8).asLong();
+
+        // The first (precision) bits pick the register. The register keeps the max position of the first 1 bit in the
+        // rest of the hash.
+        int registerIndex = (int) (hash >>> (Long.SIZE - precision));
+        long remainingBits = hash << precision;
+        int rank = remainingBits == 0 ? Long.SIZE - precision + 1 : Long.numberOfLeadingZeros(remainingBits) + 1;
+
+        int arrayIndex = registerIndex >>> 2;
+        int shift = (registerIndex & 3) * Byte.SIZE;
+        while (true) {
+            int packed = registers.get(arrayIndex);
+            int oldRank = (packed >>> shift) & 0xFF;
+            if (rank <= oldRank) {
+                return;
+            }
+
+            int updated = (packed & ~(0xFF << shift)) | (rank << shift);
+            if (registers.compareAndSet(arrayIndex, packed, updated)) {
+                harmonicSum.add(Math.scalb(1.0, -rank) - Math.scalb(1.0, -oldRank));
+                if (oldRank == 0) {
+                    numEmptyRegisters.decrement();
+                }
+                return;
+            }
+        }
+    }
+
+    /** Estimated number of distinct values added to the sketch. */
+    long estimate() {
+        double rawEstimate = alpha() * numRegisters * numRegisters / harmonicSum.sum();
+
+        // Small range correction: while there are still empty registers, linear counting is more accurate. With a
+        // 64-bit hash, there's no need for a large range correction.
+        long numEmpty = numEmptyRegisters.sum();
+        if (rawEstimate <= 2.5 * numRegisters && numEmpty > 0) {
+            return Math.round(numRegisters * Math.log((double) numRegisters / numEmpty));
+        }
+        return Math.round(rawEstimate);
+    }
+
+    // Bias correction constant, from the HyperLogLog paper.
+    private double alpha() {
+        switch (numRegisters) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1.0 + 1.079 / numRegisters);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * <p>
+ * Named rate limiter that records how long callers wait on it. This wraps a Guava {@link RateLimiter}, and counts
+ * calls, permits, calls that had to wait, and total wait time. Per-call wait times are recorded in a
+ * {@link LatencyHistogram}. Counting doesn't lock, beyond the lock the rate limiter itself takes.
+ * </p>
+ * <p>
+ * Helpers register their rate limiters with the {@link RateLimiterRegistry}, which publishes the stats with the
+ * request's metrics, and lets the rate be lowered at runtime.
+ * </p>
+ */
+public final class InstrumentedRateLimiter {
+    private final String name;
+    private final double configuredRate;
+    private final RateLimiter rateLimiter;
+    private final LongAdder numCalls = new LongAdder();
+    private final LongAdder numPermits = new LongAdder();
+    private final LongAdder numWaitedCalls = new LongAdder();
+    private final LongAdder totalWaitMicros = new LongAdder();
+    private final LatencyHistogram waitHistogram = new LatencyHistogram();
+
+    /**
+     * Creates a rate limiter.
+     *
+     * @param name
+     *         rate limiter name, like "synapse", used in metrics and to change the rate at runtime
+     * @param permitsPerSecond
+     *         initial rate, in permits per second, which is also the max rate for runtime changes
+     */
+    public InstrumentedRateLimiter(String name, double permitsPerSecond) {
+        this.name = name;
+        this.configuredRate = permitsPerSecond;
+        this.rateLimiter = RateLimiter.create(permitsPerSecond);
+    }
+
+    /** Rate limiter name. */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Rate this rate limiter was created with, in permits per second. Runtime changes through the
+     * {@link RateLimiterRegistry} can't go above this.
+     */
+    public double getConfiguredRate() {
+        return configuredRate;
+    }
+
+    /** Current rate, in permits per second. */
+    public double getRate() {
+        return rateLimiter.getRate();
+    }
+
+    /** Changes the rate, in permits per second. Callers already waiting keep their old wait. */
+    public void setRate(double permitsPerSecond) {
+        rateLimiter.setRate(permitsPerSecond);
+    }
+
+    /** Acquires a single permit, waiting if necessary. */
+    public void acquire() {
+        acquire(1);
+    }
+
+    /**
+     * Acquires the given number of permits, waiting if necessary, and records the wait.
+     *
+     * @param permits
+     *         number of permits to acquire, must be positive
+     */
+    public void acquire(int permits) {
+        double waitSeconds = rateLimiter.acquire(permits);
+        long waitMicros = (long) (waitSeconds * TimeUnit.SECONDS.toMicros(1));
+
+        numCalls.increment();
+        numPermits.add(permits);
+        if (waitMicros > 0) {
+            numWaitedCalls.increment();
+            totalWaitMicros.add(waitMicros);
+        }
+        waitHistogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(waitMicros));
+    }
+
+    /** Snapshot of this rate limiter's stats, to compute the stats for a request. */
+    public Stats snapshot() {
+        return new Stats(getRate(), numCalls.sum(), numPermits.sum(), numWaitedCalls.sum(), totalWaitMicros.sum(),
+                waitHistogram.snapshot());
+    }
+
+    /** Immutable copy of a rate limiter's stats. */
+    public static final class Stats {
+        /** Stats with no calls. */
+        public static final Stats EMPTY = new Stats(0.0, 0, 0, 0, 0, LatencyHistogram.Snapshot.EMPTY);
+
+        private final double rate;
+        private final long numCalls;
+        private final long numPermits;
+        private final long numWaitedCalls;
+        private final long totalWaitMicros;
+        private final LatencyHistogram.Snapshot waitLatencies;
+
+        private Stats(double rate, long numCalls, long numPermits, long numWaitedCalls, long totalWaitMicros,
+                LatencyHistogram.Snapshot waitLatencies) {
+            this.rate = rate;
+            this.numCalls = numCalls;
+            this.numPermits = numPermits;
+            this.numWaitedCalls = numWaitedCalls;
+            this.totalWaitMicros = totalWaitMicros;
+            this.waitLatencies = waitLatencies;
+        }
+
+        /** Rate when the snapshot was taken, in permits per second. */
+        public double getRate() {
+            return rate;
+        }
+
+        /** Number of calls to acquire. */
+        public long getNumCalls() {
+            return numCalls;
+        }
+
+        /** Number of permits acquired. */
+        public long getNumPermits() {
+            return numPermits;
+        }
+
+        /** Number of calls that had to wait for a permit. */
+        public long getNumWaitedCalls() {
+            return numWaitedCalls;
+        }
+
+        /** Total time spent waiting for permits, in milliseconds. */
+        public long getTotalWaitMillis() {
+            return TimeUnit.MICROSECONDS.toMillis(totalWaitMicros);
+        }
+
+        /**
+         * Fraction of calls that had to wait for a permit, from 0 to 1. A saturated rate limiter makes nearly every
+         * call wait, which means the rate limit, rather than the dependency, bounds throughput. Zero if there were no
+         * calls.
+         */
+        public double getSaturation() {
+            return numCalls > 0 ? (double) numWaitedCalls / numCalls : 0.0;
+        }
+
+        /** Per-call wait times. Calls that didn't wait are recorded as zero. */
+        public LatencyHistogram.Snapshot getWaitLatencies() {
+            return waitLatencies;
+        }
+
+        /**
+         * Returns the stats since the given earlier snapshot of the same rate limiter. The rate is this snapshot's
+         * rate.
+         *
+         * @param earlier
+         *         earlier snapshot of the same rate limiter
+         * @return stats between the earlier snapshot and this one
+         */
+        public Stats minus(Stats earlier) {
+            return new Stats(rate, numCalls - earlier.numCalls, numPermits - earlier.numPermits,
+                    numWaitedCalls - earlier.numWaitedCalls, totalWaitMicros - earlier.totalWaitMicros,
+                    waitLatencies.minus(earlier.waitLatencies));
+        }
+    }
+}
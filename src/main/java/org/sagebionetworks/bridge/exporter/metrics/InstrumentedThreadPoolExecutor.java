@@ -0,0 +1,338 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.util.concurrent.ExecutionList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+/**
+ * <p>
+ * Fixed-size thread pool that records, for each task, how long it waited in the queue and how long it ran. Tasks are
+ * tagged with a tag function (for example, by export handler type), and latencies are kept per tag. The executor also
+ * tracks active threads, busy time (for thread utilization), and submissions that couldn't be queued.
+ * </p>
+ * <p>
+ * If the queue capacity is positive, the queue is bounded. When it's full, the submitting thread runs the task itself.
+ * This pushes back on the submitter without blocking it, because blocking could deadlock if tasks submit more tasks.
+ * These caller-runs submissions are counted. Submissions after shutdown are rejected as usual, and also counted.
+ * </p>
+ * <p>
+ * Recording doesn't lock. Like {@link StageLatencyTracker}, callers take a {@link #snapshot} at the start of a request
+ * and publish the difference at the end with {@link #publishMetrics}.
+ * </p>
+ * <p>
+ * Futures returned by submit() are {@link ListenableFuture}s, so callers can handle each task as soon as it finishes
+ * instead of waiting on the futures in submission order.
+ * </p>
+ */
+public class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor implements ListeningExecutorService {
+    // package-scoped to be available to unit tests
+    static final String METRICS_SUFFIX_CALLER_RUNS = ".callerRuns";
+    static final String METRICS_SUFFIX_EXECUTION = ".execution";
+    static final String METRICS_SUFFIX_QUEUE_WAIT = ".queueWait";
+    static final String METRICS_SUFFIX_REJECTED = ".rejected";
+    static final String METRICS_SUFFIX_UTILIZATION = ".utilization";
+
+    private final String name;
+    private final Function<Object, String> tagFunction;
+    private final ConcurrentMap<String, TagLatencies> latenciesByTag = new ConcurrentHashMap<>();
+    private final AtomicInteger numActiveThreads = new AtomicInteger();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder numCallerRuns = new LongAdder();
+    private final LongAdder numRejected = new LongAdder();
+
+    /**
+     * Creates a fixed-size thread pool.
+     *
+     * @param name
+     *         executor name, used as the prefix for metrics, like "workerExecutor"
+     * @param numThreads
+     *         number of threads
+     * @param queueCapacity
+     *         max number of queued tasks, or zero or less for an unbounded queue
+     * @param tagFunction
+     *         function that gets the tag for a submitted task, from the Callable or Runnable that was submitted
+     */
+    public InstrumentedThreadPoolExecutor(String name, int numThreads, int queueCapacity,
+            Function<Object, String> tagFunction) {
+        super(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS, queueCapacity > 0 ?
+                new LinkedBlockingQueue<>(queueCapacity) : new LinkedBlockingQueue<>());
+        this.name = name;
+        this.tagFunction = tagFunction;
+        setRejectedExecutionHandler(this::handleRejected);
+    }
+
+    /** Executor name. */
+    public String getName() {
+        return name;
+    }
+
+    /** Number of threads currently running tasks, including callers running tasks themselves. Doesn't lock. */
+    public int getNumActiveThreads() {
+        return numActiveThreads.get();
+    }
+
+    /** Number of tasks waiting in the queue. Doesn't lock. */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        // Tasks from submit() are already timed. Time tasks passed to execute() directly.
+        super.execute(command instanceof TimedFutureTask ? command : new TimedRunnable(command,
+                tagFunction.apply(command)));
+    }
+
+    // submit() is implemented by AbstractExecutorService using newTaskFor(), so the futures are our TimedFutureTasks.
+
+    @Override
+    public <T> ListenableFuture<T> submit(Callable<T> task) {
+        return (ListenableFuture<T>) super.submit(task);
+    }
+
+    @Override
+    public ListenableFuture<?> submit(Runnable task) {
+        return (ListenableFuture<?>) super.submit(task);
+    }
+
+    @Override
+    public <T> ListenableFuture<T> submit(Runnable task, T result) {
+        return (ListenableFuture<T>) super.submit(task, result);
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new TimedFutureTask<>(callable, tagFunction.apply(callable));
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new TimedFutureTask<>(runnable, value, tagFunction.apply(runnable));
+    }
+
+    // Rejected execution handler. If we're shut down, reject as usual. Otherwise, the queue is full, so run the task
+    // on the caller's thread.
+    private void handleRejected(Runnable runnable, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            numRejected.increment();
+            throw new RejectedExecutionException("Executor " + name + " is shut down");
+        }
+        numCallerRuns.increment();
+        runnable.run();
+    }
+
+    // Records the queue wait, runs the task, and records the execution time.
+    private void runTimed(String tag, long submitNanos, Runnable runnable) {
+        long startNanos = System.nanoTime();
+        TagLatencies tagLatencies = getTagLatencies(tag);
+        tagLatencies.queueWait.recordNanos(startNanos - submitNanos);
+
+        numActiveThreads.incrementAndGet();
+        try {
+            runnable.run();
+        } finally {
+            numActiveThreads.decrementAndGet();
+            long elapsedNanos = System.nanoTime() - startNanos;
+            busyNanos.add(elapsedNanos);
+            tagLatencies.execution.recordNanos(elapsedNanos);
+        }
+    }
+
+    private TagLatencies getTagLatencies(String tag) {
+        TagLatencies tagLatencies = latenciesByTag.get(tag);
+        return tagLatencies != null ? tagLatencies : latenciesByTag.computeIfAbsent(tag, key -> new TagLatencies());
+    }
+
+    /** Snapshot of this executor's stats, to compute the stats for a request. */
+    public Stats snapshot() {
+        ImmutableSortedMap.Builder<String, LatencyHistogram.Snapshot> queueWaitBuilder =
+                ImmutableSortedMap.naturalOrder();
+        ImmutableSortedMap.Builder<String, LatencyHistogram.Snapshot> executionBuilder =
+                ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, TagLatencies> oneEntry : latenciesByTag.entrySet()) {
+            queueWaitBuilder.put(oneEntry.getKey(), oneEntry.getValue().queueWait.snapshot());
+            executionBuilder.put(oneEntry.getKey(), oneEntry.getValue().execution.snapshot());
+        }
+        return new Stats(System.nanoTime(), getMaximumPoolSize(), busyNanos.sum(), numCallerRuns.sum(),
+                numRejected.sum(), queueWaitBuilder.build(), executionBuilder.build(), 0);
+    }
+
+    /**
+     * Publishes this executor's stats since the given snapshot into the request's metrics: queue wait and execution
+     * latencies per tag, thread utilization, caller-runs submissions, and rejected submissions.
+     *
+     * @param metrics
+     *         request's metrics
+     * @param statsAtStart
+     *         snapshot taken with {@link #snapshot} at the start of the request
+     */
+    public void publishMetrics(Metrics metrics, Stats statsAtStart) {
+        Stats delta = snapshot().minus(statsAtStart);
+        for (Map.Entry<String, LatencyHistogram.Snapshot> oneEntry : delta.getQueueWaitByTag().entrySet()) {
+            if (oneEntry.getValue().getCount() > 0) {
+                String tag = oneEntry.getKey();
+                metrics.getLatencyHistogram(Metrics.LATENCY_PREFIX + name + METRICS_SUFFIX_QUEUE_WAIT + "[" + tag +
+                        "]").add(oneEntry.getValue());
+                metrics.getLatencyHistogram(Metrics.LATENCY_PREFIX + name + METRICS_SUFFIX_EXECUTION + "[" + tag +
+                        "]").add(delta.getExecutionByTag().get(tag));
+            }
+        }
+        metrics.addKeyValuePair(name + METRICS_SUFFIX_UTILIZATION, String.format("%.2f", delta.getUtilization()));
+        metrics.getCounter(name + METRICS_SUFFIX_CALLER_RUNS).add(delta.getNumCallerRuns());
+        metrics.getCounter(name + METRICS_SUFFIX_REJECTED).add(delta.getNumRejected());
+    }
+
+    // Queue wait and execution latencies for a single tag.
+    private static class TagLatencies {
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private final LatencyHistogram execution = new LatencyHistogram();
+    }
+
+    // Task submitted through submit(). This is what goes in the queue, so the Future returned by submit() is this.
+    private class TimedFutureTask<T> extends FutureTask<T> implements ListenableFuture<T> {
+        private final ExecutionList executionList = new ExecutionList();
+        private final String tag;
+        private final long submitNanos = System.nanoTime();
+
+        TimedFutureTask(Callable<T> callable, String tag) {
+            super(callable);
+            this.tag = tag;
+        }
+
+        TimedFutureTask(Runnable runnable, T value, String tag) {
+            super(runnable, value);
+            this.tag = tag;
+        }
+
+        @Override
+        public void run() {
+            runTimed(tag, submitNanos, super::run);
+        }
+
+        @Override
+        public void addListener(Runnable listener, Executor executor) {
+            executionList.add(listener, executor);
+        }
+
+        @Override
+        protected void done() {
+            executionList.execute();
+        }
+    }
+
+    // Task submitted through execute().
+    private class TimedRunnable implements Runnable {
+        private final Runnable delegate;
+        private final String tag;
+        private final long submitNanos = System.nanoTime();
+
+        TimedRunnable(Runnable delegate, String tag) {
+            this.delegate = delegate;
+            this.tag = tag;
+        }
+
+        @Override
+        public void run() {
+            runTimed(tag, submitNanos, delegate);
+        }
+    }
+
+    /** Immutable copy of an executor's stats. */
+    public static final class Stats {
+        private final long snapshotNanos;
+        private final int numThreads;
+        private final long busyNanos;
+        private final long numCallerRuns;
+        private final long numRejected;
+        private final SortedMap<String, LatencyHistogram.Snapshot> queueWaitByTag;
+        private final SortedMap<String, LatencyHistogram.Snapshot> executionByTag;
+
+        // Time between the two snapshots, for stats computed by minus(). Zero for a single snapshot.
+        private final long elapsedNanos;
+
+        private Stats(long snapshotNanos, int numThreads, long busyNanos, long numCallerRuns, long numRejected,
+                SortedMap<String, LatencyHistogram.Snapshot> queueWaitByTag,
+                SortedMap<String, LatencyHistogram.Snapshot> executionByTag, long elapsedNanos) {
+            this.snapshotNanos = snapshotNanos;
+            this.numThreads = numThreads;
+            this.busyNanos = busyNanos;
+            this.numCallerRuns = numCallerRuns;
+            this.numRejected = numRejected;
+            this.queueWaitByTag = queueWaitByTag;
+            this.executionByTag = executionByTag;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /** Number of submissions that ran on the caller's thread because the queue was full. */
+        public long getNumCallerRuns() {
+            return numCallerRuns;
+        }
+
+        /** Number of submissions rejected because the executor was shut down. */
+        public long getNumRejected() {
+            return numRejected;
+        }
+
+        /** Time tasks spent waiting in the queue, by tag. */
+        public SortedMap<String, LatencyHistogram.Snapshot> getQueueWaitByTag() {
+            return queueWaitByTag;
+        }
+
+        /** Time tasks spent running, by tag. */
+        public SortedMap<String, LatencyHistogram.Snapshot> getExecutionByTag() {
+            return executionByTag;
+        }
+
+        /**
+         * Fraction of thread time spent running tasks, from 0 to 1, between the two snapshots this was computed from.
+         * Only meaningful for stats returned by {@link #minus}. Caller-runs tasks count as busy time, so this can
+         * slightly exceed 1.
+         */
+        public double getUtilization() {
+            return elapsedNanos > 0 && numThreads > 0 ? (double) busyNanos / (elapsedNanos * numThreads) : 0.0;
+        }
+
+        /**
+         * Returns the stats since the given earlier snapshot of the same executor.
+         *
+         * @param earlier
+         *         earlier snapshot of the same executor
+         * @return stats between the earlier snapshot and this one
+         */
+        public Stats minus(Stats earlier) {
+            return new Stats(snapshotNanos, numThreads, busyNanos - earlier.busyNanos,
+                    numCallerRuns - earlier.numCallerRuns, numRejected - earlier.numRejected,
+                    minus(queueWaitByTag, earlier.queueWaitByTag), minus(executionByTag, earlier.executionByTag),
+                    snapshotNanos - earlier.snapshotNanos);
+        }
+
+        private static SortedMap<String, LatencyHistogram.Snapshot> minus(
+                SortedMap<String, LatencyHistogram.Snapshot> later,
+                SortedMap<String, LatencyHistogram.Snapshot> earlier) {
+            ImmutableSortedMap.Builder<String, LatencyHistogram.Snapshot> deltaBuilder =
+                    ImmutableSortedMap.naturalOrder();
+            for (Map.Entry<String, LatencyHistogram.Snapshot> oneEntry : later.entrySet()) {
+                deltaBuilder.put(oneEntry.getKey(), oneEntry.getValue().minus(earlier.getOrDefault(oneEntry.getKey(),
+                        LatencyHistogram.Snapshot.EMPTY)));
+            }
+            return deltaBuilder.build();
+        }
+    }
+}
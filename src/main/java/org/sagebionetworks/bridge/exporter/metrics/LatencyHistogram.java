@@ -0,0 +1,202 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Fixed-memory latency histogram, in the style of HdrHistogram. Latencies are recorded in microseconds into
+ * log-linear buckets: each power of 2 is split into 32 linear sub-buckets, so percentiles are accurate to about 3%.
+ * Latencies of 2^40 microseconds (about 12 days) or more are counted in the top bucket. This takes about 9 KB,
+ * regardless of how many latencies are recorded.
+ * </p>
+ * <p>
+ * Recording doesn't lock. Percentiles are computed from a {@link Snapshot}.
+ * </p>
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 39;
+
+    // package-scoped to be available to unit tests
+    static final long MAX_TRACKABLE_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+    static final int NUM_BUCKETS = bucketIndex(MAX_TRACKABLE_MICROS) + 1;
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param elapsedNanos
+     *         latency in nanoseconds, as measured by {@link System#nanoTime}
+     */
+    public void recordNanos(long elapsedNanos) {
+        recordNanos(elapsedNanos, 1);
+    }
+
+    /**
+     * Records the same latency the given number of times. This is used to record latencies that were counted in
+     * buckets, for example record freshness.
+     *
+     * @param elapsedNanos
+     *         latency in nanoseconds
+     * @param count
+     *         number of times to record the latency
+     */
+    public void recordNanos(long elapsedNanos, long count) {
+        long micros = Math.max(0, Math.min(TimeUnit.NANOSECONDS.toMicros(elapsedNanos), MAX_TRACKABLE_MICROS));
+        bucketCounts.addAndGet(bucketIndex(micros), count);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Adds the latencies from the given snapshot into this histogram. This is used to aggregate latencies recorded
+     * somewhere else, for example in a shared {@link StageLatencyTracker}, into a task's metrics.
+     */
+    public void add(Snapshot snapshot) {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            long count = snapshot.bucketCounts[i];
+            if (count > 0) {
+                bucketCounts.addAndGet(i, count);
+            }
+        }
+        maxMicros.accumulateAndGet(snapshot.maxMicros, Math::max);
+    }
+
+    /**
+     * Starts timing a call. Use this with try-with-resources, so the latency is recorded when the call finishes,
+     * whether it succeeds or throws.
+     */
+    public Timer startTimer() {
+        return new Timer(this, System.nanoTime());
+    }
+
+    /**
+     * Returns a copy of the histogram. Under concurrent recording, the snapshot may or may not include latencies
+     * recorded while it's being taken.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = bucketCounts.get(i);
+        }
+        return new Snapshot(counts, maxMicros.get());
+    }
+
+    // Bucket index for the given latency. Latencies under 32 micros get their own bucket. Above that, the bucket is
+    // the power of 2, then the next 5 bits below the top bit.
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    // Highest latency that falls into the given bucket.
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long lowerBound = (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowerBound + (1L << shift) - 1;
+    }
+
+    /** Times a single call. Closing the timer records the elapsed time into the histogram. */
+    public static final class Timer implements AutoCloseable {
+        private final LatencyHistogram histogram;
+        private final long startNanos;
+
+        private Timer(LatencyHistogram histogram, long startNanos) {
+            this.histogram = histogram;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public void close() {
+            histogram.recordNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    /** Immutable copy of a latency histogram. */
+    public static final class Snapshot {
+        /** Snapshot with no latencies. */
+        public static final Snapshot EMPTY = new Snapshot(new long[NUM_BUCKETS], 0);
+
+        private final long[] bucketCounts;
+        private final long count;
+        private final long maxMicros;
+
+        private Snapshot(long[] bucketCounts, long maxMicros) {
+            this.bucketCounts = bucketCounts;
+            this.maxMicros = maxMicros;
+
+            long totalCount = 0;
+            for (long oneCount : bucketCounts) {
+                totalCount += oneCount;
+            }
+            this.count = totalCount;
+        }
+
+        /** Number of latencies recorded. */
+        public long getCount() {
+            return count;
+        }
+
+        /** Max latency recorded, in microseconds. Zero if there are no latencies. */
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * Latency at the given percentile, in microseconds. This is the highest latency in the bucket that contains
+         * the percentile, so it's accurate to within the bucket size (about 3%). Zero if there are no latencies.
+         *
+         * @param percentile
+         *         percentile, from 0 to 100
+         * @return latency at the given percentile, in microseconds
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+
+            long targetCount = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long cumulativeCount = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                cumulativeCount += bucketCounts[i];
+                if (cumulativeCount >= targetCount) {
+                    return Math.min(bucketUpperBound(i), maxMicros);
+                }
+            }
+            return maxMicros;
+        }
+
+        /**
+         * Returns the latencies recorded since the given earlier snapshot of the same histogram. The exact max isn't
+         * known for the difference, so the max is the top of the highest non-empty bucket (capped by this snapshot's
+         * max).
+         *
+         * @param earlier
+         *         earlier snapshot of the same histogram
+         * @return latencies recorded between the earlier snapshot and this one
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] counts = new long[NUM_BUCKETS];
+            long max = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                counts[i] = Math.max(0, bucketCounts[i] - earlier.bucketCounts[i]);
+                if (counts[i] > 0) {
+                    max = Math.min(bucketUpperBound(i), maxMicros);
+                }
+            }
+            return new Snapshot(counts, max);
+        }
+    }
+}
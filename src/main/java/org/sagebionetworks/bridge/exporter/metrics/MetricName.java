@@ -0,0 +1,48 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.function.Function;
+
+/**
+ * <p>
+ * Name template for a family of metrics, like "accepted[" + studyId + "]". Declare these as constants, and pass them
+ * with the key to {@link Metrics}. The metric name is only built the first time each key is seen in a given Metrics
+ * object. After that, the metric is looked up by key, so the per-record path doesn't build strings.
+ * </p>
+ * <p>
+ * Metrics looks up name templates by identity, so each template should be a single constant.
+ * </p>
+ *
+ * @param <K>
+ *         key type, for example study ID or schema key
+ */
+public final class MetricName<K> {
+    private final Function<? super K, String> nameFunction;
+
+    /**
+     * Creates a name template, where the name is the prefix, the key, then the suffix.
+     *
+     * @param prefix
+     *         part of the name before the key, may be empty
+     * @param suffix
+     *         part of the name after the key, may be empty
+     */
+    public MetricName(String prefix, String suffix) {
+        this(key -> prefix + key + suffix);
+    }
+
+    /**
+     * Creates a name template that builds the name with the given function. This is for keys that aren't simply
+     * strings, like export handlers.
+     *
+     * @param nameFunction
+     *         function that builds the metric name from the key
+     */
+    public MetricName(Function<? super K, String> nameFunction) {
+        this.nameFunction = nameFunction;
+    }
+
+    /** Builds the metric name for the given key. */
+    public String forKey(K key) {
+        return nameFunction.apply(key);
+    }
+}
@@ -1,24 +1,101 @@
 package org.sagebionetworks.bridge.exporter.metrics;
 
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedMultiset;
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.SortedSetMultimap;
 import com.google.common.collect.TreeMultimap;
-import com.google.common.collect.TreeMultiset;
+import com.google.common.primitives.Ints;
 
-/** Helper object to collect metrics for a given Bridge-EX run. */
+/**
+ * <p>
+ * Helper object to collect metrics for a given Bridge-EX run.
+ * </p>
+ * <p>
+ * Every record thread writes to this, so writes don't lock. Counters are {@link LongAdder}s, and set counters and
+ * key-value pairs are concurrent sets. Metrics are stored by name in hash maps. The sorted maps are only built when
+ * the getters are called, which is generally at publish time. The getters are weakly consistent: they may or may not
+ * include writes that happen while they're running.
+ * </p>
+ * <p>
+ * For metrics written per record, callers can avoid building the metric name for each record by getting a handle
+ * ({@link #getCounter}, {@link #getSetCounter}) or by using a {@link MetricName} template with the key.
+ * </p>
+ * <p>
+ * Set-counters can be approximate (see {@link SetCounterMode}), so that counting unique values in large studies uses
+ * fixed memory.
+ * </p>
+ * <p>
+ * Latency histograms ({@link LatencyHistogram}) record per-stage latencies, like DDB reads or Synapse TSV imports.
+ * </p>
+ */
 public class Metrics {
-    private final SortedMultiset<String> counterMap = TreeMultiset.create();
-    private final SortedSetMultimap<String, String> keyValuesMap = TreeMultimap.create();
-    private final SortedSetMultimap<String, String> setCounterMap = TreeMultimap.create();
+    /** Prefix for latency histogram names, so that they're grouped together when published. */
+    public static final String LATENCY_PREFIX = "latency.";
+
+    private final ConcurrentMap<String, Counter> counterMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SetCounter> keyValuesMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LatencyHistogram> latencyHistogramMap = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SetCounter> setCounterMap = new ConcurrentHashMap<>();
+
+    // Metrics resolved through name templates, by template (identity), then by key.
+    private final ConcurrentMap<MetricName<?>, ConcurrentMap<Object, Counter>> countersByTemplate =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<MetricName<?>, ConcurrentMap<Object, SetCounter>> keyValuesByTemplate =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<MetricName<?>, ConcurrentMap<Object, SetCounter>> setCountersByTemplate =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Returns an immutable snapshot of the counter map. Because the returned counter map uses a SortedMultiset, this
+     * allows you to iterate the keys (and therefore counters) in sorted order, for ease of display. Counters that are
+     * still zero are not included.
+     */
+    public SortedMultiset<String> getCounterMap() {
+        ImmutableSortedMultiset.Builder<String> builder = ImmutableSortedMultiset.naturalOrder();
+        for (Map.Entry<String, Counter> oneCounterEntry : counterMap.entrySet()) {
+            int count = Ints.saturatedCast(oneCounterEntry.getValue().get());
+            if (count > 0) {
+                builder.addCopies(oneCounterEntry.getKey(), count);
+            }
+        }
+        return builder.build();
+    }
 
     /**
-     * Returns an immutable copy of the counter map. Because the returned counter map and the backing original counter
-     * map both use a SortedMultiset, this allows you to iterate the keys (and therefore counters) in sorted order, for
-     * ease of display.
+     * Gets a handle to the given counter, creating it if it doesn't exist. Incrementing the handle is equivalent to
+     * {@link #incrementCounter}, but skips the name lookup.
+     *
+     * @param name
+     *         name of the counter
+     * @return counter handle
      */
-    public synchronized SortedMultiset<String> getCounterMap() {
-        return ImmutableSortedMultiset.copyOfSorted(counterMap);
+    public Counter getCounter(String name) {
+        return getOrCreate(counterMap, name, key -> new Counter());
+    }
+
+    /**
+     * Gets a handle to the counter with the given name template and key, creating it if it doesn't exist. The
+     * counter's name is only built the first time the key is seen.
+     *
+     * @param name
+     *         name template of the counter
+     * @param key
+     *         key to fill into the name template
+     * @return counter handle
+     */
+    public <K> Counter getCounter(MetricName<K> name, K key) {
+        ConcurrentMap<Object, Counter> countersByKey = getOrCreate(countersByTemplate, name,
+                template -> new ConcurrentHashMap<>());
+        return getOrCreate(countersByKey, key, k -> getCounter(name.forKey(key)));
     }
 
     /**
@@ -26,20 +103,39 @@ public class Metrics {
      *
      * @param name
      *         name of the counter to increment
-     * @return value of the counter, after increment
+     * @return value of the counter, after increment; under concurrent updates, this may also include other threads'
+     *         increments
      */
-    public synchronized int incrementCounter(String name) {
-        counterMap.add(name);
-        return counterMap.count(name);
+    public int incrementCounter(String name) {
+        Counter counter = getCounter(name);
+        counter.increment();
+        return Ints.saturatedCast(counter.get());
     }
 
     /**
-     * Returns a copy of the key value mapping. Note that this is backed by a TreeMultimap, so the keys and the values
-     * will be in sorted order. However, there is no Guava equivalent for ImmutableTreeMultimap, so the returned copy
-     * will be mutable. The returned copy will be a copy, and modifications to this copy will not affect the original.
+     * Increments the given counter by the given amount. This is used for counters that accumulate quantities rather
+     * than events, like total latency in milliseconds or number of unprocessed keys.
+     *
+     * @param name
+     *         name of the counter to increment
+     * @param delta
+     *         amount to increment the counter by, must be non-negative
+     * @return value of the counter, after increment; under concurrent updates, this may also include other threads'
+     *         increments
      */
-    public synchronized SortedSetMultimap<String, String> getKeyValuesMap() {
-        return TreeMultimap.create(keyValuesMap);
+    public int incrementCounter(String name, int delta) {
+        Counter counter = getCounter(name);
+        counter.add(delta);
+        return Ints.saturatedCast(counter.get());
+    }
+
+    /**
+     * Returns a copy of the key value mapping. Note that this is a TreeMultimap, so the keys and the values will be in
+     * sorted order. However, there is no Guava equivalent for ImmutableTreeMultimap, so the returned copy will be
+     * mutable. The returned copy will be a copy, and modifications to this copy will not affect the original.
+     */
+    public SortedSetMultimap<String, String> getKeyValuesMap() {
+        return snapshot(keyValuesMap);
     }
 
     /**
@@ -58,9 +154,27 @@ public class Metrics {
      *         value to be associated with the key
      * @return number of unique keys associated with the name, after adding the new value
      */
-    public synchronized int addKeyValuePair(String name, String value) {
-        keyValuesMap.put(name, value);
-        return keyValuesMap.get(name).size();
+    public int addKeyValuePair(String name, String value) {
+        return getOrCreate(keyValuesMap, name, key -> new SetCounter(SetCounterMode.EXACT)).add(value);
+    }
+
+    /**
+     * Adds the given value to the key-value mapping, with the key name from the given name template and key. See
+     * {@link #addKeyValuePair(String, String)}.
+     *
+     * @param name
+     *         name template of the key-value pair mapping
+     * @param key
+     *         key to fill into the name template
+     * @param value
+     *         value to be associated with the key
+     * @return number of unique keys associated with the name, after adding the new value
+     */
+    public <K> int addKeyValuePair(MetricName<K> name, K key, String value) {
+        ConcurrentMap<Object, SetCounter> valuesByKey = getOrCreate(keyValuesByTemplate, name,
+                template -> new ConcurrentHashMap<>());
+        return getOrCreate(valuesByKey, key, k -> getOrCreate(keyValuesMap, name.forKey(key),
+                keyName -> new SetCounter(SetCounterMode.EXACT))).add(value);
     }
 
     // It's worth noting that key-value pairs and set-counter map have the same implementation. However, they have
@@ -69,10 +183,78 @@ public class Metrics {
     // key-value pairs.
 
     /**
-     * Returns a copy of the set-counter map. Similar to {@link #getKeyValuesMap}, this is backed by a TreeMultimap.
+     * Returns a copy of the set-counter map. Similar to {@link #getKeyValuesMap}, this is a TreeMultimap. Set-counters
+     * that have switched to a sketch no longer have their values, so they aren't included. Use
+     * {@link #getSetCounters} to get the counts of all set-counters.
+     */
+    public SortedSetMultimap<String, String> getSetCounterMap() {
+        return snapshot(setCounterMap);
+    }
+
+    /**
+     * Returns the set-counter handles, sorted by name. Unlike {@link #getSetCounterMap}, this includes approximate
+     * set-counters. The handles are live, not copies.
+     */
+    public SortedMap<String, SetCounter> getSetCounters() {
+        return ImmutableSortedMap.copyOf(setCounterMap);
+    }
+
+    /**
+     * Gets a handle to the given set-counter, creating it as an exact set-counter if it doesn't exist. Adding to the
+     * handle is equivalent to {@link #incrementSetCounter}, but skips the name lookup.
+     *
+     * @param name
+     *         name of the set-counter
+     * @return set-counter handle
+     */
+    public SetCounter getSetCounter(String name) {
+        return getSetCounter(name, SetCounterMode.EXACT);
+    }
+
+    /**
+     * Gets a handle to the given set-counter, creating it with the given mode if it doesn't exist. If the set-counter
+     * already exists, it keeps the mode it was created with.
+     *
+     * @param name
+     *         name of the set-counter
+     * @param mode
+     *         mode to create the set-counter with
+     * @return set-counter handle
+     */
+    public SetCounter getSetCounter(String name, SetCounterMode mode) {
+        return getOrCreate(setCounterMap, name, key -> new SetCounter(mode));
+    }
+
+    /**
+     * Gets a handle to the set-counter with the given name template and key, creating it if it doesn't exist. The
+     * set-counter's name is only built the first time the key is seen.
+     *
+     * @param name
+     *         name template of the set-counter
+     * @param key
+     *         key to fill into the name template
+     * @return set-counter handle
      */
-    public synchronized SortedSetMultimap<String, String> getSetCounterMap() {
-        return TreeMultimap.create(setCounterMap);
+    public <K> SetCounter getSetCounter(MetricName<K> name, K key) {
+        return getSetCounter(name, key, SetCounterMode.EXACT);
+    }
+
+    /**
+     * Gets a handle to the set-counter with the given name template and key, creating it with the given mode if it
+     * doesn't exist. See {@link #getSetCounter(String, SetCounterMode)}.
+     *
+     * @param name
+     *         name template of the set-counter
+     * @param key
+     *         key to fill into the name template
+     * @param mode
+     *         mode to create the set-counter with
+     * @return set-counter handle
+     */
+    public <K> SetCounter getSetCounter(MetricName<K> name, K key, SetCounterMode mode) {
+        ConcurrentMap<Object, SetCounter> setCountersByKey = getOrCreate(setCountersByTemplate, name,
+                template -> new ConcurrentHashMap<>());
+        return getOrCreate(setCountersByKey, key, k -> getSetCounter(name.forKey(key), mode));
     }
 
     /**
@@ -85,8 +267,158 @@ public class Metrics {
      *         value to add to the set-counter
      * @return number of unique values in the set-counter, after incrementing with the new value
      */
-    public synchronized int incrementSetCounter(String name, String value) {
-        setCounterMap.put(name, value);
-        return setCounterMap.get(name).size();
+    public int incrementSetCounter(String name, String value) {
+        return getSetCounter(name).add(value);
+    }
+
+    /**
+     * Gets the given latency histogram, creating it if it doesn't exist. By convention, latency histogram names start
+     * with {@link #LATENCY_PREFIX}.
+     *
+     * @param name
+     *         name of the latency histogram
+     * @return latency histogram
+     */
+    public LatencyHistogram getLatencyHistogram(String name) {
+        return getOrCreate(latencyHistogramMap, name, key -> new LatencyHistogram());
+    }
+
+    /** Returns snapshots of the latency histograms, sorted by name. Histograms with no latencies are not included. */
+    public SortedMap<String, LatencyHistogram.Snapshot> getLatencyHistograms() {
+        ImmutableSortedMap.Builder<String, LatencyHistogram.Snapshot> builder = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, LatencyHistogram> oneEntry : latencyHistogramMap.entrySet()) {
+            LatencyHistogram.Snapshot snapshot = oneEntry.getValue().snapshot();
+            if (snapshot.getCount() > 0) {
+                builder.put(oneEntry.getKey(), snapshot);
+            }
+        }
+        return builder.build();
+    }
+
+    // Helper method which gets the value from a concurrent map, creating it if it doesn't exist. The plain get() first
+    // avoids locking the map entry in the common case where the value already exists.
+    private static <K, V> V getOrCreate(ConcurrentMap<K, V> map, K key, Function<? super K, ? extends V> factory) {
+        V value = map.get(key);
+        return value != null ? value : map.computeIfAbsent(key, factory);
+    }
+
+    // Helper method which makes a sorted copy of a key-value or set-counter map.
+    private static SortedSetMultimap<String, String> snapshot(ConcurrentMap<String, SetCounter> map) {
+        SortedSetMultimap<String, String> snapshot = TreeMultimap.create();
+        for (Map.Entry<String, SetCounter> oneEntry : map.entrySet()) {
+            Set<String> values = oneEntry.getValue().values;
+            if (values != null) {
+                snapshot.putAll(oneEntry.getKey(), values);
+            }
+        }
+        return snapshot;
+    }
+
+    /** Handle to a single counter. Increments don't lock, and are cheap even when many threads share a counter. */
+    public static final class Counter {
+        private final LongAdder adder = new LongAdder();
+
+        private Counter() {
+        }
+
+        /** Increments the counter by 1. */
+        public void increment() {
+            adder.increment();
+        }
+
+        /** Increments the counter by the given amount, which must be non-negative. */
+        public void add(long delta) {
+            adder.add(delta);
+        }
+
+        /** Current value of the counter. Under concurrent updates, this is a moment-in-time estimate. */
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Handle to a single set-counter (or key-value pair mapping). Adds don't lock, except for the one-time switch from
+     * exact values to a sketch.
+     */
+    public static final class SetCounter {
+        private final SetCounterMode mode;
+
+        // Exact values, until the set-counter switches to a sketch. Then the values are dropped, and the sketch is used
+        // instead. The sketch is published before the values are copied into it, so a concurrent add either lands in
+        // the values before they're copied, or sees the sketch and also adds to it. (Adding to a sketch twice is
+        // harmless.)
+        private volatile Set<String> values = ConcurrentHashMap.newKeySet();
+        private volatile HyperLogLog sketch;
+
+        private SetCounter(SetCounterMode mode) {
+            this.mode = mode;
+        }
+
+        /**
+         * Adds the value to the set-counter, if it isn't already in the set-counter.
+         *
+         * @param value
+         *         value to add, must be non-null
+         * @return number of unique values in the set-counter, after adding the new value; this is an estimate if the
+         *         set-counter is approximate
+         */
+        public int add(String value) {
+            Set<String> exactValues = values;
+            if (exactValues != null) {
+                exactValues.add(value);
+                if (sketch == null) {
+                    int size = exactValues.size();
+                    if (size <= mode.getExactLimit()) {
+                        return size;
+                    }
+                    switchToSketch();
+                }
+            }
+
+            sketch.add(value);
+            return size();
+        }
+
+        /** Number of unique values in the set-counter. This is an estimate if the set-counter is approximate. */
+        public int size() {
+            HyperLogLog currentSketch = sketch;
+            if (currentSketch != null) {
+                return Ints.saturatedCast(currentSketch.estimate());
+            }
+
+            Set<String> exactValues = values;
+            if (exactValues != null) {
+                return exactValues.size();
+            }
+
+            // The set-counter just switched to a sketch.
+            return Ints.saturatedCast(sketch.estimate());
+        }
+
+        /** True if the set-counter has switched to a sketch, and its size is an estimate. */
+        public boolean isApproximate() {
+            return sketch != null;
+        }
+
+        /** Relative standard error of the set-counter's size. Zero if the set-counter is still exact. */
+        public double getRelativeError() {
+            HyperLogLog currentSketch = sketch;
+            return currentSketch != null ? currentSketch.getRelativeError() : 0.0;
+        }
+
+        // Switches from exact values to a sketch, if another thread hasn't already.
+        private synchronized void switchToSketch() {
+            if (sketch != null) {
+                return;
+            }
+
+            HyperLogLog newSketch = HyperLogLog.withMaxRelativeError(mode.getMaxRelativeError());
+            sketch = newSketch;
+            for (String oneValue : values) {
+                newSketch.add(oneValue);
+            }
+            values = null;
+        }
     }
 }
@@ -8,13 +8,34 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.Multiset;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.config.Config;
+
 /** Helper class which handles basic metrics operations. */
 @Component
 public class MetricsHelper {
     private static final Logger LOG = LoggerFactory.getLogger(MetricsHelper.class);
     private static final Joiner VALUES_TO_LOG_JOINER = Joiner.on(", ").useForNull("null");
+    private static final MetricName<String> METRICS_UNIQUE_HEALTH_CODES = new MetricName<>("uniqueHealthCodes[", "]");
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_SET_COUNTER_EXACT_LIMIT = "metrics.set.counter.exact.limit";
+    static final String CONFIG_KEY_SET_COUNTER_MAX_ERROR = "metrics.set.counter.max.error";
+
+    // Defaults to exact, if config isn't set.
+    private SetCounterMode healthCodeCounterMode = SetCounterMode.EXACT;
+
+    /**
+     * Config, used to get the mode for unique health code set-counters. Studies with up to the exact limit of
+     * participants are counted exactly. Larger studies are counted with a sketch, within the max error.
+     */
+    @Autowired
+    public final void setConfig(Config config) {
+        healthCodeCounterMode = SetCounterMode.approximateAbove(config.getInt(CONFIG_KEY_SET_COUNTER_EXACT_LIMIT),
+                Double.parseDouble(config.get(CONFIG_KEY_SET_COUNTER_MAX_ERROR)));
+    }
 
     /**
      * Record common per-record metrics.
@@ -25,12 +46,14 @@ public class MetricsHelper {
      *         DDB health data record object to record metrics for
      */
     public void captureMetricsForRecord(Metrics metrics, Item record) {
-        metrics.incrementSetCounter("uniqueHealthCodes[" + record.getString("studyId") + "]",
+        metrics.getSetCounter(METRICS_UNIQUE_HEALTH_CODES, record.getString("studyId"), healthCodeCounterMode).add(
                 record.getString("healthCode"));
     }
 
     /**
-     * Publishes the metrics to the log.
+     * Publishes the metrics to the log. The metrics are sorted here, at publish time, rather than as they're
+     * collected. Set-counters are logged with their mode, either exact or approximate with the relative standard
+     * error. Latency histograms are logged with their count, p50, p90, p99, and max, in milliseconds.
      *
      * @param metrics
      *         metrics object containing metrics to publish
@@ -41,13 +64,36 @@ public class MetricsHelper {
             LOG.info(oneCounterEntry.getElement() + ": " + oneCounterEntry.getCount());
         }
 
-        for (Map.Entry<String, Collection<String>> oneSetCounterEntry
-                : metrics.getSetCounterMap().asMap().entrySet()) {
-            LOG.info(oneSetCounterEntry.getKey() + ": " + oneSetCounterEntry.getValue().size());
+        for (Map.Entry<String, Metrics.SetCounter> oneSetCounterEntry : metrics.getSetCounters().entrySet()) {
+            LOG.info(oneSetCounterEntry.getKey() + ": " + formatSetCounter(oneSetCounterEntry.getValue()));
+        }
+
+        for (Map.Entry<String, LatencyHistogram.Snapshot> oneLatencyEntry
+                : metrics.getLatencyHistograms().entrySet()) {
+            LOG.info(oneLatencyEntry.getKey() + ": " + formatLatencies(oneLatencyEntry.getValue()));
         }
 
         for (Map.Entry<String, Collection<String>> oneKeyValueEntry : metrics.getKeyValuesMap().asMap().entrySet()) {
             LOG.info(oneKeyValueEntry.getKey() + ": " + VALUES_TO_LOG_JOINER.join(oneKeyValueEntry.getValue()));
         }
     }
+
+    // Formats the set-counter's size and mode, like "1234 (exact)" or "123456 (approximate, +/-0.81%)".
+    // package-scoped to be available to unit tests
+    static String formatSetCounter(Metrics.SetCounter setCounter) {
+        if (setCounter.isApproximate()) {
+            return String.format("%d (approximate, +/-%.2f%%)", setCounter.size(),
+                    setCounter.getRelativeError() * 100);
+        } else {
+            return setCounter.size() + " (exact)";
+        }
+    }
+
+    // Formats the latency histogram, like "count=1234, p50=1.2ms, p90=3.4ms, p99=5.6ms, max=7.8ms".
+    // package-scoped to be available to unit tests
+    static String formatLatencies(LatencyHistogram.Snapshot snapshot) {
+        return String.format("count=%d, p50=%.1fms, p90=%.1fms, p99=%.1fms, max=%.1fms", snapshot.getCount(),
+                snapshot.getValueAtPercentile(50) / 1000.0, snapshot.getValueAtPercentile(90) / 1000.0,
+                snapshot.getValueAtPercentile(99) / 1000.0, snapshot.getMaxMicros() / 1000.0);
+    }
 }
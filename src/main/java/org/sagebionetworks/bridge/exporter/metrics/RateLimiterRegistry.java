@@ -0,0 +1,130 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>
+ * Registry of the rate limiters on calls to our dependencies (Bridge, Synapse, DDB writes). Helpers create their own
+ * {@link InstrumentedRateLimiter}s, so they work without Spring, and register them here when they're wired up.
+ * </p>
+ * <p>
+ * The record processor takes a snapshot at the start of the request, and at the end, it publishes each rate limiter's
+ * stats since then with the request's metrics. (This is the same approach used for the DDB read throttle and the
+ * stage latency tracker.)
+ * </p>
+ * <p>
+ * Rates can be lowered at runtime through {@link #setRate}, for example to back off a dependency that's struggling.
+ * This is exposed as a JMX operation rather than an HTTP endpoint, since there's no authentication on the HTTP port.
+ * Rates can't be raised above the rate the rate limiter was created with.
+ * </p>
+ */
+@Component
+@ManagedResource(objectName = "org.sagebionetworks.bridge.exporter:name=RateLimiterRegistry",
+        description = "Rate limiters on calls to Bridge, Synapse, and DDB")
+public class RateLimiterRegistry {
+    // package-scoped to be available to unit tests
+    static final String METRICS_PREFIX = "rateLimiter.";
+    static final String METRICS_SUFFIX_CALLS = ".calls";
+    static final String METRICS_SUFFIX_PERMITS = ".permits";
+    static final String METRICS_SUFFIX_RATE = ".rate";
+    static final String METRICS_SUFFIX_SATURATION = ".saturation";
+    static final String METRICS_SUFFIX_WAIT = ".wait";
+    static final String METRICS_SUFFIX_WAIT_MILLIS = ".waitMillis";
+    static final String METRICS_SUFFIX_WAITED_CALLS = ".waitedCalls";
+
+    private final ConcurrentMap<String, InstrumentedRateLimiter> rateLimitersByName = new ConcurrentHashMap<>();
+
+    /**
+     * Registers the rate limiter under its name. If a rate limiter with the same name is already registered, it's
+     * replaced.
+     */
+    public void register(InstrumentedRateLimiter rateLimiter) {
+        rateLimitersByName.put(rateLimiter.getName(), rateLimiter);
+    }
+
+    /** Registered rate limiters, sorted by name. */
+    public SortedMap<String, InstrumentedRateLimiter> getRateLimiters() {
+        return ImmutableSortedMap.copyOf(rateLimitersByName);
+    }
+
+    /**
+     * Changes the rate of the named rate limiter.
+     *
+     * @param name
+     *         rate limiter name
+     * @param permitsPerSecond
+     *         new rate, in permits per second, must be positive and no more than the rate limiter's configured rate
+     * @return true if the rate was changed, false if there is no rate limiter with that name
+     * @throws IllegalArgumentException
+     *         if the rate isn't positive, or is above the rate limiter's configured rate
+     */
+    @ManagedOperation(description = "Changes the rate of the named rate limiter, up to its configured rate")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "name", description = "rate limiter name"),
+            @ManagedOperationParameter(name = "permitsPerSecond", description = "new rate, in permits per second") })
+    public boolean setRate(String name, double permitsPerSecond) {
+        if (!(permitsPerSecond > 0.0) || Double.isInfinite(permitsPerSecond)) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+
+        InstrumentedRateLimiter rateLimiter = rateLimitersByName.get(name);
+        if (rateLimiter == null) {
+            return false;
+        }
+        if (permitsPerSecond > rateLimiter.getConfiguredRate()) {
+            throw new IllegalArgumentException("permitsPerSecond can't be above the configured rate of " +
+                    rateLimiter.getConfiguredRate() + " for rate limiter " + name);
+        }
+        rateLimiter.setRate(permitsPerSecond);
+        return true;
+    }
+
+    /** Snapshot of all rate limiters, to be passed to {@link #publishMetrics} at the end of the request. */
+    public Map<String, InstrumentedRateLimiter.Stats> snapshot() {
+        ImmutableMap.Builder<String, InstrumentedRateLimiter.Stats> snapshotBuilder = ImmutableMap.builder();
+        for (Map.Entry<String, InstrumentedRateLimiter> oneEntry : rateLimitersByName.entrySet()) {
+            snapshotBuilder.put(oneEntry.getKey(), oneEntry.getValue().snapshot());
+        }
+        return snapshotBuilder.build();
+    }
+
+    /**
+     * Publishes each rate limiter's stats since the given snapshot into the request's metrics. Rate limiters with no
+     * calls during the request only publish their rate.
+     *
+     * @param metrics
+     *         request's metrics
+     * @param snapshotAtStart
+     *         snapshot taken with {@link #snapshot} at the start of the request
+     */
+    public void publishMetrics(Metrics metrics, Map<String, InstrumentedRateLimiter.Stats> snapshotAtStart) {
+        for (Map.Entry<String, InstrumentedRateLimiter> oneEntry : rateLimitersByName.entrySet()) {
+            String prefix = METRICS_PREFIX + oneEntry.getKey();
+            InstrumentedRateLimiter.Stats delta = oneEntry.getValue().snapshot().minus(snapshotAtStart.getOrDefault(
+                    oneEntry.getKey(), InstrumentedRateLimiter.Stats.EMPTY));
+
+            metrics.addKeyValuePair(prefix + METRICS_SUFFIX_RATE, String.format("%.2f", delta.getRate()));
+            if (delta.getNumCalls() > 0) {
+                metrics.getCounter(prefix + METRICS_SUFFIX_CALLS).add(delta.getNumCalls());
+                metrics.getCounter(prefix + METRICS_SUFFIX_PERMITS).add(delta.getNumPermits());
+                metrics.getCounter(prefix + METRICS_SUFFIX_WAITED_CALLS).add(delta.getNumWaitedCalls());
+                metrics.getCounter(prefix + METRICS_SUFFIX_WAIT_MILLIS).add(delta.getTotalWaitMillis());
+                metrics.addKeyValuePair(prefix + METRICS_SUFFIX_SATURATION, String.format("%.2f",
+                        delta.getSaturation()));
+                metrics.getLatencyHistogram(Metrics.LATENCY_PREFIX + prefix + METRICS_SUFFIX_WAIT).add(
+                        delta.getWaitLatencies());
+            }
+        }
+    }
+}
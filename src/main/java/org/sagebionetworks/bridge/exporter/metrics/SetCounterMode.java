@@ -0,0 +1,55 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+/**
+ * <p>
+ * How a set-counter counts unique values. Exact set-counters keep every value, so memory grows with the number of
+ * unique values. Approximate set-counters keep values exactly up to a limit, then switch to a fixed-memory HyperLogLog
+ * sketch with the given max relative error. This keeps exact counts for small studies, while large studies don't keep
+ * every health code in memory just to log one number.
+ * </p>
+ * <p>
+ * The mode is applied when the set-counter is created. Once a set-counter exists, it keeps its mode.
+ * </p>
+ */
+public final class SetCounterMode {
+    /** Set-counter that keeps every value. */
+    public static final SetCounterMode EXACT = new SetCounterMode(Integer.MAX_VALUE, 0.0);
+
+    private final int exactLimit;
+    private final double maxRelativeError;
+
+    /**
+     * Creates a mode for set-counters that keep values exactly up to the given limit, then switch to a sketch.
+     *
+     * @param exactLimit
+     *         max number of unique values to keep exactly, must be non-negative
+     * @param maxRelativeError
+     *         max relative standard error of the sketch, for example 0.01 for 1%; the sketch's actual error is
+     *         reported by {@link Metrics.SetCounter#getRelativeError}
+     * @return set-counter mode
+     */
+    public static SetCounterMode approximateAbove(int exactLimit, double maxRelativeError) {
+        if (exactLimit < 0) {
+            throw new IllegalArgumentException("exactLimit must be non-negative");
+        }
+        if (maxRelativeError <= 0.0 || maxRelativeError >= 1.0) {
+            throw new IllegalArgumentException("maxRelativeError must be between 0 and 1");
+        }
+        return new SetCounterMode(exactLimit, maxRelativeError);
+    }
+
+    private SetCounterMode(int exactLimit, double maxRelativeError) {
+        this.exactLimit = exactLimit;
+        this.maxRelativeError = maxRelativeError;
+    }
+
+    /** Max number of unique values to keep exactly, before switching to a sketch. */
+    public int getExactLimit() {
+        return exactLimit;
+    }
+
+    /** Max relative standard error of the sketch. Zero for exact set-counters. */
+    public double getMaxRelativeError() {
+        return maxRelativeError;
+    }
+}
@@ -0,0 +1,77 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableMap;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>
+ * Latency histograms for calls made by shared helpers (Bridge, Synapse, S3, DDB), which don't have the request's
+ * {@link Metrics}. Helpers time their calls here, by stage name. The record processor takes a snapshot at the start
+ * of the request, and at the end, it adds the latencies recorded since then into the request's metrics. (This is the
+ * same approach used for the DDB read throttle and the sharing scope cache.)
+ * </p>
+ * <p>
+ * Requests are processed one at a time, so the latencies recorded during a request belong to that request.
+ * </p>
+ */
+@Component
+public class StageLatencyTracker {
+    private final ConcurrentMap<String, LatencyHistogram> histogramsByStage = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the histogram for the given stage, creating it if it doesn't exist.
+     *
+     * @param stage
+     *         stage name, like "synapse.tsvImport"
+     * @return latency histogram for the stage
+     */
+    public LatencyHistogram getHistogram(String stage) {
+        LatencyHistogram histogram = histogramsByStage.get(stage);
+        return histogram != null ? histogram : histogramsByStage.computeIfAbsent(stage,
+                key -> new LatencyHistogram());
+    }
+
+    /**
+     * Starts timing a call for the given stage. Use this with try-with-resources.
+     *
+     * @param stage
+     *         stage name
+     * @return timer, which records the latency when closed
+     */
+    public LatencyHistogram.Timer startTimer(String stage) {
+        return getHistogram(stage).startTimer();
+    }
+
+    /** Snapshot of all stages, to be passed to {@link #publishMetrics} at the end of the request. */
+    public Map<String, LatencyHistogram.Snapshot> snapshot() {
+        ImmutableMap.Builder<String, LatencyHistogram.Snapshot> snapshotBuilder = ImmutableMap.builder();
+        for (Map.Entry<String, LatencyHistogram> oneEntry : histogramsByStage.entrySet()) {
+            snapshotBuilder.put(oneEntry.getKey(), oneEntry.getValue().snapshot());
+        }
+        return snapshotBuilder.build();
+    }
+
+    /**
+     * Adds the latencies recorded since the given snapshot into the request's metrics, as latency histograms named
+     * "latency." + stage.
+     *
+     * @param metrics
+     *         request's metrics
+     * @param snapshotAtStart
+     *         snapshot taken with {@link #snapshot} at the start of the request
+     */
+    public void publishMetrics(Metrics metrics, Map<String, LatencyHistogram.Snapshot> snapshotAtStart) {
+        for (Map.Entry<String, LatencyHistogram> oneEntry : histogramsByStage.entrySet()) {
+            String stage = oneEntry.getKey();
+            LatencyHistogram.Snapshot delta = oneEntry.getValue().snapshot().minus(snapshotAtStart.getOrDefault(stage,
+                    LatencyHistogram.Snapshot.EMPTY));
+            if (delta.getCount() > 0) {
+                metrics.getLatencyHistogram(Metrics.LATENCY_PREFIX + stage).add(delta);
+            }
+        }
+    }
+}
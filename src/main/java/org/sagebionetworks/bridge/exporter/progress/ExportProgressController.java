@@ -0,0 +1,28 @@
+package org.sagebionetworks.bridge.exporter.progress;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Read-only endpoint for the progress and throughput of the active export task, so operators can see how far along a
+ * long export is without tailing the logs. See {@link ExportProgressTracker} for what's reported.
+ */
+@RestController
+public class ExportProgressController {
+    private ExportProgressTracker exportProgressTracker;
+
+    /** Progress tracker, which tracks the active task. */
+    @Autowired
+    public final void setExportProgressTracker(ExportProgressTracker exportProgressTracker) {
+        this.exportProgressTracker = exportProgressTracker;
+    }
+
+    /** Progress of the active export task, as JSON. */
+    @GetMapping(path = "/progress", produces = MediaType.APPLICATION_JSON_VALUE)
+    public JsonNode getProgress() {
+        return exportProgressTracker.getProgress();
+    }
+}
@@ -0,0 +1,425 @@
+package org.sagebionetworks.bridge.exporter.progress;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToLongFunction;
+import javax.annotation.Resource;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Table;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedThreadPoolExecutor;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.worker.ExportTask;
+import org.sagebionetworks.bridge.exporter.worker.MetaTableType;
+import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * <p>
+ * Tracks the progress of the active export task, for the progress endpoint. See {@link ExportProgressController}.
+ * </p>
+ * <p>
+ * Progress is read from state that the task already keeps: the record counter, the outstanding subtask queue, TSV line
+ * and byte counts, executor queues and latencies, and rate limiter wait times. None of these lock to read, so tracking
+ * progress doesn't add locking to the record path. Throughput is computed from samples of the record counter, which
+ * are kept in a fixed-size ring. Samples are taken when the task starts, when the record processor logs progress, and
+ * whenever progress is read, at most once per second.
+ * </p>
+ * <p>
+ * Requests are processed one at a time, so there is at most one active task.
+ * </p>
+ */
+@Component
+public class ExportProgressTracker {
+    // package-scoped to be available to unit tests
+    static final long MIN_SAMPLE_INTERVAL_MILLIS = 1000;
+    static final int NUM_SAMPLES = 1024;
+    static final String PHASE_RECORDS = "records";
+    static final String PHASE_SUBTASKS = "subtasks";
+    static final String PHASE_UPLOAD = "upload";
+
+    // Windows for records per second, by name. The estimated time remaining uses the 5 minute window.
+    private static final Map<String, Long> RATE_WINDOW_MILLIS_BY_NAME = ImmutableMap.of("1m",
+            TimeUnit.MINUTES.toMillis(1), "5m", TimeUnit.MINUTES.toMillis(5), "15m", TimeUnit.MINUTES.toMillis(15));
+    private static final long ESTIMATE_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private volatile ActiveTask activeTask;
+
+    // Spring helpers
+    private DynamoReadThrottle ddbReadThrottle;
+    private DynamoHelper dynamoHelper;
+    private ExecutorService participantLookupExecutorService;
+    private RateLimiterRegistry rateLimiterRegistry;
+    private InstrumentedThreadPoolExecutor workerExecutorService;
+
+    /** DDB read throttle. We report its rate and how long callers have waited on it. */
+    @Autowired
+    public final void setDdbReadThrottle(DynamoReadThrottle ddbReadThrottle) {
+        this.ddbReadThrottle = ddbReadThrottle;
+    }
+
+    /** DDB helper, used to get each study's last export record count, to estimate how many records to expect. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /** Participant lookup executor. We report its queue depth. */
+    @Resource(name = "participantLookupExecutorService")
+    public final void setParticipantLookupExecutorService(ExecutorService participantLookupExecutorService) {
+        this.participantLookupExecutorService = participantLookupExecutorService;
+    }
+
+    /** Rate limiter registry. We report each rate limiter's rate and wait time. */
+    @Autowired
+    public final void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        this.rateLimiterRegistry = rateLimiterRegistry;
+    }
+
+    /**
+     * Worker executor, which runs the export subtasks. We report its queue depth, active threads, and queue wait and
+     * execution latencies by handler type.
+     */
+    @Resource(name = "workerExecutorService")
+    public final void setWorkerExecutorService(InstrumentedThreadPoolExecutor workerExecutorService) {
+        this.workerExecutorService = workerExecutorService;
+    }
+
+    /**
+     * Starts tracking the given task. If the request uses the last export time, the expected number of records is the
+     * sum of the studies' last export record counts. Otherwise, it's unknown, and there's no time estimate while
+     * processing records.
+     *
+     * @param task
+     *         task to track
+     * @param numRecordsCounter
+     *         counter of records processed so far by the task
+     * @param studyIds
+     *         study IDs being exported
+     */
+    public void startTask(ExportTask task, Metrics.Counter numRecordsCounter, Collection<String> studyIds) {
+        Long expectedNumRecords = null;
+        if (task.getRequest().getUseLastExportTime()) {
+            Map<String, Integer> recordCountsByStudy = dynamoHelper.getLastExportRecordCounts(studyIds);
+            if (!recordCountsByStudy.isEmpty()) {
+                expectedNumRecords = recordCountsByStudy.values().stream().mapToLong(Integer::longValue).sum();
+            }
+        }
+
+        ActiveTask newTask = new ActiveTask(task, numRecordsCounter, expectedNumRecords,
+                rateLimiterRegistry.snapshot(), workerExecutorService.snapshot());
+        newTask.startSample = takeSample(newTask);
+        newTask.addSample(newTask.startSample);
+        activeTask = newTask;
+    }
+
+    /**
+     * Marks that the given task has processed all its records. From here, the task waits for its outstanding subtasks,
+     * then uploads its TSVs.
+     */
+    public void recordsDone(ExportTask task) {
+        ActiveTask active = activeTask;
+        if (active != null && active.task == task) {
+            active.recordsDoneSample = takeSample(active);
+            active.addSample(active.recordsDoneSample);
+        }
+    }
+
+    /** Stops tracking the given task. Called when the task finishes, whether or not it succeeded. */
+    public void finishTask(ExportTask task) {
+        ActiveTask active = activeTask;
+        if (active != null && active.task == task) {
+            activeTask = null;
+        }
+    }
+
+    /**
+     * Takes a throughput sample for the active task, if there is one and if the last sample is at least a second old.
+     * This is cheap, and is called periodically from the record path.
+     */
+    public void sample() {
+        ActiveTask active = activeTask;
+        if (active != null) {
+            Sample latest = active.getLatestSample();
+            if (latest == null || now() - latest.millis >= MIN_SAMPLE_INTERVAL_MILLIS) {
+                active.addSample(takeSample(active));
+            }
+        }
+    }
+
+    /**
+     * Progress of the active task, as JSON. If there is no active task, this only has "active": false.
+     *
+     * @return progress JSON
+     */
+    public JsonNode getProgress() {
+        ObjectNode progressNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        ActiveTask active = activeTask;
+        if (active == null) {
+            progressNode.put("active", false);
+            return progressNode;
+        }
+        sample();
+
+        ExportTask task = active.task;
+        Sample current = takeSample(active);
+        Sample recordsDoneSample = active.recordsDoneSample;
+        Sample startSample = active.startSample;
+
+        progressNode.put("active", true);
+        progressNode.put("request", task.getRequest().toString());
+        progressNode.put("exporterDate", task.getExporterDate().toString());
+        progressNode.put("elapsedSeconds", TimeUnit.MILLISECONDS.toSeconds(current.millis - startSample.millis));
+
+        String phase;
+        if (recordsDoneSample == null) {
+            phase = PHASE_RECORDS;
+        } else if (current.numOutstandingSubtasks > 0) {
+            phase = PHASE_SUBTASKS;
+        } else {
+            phase = PHASE_UPLOAD;
+        }
+        progressNode.put("phase", phase);
+
+        // records
+        ObjectNode recordsNode = progressNode.putObject("records");
+        recordsNode.put("processed", current.numRecords);
+        if (active.expectedNumRecords != null) {
+            recordsNode.put("expected", active.expectedNumRecords);
+        } else {
+            recordsNode.putNull("expected");
+        }
+
+        ObjectNode recordRateNode = progressNode.putObject("recordsPerSecond");
+        for (Map.Entry<String, Long> oneWindow : RATE_WINDOW_MILLIS_BY_NAME.entrySet()) {
+            putRate(recordRateNode, oneWindow.getKey(), active.findBaseline(current.millis - oneWindow.getValue()),
+                    current, s -> s.numRecords);
+        }
+        putRate(recordRateNode, "sinceStart", startSample, current, s -> s.numRecords);
+
+        // subtasks and executors
+        progressNode.put("outstandingSubtasks", current.numOutstandingSubtasks);
+        ObjectNode executorsNode = progressNode.putObject("executorQueueDepth");
+        putQueueDepth(executorsNode, "participantLookup", participantLookupExecutorService);
+        putQueueDepth(executorsNode, "worker", workerExecutorService);
+        putWorkerExecutor(progressNode.putObject("workerExecutor"), active);
+
+        // tables
+        ObjectNode tablesNode = progressNode.putObject("tables");
+        for (Map.Entry<UploadSchemaKey, TsvInfo> oneTsvEntry : task.getHealthDataTsvInfoMap().entrySet()) {
+            putTable(tablesNode, ExportCheckpoint.getTableKeyForSchema(oneTsvEntry.getKey()), oneTsvEntry.getValue());
+        }
+        for (Table.Cell<String, MetaTableType, TsvInfo> oneTsvCell : task.getTsvInfoByStudyAndTypeTable().cellSet()) {
+            putTable(tablesNode, ExportCheckpoint.getTableKeyForStudyAndType(oneTsvCell.getRowKey(),
+                    oneTsvCell.getColumnKey()), oneTsvCell.getValue());
+        }
+
+        // rate limiters
+        ObjectNode rateLimitersNode = progressNode.putObject("rateLimiters");
+        ObjectNode ddbNode = rateLimitersNode.putObject("ddbRead");
+        ddbNode.put("rate", ddbReadThrottle.getRate());
+        ddbNode.put("ceilingRate", ddbReadThrottle.getCeilingRate());
+        ddbNode.put("waitMillis", current.ddbWaitMillis - startSample.ddbWaitMillis);
+        putRate(ddbNode, "waitMillisPerSecond", active.findBaseline(current.millis - TimeUnit.MINUTES.toMillis(1)),
+                current, s -> s.ddbWaitMillis);
+        for (Map.Entry<String, InstrumentedRateLimiter> oneRateLimiterEntry : rateLimiterRegistry.getRateLimiters()
+                .entrySet()) {
+            String name = oneRateLimiterEntry.getKey();
+            InstrumentedRateLimiter.Stats stats = oneRateLimiterEntry.getValue().snapshot().minus(
+                    active.rateLimiterStatsAtStart.getOrDefault(name, InstrumentedRateLimiter.Stats.EMPTY));
+
+            ObjectNode rateLimiterNode = rateLimitersNode.putObject(name);
+            rateLimiterNode.put("rate", stats.getRate());
+            rateLimiterNode.put("permits", stats.getNumPermits());
+            rateLimiterNode.put("waitMillis", stats.getTotalWaitMillis());
+            rateLimiterNode.put("p99WaitMillis", stats.getWaitLatencies().getValueAtPercentile(99.0) / 1000.0);
+            rateLimiterNode.put("saturation", stats.getSaturation());
+        }
+
+        // estimated time remaining
+        Long estimatedSecondsRemaining = null;
+        Sample estimateBaseline = active.findBaseline(current.millis - ESTIMATE_WINDOW_MILLIS);
+        if (PHASE_RECORDS.equals(phase)) {
+            // Only known if we know how many records to expect. Records can exceed the estimate, so clamp at zero.
+            Double recordRate = perSecond(estimateBaseline, current, s -> s.numRecords);
+            if (active.expectedNumRecords != null && recordRate != null && recordRate > 0.0) {
+                long numRemaining = Math.max(0, active.expectedNumRecords - current.numRecords);
+                estimatedSecondsRemaining = Math.round(numRemaining / recordRate);
+            }
+        } else if (PHASE_SUBTASKS.equals(phase)) {
+            // Subtasks are only added while processing records, so measure the drain rate from when records finished.
+            if (estimateBaseline.millis < recordsDoneSample.millis) {
+                estimateBaseline = recordsDoneSample;
+            }
+            Double drainRate = perSecond(current, estimateBaseline, s -> s.numOutstandingSubtasks);
+            if (drainRate != null && drainRate > 0.0) {
+                estimatedSecondsRemaining = Math.round(current.numOutstandingSubtasks / drainRate);
+            }
+        }
+        if (estimatedSecondsRemaining != null) {
+            progressNode.put("estimatedSecondsRemaining", estimatedSecondsRemaining);
+        } else {
+            progressNode.putNull("estimatedSecondsRemaining");
+        }
+
+        return progressNode;
+    }
+
+    /** Current time in epoch milliseconds. Package-scoped so unit tests can mock the clock. */
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    // Helper method which takes a sample of the given task's progress. This only reads counters, so it doesn't lock.
+    private Sample takeSample(ActiveTask active) {
+        return new Sample(now(), active.numRecordsCounter.get(), active.task.getNumOutstandingSubtasks(),
+                ddbReadThrottle.getTotalWaitMillis());
+    }
+
+    // Helper method which computes the per-second change in the given value between the two samples. Null if the
+    // samples are at the same time. For decreasing values, pass the samples in reverse order.
+    private static Double perSecond(Sample from, Sample to, ToLongFunction<Sample> valueFunc) {
+        long elapsedMillis = Math.abs(to.millis - from.millis);
+        if (elapsedMillis == 0) {
+            return null;
+        }
+        return (valueFunc.applyAsLong(to) - valueFunc.applyAsLong(from)) * 1000.0 / elapsedMillis;
+    }
+
+    // Helper method which writes the per-second rate to the JSON, or null if it's not known yet.
+    private static void putRate(ObjectNode node, String fieldName, Sample from, Sample to,
+            ToLongFunction<Sample> valueFunc) {
+        Double rate = perSecond(from, to, valueFunc);
+        if (rate != null) {
+            node.put(fieldName, rate);
+        } else {
+            node.putNull(fieldName);
+        }
+    }
+
+    // Helper method which writes the executor's queue depth to the JSON. Only thread pool executors expose their
+    // queue. The queue's size is a lock-free read.
+    private static void putQueueDepth(ObjectNode node, String fieldName, ExecutorService executorService) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            node.put(fieldName, ((ThreadPoolExecutor) executorService).getQueue().size());
+        } else {
+            node.putNull(fieldName);
+        }
+    }
+
+    // Helper method which writes the worker executor's stats since the task started to the JSON. Latencies are in
+    // milliseconds and are by handler type.
+    private void putWorkerExecutor(ObjectNode workerExecutorNode, ActiveTask active) {
+        InstrumentedThreadPoolExecutor.Stats stats = workerExecutorService.snapshot().minus(
+                active.workerExecutorStatsAtStart);
+        workerExecutorNode.put("queueDepth", workerExecutorService.getQueueDepth());
+        workerExecutorNode.put("activeThreads", workerExecutorService.getNumActiveThreads());
+        workerExecutorNode.put("utilization", stats.getUtilization());
+        workerExecutorNode.put("callerRuns", stats.getNumCallerRuns());
+        workerExecutorNode.put("rejected", stats.getNumRejected());
+
+        ObjectNode handlersNode = workerExecutorNode.putObject("handlers");
+        for (Map.Entry<String, LatencyHistogram.Snapshot> oneEntry : stats.getQueueWaitByTag().entrySet()) {
+            LatencyHistogram.Snapshot queueWait = oneEntry.getValue();
+            if (queueWait.getCount() == 0) {
+                continue;
+            }
+            LatencyHistogram.Snapshot execution = stats.getExecutionByTag().get(oneEntry.getKey());
+
+            ObjectNode handlerNode = handlersNode.putObject(oneEntry.getKey());
+            handlerNode.put("count", queueWait.getCount());
+            handlerNode.put("p50QueueWaitMillis", queueWait.getValueAtPercentile(50.0) / 1000.0);
+            handlerNode.put("p99QueueWaitMillis", queueWait.getValueAtPercentile(99.0) / 1000.0);
+            handlerNode.put("p50ExecutionMillis", execution.getValueAtPercentile(50.0) / 1000.0);
+            handlerNode.put("p99ExecutionMillis", execution.getValueAtPercentile(99.0) / 1000.0);
+        }
+    }
+
+    // Helper method which writes the TSV's line and byte counts to the JSON.
+    private static void putTable(ObjectNode tablesNode, String tableKey, TsvInfo tsvInfo) {
+        ObjectNode tableNode = tablesNode.putObject(tableKey);
+        tableNode.put("lines", tsvInfo.getLineCount());
+        tableNode.put("bytes", tsvInfo.getNumBytes());
+    }
+
+    // The task being tracked, and its throughput samples.
+    private static class ActiveTask {
+        private final ExportTask task;
+        private final Metrics.Counter numRecordsCounter;
+        private final Long expectedNumRecords;
+        private final Map<String, InstrumentedRateLimiter.Stats> rateLimiterStatsAtStart;
+        private final InstrumentedThreadPoolExecutor.Stats workerExecutorStatsAtStart;
+        private final AtomicReferenceArray<Sample> samples = new AtomicReferenceArray<>(NUM_SAMPLES);
+        private final AtomicLong numSamples = new AtomicLong();
+        private volatile Sample startSample;
+        private volatile Sample recordsDoneSample;
+
+        ActiveTask(ExportTask task, Metrics.Counter numRecordsCounter, Long expectedNumRecords,
+                Map<String, InstrumentedRateLimiter.Stats> rateLimiterStatsAtStart,
+                InstrumentedThreadPoolExecutor.Stats workerExecutorStatsAtStart) {
+            this.task = task;
+            this.numRecordsCounter = numRecordsCounter;
+            this.expectedNumRecords = expectedNumRecords;
+            this.rateLimiterStatsAtStart = rateLimiterStatsAtStart;
+            this.workerExecutorStatsAtStart = workerExecutorStatsAtStart;
+        }
+
+        // Adds the sample to the ring, overwriting the oldest sample if the ring is full.
+        void addSample(Sample sample) {
+            long index = numSamples.getAndIncrement();
+            samples.set((int) (index % NUM_SAMPLES), sample);
+        }
+
+        // Most recent sample, or null if there are none.
+        Sample getLatestSample() {
+            long count = numSamples.get();
+            return count > 0 ? samples.get((int) ((count - 1) % NUM_SAMPLES)) : null;
+        }
+
+        // Latest sample at or before the given time. If there is none (the window is longer than the task has been
+        // running), this is the start sample.
+        Sample findBaseline(long windowStartMillis) {
+            Sample latestBefore = null;
+            for (int i = 0; i < NUM_SAMPLES; i++) {
+                Sample oneSample = samples.get(i);
+                if (oneSample != null && oneSample.millis <= windowStartMillis && (latestBefore == null ||
+                        oneSample.millis > latestBefore.millis)) {
+                    latestBefore = oneSample;
+                }
+            }
+            return latestBefore != null ? latestBefore : startSample;
+        }
+    }
+
+    // Immutable sample of a task's progress at a point in time.
+    private static class Sample {
+        private final long millis;
+        private final long numRecords;
+        private final long numOutstandingSubtasks;
+        private final long ddbWaitMillis;
+
+        Sample(long millis, long numRecords, long numOutstandingSubtasks, long ddbWaitMillis) {
+            this.millis = millis;
+            this.numRecords = numRecords;
+            this.numOutstandingSubtasks = numOutstandingSubtasks;
+            this.ddbWaitMillis = ddbWaitMillis;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.sagebionetworks.bridge.exporter.progress;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * Read-only endpoint to list the rate limiters on calls to our dependencies, with their current and configured rates.
+ * Rates can be lowered at runtime through JMX (see {@link RateLimiterRegistry#setRate}), not through this endpoint.
+ */
+@RestController
+public class RateLimiterController {
+    private RateLimiterRegistry rateLimiterRegistry;
+
+    /** Rate limiter registry, which holds the rate limiters by name. */
+    @Autowired
+    public final void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        this.rateLimiterRegistry = rateLimiterRegistry;
+    }
+
+    /** Lists the rate limiters, with their current and configured rates in permits per second. */
+    @GetMapping(path = "/rateLimiters", produces = MediaType.APPLICATION_JSON_VALUE)
+    public JsonNode getRateLimiters() {
+        ObjectNode rateLimitersNode = DefaultObjectMapper.INSTANCE.createObjectNode();
+        for (Map.Entry<String, InstrumentedRateLimiter> oneEntry : rateLimiterRegistry.getRateLimiters().entrySet()) {
+            ObjectNode oneRateLimiterNode = rateLimitersNode.putObject(oneEntry.getKey());
+            oneRateLimiterNode.put("rate", oneEntry.getValue().getRate());
+            oneRateLimiterNode.put("configuredRate", oneEntry.getValue().getConfiguredRate());
+        }
+        return rateLimitersNode;
+    }
+}
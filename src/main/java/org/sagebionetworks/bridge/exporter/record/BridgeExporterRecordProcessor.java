@@ -1,15 +1,22 @@
 package org.sagebionetworks.bridge.exporter.record;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.google.common.base.Stopwatch;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
@@ -22,14 +29,26 @@ import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
 import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
 import org.sagebionetworks.bridge.exporter.exceptions.SynapseUnavailableException;
+import org.sagebionetworks.bridge.exporter.handler.SynapseExportHandler;
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedThreadPoolExecutor;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
+import org.sagebionetworks.bridge.exporter.metrics.MetricName;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.metrics.MetricsHelper;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.exporter.metrics.StageLatencyTracker;
+import org.sagebionetworks.bridge.exporter.progress.ExportProgressTracker;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.ExportWorkerManager;
 import org.sagebionetworks.bridge.file.FileHelper;
@@ -45,38 +64,101 @@ public class BridgeExporterRecordProcessor {
     private static final Logger LOG = LoggerFactory.getLogger(BridgeExporterRecordProcessor.class);
 
     // package-scoped to be available to unit tests
-    static final String CONFIG_KEY_RECORD_LOOP_DELAY_MILLIS = "record.loop.delay.millis";
+    static final String CONFIG_KEY_RECORD_BATCH_GET_SIZE = "record.batch.get.size";
     static final String CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD = "record.loop.progress.report.period";
+    static final String CONFIG_KEY_PIPELINE_DISPATCH_PARALLELISM = "record.pipeline.dispatch.parallelism";
+    static final String CONFIG_KEY_PIPELINE_FILTER_PARALLELISM = "record.pipeline.filter.parallelism";
+    static final String CONFIG_KEY_PIPELINE_HYDRATE_PARALLELISM = "record.pipeline.hydrate.parallelism";
+    static final String CONFIG_KEY_PIPELINE_QUEUE_SIZE = "record.pipeline.queue.size";
+    static final String METRICS_NUM_TOTAL = "numTotal";
+    static final String METRICS_PREFIX_NUM_RECORDS_FOR_STUDY = "numRecords[";
+    static final String METRICS_LATENCY_DISPATCH = Metrics.LATENCY_PREFIX + "record.dispatch";
+    static final String METRICS_LATENCY_END_OF_STREAM = Metrics.LATENCY_PREFIX + "endOfStream";
+    static final String METRICS_LATENCY_FILTER = Metrics.LATENCY_PREFIX + "record.filter";
+    static final String METRICS_LATENCY_HYDRATE = Metrics.LATENCY_PREFIX + "ddb.batchGetRecords";
+
+    private static final MetricName<String> METRICS_NUM_RECORDS_FOR_STUDY = new MetricName<>(
+            METRICS_PREFIX_NUM_RECORDS_FOR_STUDY, "]");
 
     // config attributes
-    private int delayMillis;
+    private int batchGetSize;
+    private int dispatchParallelism;
+    private int filterParallelism;
+    private int hydrateParallelism;
+    private int hydrateQueueSize;
+    private int pipelineQueueSize;
     private int progressReportPeriod;
     private DateTimeZone timeZone;
 
     // Spring helpers
-    private Table ddbRecordTable;
+    private DynamoReadThrottle ddbReadThrottle;
+    private ExportCheckpointHelper exportCheckpointHelper;
+    private ExportDryRunPlanner exportDryRunPlanner;
+    private ExportProgressTracker exportProgressTracker;
     private FileHelper fileHelper;
     private MetricsHelper metricsHelper;
+    private RateLimiterRegistry rateLimiterRegistry;
+    private RecordBatchGetHelper recordBatchGetHelper;
     private RecordFilterHelper recordFilterHelper;
     private RecordIdSourceFactory recordIdSourceFactory;
+    private ExecutorService recordPipelineExecutorService;
+    private SharingScopeCache sharingScopeCache;
+    private StageLatencyTracker stageLatencyTracker;
     private SynapseHelper synapseHelper;
+    private InstrumentedThreadPoolExecutor workerExecutorService;
     private ExportWorkerManager workerManager;
     private DynamoHelper dynamoHelper;
 
-    /** Config, used to get attributes for loop control and time zone. */
+    /** Config, used to get attributes for loop control, record pipeline, and time zone. */
     @Autowired
     public final void setConfig(Config config) {
-        this.delayMillis = config.getInt(CONFIG_KEY_RECORD_LOOP_DELAY_MILLIS);
+        this.batchGetSize = Math.min(config.getInt(CONFIG_KEY_RECORD_BATCH_GET_SIZE),
+                RecordBatchGetHelper.MAX_BATCH_SIZE);
         this.progressReportPeriod = config.getInt(CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD);
+
+        // Each pipeline stage needs at least one thread and room for at least one item in its queue. The hydrate
+        // queue holds batches instead of records, so size it to hold about the same number of records.
+        this.dispatchParallelism = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_DISPATCH_PARALLELISM));
+        this.filterParallelism = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_FILTER_PARALLELISM));
+        this.hydrateParallelism = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_HYDRATE_PARALLELISM));
+        this.pipelineQueueSize = Math.max(1, config.getInt(CONFIG_KEY_PIPELINE_QUEUE_SIZE));
+        this.hydrateQueueSize = Math.max(1, pipelineQueueSize / Math.max(1, batchGetSize));
+
         this.timeZone = DateTimeZone.forID(config.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME));
     }
 
-    /** DDB Health Data Record table, used for querying full records for the list of record IDs. */
-    @Resource(name = "ddbRecordTable")
-    public final void setDdbRecordTable(Table ddbRecordTable) {
-        this.ddbRecordTable = ddbRecordTable;
+    /**
+     * DDB read throttle, which rate limits all DDB reads for the request. We don't call this directly, but we publish
+     * its rate and wait time with the request's metrics.
+     */
+    @Autowired
+    public final void setDdbReadThrottle(DynamoReadThrottle ddbReadThrottle) {
+        this.ddbReadThrottle = ddbReadThrottle;
+    }
+
+    /**
+     * Export checkpoint helper. If a previous run of the same request left a checkpoint, we resume from it instead of
+     * processing all records again. The checkpoint is cleared when the request succeeds.
+     */
+    @Autowired
+    public final void setExportCheckpointHelper(ExportCheckpointHelper exportCheckpointHelper) {
+        this.exportCheckpointHelper = exportCheckpointHelper;
+    }
+
+    /** Dry run planner, used instead of running the export if the request is a dry run. */
+    @Autowired
+    public final void setExportDryRunPlanner(ExportDryRunPlanner exportDryRunPlanner) {
+        this.exportDryRunPlanner = exportDryRunPlanner;
     }
 
+    /**
+     * Export progress tracker, which reports the active task's progress to the progress endpoint. We tell it when the
+     * task starts and finishes, and sample it when we log progress.
+     */
+    @Autowired
+    public final void setExportProgressTracker(ExportProgressTracker exportProgressTracker) {
+        this.exportProgressTracker = exportProgressTracker;
+    }
 
     /** File helper, used for creating and cleaning up the temp dir used to store the request's temporary files. */
     @Autowired
@@ -90,6 +172,24 @@ public class BridgeExporterRecordProcessor {
         this.metricsHelper = metricsHelper;
     }
 
+    /**
+     * Rate limiter registry. We don't call this directly, but we publish the wait times of the helpers' rate limiters
+     * with the request's metrics.
+     */
+    @Autowired
+    public final void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        this.rateLimiterRegistry = rateLimiterRegistry;
+    }
+
+    /**
+     * Record batch get helper, used to hydrate batches of record IDs into full records from DDB. Records which are
+     * already full records skip the DDB read.
+     */
+    @Autowired
+    public final void setRecordBatchGetHelper(RecordBatchGetHelper recordBatchGetHelper) {
+        this.recordBatchGetHelper = recordBatchGetHelper;
+    }
+
     /**
      * Record filter helper, used to determine which records to filter out, due to request filters or sharing filters.
      */
@@ -104,12 +204,47 @@ public class BridgeExporterRecordProcessor {
         this.recordIdSourceFactory = recordIdSourceFactory;
     }
 
+    /**
+     * Executor for the record pipeline stages. Each request uses (hydrate + filter + dispatch) parallelism threads
+     * while it's running, so this should be able to grow to at least that.
+     */
+    @Resource(name = "recordPipelineExecutorService")
+    public final void setRecordPipelineExecutorService(ExecutorService recordPipelineExecutorService) {
+        this.recordPipelineExecutorService = recordPipelineExecutorService;
+    }
+
+    /**
+     * Sharing scope cache. We don't call this directly, but we publish its stats with the request's metrics.
+     */
+    @Autowired
+    public final void setSharingScopeCache(SharingScopeCache sharingScopeCache) {
+        this.sharingScopeCache = sharingScopeCache;
+    }
+
+    /**
+     * Stage latency tracker. We don't call this directly, but we publish the latencies of the shared helpers' calls
+     * with the request's metrics.
+     */
+    @Autowired
+    public final void setStageLatencyTracker(StageLatencyTracker stageLatencyTracker) {
+        this.stageLatencyTracker = stageLatencyTracker;
+    }
+
     /** Synapse Helper, used to check Synapse health status before starting export job. */
     @Autowired
     public final void setSynapseHelper(SynapseHelper synapseHelper) {
         this.synapseHelper = synapseHelper;
     }
 
+    /**
+     * Worker executor. We don't call this directly, but we publish its queue wait and execution latencies by handler
+     * type with the request's metrics.
+     */
+    @Resource(name = "workerExecutorService")
+    public final void setWorkerExecutorService(InstrumentedThreadPoolExecutor workerExecutorService) {
+        this.workerExecutorService = workerExecutorService;
+    }
+
     /**
      * Worker manager, which takes export tasks and subtasks generated by this class and manages the workers and
      * handlers to perform those tasks, and eventually uploads the export results to Synapse.
@@ -138,6 +273,12 @@ public class BridgeExporterRecordProcessor {
             PollSqsWorkerBadRequestException, RestartBridgeExporterException, SynapseUnavailableException {
         LOG.info("Received request " + request.toString());
 
+        // Dry runs only read from DDB and Bridge, so they don't need Synapse to be writable.
+        if (request.getDryRun()) {
+            planRequest(request);
+            return;
+        }
+
         // Check to see that Synapse is up and availabe for read/write. If it isn't, throw an exception, so the
         // PollSqsWorker can re-cycle the request until Synapse is available again.
         boolean isSynapseWritable;
@@ -150,80 +291,87 @@ public class BridgeExporterRecordProcessor {
             throw new SynapseUnavailableException("Synapse not in writable state");
         }
 
+        // If a previous run of this request was restarted after processing all its records, resume from its
+        // checkpoint. The checkpoint's TSVs are in the previous run's temp dir, so reuse that.
+        ExportCheckpoint checkpoint = exportCheckpointHelper.readCheckpoint(request);
+        File tmpDir;
+        LocalDate exporterDate;
+        if (checkpoint != null) {
+            tmpDir = new File(checkpoint.getTmpDir());
+            exporterDate = LocalDate.parse(checkpoint.getExporterDate());
+            LOG.info("Found checkpoint with temp dir " + tmpDir.getAbsolutePath());
+        } else {
+            tmpDir = fileHelper.createTempDir();
+            exporterDate = LocalDate.now(timeZone);
+            LOG.info("Created temp dir " + tmpDir.getAbsolutePath());
+        }
+
         // make task
         Metrics metrics = new Metrics();
-        File tmpDir = fileHelper.createTempDir();
-        LOG.info("Created temp dir " + tmpDir.getAbsolutePath());
-        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.now(timeZone)).withMetrics(metrics)
+        ExportTask task = new ExportTask.Builder().withExporterDate(exporterDate).withMetrics(metrics)
                 .withRequest(request).withTmpDir(tmpDir).build();
 
         Stopwatch stopwatch = Stopwatch.createStarted();
+        long throttleWaitMillisAtStart = ddbReadThrottle.getTotalWaitMillis();
+        int throttleEventsAtStart = ddbReadThrottle.getNumThrottleEvents();
+        CacheStats sharingScopeStatsAtStart = sharingScopeCache.getStats();
+        Map<String, LatencyHistogram.Snapshot> stageLatenciesAtStart = stageLatencyTracker.snapshot();
+        Map<String, InstrumentedRateLimiter.Stats> rateLimiterStatsAtStart = rateLimiterRegistry.snapshot();
+        InstrumentedThreadPoolExecutor.Stats workerExecutorStatsAtStart = workerExecutorService.snapshot();
         try {
             // determine study ids and their corresponding start date time
             Map<String, DateTime> studyIdsToQuery = dynamoHelper.bootstrapStudyIdsToQuery(request);
             LOG.info("Exporting the following studies: " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(studyIdsToQuery
                     .keySet()));
+            exportProgressTracker.startTask(task, metrics.getCounter(METRICS_NUM_TOTAL), studyIdsToQuery.keySet());
 
-            Iterable<String> recordIdIterable = recordIdSourceFactory.getRecordSourceForRequest(request,
-                    studyIdsToQuery);
-            for (String oneRecordId : recordIdIterable) {
-                // Count total number of records. Also, log at regular intervals, so people tailing the logs can follow
-                // progress.
-                int numTotal = metrics.incrementCounter("numTotal");
-                if (numTotal % progressReportPeriod == 0) {
-                    LOG.info("Num records so far: " + numTotal + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                            " seconds");
-                }
-
-                // sleep to rate limit our requests to DDB
-                if (delayMillis > 0) {
-                    try {
-                        Thread.sleep(delayMillis);
-                    } catch (InterruptedException ex) {
-                        LOG.error("Record processor interrupted while sleeping: " + ex.getMessage(), ex);
-                    }
-                }
+            if (checkpoint == null || !resumeFromCheckpoint(task, checkpoint)) {
+                // If a previous run of this request imported TSV segments before it was restarted, skip those rows.
+                task.setPreviouslyImportedRecordIdsByTable(exportCheckpointHelper.readImportedSegments(request));
 
+                Iterable<Item> recordIdIterable = recordIdSourceFactory.getRecordSourceForRequest(metrics, request,
+                        studyIdsToQuery);
                 try {
-                    // get record
-                    Item record = ddbRecordTable.getItem("id", oneRecordId);
-                    if (record == null) {
-                        LOG.error("Missing health data record for ID " + oneRecordId);
-                        continue;
-                    }
-
-                    // filter
-                    boolean shouldExcludeRecord = recordFilterHelper.shouldExcludeRecord(metrics, request, record);
-                    if (shouldExcludeRecord) {
-                        continue;
+                    processRecords(metrics, request, task, recordIdIterable, stopwatch);
+                } finally {
+                    // Fan-out record sources read on background threads. Make sure those stop if we bail out early.
+                    if (recordIdIterable instanceof Closeable) {
+                        ((Closeable) recordIdIterable).close();
                     }
-
-                    // only after the filter do we log health code metrics
-                    metricsHelper.captureMetricsForRecord(metrics, record);
-
-                    workerManager.addSubtaskForRecord(task, record);
-                } catch (IOException | RuntimeException | SchemaNotFoundException ex) {
-                    LOG.error("Exception processing record " + oneRecordId + ": " + ex.getMessage(), ex);
                 }
             }
+            exportProgressTracker.recordsDone(task);
 
-            workerManager.endOfStream(task, studyIdsToQuery);
+            try (LatencyHistogram.Timer timer = metrics.getLatencyHistogram(METRICS_LATENCY_END_OF_STREAM)
+                    .startTimer()) {
+                workerManager.endOfStream(task, studyIdsToQuery);
+            }
 
             // We made it to the end. Set the success flag on the task.
             setTaskSuccess(task);
 
+            // Save each study's data freshness, so we can see how stale exported data is over time.
+            dynamoHelper.addFreshnessHistory(DateTime.now(), request.getTag(), getFreshnessByStudy(metrics,
+                    studyIdsToQuery.keySet()));
+
             // finally modify export time table in ddb
             if (request.getUseLastExportTime()) {
                 dynamoHelper.updateExportTimeTable(new ArrayList<>(studyIdsToQuery.keySet()),
-                        request.getEndDateTime());
+                        request.getEndDateTime(), getRecordCountsByStudy(metrics, studyIdsToQuery.keySet()));
             }
         } finally {
+            exportProgressTracker.finishTask(task);
             long elapsedTime = stopwatch.elapsed(TimeUnit.SECONDS);
             if (task.isSuccess()) {
                 LOG.info("Finished processing request in " + elapsedTime + " seconds, " + request.toString());
             } else {
                 LOG.error("Error processing request; elapsed time " + elapsedTime + " seconds, " + request.toString());
             }
+            ddbReadThrottle.publishMetrics(metrics, throttleWaitMillisAtStart, throttleEventsAtStart);
+            sharingScopeCache.publishMetrics(metrics, sharingScopeStatsAtStart);
+            stageLatencyTracker.publishMetrics(metrics, stageLatenciesAtStart);
+            rateLimiterRegistry.publishMetrics(metrics, rateLimiterStatsAtStart);
+            workerExecutorService.publishMetrics(metrics, workerExecutorStatsAtStart);
             metricsHelper.publishMetrics(metrics);
         }
 
@@ -231,8 +379,172 @@ public class BridgeExporterRecordProcessor {
         fileHelper.deleteDir(tmpDir);
     }
 
-    // Helper method that we can spy and verify that we're setting the task success properly.
+    // Helper method which plans the export for a dry run request, without running it. This doesn't write anything to
+    // Synapse or update the export time table.
+    private void planRequest(BridgeExporterRequest request) throws PollSqsWorkerBadRequestException {
+        Metrics metrics = new Metrics();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            Map<String, DateTime> studyIdsToQuery = dynamoHelper.bootstrapStudyIdsToQuery(request);
+            LOG.info("Planning dry run for the following studies: " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(
+                    studyIdsToQuery.keySet()));
+            exportDryRunPlanner.planExport(metrics, request.getEndDateTime(), studyIdsToQuery);
+        } finally {
+            LOG.info("Finished planning dry run in " + stopwatch.elapsed(TimeUnit.SECONDS) + " seconds, " +
+                    request.toString());
+            metricsHelper.publishMetrics(metrics);
+        }
+    }
+
+    // Helper method which restores the checkpoint into the task, in place of processing records. Returns false if the
+    // checkpoint can't be restored, in which case the checkpoint is discarded and we process records from the start.
+    private boolean resumeFromCheckpoint(ExportTask task, ExportCheckpoint checkpoint) {
+        try {
+            workerManager.resumeFromCheckpoint(task, checkpoint);
+            return true;
+        } catch (SchemaNotFoundException ex) {
+            LOG.error("Error resuming from checkpoint, starting over: " + ex.getMessage(), ex);
+            exportCheckpointHelper.discardCheckpoint(task.getRequest());
+            return false;
+        }
+    }
+
+    // Helper method which runs all records from the record ID source through the record pipeline. Stages are:
+    // (1) this thread reads record IDs and batches them, (2) batches are hydrated into full records, (3) records are
+    // filtered, and (4) records are dispatched to the worker manager. Each stage has its own threads, so DDB reads,
+    // Bridge participant lookups, and handler work overlap.
+    private void processRecords(Metrics metrics, BridgeExporterRequest request, ExportTask task,
+            Iterable<Item> recordIdIterable, Stopwatch stopwatch) {
+        RecordFilterPlan filterPlan = recordFilterHelper.compileFilterPlan(metrics, request);
+        RecordPipeline pipeline = new RecordPipeline(recordPipelineExecutorService)
+                .addStage("hydrate", hydrateParallelism, hydrateQueueSize,
+                        (List<Item> recordIdBatch, RecordPipeline.Emitter emitter) -> hydrateBatch(metrics,
+                                filterPlan, recordIdBatch, stopwatch, emitter))
+                .addStage("filter", filterParallelism, pipelineQueueSize,
+                        (Item record, RecordPipeline.Emitter emitter) -> filterRecord(metrics, filterPlan,
+                                record, emitter))
+                .addStage("dispatch", dispatchParallelism, pipelineQueueSize,
+                        (Item record, RecordPipeline.Emitter emitter) -> dispatchRecord(task, record));
+        try {
+            pipeline.run(Iterables.partition(recordIdIterable, batchGetSize));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Record processor interrupted: " + ex.getMessage(), ex);
+        } finally {
+            filterPlan.completeDeferredMetrics();
+        }
+    }
+
+    // Pipeline stage which hydrates a batch of record IDs into full records, and emits the records that exist. This
+    // also starts the sharing scope lookups for the batch, so they run while the filter stage works on earlier
+    // records.
+    private void hydrateBatch(Metrics metrics, RecordFilterPlan filterPlan, List<Item> recordIdBatch,
+            Stopwatch stopwatch, RecordPipeline.Emitter emitter) throws InterruptedException {
+        // get records (rate limited by the DDB read throttle)
+        List<Item> recordList;
+        try (LatencyHistogram.Timer timer = metrics.getLatencyHistogram(METRICS_LATENCY_HYDRATE).startTimer()) {
+            recordList = recordBatchGetHelper.hydrateRecords(metrics, recordIdBatch);
+        } catch (RuntimeException ex) {
+            LOG.error("Exception getting records " + BridgeExporterUtil.COMMA_SPACE_JOINER.join(
+                    Lists.transform(recordIdBatch, item -> item.getString("id"))) + ": " + ex.getMessage(), ex);
+            metrics.incrementCounter(METRICS_NUM_TOTAL, recordIdBatch.size());
+            return;
+        }
+        filterPlan.prefetch(recordList);
+
+        int batchSize = recordIdBatch.size();
+        for (int i = 0; i < batchSize; i++) {
+            String oneRecordId = recordIdBatch.get(i).getString("id");
+            Item record = recordList.get(i);
+
+            // Count total number of records. Also, log at regular intervals, so people tailing the logs can follow
+            // progress. (With multiple hydrate threads, the count may include other threads' records, so a progress
+            // line is occasionally skipped. That's fine for logging.)
+            int numTotal = metrics.incrementCounter(METRICS_NUM_TOTAL);
+            if (numTotal % progressReportPeriod == 0) {
+                LOG.info("Num records so far: " + numTotal + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                        " seconds");
+                exportProgressTracker.sample();
+            }
+
+            if (record == null) {
+                LOG.error("Missing health data record for ID " + oneRecordId);
+                continue;
+            }
+
+            // Count records per study, before filtering. This is saved to the export time table, so the next export
+            // can plan its queries.
+            String studyId = record.getString("studyId");
+            if (studyId != null) {
+                metrics.getCounter(METRICS_NUM_RECORDS_FOR_STUDY, studyId).increment();
+            }
+
+            emitter.emit(record);
+        }
+    }
+
+    // Pipeline stage which filters a record, and emits it if it passes the filter. This only waits on Bridge if the
+    // lookup for this record's participant is still pending.
+    private void filterRecord(Metrics metrics, RecordFilterPlan filterPlan, Item record,
+            RecordPipeline.Emitter emitter) throws InterruptedException {
+        boolean shouldExcludeRecord;
+        try (LatencyHistogram.Timer timer = metrics.getLatencyHistogram(METRICS_LATENCY_FILTER).startTimer()) {
+            shouldExcludeRecord = filterPlan.shouldExcludeRecord(record);
+            if (!shouldExcludeRecord) {
+                // only after the filter do we log health code metrics
+                metricsHelper.captureMetricsForRecord(metrics, record);
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Exception processing record " + record.getString("id") + ": " + ex.getMessage(), ex);
+            return;
+        }
+
+        if (!shouldExcludeRecord) {
+            emitter.emit(record);
+        }
+    }
+
+    // Pipeline stage which hands a record off to the worker manager.
+    private void dispatchRecord(ExportTask task, Item record) throws InterruptedException {
+        try (LatencyHistogram.Timer timer = task.getMetrics().getLatencyHistogram(METRICS_LATENCY_DISPATCH)
+                .startTimer()) {
+            workerManager.addSubtaskForRecord(task, record);
+        } catch (IOException | RuntimeException | SchemaNotFoundException ex) {
+            LOG.error("Exception processing record " + record.getString("id") + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Helper method which gets the per-study record counts from the metrics. Studies with no records get 0.
+    private static Map<String, Integer> getRecordCountsByStudy(Metrics metrics, Iterable<String> studyIds) {
+        Multiset<String> counterMap = metrics.getCounterMap();
+        Map<String, Integer> recordCountsByStudy = new HashMap<>();
+        for (String oneStudyId : studyIds) {
+            recordCountsByStudy.put(oneStudyId, counterMap.count(METRICS_PREFIX_NUM_RECORDS_FOR_STUDY + oneStudyId +
+                    "]"));
+        }
+        return recordCountsByStudy;
+    }
+
+    // Helper method which gets the per-study data freshness histograms from the metrics. Studies that didn't import any
+    // records into Synapse aren't in the map.
+    private static Map<String, LatencyHistogram.Snapshot> getFreshnessByStudy(Metrics metrics,
+            Iterable<String> studyIds) {
+        Map<String, LatencyHistogram.Snapshot> latencyHistograms = metrics.getLatencyHistograms();
+        Map<String, LatencyHistogram.Snapshot> freshnessByStudy = new HashMap<>();
+        for (String oneStudyId : studyIds) {
+            LatencyHistogram.Snapshot freshness = latencyHistograms.get(
+                    SynapseExportHandler.METRICS_FRESHNESS_STUDY_PREFIX + oneStudyId);
+            if (freshness != null) {
+                freshnessByStudy.put(oneStudyId, freshness);
+            }
+        }
+        return freshnessByStudy;
+    }
+
+    // Helper method that we can spy and verify that we're setting the task success properly. A successful request
+    // never needs to resume, so this also clears the request's checkpoint.
     void setTaskSuccess(ExportTask task) {
         task.setSuccess(true);
+        exportCheckpointHelper.clearCheckpoint(task.getRequest());
     }
 }
@@ -0,0 +1,373 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.Index;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.Select;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.exceptions.SchemaNotFoundException;
+import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
+import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
+import org.sagebionetworks.bridge.rest.model.UploadFieldType;
+import org.sagebionetworks.bridge.rest.model.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * <p>
+ * Plans an export without running it, for dry run requests. This counts the records in each study and time slice
+ * with Select COUNT queries on the studyId-uploadedOn index, and samples records from each study to estimate
+ * attachments per record for each schema. From these, it projects the DDB read units, S3 metadata calls, Synapse file
+ * handles, and Synapse TSV jobs the export would take, and how long it would run at the configured rate limits.
+ * </p>
+ * <p>
+ * The plan is written to the request metrics, under the "dryRun." prefix, and is published with the rest of the
+ * metrics. Planning only reads from DDB and Bridge. It never calls Synapse or S3.
+ * </p>
+ */
+@Component
+public class ExportDryRunPlanner {
+    private static final Logger LOG = LoggerFactory.getLogger(ExportDryRunPlanner.class);
+
+    // Each TSV job is at least 3 Synapse calls: upload the TSV as a file handle, start the job, and poll the job.
+    private static final int MIN_SYNAPSE_CALLS_PER_TSV_JOB = 3;
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_SAMPLE_SIZE = "dry.run.sample.size";
+
+    static final String METRICS_DDB_READ_UNITS = "dryRun.ddbReadUnits";
+    static final String METRICS_ESTIMATED_SECONDS = "dryRun.estimatedSeconds";
+    static final String METRICS_NUM_RECORDS = "dryRun.numRecords";
+    static final String METRICS_NUM_SAMPLED_RECORDS = "dryRun.numSampledRecords";
+    static final String METRICS_PREFIX_ATTACHMENTS_PER_RECORD = "dryRun.attachmentsPerRecord[";
+    static final String METRICS_PREFIX_NUM_RECORDS = "dryRun.numRecords[";
+    static final String METRICS_S3_METADATA_CALLS = "dryRun.s3MetadataCalls";
+    static final String METRICS_SYNAPSE_FILE_HANDLES = "dryRun.synapseFileHandles";
+    static final String METRICS_SYNAPSE_TSV_JOBS = "dryRun.synapseTsvJobs";
+
+    // config vars
+    private int sampleSize;
+
+    // Spring helpers
+    private BridgeHelper bridgeHelper;
+    private DynamoReadThrottle ddbReadThrottle;
+    private Index ddbRecordStudyUploadedOnIndex;
+    private RecordBatchGetHelper recordBatchGetHelper;
+    private RecordIdSourceFactory recordIdSourceFactory;
+    private SynapseHelper synapseHelper;
+
+    /** Config, used to get the number of records to sample per study. */
+    @Autowired
+    final void setConfig(Config config) {
+        sampleSize = config.getInt(CONFIG_KEY_SAMPLE_SIZE);
+    }
+
+    /** Bridge helper, used to get schemas for sampled records, to find their attachment fields. */
+    @Autowired
+    final void setBridgeHelper(BridgeHelper bridgeHelper) {
+        this.bridgeHelper = bridgeHelper;
+    }
+
+    /** DDB read throttle. Count queries go through this, and its ceiling is used to project DDB read time. */
+    @Autowired
+    final void setDdbReadThrottle(DynamoReadThrottle ddbReadThrottle) {
+        this.ddbReadThrottle = ddbReadThrottle;
+    }
+
+    /** DDB Record table studyId-uploadedOn index, used for count queries and to sample records. */
+    @Resource(name = "ddbRecordStudyUploadedOnIndex")
+    final void setDdbRecordStudyUploadedOnIndex(Index ddbRecordStudyUploadedOnIndex) {
+        this.ddbRecordStudyUploadedOnIndex = ddbRecordStudyUploadedOnIndex;
+    }
+
+    /** Record batch get helper, used to hydrate sampled records. */
+    @Autowired
+    final void setRecordBatchGetHelper(RecordBatchGetHelper recordBatchGetHelper) {
+        this.recordBatchGetHelper = recordBatchGetHelper;
+    }
+
+    /** Record ID source factory, used to plan time slices the same way the export would. */
+    @Autowired
+    final void setRecordIdSourceFactory(RecordIdSourceFactory recordIdSourceFactory) {
+        this.recordIdSourceFactory = recordIdSourceFactory;
+    }
+
+    /** Synapse helper, used to get the Synapse rate limit to project Synapse time. This never calls Synapse. */
+    @Autowired
+    final void setSynapseHelper(SynapseHelper synapseHelper) {
+        this.synapseHelper = synapseHelper;
+    }
+
+    /**
+     * Plans the export of the given studies and writes the plan to the given metrics.
+     *
+     * @param metrics
+     *         metrics object to write the plan to
+     * @param endDateTime
+     *         end of the export time window, exclusive
+     * @param studyIdsToQuery
+     *         studies to export, mapped to the start of their time window, from
+     *         {@link org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper#bootstrapStudyIdsToQuery}
+     */
+    public void planExport(Metrics metrics, DateTime endDateTime, Map<String, DateTime> studyIdsToQuery) {
+        Map<String, Integer> sliceCountsByStudy = recordIdSourceFactory.planSliceCounts(studyIdsToQuery.keySet());
+
+        // Sample stats, accumulated across all studies.
+        SampleStats totalSampleStats = new SampleStats();
+        Map<UploadSchemaKey, SampleStats> sampleStatsBySchema = new TreeMap<>(
+                (key1, key2) -> key1.toString().compareTo(key2.toString()));
+
+        long totalRecords = 0;
+        double projectedReadUnits = 0.0;
+        double projectedS3MetadataCalls = 0.0;
+        double projectedFileHandles = 0.0;
+        int projectedTsvJobs = 0;
+        for (Map.Entry<String, DateTime> oneStudyIdAndDateTime : studyIdsToQuery.entrySet()) {
+            String studyId = oneStudyIdAndDateTime.getKey();
+            long startMillis = oneStudyIdAndDateTime.getValue().getMillis();
+            long endMillis = endDateTime.getMillis();
+
+            // Count records in each slice.
+            List<RangeKeyCondition> sliceConditionList = RecordIdSourceFactory.makeSliceRangeKeyConditions(
+                    startMillis, endMillis, sliceCountsByStudy.get(studyId));
+            int numRecords = 0;
+            for (RangeKeyCondition oneSliceCondition : sliceConditionList) {
+                numRecords += countRecords(studyId, oneSliceCondition);
+            }
+            LOG.info("Dry run: study " + studyId + " has " + numRecords + " records in " + sliceConditionList.size() +
+                    " slices");
+            metrics.incrementCounter(METRICS_PREFIX_NUM_RECORDS + studyId + "]", numRecords);
+            totalRecords += numRecords;
+
+            // Every study gets a status table write, even with no records.
+            projectedTsvJobs++;
+            if (numRecords == 0) {
+                continue;
+            }
+
+            // Sample records, then scale up the per-record averages to the study's record count.
+            SampleStats studySampleStats = new SampleStats();
+            Set<UploadSchemaKey> studySchemaKeySet = sampleRecords(metrics, studyId, new RangeKeyCondition(
+                    "uploadedOn").between(startMillis, endMillis - 1), studySampleStats, sampleStatsBySchema);
+            totalSampleStats.add(studySampleStats);
+
+            projectedReadUnits += studySampleStats.getAverage(studySampleStats.readUnits) * numRecords;
+            projectedS3MetadataCalls += studySampleStats.getAverage(studySampleStats.s3MetadataCalls) * numRecords;
+            projectedFileHandles += studySampleStats.getAverage(studySampleStats.fileHandles) * numRecords;
+
+            // One TSV per schema seen in the sample, plus the app version table, plus the default table if any
+            // sampled records were schemaless. Rare schemas may not show up in the sample, so this is a lower bound.
+            projectedTsvJobs += studySchemaKeySet.size() + 1;
+            if (studySampleStats.numSchemaless > 0) {
+                projectedTsvJobs++;
+            }
+        }
+
+        // Project wall time. DDB reads and Synapse calls overlap, so the slower of the two dominates. TSV jobs also
+        // wait at least one poll interval each.
+        double ddbSeconds = projectedReadUnits / ddbReadThrottle.getCeilingRate();
+        double synapseCalls = projectedFileHandles + projectedTsvJobs * MIN_SYNAPSE_CALLS_PER_TSV_JOB;
+        double synapseSeconds = synapseCalls / synapseHelper.getRateLimitPerSecond() +
+                projectedTsvJobs * synapseHelper.getAsyncIntervalMillis() / 1000.0;
+        double estimatedSeconds = Math.max(ddbSeconds, synapseSeconds);
+
+        // Publish the plan.
+        metrics.incrementCounter(METRICS_NUM_RECORDS, (int) totalRecords);
+        metrics.incrementCounter(METRICS_NUM_SAMPLED_RECORDS, totalSampleStats.numRecords);
+        metrics.incrementCounter(METRICS_DDB_READ_UNITS, (int) Math.ceil(projectedReadUnits));
+        metrics.incrementCounter(METRICS_S3_METADATA_CALLS, (int) Math.ceil(projectedS3MetadataCalls));
+        metrics.incrementCounter(METRICS_SYNAPSE_FILE_HANDLES, (int) Math.ceil(projectedFileHandles));
+        metrics.incrementCounter(METRICS_SYNAPSE_TSV_JOBS, projectedTsvJobs);
+        metrics.incrementCounter(METRICS_ESTIMATED_SECONDS, (int) Math.ceil(estimatedSeconds));
+        for (Map.Entry<UploadSchemaKey, SampleStats> oneSchemaEntry : sampleStatsBySchema.entrySet()) {
+            SampleStats schemaSampleStats = oneSchemaEntry.getValue();
+            metrics.addKeyValuePair(METRICS_PREFIX_ATTACHMENTS_PER_RECORD + oneSchemaEntry.getKey() + "]",
+                    String.format("%.2f", schemaSampleStats.getAverage(schemaSampleStats.s3MetadataCalls)));
+        }
+
+        LOG.info("Dry run plan: " + totalRecords + " records, " + String.format("%.0f", projectedReadUnits) +
+                " DDB read units (" + String.format("%.0f", ddbSeconds) + " sec), " +
+                String.format("%.0f", projectedS3MetadataCalls) + " S3 metadata calls, " +
+                String.format("%.0f", projectedFileHandles) + " Synapse file handles, " + projectedTsvJobs +
+                " Synapse TSV jobs (" + String.format("%.0f", synapseSeconds) + " sec), estimated " +
+                String.format("%.0f", estimatedSeconds) + " sec");
+    }
+
+    // Counts the records in the given study and slice, with a Select COUNT query, which doesn't return any items.
+    private int countRecords(String studyId, RangeKeyCondition rangeKeyCondition) {
+        QuerySpec querySpec = new QuerySpec().withHashKey("studyId", studyId).withRangeKeyCondition(
+                rangeKeyCondition).withSelect(Select.COUNT);
+        return queryThrottled(querySpec, null);
+    }
+
+    // Samples up to sampleSize records from the given study and time window, and adds them to the study and schema
+    // sample stats. Returns the schemas seen in the sample.
+    private Set<UploadSchemaKey> sampleRecords(Metrics metrics, String studyId, RangeKeyCondition rangeKeyCondition,
+            SampleStats studySampleStats, Map<UploadSchemaKey, SampleStats> sampleStatsBySchema) {
+        QuerySpec querySpec = new QuerySpec().withHashKey("studyId", studyId).withRangeKeyCondition(
+                rangeKeyCondition).withMaxResultSize(sampleSize);
+        List<Item> keyItemList = new ArrayList<>();
+        queryThrottled(querySpec, keyItemList);
+
+        // Hydrate with a scratch metrics object, so that the sample doesn't show up in the batch get metrics.
+        List<Item> recordList = recordBatchGetHelper.hydrateRecords(new Metrics(), keyItemList);
+
+        Map<UploadSchemaKey, SampleStats> studyStatsBySchema = new HashMap<>();
+        for (Item oneRecord : recordList) {
+            if (oneRecord == null) {
+                continue;
+            }
+
+            UploadSchemaKey schemaKey = BridgeExporterUtil.getSchemaKeyForRecord(oneRecord);
+            int numAttachmentFields = schemaKey != null ? countAttachmentFields(metrics, schemaKey, oneRecord) : 0;
+            int numRawDataAttachments = StringUtils.isNotBlank(oneRecord.getString("rawDataAttachmentId")) ? 1 : 0;
+            int numMetadataFiles = StringUtils.isNotBlank(oneRecord.getString("userMetadata")) ? 1 : 0;
+
+            SampleStats oneRecordStats = new SampleStats();
+            oneRecordStats.numRecords = 1;
+            oneRecordStats.numSchemaless = schemaKey == null ? 1 : 0;
+            oneRecordStats.readUnits = DynamoReadThrottle.estimateReadUnits(oneRecord);
+            oneRecordStats.s3MetadataCalls = numAttachmentFields + numRawDataAttachments;
+            oneRecordStats.fileHandles = numAttachmentFields + numRawDataAttachments + numMetadataFiles;
+
+            studySampleStats.add(oneRecordStats);
+            if (schemaKey != null) {
+                studyStatsBySchema.computeIfAbsent(schemaKey, key -> new SampleStats()).add(oneRecordStats);
+                sampleStatsBySchema.computeIfAbsent(schemaKey, key -> new SampleStats()).add(oneRecordStats);
+            }
+        }
+        return studyStatsBySchema.keySet();
+    }
+
+    // Runs the query on the study-uploadedOn index one page at a time. Each page waits on the DDB read throttle before
+    // it's fetched, and is charged its consumed capacity when it returns, so a dry run against a large table doesn't
+    // use up the read capacity that live exports depend on. Returns the total count. If itemList is non-null, items
+    // are added to it.
+    private int queryThrottled(QuerySpec querySpec, List<Item> itemList) {
+        querySpec.withReturnConsumedCapacity(ReturnConsumedCapacity.TOTAL);
+        ItemCollection<QueryOutcome> queryResult = ddbRecordStudyUploadedOnIndex.query(querySpec);
+
+        int count = 0;
+        Page<Item, QueryOutcome> page = null;
+        do {
+            ddbReadThrottle.acquire();
+            try {
+                page = page == null ? queryResult.firstPage() : page.nextPage();
+            } catch (ProvisionedThroughputExceededException ex) {
+                ddbReadThrottle.onThrottled();
+                throw ex;
+            }
+
+            // If DDB doesn't return consumed capacity, estimate it from the items. (Count queries always return it.)
+            double estimatedUnits = 0.0;
+            for (Item oneItem : page) {
+                estimatedUnits += DynamoReadThrottle.estimateReadUnits(oneItem);
+                if (itemList != null) {
+                    itemList.add(oneItem);
+                }
+            }
+            QueryResult lowLevelResult = page.getLowLevelResult().getQueryResult();
+            ddbReadThrottle.recordConsumedCapacity(Collections.singletonList(lowLevelResult.getConsumedCapacity()),
+                    estimatedUnits);
+            if (lowLevelResult.getCount() != null) {
+                count += lowLevelResult.getCount();
+            }
+        } while (page.hasNextPage());
+        return count;
+    }
+
+    // Counts the attachment fields in the record's data that would be uploaded to Synapse as file handles.
+    private int countAttachmentFields(Metrics metrics, UploadSchemaKey schemaKey, Item record) {
+        String dataJsonText = record.getString("data");
+        if (StringUtils.isBlank(dataJsonText)) {
+            return 0;
+        }
+
+        UploadSchema schema;
+        JsonNode dataNode;
+        try {
+            schema = bridgeHelper.getSchema(metrics, schemaKey);
+            dataNode = DefaultObjectMapper.INSTANCE.readTree(dataJsonText);
+        } catch (IOException | RuntimeException | SchemaNotFoundException ex) {
+            LOG.warn("Dry run: error sampling attachments for record " + record.getString("id") + ": " +
+                    ex.getMessage(), ex);
+            return 0;
+        }
+
+        int numAttachments = 0;
+        for (UploadFieldDefinition oneFieldDef : schema.getFieldDefinitions()) {
+            if (isFileHandleType(oneFieldDef.getType())) {
+                JsonNode fieldNode = dataNode.get(oneFieldDef.getName());
+                if (fieldNode != null && fieldNode.isTextual()) {
+                    numAttachments++;
+                }
+            }
+        }
+        return numAttachments;
+    }
+
+    // Field types which SynapseHelper uploads as Synapse file handles.
+    private static boolean isFileHandleType(UploadFieldType fieldType) {
+        switch (fieldType) {
+            case ATTACHMENT_BLOB:
+            case ATTACHMENT_CSV:
+            case ATTACHMENT_JSON_BLOB:
+            case ATTACHMENT_JSON_TABLE:
+            case ATTACHMENT_V2:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Totals over a set of sampled records.
+    private static class SampleStats {
+        double fileHandles;
+        int numRecords;
+        int numSchemaless;
+        double readUnits;
+        double s3MetadataCalls;
+
+        void add(SampleStats other) {
+            fileHandles += other.fileHandles;
+            numRecords += other.numRecords;
+            numSchemaless += other.numSchemaless;
+            readUnits += other.readUnits;
+            s3MetadataCalls += other.s3MetadataCalls;
+        }
+
+        // Per-record average of the given total. Zero if there are no records.
+        double getAverage(double total) {
+            return numRecords > 0 ? total / numRecords : 0.0;
+        }
+    }
+}
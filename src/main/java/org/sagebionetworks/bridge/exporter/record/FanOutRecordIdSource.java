@@ -0,0 +1,208 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * <p>
+ * Record ID source which reads multiple underlying sources (for example, one DDB query per study) concurrently on the
+ * given executor and merges them through a bounded buffer into a single stream. This way, a small study doesn't wait
+ * behind a large study, and the DDB round trips for different studies overlap.
+ * </p>
+ * <p>
+ * Records from the same source are returned in the same order as that source (for example, uploadedOn order for a
+ * study). Records from different sources are interleaved in whatever order they arrive. Each source may have at most
+ * prefetchDepth records in the buffer, so one large source can't crowd out the others.
+ * </p>
+ * <p>
+ * If a source throws, the exception is re-thrown to the consumer from {@link #hasNext} or {@link #next}. Callers
+ * that stop iterating early must call {@link #close}, which cancels the remaining source reads.
+ * </p>
+ */
+public class FanOutRecordIdSource implements Iterable<Item>, Iterator<Item>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(FanOutRecordIdSource.class);
+
+    // package-scoped to be available to unit tests
+    static final String METRICS_PREFIX_BLOCKED_MILLIS = "recordQuery.blockedMillis[";
+    static final String METRICS_PREFIX_NUM_RECORDS = "recordQuery.numRecords[";
+    static final String METRICS_PREFIX_QUERY_MILLIS = "recordQuery.queryMillis[";
+    static final String METRICS_PREFIX_RECORDS_PER_SEC = "recordQuery.recordsPerSec[";
+
+    private final BlockingQueue<BufferEntry> buffer;
+    private final RecordIdSource.Converter<Item> converter;
+    private final List<Future<?>> futureList = new ArrayList<>();
+    private final Map<String, Semaphore> prefetchPermitsBySource = new HashMap<>();
+
+    private volatile boolean closed = false;
+    private Item nextItem;
+    private int numSourcesRemaining;
+
+    /**
+     * Constructs the fan-out source and immediately starts reading all sources on the executor.
+     *
+     * @param executorService
+     *         executor to read sources on, whose thread count bounds the number of concurrent reads
+     * @param sourcesByName
+     *         sources to read, keyed by name (for example, study ID), used for metrics and logging
+     * @param converter
+     *         converter to apply to each record item, on the consumer thread
+     * @param bufferSize
+     *         max number of records in the shared buffer, across all sources
+     * @param prefetchDepth
+     *         max number of records each source may have in the shared buffer
+     * @param metrics
+     *         metrics object, to record per-source record counts, query time, and time blocked on the buffer
+     */
+    public FanOutRecordIdSource(ExecutorService executorService, Map<String, Iterable<Item>> sourcesByName,
+            RecordIdSource.Converter<Item> converter, int bufferSize, int prefetchDepth, Metrics metrics) {
+        // The buffer is bounded. Sources block on put() while it's full, and on their prefetch permits while they
+        // have prefetchDepth records in it, until the consumer takes records. The extra capacity per source is
+        // headroom for end-of-source markers, but it isn't reserved for them. Records can fill it too.
+        this.buffer = new ArrayBlockingQueue<>(bufferSize + sourcesByName.size());
+        this.converter = converter;
+        this.numSourcesRemaining = sourcesByName.size();
+
+        for (Map.Entry<String, Iterable<Item>> oneSourceEntry : sourcesByName.entrySet()) {
+            String sourceName = oneSourceEntry.getKey();
+            Iterable<Item> source = oneSourceEntry.getValue();
+            Semaphore prefetchPermits = new Semaphore(prefetchDepth);
+            prefetchPermitsBySource.put(sourceName, prefetchPermits);
+            futureList.add(executorService.submit(() -> readSource(sourceName, source, prefetchPermits, metrics)));
+        }
+    }
+
+    // Reads a single source into the buffer. This runs on the executor.
+    private void readSource(String sourceName, Iterable<Item> source, Semaphore prefetchPermits, Metrics metrics) {
+        Stopwatch queryStopwatch = Stopwatch.createStarted();
+        long blockedMillis = 0;
+        int numRecords = 0;
+        RuntimeException error = null;
+        try {
+            for (Item oneItem : source) {
+                if (closed) {
+                    return;
+                }
+
+                Stopwatch blockedStopwatch = Stopwatch.createStarted();
+                prefetchPermits.acquire();
+                buffer.put(new BufferEntry(sourceName, oneItem, null));
+                blockedMillis += blockedStopwatch.elapsed(TimeUnit.MILLISECONDS);
+                numRecords++;
+            }
+        } catch (InterruptedException ex) {
+            // We only get interrupted when the consumer closes the source. Nothing else to do.
+            return;
+        } catch (RuntimeException ex) {
+            LOG.error("Error reading records for " + sourceName + ": " + ex.getMessage(), ex);
+            error = ex;
+        } finally {
+            long queryMillis = queryStopwatch.elapsed(TimeUnit.MILLISECONDS);
+            double recordsPerSec = queryMillis > 0 ? numRecords * 1000.0 / queryMillis : numRecords;
+            LOG.info("Read " + numRecords + " records for " + sourceName + " in " + queryMillis + " ms (" +
+                    String.format("%.1f", recordsPerSec) + " records/sec), blocked on buffer for " + blockedMillis +
+                    " ms");
+
+            metrics.incrementCounter(METRICS_PREFIX_NUM_RECORDS + sourceName + "]", numRecords);
+            metrics.incrementCounter(METRICS_PREFIX_QUERY_MILLIS + sourceName + "]", (int) queryMillis);
+            metrics.incrementCounter(METRICS_PREFIX_BLOCKED_MILLIS + sourceName + "]", (int) blockedMillis);
+            metrics.addKeyValuePair(METRICS_PREFIX_RECORDS_PER_SEC + sourceName + "]",
+                    String.format("%.1f", recordsPerSec));
+        }
+
+        // Signal end of source (or error). This doesn't take a prefetch permit, but like any other put, it blocks
+        // while the buffer is full, until the consumer takes a record or closes the source (which interrupts us).
+        try {
+            buffer.put(new BufferEntry(sourceName, null, error));
+        } catch (InterruptedException ex) {
+            // Closed by the consumer. Nothing else to do.
+        }
+    }
+
+    /** This class implements iterable out of convenience. It itself is the iterator, so iterator() returns this. */
+    @Override
+    public Iterator<Item> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextItem == null && numSourcesRemaining > 0) {
+            BufferEntry entry;
+            try {
+                entry = buffer.take();
+            } catch (InterruptedException ex) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for records: " + ex.getMessage(), ex);
+            }
+
+            if (entry.error != null) {
+                close();
+                throw new RuntimeException("Error reading records for " + entry.sourceName + ": " +
+                        entry.error.getMessage(), entry.error);
+            } else if (entry.item == null) {
+                numSourcesRemaining--;
+            } else {
+                prefetchPermitsBySource.get(entry.sourceName).release();
+                nextItem = converter.convert(entry.item);
+            }
+        }
+        return nextItem != null;
+    }
+
+    @Override
+    public Item next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Item item = nextItem;
+        nextItem = null;
+        return item;
+    }
+
+    /** Cancels any source reads that are still running and discards buffered records. Safe to call more than once. */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<?> oneFuture : futureList) {
+            oneFuture.cancel(true);
+        }
+        buffer.clear();
+        numSourcesRemaining = 0;
+    }
+
+    // Entry in the shared buffer. If item is non-null, this is a record. Otherwise, this marks the end of the source,
+    // and error is non-null if the source failed.
+    private static class BufferEntry {
+        private final String sourceName;
+        private final Item item;
+        private final RuntimeException error;
+
+        BufferEntry(String sourceName, Item item, RuntimeException error) {
+            this.sourceName = sourceName;
+            this.item = item;
+            this.error = error;
+        }
+    }
+}
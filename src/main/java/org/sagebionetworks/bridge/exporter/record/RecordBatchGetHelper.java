@@ -0,0 +1,272 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.annotation.Resource;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputExceededException;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * Helper class which hydrates lists of record IDs into full health data records, using DDB BatchGetItem. This replaces
+ * the one-GetItem-per-record pattern, which spent most of its time in network round trips. Records which are already
+ * full records (for example, from an index which projects all attributes) are passed through without a DDB read. All
+ * reads go through the shared {@link DynamoReadThrottle}.
+ */
+@Component
+public class RecordBatchGetHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordBatchGetHelper.class);
+
+    /** DDB limits BatchGetItem to 100 keys per call. */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    // package-scoped to be available to unit tests
+    static final String KEY_DATA = "data";
+    static final String KEY_HEALTH_CODE = "healthCode";
+    static final String KEY_ID = "id";
+    static final int MAX_UNPROCESSED_RETRIES = 5;
+    static final long UNPROCESSED_RETRY_BASE_DELAY_MILLIS = 50;
+
+    static final String METRICS_BATCH_COUNT = "ddbBatchGet.batchCount";
+    static final String METRICS_FULL_RECORDS = "ddbBatchGet.fullRecordsSkipped";
+    static final String METRICS_LATENCY_MILLIS = "ddbBatchGet.latencyMillis";
+    static final String METRICS_UNPROCESSED_KEYS = "ddbBatchGet.unprocessedKeys";
+    static final String METRICS_UNPROCESSED_FALLBACK_KEYS = "ddbBatchGet.unprocessedFallbackKeys";
+
+    private DynamoDB ddbClient;
+    private DynamoReadThrottle ddbReadThrottle;
+    private Table ddbRecordTable;
+
+    /** DDB client, used to make BatchGetItem calls, which span tables and therefore don't live on the Table object. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
+    /** DDB read throttle, shared with all other DDB reads. Batch gets report their consumed capacity to this. */
+    @Autowired
+    public final void setDdbReadThrottle(DynamoReadThrottle ddbReadThrottle) {
+        this.ddbReadThrottle = ddbReadThrottle;
+    }
+
+    /**
+     * DDB Health Data Record table. Used for the table name in batch calls, and for single gets as a fallback if keys
+     * remain unprocessed after retries.
+     */
+    @Resource(name = "ddbRecordTable")
+    public final void setDdbRecordTable(Table ddbRecordTable) {
+        this.ddbRecordTable = ddbRecordTable;
+    }
+
+    /**
+     * Hydrates the given record ID items (see {@link RecordIdSource}) into full health data records. Items which are
+     * already full records are passed through as is. Key items are fetched from the base table using
+     * {@link #getRecordsForIds}. The returned list is parallel to the given list. If a record doesn't exist, the
+     * corresponding entry in the returned list is null.
+     *
+     * @param metrics
+     *         metrics object, to record batch metrics and the number of full records that skipped the DDB read
+     * @param recordIdItemList
+     *         list of record ID items, either key items or full records
+     * @return list of full records, parallel to the record ID item list
+     */
+    public List<Item> hydrateRecords(Metrics metrics, List<Item> recordIdItemList) {
+        // Determine which records need to be read from the base table.
+        List<String> recordIdToGetList = new ArrayList<>();
+        for (Item oneRecordIdItem : recordIdItemList) {
+            if (!isFullRecord(oneRecordIdItem)) {
+                recordIdToGetList.add(oneRecordIdItem.getString(KEY_ID));
+            }
+        }
+
+        int numFullRecords = recordIdItemList.size() - recordIdToGetList.size();
+        if (numFullRecords > 0) {
+            metrics.incrementCounter(METRICS_FULL_RECORDS, numFullRecords);
+        }
+        if (recordIdToGetList.isEmpty()) {
+            return recordIdItemList;
+        }
+
+        // Merge the fetched records back in, in order.
+        Iterator<Item> fetchedRecordIter = getRecordsForIds(metrics, recordIdToGetList).iterator();
+        List<Item> recordList = new ArrayList<>(recordIdItemList.size());
+        for (Item oneRecordIdItem : recordIdItemList) {
+            if (isFullRecord(oneRecordIdItem)) {
+                recordList.add(oneRecordIdItem);
+            } else {
+                recordList.add(fetchedRecordIter.next());
+            }
+        }
+        return recordList;
+    }
+
+    /**
+     * Returns true if the given item is a full health data record, as opposed to a key item. As a safeguard, we check
+     * for attributes that every record has, but which are never part of any key.
+     */
+    static boolean isFullRecord(Item item) {
+        return item.hasAttribute(KEY_HEALTH_CODE) && item.hasAttribute(KEY_DATA);
+    }
+
+    /**
+     * Gets the full health data records for the given record IDs. The returned list is parallel to the given list,
+     * that is, the record at index i corresponds to the record ID at index i. If a record doesn't exist, the
+     * corresponding entry in the returned list is null. Duplicate record IDs are only fetched once. Lists larger than
+     * {@link #MAX_BATCH_SIZE} are split into multiple batches.
+     *
+     * @param metrics
+     *         metrics object, to record batch count, latency, and unprocessed key counts
+     * @param recordIdList
+     *         list of record IDs to get
+     * @return list of records, parallel to the record ID list
+     */
+    public List<Item> getRecordsForIds(Metrics metrics, List<String> recordIdList) {
+        // DDB rejects BatchGetItem calls with duplicate keys, so de-dupe while preserving order.
+        Set<String> uniqueRecordIdSet = new LinkedHashSet<>(recordIdList);
+        Map<String, Item> recordsById = new HashMap<>();
+        for (List<String> oneBatch : Iterables.partition(uniqueRecordIdSet, MAX_BATCH_SIZE)) {
+            getBatch(metrics, oneBatch, recordsById);
+        }
+
+        // Re-assemble records in the order they were requested.
+        List<Item> recordList = new ArrayList<>(recordIdList.size());
+        for (String oneRecordId : recordIdList) {
+            recordList.add(recordsById.get(oneRecordId));
+        }
+        return recordList;
+    }
+
+    // Gets a single batch of (at most 100, unique) records and puts them into the given map. Retries unprocessed keys
+    // with exponential backoff. If there are still unprocessed keys after the retries, we fall back to single gets.
+    // Unprocessed keys mean DDB is throttling us, so those also slow down the read throttle.
+    private void getBatch(Metrics metrics, List<String> recordIdBatch, Map<String, Item> recordsById) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        TableKeysAndAttributes keys = new TableKeysAndAttributes(ddbRecordTable.getTableName()).withHashOnlyKeys(
+                KEY_ID, recordIdBatch.toArray());
+        BatchGetItemOutcome outcome = throttledBatchGet(() -> ddbClient.batchGetItem(ReturnConsumedCapacity.TOTAL,
+                keys));
+        addItemsToMap(outcome, recordsById);
+
+        Map<String, KeysAndAttributes> unprocessedKeys = outcome.getUnprocessedKeys();
+        int numRetries = 0;
+        while (unprocessedKeys != null && !unprocessedKeys.isEmpty() && numRetries < MAX_UNPROCESSED_RETRIES) {
+            metrics.incrementCounter(METRICS_UNPROCESSED_KEYS, countKeys(unprocessedKeys));
+            ddbReadThrottle.onThrottled();
+            sleepBeforeRetry(numRetries);
+            numRetries++;
+
+            Map<String, KeysAndAttributes> keysToRetry = unprocessedKeys;
+            outcome = throttledBatchGet(() -> ddbClient.batchGetItemUnprocessed(ReturnConsumedCapacity.TOTAL,
+                    keysToRetry));
+            addItemsToMap(outcome, recordsById);
+            unprocessedKeys = outcome.getUnprocessedKeys();
+        }
+
+        if (unprocessedKeys != null && !unprocessedKeys.isEmpty()) {
+            // DDB is still not giving us these keys. Rather than stall the export, get them one at a time.
+            int numFallbackKeys = countKeys(unprocessedKeys);
+            LOG.warn(numFallbackKeys + " keys still unprocessed after " + numRetries +
+                    " retries, falling back to single gets");
+            metrics.incrementCounter(METRICS_UNPROCESSED_FALLBACK_KEYS, numFallbackKeys);
+
+            for (KeysAndAttributes oneKeysAndAttributes : unprocessedKeys.values()) {
+                for (Map<String, AttributeValue> oneKey : oneKeysAndAttributes.getKeys()) {
+                    String recordId = oneKey.get(KEY_ID).getS();
+                    ddbReadThrottle.acquire();
+                    Item record = ddbRecordTable.getItem(KEY_ID, recordId);
+                    if (record != null) {
+                        ddbReadThrottle.recordConsumedCapacity(DynamoReadThrottle.estimateReadUnits(record));
+                        recordsById.put(recordId, record);
+                    }
+                }
+            }
+        }
+
+        metrics.incrementCounter(METRICS_BATCH_COUNT);
+        metrics.incrementCounter(METRICS_LATENCY_MILLIS, (int) stopwatch.elapsed(TimeUnit.MILLISECONDS));
+    }
+
+    // Helper method which makes a batch get call through the DDB read throttle, and reports the consumed capacity. If
+    // DDB doesn't return the consumed capacity, we estimate from the returned items.
+    private BatchGetItemOutcome throttledBatchGet(Supplier<BatchGetItemOutcome> batchGetCall) {
+        ddbReadThrottle.acquire();
+        BatchGetItemOutcome outcome;
+        try {
+            outcome = batchGetCall.get();
+        } catch (ProvisionedThroughputExceededException ex) {
+            ddbReadThrottle.onThrottled();
+            throw ex;
+        }
+
+        double estimatedUnits = 0.0;
+        Map<String, List<Item>> tableItems = outcome.getTableItems();
+        if (tableItems != null) {
+            for (List<Item> oneItemList : tableItems.values()) {
+                for (Item oneItem : oneItemList) {
+                    estimatedUnits += DynamoReadThrottle.estimateReadUnits(oneItem);
+                }
+            }
+        }
+        List<ConsumedCapacity> consumedCapacityList = outcome.getBatchGetItemResult() != null ?
+                outcome.getBatchGetItemResult().getConsumedCapacity() : null;
+        ddbReadThrottle.recordConsumedCapacity(consumedCapacityList, estimatedUnits);
+        return outcome;
+    }
+
+    // Helper method to add all items from the outcome to the map, keyed by record ID.
+    private static void addItemsToMap(BatchGetItemOutcome outcome, Map<String, Item> recordsById) {
+        Map<String, List<Item>> tableItems = outcome.getTableItems();
+        if (tableItems == null) {
+            return;
+        }
+        for (List<Item> oneItemList : tableItems.values()) {
+            for (Item oneItem : oneItemList) {
+                recordsById.put(oneItem.getString(KEY_ID), oneItem);
+            }
+        }
+    }
+
+    // Helper method to count the keys across all tables in the unprocessed keys map.
+    private static int countKeys(Map<String, KeysAndAttributes> unprocessedKeys) {
+        int numKeys = 0;
+        for (KeysAndAttributes oneKeysAndAttributes : unprocessedKeys.values()) {
+            numKeys += oneKeysAndAttributes.getKeys().size();
+        }
+        return numKeys;
+    }
+
+    // Helper method which sleeps with exponential backoff before retrying unprocessed keys. Package-scoped so unit
+    // tests can spy and skip the sleep.
+    void sleepBeforeRetry(int numRetries) {
+        try {
+            Thread.sleep(UNPROCESSED_RETRY_BASE_DELAY_MILLIS << numRetries);
+        } catch (InterruptedException ex) {
+            LOG.error("Interrupted while waiting to retry unprocessed keys: " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -1,22 +1,15 @@
 package org.sagebionetworks.bridge.exporter.record;
 
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Resource;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
-import org.apache.commons.lang3.StringUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
-import org.sagebionetworks.bridge.exporter.request.BridgeExporterSharingMode;
-import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
-import org.sagebionetworks.bridge.rest.model.SharingScope;
-import org.sagebionetworks.bridge.rest.model.StudyParticipant;
-import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /**
  * Encapsulates logic for filtering out records from the export. This covers filtering because of request args (study
@@ -24,18 +17,43 @@ import org.sagebionetworks.bridge.schema.UploadSchemaKey;
  */
 @Component
 public class RecordFilterHelper {
-    private static final Logger LOG = LoggerFactory.getLogger(RecordFilterHelper.class);
+    private ExecutorService participantLookupExecutorService;
+    private SharingScopeCache sharingScopeCache;
 
-    private BridgeHelper bridgeHelper;
+    /**
+     * Executor for participant lookups made by {@link SharingScopeResolver}. Its thread count bounds the number of
+     * concurrent calls to Bridge.
+     */
+    @Resource(name = "participantLookupExecutorService")
+    public final void setParticipantLookupExecutorService(ExecutorService participantLookupExecutorService) {
+        this.participantLookupExecutorService = participantLookupExecutorService;
+    }
 
-    /** Bridge Helper, used to get the user's health code. */
+    /** Sharing scope cache, used to get the user's sharing scope. */
     @Autowired
-    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
-        this.bridgeHelper = bridgeHelper;
+    public final void setSharingScopeCache(SharingScopeCache sharingScopeCache) {
+        this.sharingScopeCache = sharingScopeCache;
+    }
+
+    /**
+     * Compiles the record filter for a single export task. The plan creates a sharing scope resolver for the task, so
+     * each participant is only looked up once per task, and only for records that pass the other filters.
+     *
+     * @param metrics
+     *         task metrics, to record filter metrics and participant lookups
+     * @param request
+     *         export request, used for determining filter settings
+     * @return record filter plan for the task
+     */
+    public RecordFilterPlan compileFilterPlan(Metrics metrics, BridgeExporterRequest request) {
+        SharingScopeResolver sharingScopeResolver = new SharingScopeResolver(sharingScopeCache,
+                participantLookupExecutorService, metrics);
+        return new RecordFilterPlan(metrics, request, sharingScopeCache, sharingScopeResolver);
     }
 
     /**
-     * Returns true if a record should be excluded from the export.
+     * Returns true if a record should be excluded from the export. This is for filtering a single record. To filter
+     * all records in a task, use {@link #compileFilterPlan}.
      *
      * @param metrics
      *         metrics object, to record filter metrics
@@ -46,113 +64,9 @@ public class RecordFilterHelper {
      * @return true if the record should be excluded
      */
     public boolean shouldExcludeRecord(Metrics metrics, BridgeExporterRequest request, Item record) {
-        // If record doesn't have a study ID, something is seriously wrong.
-        String studyId = record.getString("studyId");
-        if (StringUtils.isBlank(studyId)) {
-            throw new IllegalArgumentException("record has no study ID");
-        }
-
-        // request always has a sharing mode
-        boolean excludeBySharingScope = shouldExcludeRecordBySharingScope(metrics, request.getSharingMode(), record);
-
-        // filter by study - This is used for filtering out test studies and for limiting study-specific exports.
-        boolean excludeByStudy = false;
-        Set<String> studyWhitelist = request.getStudyWhitelist();
-        if (studyWhitelist != null) {
-            excludeByStudy = shouldExcludeRecordByStudy(metrics, studyWhitelist, studyId);
-        }
-
-        // filter by table - This is used for table-specific redrives.
-        boolean excludeByTable = false;
-        Set<UploadSchemaKey> tableWhitelist = request.getTableWhitelist();
-        if (tableWhitelist != null) {
-            excludeByTable = shouldExcludeRecordByTable(metrics, tableWhitelist, studyId,
-                    BridgeExporterUtil.getSchemaKeyForRecord(record));
-        }
-
-        // If any of the filters are hit, we filter the record. (We don't use short-circuiting because we want to
-        // collect the metrics.)
-        return excludeBySharingScope || excludeByStudy || excludeByTable;
-    }
-
-    // Helper method that handles the sharing filter.
-    private boolean shouldExcludeRecordBySharingScope(Metrics metrics, BridgeExporterSharingMode sharingMode,
-            Item record) {
-        // Get the record's sharing scope. Defaults to no_sharing if it's not present or unable to be parsed.
-        SharingScope recordSharingScope;
-        String recordSharingScopeStr = record.getString("userSharingScope");
-        if (StringUtils.isBlank(recordSharingScopeStr)) {
-            recordSharingScope = SharingScope.NO_SHARING;
-        } else {
-            try {
-                recordSharingScope = SharingScope.valueOf(recordSharingScopeStr);
-            } catch (IllegalArgumentException ex) {
-                LOG.error("Could not parse sharing scope " + recordSharingScopeStr);
-                recordSharingScope = SharingScope.NO_SHARING;
-            }
-        }
-
-        // Get user's sharing scope from Bridge. If not specified, defaults to no_sharing.
-        String studyId = record.getString("studyId");
-        String healthCode = record.getString("healthCode");
-        StudyParticipant participant = bridgeHelper.getParticipantByHealthCode(studyId, healthCode);
-        SharingScope userSharingScope = participant.getSharingScope();
-        if (userSharingScope == null) {
-            userSharingScope = SharingScope.NO_SHARING;
-        }
-
-        // reconcile both sharing scopes to find the most restrictive sharing scope
-        SharingScope sharingScope;
-        if (SharingScope.NO_SHARING.equals(recordSharingScope) || SharingScope.NO_SHARING.equals(userSharingScope)) {
-            sharingScope = SharingScope.NO_SHARING;
-        } else if (SharingScope.SPONSORS_AND_PARTNERS.equals(recordSharingScope) ||
-                SharingScope.SPONSORS_AND_PARTNERS.equals(userSharingScope)) {
-            sharingScope = SharingScope.SPONSORS_AND_PARTNERS;
-        } else if (SharingScope.ALL_QUALIFIED_RESEARCHERS.equals(recordSharingScope) ||
-                SharingScope.ALL_QUALIFIED_RESEARCHERS.equals(userSharingScope)) {
-            sharingScope = SharingScope.ALL_QUALIFIED_RESEARCHERS;
-        } else {
-            throw new IllegalArgumentException("Impossible code path in RecordFilterHelper.shouldExcludeRecordBySharingScope(): recordSharingScope=" +
-                    recordSharingScope + ", userSharingScope=" + userSharingScope);
-        }
-
-        // actual filter logic here
-        if (sharingMode.shouldExcludeScope(sharingScope)) {
-            metrics.incrementCounter("excluded[" + sharingScope.name() + "]");
-            return true;
-        } else {
-            metrics.incrementCounter("accepted[" + sharingScope.name() + "]");
-            return false;
-        }
-    }
-
-    // Helper method that handles the study filter.
-    private boolean shouldExcludeRecordByStudy(Metrics metrics, Set<String> studyFilterSet, String studyId) {
-        // studyFilterSet is the set of studies that we accept
-        if (studyFilterSet.contains(studyId)) {
-            metrics.incrementCounter("accepted[" + studyId + "]");
-            return false;
-        } else {
-            metrics.incrementCounter("excluded[" + studyId + "]");
-            return true;
-        }
-    }
-
-    // Helper method that handles the table filter.
-    private boolean shouldExcludeRecordByTable(Metrics metrics, Set<UploadSchemaKey> tableFilterSet, String studyId,
-            UploadSchemaKey schemaKey) {
-        if (schemaKey == null) {
-            // The table whitelist specifies the tables that we allow through. A schemaless record, by definition,
-            // would not be in those tables. So exclude.
-            metrics.incrementCounter("excluded[" + studyId + "-default]");
-            return true;
-        } else if (tableFilterSet.contains(schemaKey)) {
-            // tableFilterSet is the set of tables that we accept
-            metrics.incrementCounter("accepted[" + schemaKey + "]");
-            return false;
-        } else {
-            metrics.incrementCounter("excluded[" + schemaKey + "]");
-            return true;
-        }
+        RecordFilterPlan filterPlan = new RecordFilterPlan(metrics, request, sharingScopeCache, null);
+        boolean excludeRecord = filterPlan.shouldExcludeRecord(record);
+        filterPlan.completeDeferredMetrics();
+        return excludeRecord;
     }
 }
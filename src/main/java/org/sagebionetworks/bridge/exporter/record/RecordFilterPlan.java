@@ -0,0 +1,329 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
+import org.sagebionetworks.bridge.exporter.metrics.MetricName;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterSharingMode;
+import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * <p>
+ * Record filter for a single export task, compiled from the request's filter settings. Use
+ * {@link RecordFilterHelper#compileFilterPlan} to create one.
+ * </p>
+ * <p>
+ * The filters that only need the record (study whitelist, table whitelist, and the record's sharing scope) are
+ * evaluated first. The user's sharing scope is only looked up in Bridge for records that pass those filters. This
+ * saves most of the Bridge calls for redrives with a table whitelist.
+ * </p>
+ * <p>
+ * Every filter still counts every record, same as evaluating all filters. The sharing scope counter needs the user's
+ * sharing scope, so for records excluded before the lookup, it's deferred until {@link #completeDeferredMetrics},
+ * once all records have been filtered. By then, most of those participants have been looked up for other records.
+ * The rest are looked up in bulk at that point, off the record path, so every record is still counted in accepted or
+ * excluded by sharing scope. Only participants whose lookup fails are counted as sharingScope.numNotResolved
+ * instead.
+ * </p>
+ */
+public class RecordFilterPlan {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordFilterPlan.class);
+
+    // Keys are study IDs, schema keys, and sharing scope names.
+    private static final MetricName<Object> METRICS_ACCEPTED = new MetricName<>("accepted[", "]");
+    private static final MetricName<Object> METRICS_EXCLUDED = new MetricName<>("excluded[", "]");
+    private static final MetricName<String> METRICS_EXCLUDED_DEFAULT_TABLE = new MetricName<>("excluded[",
+            "-default]");
+
+    // package-scoped to be available to unit tests
+    static final String METRICS_NUM_LOOKUPS_SKIPPED = "sharingScope.numLookupsSkipped";
+    static final String METRICS_NUM_NOT_RESOLVED = "sharingScope.numNotResolved";
+
+    private final Metrics metrics;
+    private final BridgeExporterSharingMode sharingMode;
+    private final SharingScopeCache sharingScopeCache;
+    private final SharingScopeResolver sharingScopeResolver;
+    private final Set<String> studyWhitelist;
+    private final Set<UploadSchemaKey> tableWhitelist;
+
+    // Record sharing scopes for records excluded before the user lookup, by participant key (study ID and health
+    // code), so we only need to resolve each participant once.
+    private final ConcurrentMap<String, Multiset<SharingScope>> deferredScopesByParticipant =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Compiles the filter plan. Package-scoped, since this is only created by {@link RecordFilterHelper}.
+     *
+     * @param metrics
+     *         task metrics, to record filter metrics
+     * @param request
+     *         export request, used for determining filter settings
+     * @param sharingScopeCache
+     *         sharing scope cache, used to check for cached participants when resolving deferred metrics, and to get
+     *         user sharing scopes if there's no resolver
+     * @param sharingScopeResolver
+     *         task's sharing scope resolver, or null to use the sharing scope cache directly
+     */
+    RecordFilterPlan(Metrics metrics, BridgeExporterRequest request, SharingScopeCache sharingScopeCache,
+            SharingScopeResolver sharingScopeResolver) {
+        this.metrics = metrics;
+        this.sharingMode = request.getSharingMode();
+        this.sharingScopeCache = sharingScopeCache;
+        this.sharingScopeResolver = sharingScopeResolver;
+        this.studyWhitelist = request.getStudyWhitelist();
+        this.tableWhitelist = request.getTableWhitelist();
+    }
+
+    /**
+     * Starts user sharing scope lookups for the records that pass the record-only filters. This doesn't wait for the
+     * lookups. Does nothing if there's no sharing scope resolver.
+     *
+     * @param recordList
+     *         records that will be filtered soon, may contain nulls
+     */
+    public void prefetch(Iterable<Item> recordList) {
+        if (sharingScopeResolver == null) {
+            return;
+        }
+        sharingScopeResolver.prefetch(Iterables.filter(recordList, record -> record != null &&
+                StringUtils.isNotBlank(record.getString("studyId")) && !isExcludedByRecord(record,
+                getRecordSharingScope(record, false))));
+    }
+
+    /**
+     * Returns true if a record should be excluded from the export.
+     *
+     * @param record
+     *         record to determine if we should include or exclude
+     * @return true if the record should be excluded
+     */
+    public boolean shouldExcludeRecord(Item record) {
+        // If record doesn't have a study ID, something is seriously wrong.
+        String studyId = record.getString("studyId");
+        if (StringUtils.isBlank(studyId)) {
+            throw new IllegalArgumentException("record has no study ID");
+        }
+
+        // filter by study - This is used for filtering out test studies and for limiting study-specific exports.
+        boolean excludeByStudy = false;
+        if (studyWhitelist != null) {
+            excludeByStudy = shouldExcludeRecordByStudy(studyId);
+        }
+
+        // filter by table - This is used for table-specific redrives.
+        boolean excludeByTable = false;
+        if (tableWhitelist != null) {
+            excludeByTable = shouldExcludeRecordByTable(studyId, BridgeExporterUtil.getSchemaKeyForRecord(record));
+        }
+
+        // The user's sharing scope can only make the record more restrictive, and each sharing mode accepts every
+        // scope less restrictive than the ones it accepts. So if the sharing mode excludes the record's sharing
+        // scope, the record is excluded no matter what the user's sharing scope is.
+        SharingScope recordSharingScope = getRecordSharingScope(record, true);
+        boolean excludeByRecordSharingScope = sharingMode.shouldExcludeScope(recordSharingScope);
+
+        // We don't short-circuit the local filters, because we want to collect the metrics. But we only look up the
+        // user if none of them excluded the record.
+        String healthCode = record.getString("healthCode");
+        if (excludeByStudy || excludeByTable || excludeByRecordSharingScope) {
+            metrics.incrementCounter(METRICS_NUM_LOOKUPS_SKIPPED);
+            if (SharingScope.NO_SHARING.equals(recordSharingScope)) {
+                // Already the most restrictive scope, so we can count it now.
+                countSharingScope(SharingScope.NO_SHARING, 1);
+            } else {
+                deferredScopesByParticipant.computeIfAbsent(studyId + ":" + healthCode,
+                        key -> ConcurrentHashMultiset.create()).add(recordSharingScope);
+            }
+            return true;
+        }
+
+        // Get user's sharing scope from Bridge (through the cache). If not specified, defaults to no_sharing.
+        SharingScope userSharingScope;
+        if (sharingScopeResolver != null) {
+            userSharingScope = sharingScopeResolver.getUserSharingScope(studyId, healthCode);
+        } else {
+            userSharingScope = sharingScopeCache.getSharingScope(studyId, healthCode);
+        }
+        if (userSharingScope == null) {
+            userSharingScope = SharingScope.NO_SHARING;
+        }
+
+        SharingScope sharingScope = getMostRestrictiveScope(recordSharingScope, userSharingScope);
+        countSharingScope(sharingScope, 1);
+        return sharingMode.shouldExcludeScope(sharingScope);
+    }
+
+    /**
+     * Counts the sharing scope metrics for records that were excluded before the user lookup. Participants that are
+     * already cached are counted without calling Bridge. The rest are looked up through the sharing scope resolver,
+     * which bounds the number of concurrent Bridge calls, and this waits for those lookups. Call this once all
+     * records have been filtered.
+     */
+    public void completeDeferredMetrics() {
+        // Start lookups for all participants that aren't cached, so they run concurrently.
+        Map<String, SharingScope> cachedScopesByParticipant = new HashMap<>();
+        for (String oneParticipantKey : deferredScopesByParticipant.keySet()) {
+            SharingScope cachedSharingScope = sharingScopeCache.peekSharingScope(getStudyId(oneParticipantKey),
+                    getHealthCode(oneParticipantKey));
+            if (cachedSharingScope != null) {
+                cachedScopesByParticipant.put(oneParticipantKey, cachedSharingScope);
+            } else if (sharingScopeResolver != null) {
+                sharingScopeResolver.prefetchParticipant(getStudyId(oneParticipantKey),
+                        getHealthCode(oneParticipantKey));
+            }
+        }
+
+        for (Map.Entry<String, Multiset<SharingScope>> oneParticipantEntry : deferredScopesByParticipant.entrySet()) {
+            String participantKey = oneParticipantEntry.getKey();
+            SharingScope userSharingScope = cachedScopesByParticipant.get(participantKey);
+            if (userSharingScope == null) {
+                userSharingScope = resolveDeferredParticipant(participantKey);
+            }
+
+            for (Multiset.Entry<SharingScope> oneScopeEntry : oneParticipantEntry.getValue().entrySet()) {
+                if (userSharingScope == null) {
+                    metrics.incrementCounter(METRICS_NUM_NOT_RESOLVED, oneScopeEntry.getCount());
+                } else {
+                    countSharingScope(getMostRestrictiveScope(oneScopeEntry.getElement(), userSharingScope),
+                            oneScopeEntry.getCount());
+                }
+            }
+        }
+        deferredScopesByParticipant.clear();
+    }
+
+    // Helper method which looks up the user sharing scope of a participant whose records were excluded before the
+    // lookup. If the user doesn't have a sharing scope, defaults to no_sharing. Returns null if the lookup failed.
+    private SharingScope resolveDeferredParticipant(String participantKey) {
+        String studyId = getStudyId(participantKey);
+        String healthCode = getHealthCode(participantKey);
+        SharingScope userSharingScope;
+        try {
+            if (sharingScopeResolver != null) {
+                userSharingScope = sharingScopeResolver.getUserSharingScope(studyId, healthCode);
+            } else {
+                userSharingScope = sharingScopeCache.getSharingScope(studyId, healthCode);
+            }
+        } catch (RuntimeException ex) {
+            // These records are already excluded, so this only affects metrics. Log and move on.
+            LOG.error("Error getting sharing scope for excluded records, study=" + studyId + ": " + ex.getMessage(),
+                    ex);
+            return null;
+        }
+        return userSharingScope != null ? userSharingScope : SharingScope.NO_SHARING;
+    }
+
+    // Helper methods which split a participant key into study ID and health code. Study IDs never contain colons, so
+    // the first colon separates the study ID from the health code.
+    private static String getStudyId(String participantKey) {
+        return participantKey.substring(0, participantKey.indexOf(':'));
+    }
+
+    private static String getHealthCode(String participantKey) {
+        return participantKey.substring(participantKey.indexOf(':') + 1);
+    }
+
+    // Helper method which checks the filters that only need the record, without recording metrics.
+    private boolean isExcludedByRecord(Item record, SharingScope recordSharingScope) {
+        String studyId = record.getString("studyId");
+        if (studyWhitelist != null && !studyWhitelist.contains(studyId)) {
+            return true;
+        }
+        if (tableWhitelist != null) {
+            UploadSchemaKey schemaKey = BridgeExporterUtil.getSchemaKeyForRecord(record);
+            if (schemaKey == null || !tableWhitelist.contains(schemaKey)) {
+                return true;
+            }
+        }
+        return sharingMode.shouldExcludeScope(recordSharingScope);
+    }
+
+    // Helper method which gets the record's sharing scope. Defaults to no_sharing if it's not present or unable to be
+    // parsed.
+    private static SharingScope getRecordSharingScope(Item record, boolean logErrors) {
+        String recordSharingScopeStr = record.getString("userSharingScope");
+        if (StringUtils.isBlank(recordSharingScopeStr)) {
+            return SharingScope.NO_SHARING;
+        }
+
+        try {
+            return SharingScope.valueOf(recordSharingScopeStr);
+        } catch (IllegalArgumentException ex) {
+            if (logErrors) {
+                LOG.error("Could not parse sharing scope " + recordSharingScopeStr);
+            }
+            return SharingScope.NO_SHARING;
+        }
+    }
+
+    // Helper method which reconciles both sharing scopes to find the most restrictive sharing scope.
+    private static SharingScope getMostRestrictiveScope(SharingScope recordSharingScope,
+            SharingScope userSharingScope) {
+        if (SharingScope.NO_SHARING.equals(recordSharingScope) || SharingScope.NO_SHARING.equals(userSharingScope)) {
+            return SharingScope.NO_SHARING;
+        } else if (SharingScope.SPONSORS_AND_PARTNERS.equals(recordSharingScope) ||
+                SharingScope.SPONSORS_AND_PARTNERS.equals(userSharingScope)) {
+            return SharingScope.SPONSORS_AND_PARTNERS;
+        } else if (SharingScope.ALL_QUALIFIED_RESEARCHERS.equals(recordSharingScope) ||
+                SharingScope.ALL_QUALIFIED_RESEARCHERS.equals(userSharingScope)) {
+            return SharingScope.ALL_QUALIFIED_RESEARCHERS;
+        } else {
+            throw new IllegalArgumentException("Impossible code path in RecordFilterPlan.getMostRestrictiveScope(): " +
+                    "recordSharingScope=" + recordSharingScope + ", userSharingScope=" + userSharingScope);
+        }
+    }
+
+    // Helper method which counts records as accepted or excluded by their (reconciled) sharing scope.
+    private void countSharingScope(SharingScope sharingScope, int count) {
+        if (sharingMode.shouldExcludeScope(sharingScope)) {
+            metrics.getCounter(METRICS_EXCLUDED, sharingScope.name()).add(count);
+        } else {
+            metrics.getCounter(METRICS_ACCEPTED, sharingScope.name()).add(count);
+        }
+    }
+
+    // Helper method that handles the study filter.
+    private boolean shouldExcludeRecordByStudy(String studyId) {
+        // studyWhitelist is the set of studies that we accept
+        if (studyWhitelist.contains(studyId)) {
+            metrics.getCounter(METRICS_ACCEPTED, studyId).increment();
+            return false;
+        } else {
+            metrics.getCounter(METRICS_EXCLUDED, studyId).increment();
+            return true;
+        }
+    }
+
+    // Helper method that handles the table filter.
+    private boolean shouldExcludeRecordByTable(String studyId, UploadSchemaKey schemaKey) {
+        if (schemaKey == null) {
+            // The table whitelist specifies the tables that we allow through. A schemaless record, by definition,
+            // would not be in those tables. So exclude.
+            metrics.getCounter(METRICS_EXCLUDED_DEFAULT_TABLE, studyId).increment();
+            return true;
+        } else if (tableWhitelist.contains(schemaKey)) {
+            // tableWhitelist is the set of tables that we accept
+            metrics.getCounter(METRICS_ACCEPTED, schemaKey).increment();
+            return false;
+        } else {
+            metrics.getCounter(METRICS_EXCLUDED, schemaKey).increment();
+            return true;
+        }
+    }
+}
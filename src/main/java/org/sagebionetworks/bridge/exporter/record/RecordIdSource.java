@@ -2,15 +2,24 @@ package org.sagebionetworks.bridge.exporter.record;
 
 import java.util.Iterator;
 
+import com.amazonaws.services.dynamodbv2.document.Item;
+
 /**
+ * <p>
  * Record ID source. This wraps around either a file or a DynamoDB query. This is used to abstract away implementation
  * details for how we get a list of record IDs.
+ * </p>
+ * <p>
+ * Record IDs are returned as DDB Items. Depending on the source, these are either key items (containing only the
+ * record ID), which need to be hydrated from the base table, or full records (for example, if the DynamoDB query's
+ * index projects all attributes we need), which can skip the base table read.
+ * </p>
  *
  * @param <T>
  *         Source type that we need to convert from. For example, a DynamoDB record source would be a
  *         RecordIdSource<Item>
  */
-public class RecordIdSource<T> implements Iterable<String>, Iterator<String> {
+public class RecordIdSource<T> implements Iterable<Item>, Iterator<Item> {
     private final Iterator<T> sourceIterator;
     private final Converter<T> converter;
 
@@ -41,7 +50,7 @@ public class RecordIdSource<T> implements Iterable<String>, Iterator<String> {
 
     /** This class implements iterable out of convenience. It itself is the iterator, so iterator() returns this. */
     @Override
-    public Iterator<String> iterator() {
+    public Iterator<Item> iterator() {
         return this;
     }
 
@@ -51,17 +60,17 @@ public class RecordIdSource<T> implements Iterable<String>, Iterator<String> {
     }
 
     @Override
-    public String next() {
+    public Item next() {
         return converter.convert(sourceIterator.next());
     }
 
     /**
-     * Interface (function reference) for the converter, which converts the given object into a record ID.
+     * Interface (function reference) for the converter, which converts the given object into a record ID item.
      *
      * @param <T>
      *         param type to convert from
      */
     public interface Converter<T> {
-        String convert(T from);
+        Item convert(T from);
     }
 }
@@ -2,48 +2,141 @@ package org.sagebionetworks.bridge.exporter.record;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import javax.annotation.Resource;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.dynamo.ThrottledItemIterable;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
-import org.sagebionetworks.bridge.s3.S3Helper;
 
 /**
  * Factory class to construct the appropriate RecordIdSource for the given request. This class abstracts away logic for
- * initializing a RecordIdSource from a DynamoDB query or from a record override file in S3.
+ * initializing a RecordIdSource from a DynamoDB query, a parallel DynamoDB scan, or from a record override file in S3.
  */
 @Component
 public class RecordIdSourceFactory {
-    private static final RecordIdSource.Converter<Item> DYNAMO_ITEM_CONVERTER = from -> from.getString("id");
-    private static final RecordIdSource.Converter<String> NOOP_CONVERTER = from -> from;
+    private static final Logger LOG = LoggerFactory.getLogger(RecordIdSourceFactory.class);
 
+    private static final String KEY_ID = "id";
+
+    private static final RecordIdSource.Converter<Item> DYNAMO_KEY_CONVERTER = from -> new Item().withString(KEY_ID,
+            from.getString(KEY_ID));
+    private static final RecordIdSource.Converter<Item> DYNAMO_FULL_RECORD_CONVERTER = from -> from;
+
+    /** Name of the studyId-uploadedOn index on the DDB Health Data Record table. */
+    public static final String STUDY_UPLOADED_ON_INDEX_NAME = "study-uploadedOn-index";
+
+    // package-scoped to be available to unit tests
+    static final String CONFIG_KEY_FANOUT_BUFFER_SIZE = "record.query.fanout.buffer.size";
+    static final String CONFIG_KEY_FANOUT_CONCURRENCY = "record.query.fanout.concurrency";
+    static final String CONFIG_KEY_FANOUT_PREFETCH_DEPTH = "record.query.fanout.prefetch.depth";
+    static final String CONFIG_KEY_INDEX_FAST_PATH_ENABLED = "record.index.fast.path.enabled";
+    static final String CONFIG_KEY_SCAN_PROGRESS_REPORT_PERIOD = "record.scan.progress.report.period";
+    static final String CONFIG_KEY_SCAN_SEGMENT_COUNT = "record.scan.segment.count";
+    static final String CONFIG_KEY_SCAN_SEGMENT_RATE = "record.scan.segment.rate";
+    static final String CONFIG_KEY_SLICE_COUNT = "record.query.slice.count";
+    static final String CONFIG_KEY_SLICE_MAX_COUNT = "record.query.slice.max.count";
+    static final String CONFIG_KEY_SLICE_TARGET_RECORDS = "record.query.slice.target.records";
     static final String STUDY_ID = "studyId";
 
+    /**
+     * Record attributes that the handlers need, in addition to the attributes in the column definitions. If the index
+     * projects all of these, we can skip the base table read.
+     */
+    static final Set<String> REQUIRED_RECORD_ATTRIBUTES = ImmutableSet.of(KEY_ID, "data", "healthCode", "metadata",
+            "rawDataAttachmentId", "schemaId", "schemaRevision", STUDY_ID, "userMetadata", "userSharingScope");
+
     // config vars
+    private int fanOutBufferSize;
+    private int fanOutConcurrency;
+    private int fanOutPrefetchDepth;
+    private boolean indexFastPathEnabled;
     private String overrideBucket;
+    private int scanProgressReportPeriod;
+    private int scanSegmentCount;
+    private int scanSegmentRate;
+    private int sliceCount;
+    private int sliceMaxCount;
+    private int sliceTargetRecords;
+
+    // Lazily initialized, since this requires a DescribeTable call.
+    private volatile Boolean indexProjectsRequiredAttributes;
 
     // Spring helpers
+    private List<ColumnDefinition> columnDefinitionList;
+    private DynamoHelper dynamoHelper;
     private DynamoQueryHelper ddbQueryHelper;
+    private DynamoReadThrottle ddbReadThrottle;
+    private Table ddbRecordTable;
     private Index ddbRecordStudyUploadedOnIndex;
-    private S3Helper s3Helper;
+    private ExecutorService recordQueryExecutorService;
+    private AmazonS3Client s3Client;
 
-    /** Config, used to get S3 bucket for record ID override files. */
+    /**
+     * Config, used to get S3 bucket for record ID override files, whether the index fast path is enabled, the
+     * per-study query fan-out and time slicing settings, and the parallel scan settings.
+     */
     @Autowired
     final void setConfig(Config config) {
+        fanOutBufferSize = config.getInt(CONFIG_KEY_FANOUT_BUFFER_SIZE);
+        fanOutConcurrency = config.getInt(CONFIG_KEY_FANOUT_CONCURRENCY);
+        fanOutPrefetchDepth = config.getInt(CONFIG_KEY_FANOUT_PREFETCH_DEPTH);
+        indexFastPathEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_INDEX_FAST_PATH_ENABLED));
         overrideBucket = config.get(BridgeExporterUtil.CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET);
+        scanProgressReportPeriod = config.getInt(CONFIG_KEY_SCAN_PROGRESS_REPORT_PERIOD);
+        scanSegmentCount = config.getInt(CONFIG_KEY_SCAN_SEGMENT_COUNT);
+        scanSegmentRate = config.getInt(CONFIG_KEY_SCAN_SEGMENT_RATE);
+        sliceCount = config.getInt(CONFIG_KEY_SLICE_COUNT);
+        sliceMaxCount = config.getInt(CONFIG_KEY_SLICE_MAX_COUNT);
+        sliceTargetRecords = config.getInt(CONFIG_KEY_SLICE_TARGET_RECORDS);
+    }
+
+    /** Column definitions, used to determine which record attributes need to be projected for the fast path. */
+    @Resource(name = "synapseColumnDefinitions")
+    final void setColumnDefinitionList(List<ColumnDefinition> columnDefinitionList) {
+        this.columnDefinitionList = columnDefinitionList;
+    }
+
+    /** Dynamo Helper, used to get last export record counts, to determine how many time slices to query. */
+    @Autowired
+    final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
     }
 
     /** DDB Query Helper, used to abstract away query logic. */
@@ -52,64 +145,312 @@ public class RecordIdSourceFactory {
         this.ddbQueryHelper = ddbQueryHelper;
     }
 
+    /** DDB read throttle, shared with all other DDB reads. Record queries wait on this as they page through. */
+    @Autowired
+    final void setDdbReadThrottle(DynamoReadThrottle ddbReadThrottle) {
+        this.ddbReadThrottle = ddbReadThrottle;
+    }
+
+    /**
+     * DDB Health Data Record table, used to describe the projection of the studyId-uploadedOn index, and for parallel
+     * scans.
+     */
+    @Resource(name = "ddbRecordTable")
+    final void setDdbRecordTable(Table ddbRecordTable) {
+        this.ddbRecordTable = ddbRecordTable;
+    }
+
     /** DDB Record table studyId-uploadedOn index. */
     @Resource(name = "ddbRecordStudyUploadedOnIndex")
     final void setDdbRecordStudyUploadedOnIndex(Index ddbRecordStudyUploadedOnIndex) {
         this.ddbRecordStudyUploadedOnIndex = ddbRecordStudyUploadedOnIndex;
     }
 
-    /** S3 Helper, used to download record ID override files. */
+    /**
+     * Executor used to run per-study DDB queries concurrently. The number of threads should match
+     * record.query.fanout.concurrency.
+     */
+    @Resource(name = "recordQueryExecutorService")
+    final void setRecordQueryExecutorService(ExecutorService recordQueryExecutorService) {
+        this.recordQueryExecutorService = recordQueryExecutorService;
+    }
+
+    /** S3 client, used to stream record ID override files. */
     @Autowired
-    final void setS3Helper(S3Helper s3Helper) {
-        this.s3Helper = s3Helper;
+    final void setS3Client(AmazonS3Client s3Client) {
+        this.s3Client = s3Client;
     }
 
     /**
      * Gets the record ID source for the given Bridge EX request. Returns an Iterable instead of a RecordIdSource for
-     * easy mocking.
+     * easy mocking. See {@link RecordIdSource} for whether the returned items are full records or key items. If the
+     * returned Iterable is {@link java.io.Closeable}, callers must close it when they're done iterating.
      *
+     * @param metrics
+     *         metrics object, to record per-study query metrics
      * @param request
      *         Bridge EX request
      * @return record ID source
      * @throws IOException
      *         if we fail reading the underlying source
      */
-    public Iterable<String> getRecordSourceForRequest(BridgeExporterRequest request,
+    public Iterable<Item> getRecordSourceForRequest(Metrics metrics, BridgeExporterRequest request,
             Map<String, DateTime> studyIdsToQuery) throws IOException {
         if (StringUtils.isNotBlank(request.getRecordIdS3Override())) {
             return getS3RecordIdSource(request);
+        } else if (request.getUseParallelScan()) {
+            return getDynamoScanRecordIdSource(metrics, request.getEndDateTime(), studyIdsToQuery);
         } else {
-            return getDynamoRecordIdSourceGeneral(request.getEndDateTime(), studyIdsToQuery);
+            return getDynamoRecordIdSourceGeneral(metrics, request.getEndDateTime(), studyIdsToQuery);
         }
     }
 
     /**
-     * Helper method to get ddb records
+     * Helper method to get ddb records. If fan-out is enabled, the per-study queries run concurrently and are merged
+     * by a {@link FanOutRecordIdSource}. Very large studies are further split into time slices, each of which is
+     * queried separately. See {@link #planSliceCounts}. If fan-out is disabled, the studies are queried one after
+     * another.
      */
-    private Iterable<String> getDynamoRecordIdSourceGeneral(DateTime endDateTime, Map<String, DateTime> studyIdsToQuery) {
+    private Iterable<Item> getDynamoRecordIdSourceGeneral(Metrics metrics, DateTime endDateTime,
+            Map<String, DateTime> studyIdsToQuery) {
         // We need to make a separate query for _each_ study in the whitelist. That's just how DDB hash keys work.
-        List<Iterable<Item>> recordItemIterList = new ArrayList<>();
+        // Queries are lazy, so nothing is read from DDB until we start iterating.
+        Map<String, Integer> sliceCountsByStudy = planSliceCounts(studyIdsToQuery.keySet());
+        Map<String, Iterable<Item>> recordItemIterByUnit = new LinkedHashMap<>();
         for (Map.Entry<String, DateTime> oneStudyIdAndDateTime : studyIdsToQuery.entrySet()) {
-            RangeKeyCondition rangeKeyCondition = new RangeKeyCondition("uploadedOn")
-                    .between(oneStudyIdAndDateTime.getValue().getMillis(), endDateTime.getMillis() - 1);
+            String studyId = oneStudyIdAndDateTime.getKey();
+            List<RangeKeyCondition> sliceConditionList = makeSliceRangeKeyConditions(
+                    oneStudyIdAndDateTime.getValue().getMillis(), endDateTime.getMillis(),
+                    sliceCountsByStudy.get(studyId));
+            int numSlices = sliceConditionList.size();
+            for (int i = 0; i < numSlices; i++) {
+                Iterable<Item> recordItemIterTemp = new ThrottledItemIterable(ddbReadThrottle, ddbQueryHelper
+                        .query(ddbRecordStudyUploadedOnIndex, "studyId", studyId, sliceConditionList.get(i)));
+
+                // Each slice is its own unit, for progress reporting.
+                String unitName = numSlices > 1 ? studyId + "#" + (i + 1) + "/" + numSlices : studyId;
+                recordItemIterByUnit.put(unitName, recordItemIterTemp);
+            }
+        }
 
-            Iterable<Item> recordItemIterTemp = ddbQueryHelper
-                    .query(ddbRecordStudyUploadedOnIndex, "studyId", oneStudyIdAndDateTime.getKey(), rangeKeyCondition);
+        // If the index projects everything the handlers need, pass the index items through as full records, which
+        // skips the base table read. Otherwise, strip them down to key items, so they get hydrated from the base
+        // table.
+        RecordIdSource.Converter<Item> converter = isIndexFastPathEnabled() ? DYNAMO_FULL_RECORD_CONVERTER :
+                DYNAMO_KEY_CONVERTER;
 
-            recordItemIterList.add(recordItemIterTemp);
+        if (fanOutConcurrency > 1 && recordItemIterByUnit.size() > 1) {
+            return new FanOutRecordIdSource(recordQueryExecutorService, recordItemIterByUnit, converter,
+                    fanOutBufferSize, fanOutPrefetchDepth, metrics);
+        } else {
+            Iterable<Item> recordItemIter = Iterables.concat(recordItemIterByUnit.values());
+            return new RecordIdSource<>(recordItemIter, converter);
         }
+    }
 
-        Iterable<Item> recordItemIter = Iterables.concat(recordItemIterList);
+    /**
+     * Splits the time window [startMillis, endMillis) into the given number of slices, and returns an uploadedOn range
+     * key condition for each slice. Slices together cover the window with no gaps or overlaps. Each slice is at least
+     * 1 millisecond, so short windows may get fewer slices than requested. Package-scoped so that the dry run planner
+     * counts the same slices that the export queries.
+     */
+    static List<RangeKeyCondition> makeSliceRangeKeyConditions(long startMillis, long endMillis,
+            int requestedSliceCount) {
+        int numSlices = (int) Math.max(1, Math.min(requestedSliceCount, endMillis - startMillis));
+        List<RangeKeyCondition> sliceConditionList = new ArrayList<>();
+        for (int i = 0; i < numSlices; i++) {
+            // Slices are [sliceStart, sliceEnd). DDB between is inclusive, so subtract 1 from the end.
+            long sliceStartMillis = startMillis + (endMillis - startMillis) * i / numSlices;
+            long sliceEndMillis = startMillis + (endMillis - startMillis) * (i + 1) / numSlices;
+            sliceConditionList.add(new RangeKeyCondition("uploadedOn").between(sliceStartMillis,
+                    sliceEndMillis - 1));
+        }
+        return sliceConditionList;
+    }
 
-        return new RecordIdSource<>(recordItemIter, DYNAMO_ITEM_CONVERTER);
+    /**
+     * <p>
+     * Helper method to get ddb records using a parallel segmented scan of the whole record table. The table is split
+     * into record.scan.segment.count segments, which are scanned concurrently and merged by a
+     * {@link FanOutRecordIdSource}, so the number of segments scanned at once is bounded by the fan-out concurrency.
+     * Scans return every record, so each segment filters by study and uploadedOn on our side. See
+     * {@link ScanSegmentRecordIterable}.
+     * </p>
+     * <p>
+     * Every segment reads through the shared DDB read throttle. If record.scan.segment.rate is set (greater than
+     * zero), each segment is also limited to that many read capacity units per second. Scans return full records, so
+     * these skip the base table read.
+     * </p>
+     */
+    private Iterable<Item> getDynamoScanRecordIdSource(Metrics metrics, DateTime endDateTime,
+            Map<String, DateTime> studyIdsToQuery) {
+        Map<String, Long> startMillisByStudy = new HashMap<>();
+        for (Map.Entry<String, DateTime> oneStudyIdAndDateTime : studyIdsToQuery.entrySet()) {
+            startMillisByStudy.put(oneStudyIdAndDateTime.getKey(), oneStudyIdAndDateTime.getValue().getMillis());
+        }
+        long endMillis = endDateTime.getMillis();
+
+        int numSegments = Math.max(1, scanSegmentCount);
+        LOG.info("Scanning record table in " + numSegments + " segments");
+        Map<String, Iterable<Item>> recordItemIterBySegment = new LinkedHashMap<>();
+        for (int i = 0; i < numSegments; i++) {
+            // Scans are lazy, so nothing is read from DDB until we start iterating.
+            ScanSpec scanSpec = new ScanSpec().withSegment(i).withTotalSegments(numSegments);
+            RateLimiter segmentRateLimiter = scanSegmentRate > 0 ? RateLimiter.create(scanSegmentRate) : null;
+            Iterable<Item> scanIter = new ThrottledItemIterable(ddbReadThrottle, segmentRateLimiter,
+                    ddbRecordTable.scan(scanSpec));
+
+            // Each segment is its own unit, for progress reporting.
+            String segmentName = "scan#" + (i + 1) + "/" + numSegments;
+            recordItemIterBySegment.put(segmentName, new ScanSegmentRecordIterable(segmentName, scanIter,
+                    startMillisByStudy, endMillis, scanProgressReportPeriod, metrics));
+        }
+
+        if (fanOutConcurrency > 1 && numSegments > 1) {
+            return new FanOutRecordIdSource(recordQueryExecutorService, recordItemIterBySegment,
+                    DYNAMO_FULL_RECORD_CONVERTER, fanOutBufferSize, fanOutPrefetchDepth, metrics);
+        } else {
+            Iterable<Item> recordItemIter = Iterables.concat(recordItemIterBySegment.values());
+            return new RecordIdSource<>(recordItemIter, DYNAMO_FULL_RECORD_CONVERTER);
+        }
+    }
+
+    /**
+     * <p>
+     * Determines how many time slices to split each study's query into. A single query on the index is one sequential
+     * paginated stream, so for very large studies, we split the time window into multiple slices and query those in
+     * parallel.
+     * </p>
+     * <p>
+     * If record.query.slice.count is set (greater than zero), every study uses that many slices. Otherwise, the slice
+     * count is derived from the number of records the study exported last time, one slice per
+     * record.query.slice.target.records records, capped at record.query.slice.max.count. Studies with no last record
+     * count get one slice. If fan-out is disabled, slicing doesn't help, so every study gets one slice.
+     * </p>
+     * <p>
+     * Package-scoped for unit tests.
+     * </p>
+     */
+    Map<String, Integer> planSliceCounts(Set<String> studyIds) {
+        Map<String, Integer> sliceCountsByStudy = new HashMap<>();
+        if (fanOutConcurrency <= 1) {
+            for (String oneStudyId : studyIds) {
+                sliceCountsByStudy.put(oneStudyId, 1);
+            }
+        } else if (sliceCount > 0) {
+            for (String oneStudyId : studyIds) {
+                sliceCountsByStudy.put(oneStudyId, sliceCount);
+            }
+        } else {
+            Map<String, Integer> recordCountsByStudy = dynamoHelper.getLastExportRecordCounts(studyIds);
+            for (String oneStudyId : studyIds) {
+                Integer recordCount = recordCountsByStudy.get(oneStudyId);
+                int numSlices = 1;
+                if (recordCount != null && sliceTargetRecords > 0) {
+                    numSlices = (recordCount + sliceTargetRecords - 1) / sliceTargetRecords;
+                    numSlices = Math.max(1, Math.min(numSlices, sliceMaxCount));
+                }
+                sliceCountsByStudy.put(oneStudyId, numSlices);
+
+                if (numSlices > 1) {
+                    LOG.info("Splitting study " + oneStudyId + " into " + numSlices + " time slices, last export had " +
+                            recordCount + " records");
+                }
+            }
+        }
+        return sliceCountsByStudy;
+    }
+
+    /**
+     * Returns true if the index fast path is enabled in config and the studyId-uploadedOn index projects every
+     * attribute that the handlers need. The index projection is checked once and then cached. Package-scoped for
+     * unit tests.
+     */
+    boolean isIndexFastPathEnabled() {
+        if (!indexFastPathEnabled) {
+            return false;
+        }
+        if (indexProjectsRequiredAttributes == null) {
+            indexProjectsRequiredAttributes = checkIndexProjection();
+        }
+        return indexProjectsRequiredAttributes;
+    }
+
+    // Helper method which describes the record table and checks the projection of the studyId-uploadedOn index
+    // against the required attributes.
+    private boolean checkIndexProjection() {
+        TableDescription tableDescription;
+        try {
+            tableDescription = ddbRecordTable.describe();
+        } catch (AmazonClientException ex) {
+            LOG.warn("Error describing record table, falling back to base table reads: " + ex.getMessage(), ex);
+            return false;
+        }
+
+        GlobalSecondaryIndexDescription indexDescription = null;
+        if (tableDescription.getGlobalSecondaryIndexes() != null) {
+            for (GlobalSecondaryIndexDescription oneIndexDescription : tableDescription.getGlobalSecondaryIndexes()) {
+                if (STUDY_UPLOADED_ON_INDEX_NAME.equals(oneIndexDescription.getIndexName())) {
+                    indexDescription = oneIndexDescription;
+                    break;
+                }
+            }
+        }
+        if (indexDescription == null) {
+            LOG.warn("Index " + STUDY_UPLOADED_ON_INDEX_NAME + " not found, falling back to base table reads");
+            return false;
+        }
+
+        Projection projection = indexDescription.getProjection();
+        String projectionType = projection.getProjectionType();
+        if (ProjectionType.ALL.toString().equals(projectionType)) {
+            LOG.info("Index " + STUDY_UPLOADED_ON_INDEX_NAME + " projects all attributes, using index fast path");
+            return true;
+        } else if (!ProjectionType.INCLUDE.toString().equals(projectionType)) {
+            LOG.info("Index " + STUDY_UPLOADED_ON_INDEX_NAME + " has projection type " + projectionType +
+                    ", falling back to base table reads");
+            return false;
+        }
+
+        // Key attributes of both the table and the index are always projected.
+        Set<String> projectedAttributeSet = new HashSet<>(projection.getNonKeyAttributes());
+        for (KeySchemaElement oneKeyElement : tableDescription.getKeySchema()) {
+            projectedAttributeSet.add(oneKeyElement.getAttributeName());
+        }
+        for (KeySchemaElement oneKeyElement : indexDescription.getKeySchema()) {
+            projectedAttributeSet.add(oneKeyElement.getAttributeName());
+        }
+
+        Set<String> missingAttributeSet = Sets.difference(getRequiredRecordAttributes(), projectedAttributeSet);
+        if (!missingAttributeSet.isEmpty()) {
+            LOG.info("Index " + STUDY_UPLOADED_ON_INDEX_NAME + " doesn't project attributes " +
+                    BridgeExporterUtil.COMMA_SPACE_JOINER.join(missingAttributeSet) +
+                    ", falling back to base table reads");
+            return false;
+        }
+
+        LOG.info("Index " + STUDY_UPLOADED_ON_INDEX_NAME + " projects all required attributes, using index fast path");
+        return true;
+    }
+
+    // Helper method to get the attributes that the handlers need, including the column definitions.
+    private Set<String> getRequiredRecordAttributes() {
+        Set<String> requiredAttributeSet = new HashSet<>(REQUIRED_RECORD_ATTRIBUTES);
+        for (ColumnDefinition oneColumnDefinition : columnDefinitionList) {
+            // use name if there is no ddbName
+            String ddbName = oneColumnDefinition.getDdbName() != null ? oneColumnDefinition.getDdbName() :
+                    oneColumnDefinition.getName();
+            requiredAttributeSet.add(ddbName);
+        }
+        return requiredAttributeSet;
     }
 
     /**
-     * Get the record ID source from a record override file in S3. We assume the list of record IDs is small enough to
-     * reasonably fit in memory.
+     * Get the record ID source from a record override file in S3. The file is streamed rather than read into memory,
+     * and may be gzip-compressed. See {@link StreamingRecordIdSource}.
      */
-    private Iterable<String> getS3RecordIdSource(BridgeExporterRequest request) throws IOException {
-        List<String> recordIdList = s3Helper.readS3FileAsLines(overrideBucket, request.getRecordIdS3Override());
-        return new RecordIdSource<>(recordIdList, NOOP_CONVERTER);
+    private Iterable<Item> getS3RecordIdSource(BridgeExporterRequest request) throws IOException {
+        S3Object s3Object = s3Client.getObject(overrideBucket, request.getRecordIdS3Override());
+        return new StreamingRecordIdSource(s3Object.getObjectContent());
     }
 }
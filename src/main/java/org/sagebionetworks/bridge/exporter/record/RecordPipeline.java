@@ -0,0 +1,200 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A staged pipeline, where each stage runs on its own set of threads and stages are connected by bounded queues. This
+ * lets slow stages (like DDB reads or Bridge calls) overlap with each other instead of adding up. The calling thread
+ * acts as the first stage, feeding the source into the pipeline. Bounded queues provide back pressure, so a fast stage
+ * can't run arbitrarily far ahead of a slow one.
+ * </p>
+ * <p>
+ * Stage functions are expected to handle their own errors. If a stage function (or the source) throws anyway, the
+ * pipeline aborts: the remaining stages drain their queues without processing, and {@link #run} re-throws the first
+ * error once all stages have stopped.
+ * </p>
+ * <p>
+ * A pipeline can only be run once.
+ * </p>
+ */
+class RecordPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordPipeline.class);
+
+    // Marks the end of the stream in a stage's input queue. Each worker in a stage consumes exactly one.
+    private static final Object END_OF_STREAM = new Object();
+
+    private final ExecutorService executorService;
+    private final List<Stage> stageList = new ArrayList<>();
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+    private volatile boolean aborted = false;
+
+    /**
+     * Constructs a pipeline.
+     *
+     * @param executorService
+     *         executor to run stage workers on, must have at least as many threads as the total parallelism of all
+     *         stages
+     */
+    RecordPipeline(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    /**
+     * Adds a stage to the end of the pipeline. Items emitted by this stage go to the next stage added, or are
+     * dropped if this is the last stage.
+     *
+     * @param name
+     *         stage name, for logging
+     * @param parallelism
+     *         number of worker threads for this stage
+     * @param queueSize
+     *         max number of items waiting in this stage's input queue
+     * @param function
+     *         function that processes each input item, and optionally emits output items to the next stage
+     * @return this pipeline, for chaining
+     */
+    <I> RecordPipeline addStage(String name, int parallelism, int queueSize, StageFunction<I> function) {
+        stageList.add(new Stage(name, parallelism, queueSize, function));
+        return this;
+    }
+
+    /**
+     * Feeds the source into the pipeline on the calling thread, and blocks until all stages have finished.
+     *
+     * @param source
+     *         items to feed into the first stage
+     * @throws InterruptedException
+     *         if the calling thread is interrupted while waiting for the pipeline
+     * @throws RuntimeException
+     *         if the source or any stage failed, wrapping the first error
+     */
+    void run(Iterable<?> source) throws InterruptedException {
+        if (stageList.isEmpty()) {
+            throw new IllegalStateException("pipeline has no stages");
+        }
+
+        // Start all workers, from the last stage to the first.
+        CountDownLatch doneLatch = new CountDownLatch(stageList.size());
+        for (int i = stageList.size() - 1; i >= 0; i--) {
+            Stage stage = stageList.get(i);
+            Stage nextStage = i + 1 < stageList.size() ? stageList.get(i + 1) : null;
+            AtomicInteger numWorkersRemaining = new AtomicInteger(stage.parallelism);
+            for (int j = 0; j < stage.parallelism; j++) {
+                executorService.execute(() -> runWorker(stage, nextStage, numWorkersRemaining, doneLatch));
+            }
+        }
+
+        // Feed the source into the first stage.
+        Stage firstStage = stageList.get(0);
+        try {
+            for (Object oneItem : source) {
+                if (aborted) {
+                    break;
+                }
+                firstStage.queue.put(oneItem);
+            }
+        } catch (RuntimeException ex) {
+            abort("source", ex);
+        } finally {
+            signalEndOfStream(firstStage);
+        }
+
+        doneLatch.await();
+
+        Throwable firstError = error.get();
+        if (firstError != null) {
+            throw new RuntimeException("Record pipeline failed: " + firstError.getMessage(), firstError);
+        }
+    }
+
+    // Worker loop for a single stage worker. Runs until it sees the end of the stream. The last worker in the stage to
+    // finish signals the end of the stream to the next stage.
+    @SuppressWarnings("unchecked")
+    private void runWorker(Stage stage, Stage nextStage, AtomicInteger numWorkersRemaining,
+            CountDownLatch doneLatch) {
+        Emitter emitter = nextStage != null ? nextStage.queue::put : output -> {};
+        try {
+            while (true) {
+                Object item = stage.queue.take();
+                if (item == END_OF_STREAM) {
+                    break;
+                }
+                if (aborted) {
+                    // Keep draining, so upstream stages don't block on a full queue.
+                    continue;
+                }
+
+                try {
+                    stage.function.apply(item, emitter);
+                } catch (InterruptedException ex) {
+                    throw ex;
+                } catch (Throwable t) {
+                    abort(stage.name, t);
+                }
+            }
+        } catch (InterruptedException ex) {
+            abort(stage.name, ex);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (numWorkersRemaining.decrementAndGet() == 0) {
+                if (nextStage != null) {
+                    signalEndOfStream(nextStage);
+                }
+                doneLatch.countDown();
+            }
+        }
+    }
+
+    // Sends one end of stream marker to each worker in the stage. Workers always drain their queue, even after an
+    // abort, so this never blocks indefinitely.
+    private static void signalEndOfStream(Stage stage) {
+        for (int i = 0; i < stage.parallelism; i++) {
+            Uninterruptibles.putUninterruptibly(stage.queue, END_OF_STREAM);
+        }
+    }
+
+    // Records the first error and tells all stages to stop processing.
+    private void abort(String stageName, Throwable t) {
+        LOG.error("Record pipeline stage " + stageName + " failed, aborting pipeline: " + t.getMessage(), t);
+        error.compareAndSet(null, t);
+        aborted = true;
+    }
+
+    /** Processes a single item in a pipeline stage. */
+    interface StageFunction<I> {
+        void apply(I input, Emitter emitter) throws InterruptedException;
+    }
+
+    /** Sends an item to the next pipeline stage, blocking if the next stage's queue is full. */
+    interface Emitter {
+        void emit(Object output) throws InterruptedException;
+    }
+
+    // Stage definition and its input queue.
+    private static class Stage {
+        private final String name;
+        private final int parallelism;
+        private final BlockingQueue<Object> queue;
+        @SuppressWarnings("rawtypes")
+        private final StageFunction function;
+
+        Stage(String name, int parallelism, int queueSize, StageFunction<?> function) {
+            this.name = name;
+            this.parallelism = parallelism;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.function = function;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.AbstractIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+/**
+ * <p>
+ * Wraps one segment of a parallel DDB scan of the Health Data Record table. A scan returns every record in the
+ * segment, so this filters records by study and uploadedOn on our side, returning only records in the studies being
+ * exported and in each study's time window, [study start, end).
+ * </p>
+ * <p>
+ * Since a scan reads far more records than it returns, this logs progress every progressReportPeriod scanned
+ * records, and records the number of scanned records in the metrics when the segment is done.
+ * </p>
+ */
+public class ScanSegmentRecordIterable implements Iterable<Item> {
+    private static final Logger LOG = LoggerFactory.getLogger(ScanSegmentRecordIterable.class);
+
+    // package-scoped to be available to unit tests
+    static final String METRICS_PREFIX_NUM_SCANNED = "recordScan.numScanned[";
+
+    private final Iterable<Item> delegate;
+    private final long endMillis;
+    private final Metrics metrics;
+    private final int progressReportPeriod;
+    private final String segmentName;
+    private final Map<String, Long> startMillisByStudy;
+
+    /**
+     * Constructs the scan segment iterable.
+     *
+     * @param segmentName
+     *         segment name, for logging and metrics
+     * @param delegate
+     *         scan results for this segment
+     * @param startMillisByStudy
+     *         studies to export, mapped to the start of their time window (inclusive), in epoch milliseconds
+     * @param endMillis
+     *         end of the time window for all studies (exclusive), in epoch milliseconds
+     * @param progressReportPeriod
+     *         log progress every this many scanned records
+     * @param metrics
+     *         metrics object, to record the number of scanned records
+     */
+    public ScanSegmentRecordIterable(String segmentName, Iterable<Item> delegate, Map<String, Long> startMillisByStudy,
+            long endMillis, int progressReportPeriod, Metrics metrics) {
+        this.delegate = delegate;
+        this.endMillis = endMillis;
+        this.metrics = metrics;
+        this.progressReportPeriod = progressReportPeriod;
+        this.segmentName = segmentName;
+        this.startMillisByStudy = startMillisByStudy;
+    }
+
+    @Override
+    public Iterator<Item> iterator() {
+        Iterator<Item> delegateIterator = delegate.iterator();
+        return new AbstractIterator<Item>() {
+            private int numMatched = 0;
+            private int numScanned = 0;
+
+            @Override
+            protected Item computeNext() {
+                while (delegateIterator.hasNext()) {
+                    Item record = delegateIterator.next();
+                    numScanned++;
+                    if (progressReportPeriod > 0 && numScanned % progressReportPeriod == 0) {
+                        LOG.info("Scan segment " + segmentName + " scanned " + numScanned + " records so far, " +
+                                numMatched + " matched");
+                    }
+
+                    if (isInTimeWindow(record)) {
+                        numMatched++;
+                        return record;
+                    }
+                }
+
+                LOG.info("Scan segment " + segmentName + " done, scanned " + numScanned + " records, " + numMatched +
+                        " matched");
+                metrics.incrementCounter(METRICS_PREFIX_NUM_SCANNED + segmentName + "]", numScanned);
+                return endOfData();
+            }
+        };
+    }
+
+    // Returns true if the record is in one of the exported studies and in that study's time window.
+    private boolean isInTimeWindow(Item record) {
+        String studyId = record.getString("studyId");
+        if (studyId == null || !record.hasAttribute("uploadedOn")) {
+            return false;
+        }
+
+        Long startMillis = startMillisByStudy.get(studyId);
+        if (startMillis == null) {
+            return false;
+        }
+
+        long uploadedOn = record.getLong("uploadedOn");
+        return uploadedOn >= startMillis && uploadedOn < endMillis;
+    }
+}
@@ -0,0 +1,156 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+
+/**
+ * <p>
+ * Resolves participant sharing scopes for a single export task, using the {@link SharingScopeCache}. Each participant
+ * is looked up at most once per task, and the result is memoized for the rest of the task.
+ * </p>
+ * <p>
+ * Lookups run on the given executor, so callers can {@link #prefetch} the participants for the next window of
+ * records (for example, a hydrated batch), and the lookups run concurrently while earlier records are filtered. The
+ * executor's thread count bounds the number of in-flight Bridge calls. {@link #getUserSharingScope} only waits if
+ * that participant's lookup is still pending.
+ * </p>
+ * <p>
+ * Failed lookups are not memoized. The failure (including Errors, and the executor rejecting the lookup) is thrown to
+ * everyone waiting on that lookup, and the next request for that participant tries again. A lookup always completes,
+ * so callers never wait forever on a failed lookup.
+ * </p>
+ */
+public class SharingScopeResolver {
+    // package-scoped to be available to unit tests
+    static final String METRICS_NUM_LOOKUPS = "sharingScope.numLookups";
+
+    private final ExecutorService executorService;
+    private final Metrics metrics;
+    private final SharingScopeCache sharingScopeCache;
+    private final ConcurrentMap<String, CompletableFuture<SharingScope>> scopeFuturesByKey =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a sharing scope resolver for a single export task.
+     *
+     * @param sharingScopeCache
+     *         sharing scope cache, used to get sharing scopes that aren't already memoized for this task
+     * @param executorService
+     *         executor to run lookups on, which bounds the number of in-flight lookups
+     * @param metrics
+     *         task metrics, used to record the number of lookups
+     */
+    public SharingScopeResolver(SharingScopeCache sharingScopeCache, ExecutorService executorService,
+            Metrics metrics) {
+        this.executorService = executorService;
+        this.metrics = metrics;
+        this.sharingScopeCache = sharingScopeCache;
+    }
+
+    /**
+     * Starts lookups for the participants of the given records, unless they've already been started. This doesn't
+     * wait for the lookups. Null records and records without a study ID or health code are skipped.
+     *
+     * @param recordList
+     *         records whose participants will be needed soon
+     */
+    public void prefetch(Iterable<Item> recordList) {
+        for (Item oneRecord : recordList) {
+            if (oneRecord == null) {
+                continue;
+            }
+
+            String studyId = oneRecord.getString("studyId");
+            String healthCode = oneRecord.getString("healthCode");
+            if (studyId != null && healthCode != null) {
+                getOrStartLookup(studyId, healthCode);
+            }
+        }
+    }
+
+    /**
+     * Starts the lookup for the given participant, unless it's already been started. This doesn't wait for the
+     * lookup.
+     *
+     * @param studyId
+     *         participant's study ID
+     * @param healthCode
+     *         participant's health code
+     */
+    public void prefetchParticipant(String studyId, String healthCode) {
+        getOrStartLookup(studyId, healthCode);
+    }
+
+    /**
+     * Gets the participant's sharing scope, waiting for the lookup if it's still pending, or starting it if it was
+     * never prefetched.
+     *
+     * @param studyId
+     *         participant's study ID
+     * @param healthCode
+     *         participant's health code
+     * @return participant's sharing scope, may be null if the participant doesn't have one
+     */
+    public SharingScope getUserSharingScope(String studyId, String healthCode) {
+        try {
+            return getOrStartLookup(studyId, healthCode).join();
+        } catch (CompletionException ex) {
+            // Re-throw the original exception, so callers see the same exceptions as calling Bridge directly.
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    // Helper method which returns the memoized lookup for the participant, starting it if there isn't one.
+    private CompletableFuture<SharingScope> getOrStartLookup(String studyId, String healthCode) {
+        String key = studyId + ":" + healthCode;
+        CompletableFuture<SharingScope> existingFuture = scopeFuturesByKey.get(key);
+        if (existingFuture != null) {
+            return existingFuture;
+        }
+
+        CompletableFuture<SharingScope> newFuture = new CompletableFuture<>();
+        existingFuture = scopeFuturesByKey.putIfAbsent(key, newFuture);
+        if (existingFuture != null) {
+            // Another thread started this lookup first.
+            return existingFuture;
+        }
+
+        metrics.incrementCounter(METRICS_NUM_LOOKUPS);
+        try {
+            executorService.execute(() -> {
+                try {
+                    newFuture.complete(sharingScopeCache.getSharingScope(studyId, healthCode));
+                } catch (Throwable t) {
+                    // Catch everything, including Errors. Otherwise, the future never completes, and everyone waiting
+                    // on this participant hangs.
+                    failLookup(key, newFuture, t);
+                }
+            });
+        } catch (RuntimeException ex) {
+            // The executor rejected the lookup.
+            failLookup(key, newFuture, ex);
+        }
+        return newFuture;
+    }
+
+    // Helper method which evicts the failed lookup, so the next request for the participant tries again, then fails
+    // the lookup for everyone waiting on it.
+    private void failLookup(String key, CompletableFuture<SharingScope> future, Throwable t) {
+        scopeFuturesByKey.remove(key, future);
+        future.completeExceptionally(t);
+    }
+}
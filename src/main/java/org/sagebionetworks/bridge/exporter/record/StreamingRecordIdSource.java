@@ -0,0 +1,230 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Record ID source which streams record IDs from an input stream (like an S3 record ID override file), one per line.
+ * Unlike reading the whole file into a list, this only holds one line at a time, so it can handle files with millions
+ * of record IDs. Gzip-compressed streams are detected from the gzip magic bytes and decompressed transparently.
+ * </p>
+ * <p>
+ * Lines are trimmed. Blank lines and duplicate record IDs are skipped. Duplicates are detected on the exact record ID,
+ * never on a hash, since a hash collision would silently drop a real record from the export. To keep memory small,
+ * record IDs in canonical UUID form (which is what Bridge generates) are stored as their 128 bits, about 32 bytes per
+ * record ID. Other record IDs are stored as strings.
+ * </p>
+ * <p>
+ * Returned items are key items. Callers must call {@link #close} when they're done, which closes the underlying
+ * stream.
+ * </p>
+ */
+public class StreamingRecordIdSource implements Iterable<Item>, Iterator<Item>, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(StreamingRecordIdSource.class);
+
+    private static final String KEY_ID = "id";
+
+    private final BufferedReader reader;
+    private final UuidHashSet seenUuidSet = new UuidHashSet();
+    private final Set<String> seenOtherRecordIdSet = new HashSet<>();
+
+    private boolean closed = false;
+    private String nextRecordId;
+    private int numBlankLines = 0;
+    private int numDuplicates = 0;
+    private int numRecordIds = 0;
+
+    /**
+     * Constructs a record ID source on the given input stream. If the stream is gzip-compressed, it's decompressed.
+     *
+     * @param inputStream
+     *         stream to read record IDs from
+     * @throws IOException
+     *         if reading the gzip header fails
+     */
+    public StreamingRecordIdSource(InputStream inputStream) throws IOException {
+        this.reader = new BufferedReader(new InputStreamReader(maybeDecompress(inputStream), StandardCharsets.UTF_8));
+    }
+
+    // Checks the first two bytes of the stream for the gzip magic number. If present, wraps the stream in a gzip
+    // decompressor. Either way, the returned stream starts from the beginning.
+    private static InputStream maybeDecompress(InputStream inputStream) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+        bufferedInputStream.mark(2);
+        int byte1 = bufferedInputStream.read();
+        int byte2 = bufferedInputStream.read();
+        bufferedInputStream.reset();
+
+        if (byte1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && byte2 == (GZIPInputStream.GZIP_MAGIC >> 8)) {
+            return new GZIPInputStream(bufferedInputStream);
+        } else {
+            return bufferedInputStream;
+        }
+    }
+
+    /** This class implements iterable out of convenience. It itself is the iterator, so iterator() returns this. */
+    @Override
+    public Iterator<Item> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextRecordId == null && !closed) {
+            String line;
+            try {
+                line = reader.readLine();
+            } catch (IOException ex) {
+                close();
+                throw new RuntimeException("Error reading record IDs: " + ex.getMessage(), ex);
+            }
+
+            if (line == null) {
+                LOG.info("Read " + numRecordIds + " record IDs, skipped " + numDuplicates + " duplicates and " +
+                        numBlankLines + " blank lines");
+                close();
+                break;
+            }
+
+            String recordId = line.trim();
+            if (recordId.isEmpty()) {
+                numBlankLines++;
+            } else if (!addSeenRecordId(recordId)) {
+                numDuplicates++;
+            } else {
+                numRecordIds++;
+                nextRecordId = recordId;
+            }
+        }
+        return nextRecordId != null;
+    }
+
+    @Override
+    public Item next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Item item = new Item().withString(KEY_ID, nextRecordId);
+        nextRecordId = null;
+        return item;
+    }
+
+    // Adds the record ID to the set of seen record IDs. Returns true if the record ID wasn't already seen.
+    private boolean addSeenRecordId(String recordId) {
+        UUID uuid = parseCanonicalUuid(recordId);
+        if (uuid != null) {
+            return seenUuidSet.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        } else {
+            return seenOtherRecordIdSet.add(recordId);
+        }
+    }
+
+    // Parses the record ID as a UUID, only if it's in canonical form (lowercase, with dashes), so that the UUID maps
+    // back to exactly one record ID. Returns null otherwise.
+    private static UUID parseCanonicalUuid(String recordId) {
+        if (recordId.length() != 36 || recordId.charAt(8) != '-' || recordId.charAt(13) != '-' ||
+                recordId.charAt(18) != '-' || recordId.charAt(23) != '-') {
+            return null;
+        }
+
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(recordId);
+        } catch (IllegalArgumentException ex) {
+            // Includes NumberFormatException.
+            return null;
+        }
+        return uuid.toString().equals(recordId) ? uuid : null;
+    }
+
+    /** Closes the underlying stream. No more record IDs are returned after this. Safe to call more than once. */
+    @Override
+    public void close() {
+        nextRecordId = null;
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            reader.close();
+        } catch (IOException ex) {
+            LOG.warn("Error closing record ID stream: " + ex.getMessage(), ex);
+        }
+    }
+
+    // Minimal open-addressing hash set of UUIDs, stored as pairs of longs. This takes 16-32 bytes per entry, compared
+    // to over 100 for a HashSet<String> of UUID strings. The nil UUID (both halves zero) is used as the empty slot
+    // marker, so it's tracked separately.
+    private static class UuidHashSet {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] mostSlots = new long[INITIAL_CAPACITY];
+        private long[] leastSlots = new long[INITIAL_CAPACITY];
+        private boolean hasNil = false;
+        private int size = 0;
+
+        // Adds the UUID. Returns true if the UUID wasn't already in the set.
+        boolean add(long most, long least) {
+            if (most == 0 && least == 0) {
+                boolean added = !hasNil;
+                hasNil = true;
+                return added;
+            }
+
+            // Keep the load factor at or below 1/2, so probe sequences stay short.
+            if ((size + 1) * 2 > mostSlots.length) {
+                resize();
+            }
+            if (insert(mostSlots, leastSlots, most, least)) {
+                size++;
+                return true;
+            }
+            return false;
+        }
+
+        private void resize() {
+            long[] newMostSlots = new long[mostSlots.length * 2];
+            long[] newLeastSlots = new long[leastSlots.length * 2];
+            for (int i = 0; i < mostSlots.length; i++) {
+                if (mostSlots[i] != 0 || leastSlots[i] != 0) {
+                    insert(newMostSlots, newLeastSlots, mostSlots[i], leastSlots[i]);
+                }
+            }
+            mostSlots = newMostSlots;
+            leastSlots = newLeastSlots;
+        }
+
+        // Inserts the UUID using linear probing. Slot array length is always a power of 2. Random UUIDs are already
+        // well mixed, but mix the bits anyway, in case the UUIDs aren't random.
+        private static boolean insert(long[] mostSlotArray, long[] leastSlotArray, long most, long least) {
+            int mask = mostSlotArray.length - 1;
+            long hash = most * 0x9E3779B97F4A7C15L ^ least;
+            int index = (int) (hash ^ (hash >>> 32)) & mask;
+            while (mostSlotArray[index] != 0 || leastSlotArray[index] != 0) {
+                if (mostSlotArray[index] == most && leastSlotArray[index] == least) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            mostSlotArray[index] = most;
+            leastSlotArray[index] = least;
+            return true;
+        }
+    }
+}
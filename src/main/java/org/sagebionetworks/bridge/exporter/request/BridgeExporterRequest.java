@@ -25,6 +25,7 @@ public class BridgeExporterRequest {
 
     private final DateTime startDateTime;
     private final DateTime endDateTime;
+    private final boolean dryRun;
     private final String exporterDdbPrefixOverride;
     private final String recordIdS3Override;
     private final int redriveCount;
@@ -34,14 +35,17 @@ public class BridgeExporterRequest {
     private final Set<UploadSchemaKey> tableWhitelist;
     private final String tag;
     private final boolean useLastExportTime;
+    private final boolean useParallelScan;
 
     /** Private constructor. To build, go through the builder. */
-    private BridgeExporterRequest(DateTime startDateTime, DateTime endDateTime, String exporterDdbPrefixOverride,
-            String recordIdS3Override, int redriveCount, BridgeExporterSharingMode sharingMode,
+    private BridgeExporterRequest(DateTime startDateTime, DateTime endDateTime, boolean dryRun,
+            String exporterDdbPrefixOverride, String recordIdS3Override, int redriveCount,
+            BridgeExporterSharingMode sharingMode,
             Set<String> studyWhitelist, Map<String, String> synapseProjectOverrideMap,
-            Set<UploadSchemaKey> tableWhitelist, String tag, boolean useLastExportTime) {
+            Set<UploadSchemaKey> tableWhitelist, String tag, boolean useLastExportTime, boolean useParallelScan) {
         this.startDateTime = startDateTime;
         this.endDateTime = endDateTime;
+        this.dryRun = dryRun;
         this.exporterDdbPrefixOverride = exporterDdbPrefixOverride;
         this.recordIdS3Override = recordIdS3Override;
         this.redriveCount = redriveCount;
@@ -51,6 +55,7 @@ public class BridgeExporterRequest {
         this.tableWhitelist = tableWhitelist;
         this.tag = tag;
         this.useLastExportTime = useLastExportTime;
+        this.useParallelScan = useParallelScan;
     }
 
     /** * Start date, inclusive. If this is specified, the useLastExportTime should be set to false. */
@@ -65,6 +70,15 @@ public class BridgeExporterRequest {
         return endDateTime;
     }
 
+    /**
+     * If true, we plan the export without running it. This counts and samples records to estimate the DDB reads, S3
+     * calls, Synapse calls, and time the export would take, and publishes the estimates as metrics. Nothing is written
+     * to Synapse, and the last export time isn't updated. Can't be used with recordIdS3Override.
+     */
+    public boolean getDryRun() {
+        return dryRun;
+    }
+
     /**
      * Override for the prefix for DDB tables that keep track of Synapse tables. This is generally used for one-off
      * exports to separate Synapse projects. This is optional, but must be specified if synapseProjectOverrideMap is
@@ -140,6 +154,16 @@ public class BridgeExporterRequest {
         return this.useLastExportTime;
     }
 
+    /**
+     * If true, we read records with a parallel segmented scan of the whole Health Data Record table, filtering by
+     * study and uploadedOn on our side, instead of querying the study-uploadedOn index for each study. This is
+     * generally used for backfills spanning months, where the index queries are slow. Can't be used with
+     * recordIdS3Override.
+     */
+    public boolean getUseParallelScan() {
+        return useParallelScan;
+    }
+
     @Override
     public final boolean equals(Object o) {
         if (this == o) {
@@ -150,6 +174,7 @@ public class BridgeExporterRequest {
         }
         BridgeExporterRequest that = (BridgeExporterRequest) o;
         return Objects.equals(endDateTime, that.endDateTime) &&
+                dryRun == that.dryRun &&
                 Objects.equals(exporterDdbPrefixOverride, that.exporterDdbPrefixOverride) &&
                 Objects.equals(recordIdS3Override, that.recordIdS3Override) &&
                 redriveCount == that.redriveCount &&
@@ -159,13 +184,15 @@ public class BridgeExporterRequest {
                 Objects.equals(tableWhitelist, that.tableWhitelist) &&
                 Objects.equals(tag, that.tag) &&
                 Objects.equals(useLastExportTime, that.useLastExportTime) &&
+                useParallelScan == that.useParallelScan &&
                 Objects.equals(startDateTime, that.startDateTime);
     }
 
     @Override
     public final int hashCode() {
-        return Objects.hash(endDateTime, exporterDdbPrefixOverride, recordIdS3Override, redriveCount, sharingMode,
-                studyWhitelist, synapseProjectOverrideMap, tableWhitelist, tag, useLastExportTime, startDateTime);
+        return Objects.hash(endDateTime, dryRun, exporterDdbPrefixOverride, recordIdS3Override, redriveCount,
+                sharingMode, studyWhitelist, synapseProjectOverrideMap, tableWhitelist, tag, useLastExportTime,
+                useParallelScan, startDateTime);
     }
 
     /**
@@ -202,6 +229,16 @@ public class BridgeExporterRequest {
         stringBuilder.append(", useLastExportTime=");
         stringBuilder.append(useLastExportTime);
 
+        // Parallel scan is rare, so only include it if it's set.
+        if (useParallelScan) {
+            stringBuilder.append(", useParallelScan=true");
+        }
+
+        // Similarly for dry run.
+        if (dryRun) {
+            stringBuilder.append(", dryRun=true");
+        }
+
         return stringBuilder.toString();
     }
 
@@ -209,6 +246,7 @@ public class BridgeExporterRequest {
     public static class Builder {
         private DateTime startDateTime;
         private DateTime endDateTime;
+        private boolean dryRun;
         private String exporterDdbPrefixOverride;
         private String recordIdS3Override;
         private int redriveCount;
@@ -218,12 +256,14 @@ public class BridgeExporterRequest {
         private Set<UploadSchemaKey> tableWhitelist;
         private String tag;
         private Boolean useLastExportTime;
+        private boolean useParallelScan;
 
         /** Sets the builder with a copy of the given request. */
         public Builder copyOf(BridgeExporterRequest other) {
             // Don't worry about copying collections here. This is handled by build().
             startDateTime = other.startDateTime;
             endDateTime = other.endDateTime;
+            dryRun = other.dryRun;
             exporterDdbPrefixOverride = other.exporterDdbPrefixOverride;
             recordIdS3Override = other.recordIdS3Override;
             redriveCount = other.redriveCount;
@@ -233,6 +273,7 @@ public class BridgeExporterRequest {
             tableWhitelist = other.tableWhitelist;
             tag = other.tag;
             useLastExportTime = other.useLastExportTime;
+            useParallelScan = other.useParallelScan;
             return this;
         }
 
@@ -250,6 +291,12 @@ public class BridgeExporterRequest {
             return this;
         }
 
+        /** @see BridgeExporterRequest#getDryRun */
+        public Builder withDryRun(boolean dryRun) {
+            this.dryRun = dryRun;
+            return this;
+        }
+
         /** @see BridgeExporterRequest#getExporterDdbPrefixOverride */
         public Builder withExporterDdbPrefixOverride(String exporterDdbPrefixOverride) {
             this.exporterDdbPrefixOverride = exporterDdbPrefixOverride;
@@ -305,6 +352,12 @@ public class BridgeExporterRequest {
             return this;
         }
 
+        /** @see BridgeExporterRequest#getUseParallelScan */
+        public Builder withUseParallelScan(boolean useParallelScan) {
+            this.useParallelScan = useParallelScan;
+            return this;
+        }
+
         /** Builds a Bridge EX request object and validates all parameters. */
         public BridgeExporterRequest build() {
             // useLastExportTime must be specified
@@ -351,6 +404,17 @@ public class BridgeExporterRequest {
                 throw new IllegalStateException("Cannot specify both recordIdS3Override and end date time.");
             }
 
+            // Parallel scan replaces the DDB index queries. It doesn't make sense with a record ID override file.
+            if (useParallelScan && hasRecordIdS3Override) {
+                throw new IllegalStateException("Cannot specify both recordIdS3Override and useParallelScan.");
+            }
+
+            // Dry runs plan by counting records in DDB. Record ID override files are for redrives, which are never
+            // large enough to need planning.
+            if (dryRun && hasRecordIdS3Override) {
+                throw new IllegalStateException("Cannot specify both recordIdS3Override and dryRun.");
+            }
+
             // If exporterDdbPrefixOverride is specified, then so must synapseProjectOverrideMap, and vice versa.
             boolean hasExporterDdbPrefixOverride = StringUtils.isNotBlank(exporterDdbPrefixOverride);
             boolean hasSynapseProjectOverrideMap = synapseProjectOverrideMap != null;
@@ -397,9 +461,9 @@ public class BridgeExporterRequest {
                 tableWhitelist = ImmutableSet.copyOf(tableWhitelist);
             }
 
-            return new BridgeExporterRequest(startDateTime, endDateTime, exporterDdbPrefixOverride, recordIdS3Override,
-                    redriveCount, sharingMode, studyWhitelist, synapseProjectOverrideMap,
-                    tableWhitelist, tag, useLastExportTime);
+            return new BridgeExporterRequest(startDateTime, endDateTime, dryRun, exporterDdbPrefixOverride,
+                    recordIdS3Override, redriveCount, sharingMode, studyWhitelist, synapseProjectOverrideMap,
+                    tableWhitelist, tag, useLastExportTime, useParallelScan);
         }
     }
 }
@@ -20,7 +20,6 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 import com.google.common.collect.SetMultimap;
-import com.google.common.util.concurrent.RateLimiter;
 import com.jcabi.aspects.RetryOnFailure;
 import org.apache.commons.lang3.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
@@ -56,7 +55,11 @@ import org.springframework.stereotype.Component;
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterNonRetryableException;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.exporter.metrics.StageLatencyTracker;
 import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
 import org.sagebionetworks.bridge.rest.model.UploadFieldType;
 import org.sagebionetworks.bridge.s3.S3Helper;
@@ -80,6 +83,13 @@ public class SynapseHelper {
     static final String CONFIG_KEY_TEAM_BRIDGE_ADMIN = "team.bridge.admin";
     static final String CONFIG_KEY_TEAM_BRIDGE_STAFF = "team.bridge.staff";
 
+    // Stage names for latency histograms. Package-scoped to be available to unit tests.
+    static final String RATE_LIMITER_GET_COLUMN_MODELS = "synapse.getColumnModels";
+    static final String RATE_LIMITER_SYNAPSE = "synapse";
+    static final String STAGE_CREATE_FILE_HANDLE = "synapse.createFileHandle";
+    static final String STAGE_S3_GET_OBJECT_METADATA = "s3.getObjectMetadata";
+    static final String STAGE_TSV_IMPORT = "synapse.tsvImport";
+
     // Shared constants.
     public static final Set<ACCESS_TYPE> ACCESS_TYPE_ADMIN = ImmutableSet.of(ACCESS_TYPE.READ, ACCESS_TYPE.DOWNLOAD,
             ACCESS_TYPE.UPDATE, ACCESS_TYPE.DELETE, ACCESS_TYPE.CREATE, ACCESS_TYPE.CHANGE_PERMISSIONS,
@@ -180,12 +190,16 @@ public class SynapseHelper {
     private S3Helper s3Helper;
     private SynapseClient synapseClient;
 
+    // Defaults to a tracker of our own, so that this works without Spring.
+    private StageLatencyTracker stageLatencyTracker = new StageLatencyTracker();
+
     // Rate limiter, used to limit the amount of traffic to Synapse. Synapse throttles at 10 requests per second.
-    private final RateLimiter rateLimiter = RateLimiter.create(10.0);
+    private final InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter(RATE_LIMITER_SYNAPSE, 10.0);
 
     // Rate limiter for getColumnModelsForEntity(). This is rate limited to 6 per minute per host, for each of 8 hosts,
     // for a total of 48 calls per minute. Add a safety factor and rate limit to 24 per minute.
-    private final RateLimiter getColumnModelsRateLimiter = RateLimiter.create(24.0 / 60.0);
+    private final InstrumentedRateLimiter getColumnModelsRateLimiter = new InstrumentedRateLimiter(
+            RATE_LIMITER_GET_COLUMN_MODELS, 24.0 / 60.0);
 
     /** Config, used to get the attachment S3 bucket to get Bridge attachments. */
     @Autowired
@@ -215,6 +229,16 @@ public class SynapseHelper {
         getColumnModelsRateLimiter.setRate(getColumnModelsRateLimitPerMinute / 60.0);
     }
 
+    /** Interval between polls of Synapse async jobs (like TSV uploads), in milliseconds. */
+    public int getAsyncIntervalMillis() {
+        return asyncIntervalMillis;
+    }
+
+    /** Rate limit for Synapse calls, in calls per second. */
+    public double getRateLimitPerSecond() {
+        return rateLimiter.getRate();
+    }
+
     // Package-scoped for unit tests.
     void setAttachmentBucket(@SuppressWarnings("SameParameterValue") String attachmentBucket) {
         this.attachmentBucket = attachmentBucket;
@@ -241,6 +265,19 @@ public class SynapseHelper {
         this.s3Helper = s3Helper;
     }
 
+    /** Rate limiter registry. We register our rate limiters, so their wait times are published with the metrics. */
+    @Autowired
+    public final void setRateLimiterRegistry(RateLimiterRegistry rateLimiterRegistry) {
+        rateLimiterRegistry.register(rateLimiter);
+        rateLimiterRegistry.register(getColumnModelsRateLimiter);
+    }
+
+    /** Stage latency tracker, used to time calls to S3 and Synapse. */
+    @Autowired
+    public final void setStageLatencyTracker(StageLatencyTracker stageLatencyTracker) {
+        this.stageLatencyTracker = stageLatencyTracker;
+    }
+
     /** Synapse client. */
     @Autowired
     public final void setSynapseClient(SynapseClient synapseClient) {
@@ -445,7 +482,10 @@ public class SynapseHelper {
      */
     public String uploadFromS3ToSynapseFileHandle(String projectId, String attachmentId) throws SynapseException {
         // Create a Synapse S3 file handle from the S3 object metadata.
-        ObjectMetadata s3ObjectMetadata = s3Helper.getObjectMetadata(attachmentBucket, attachmentId);
+        ObjectMetadata s3ObjectMetadata;
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_S3_GET_OBJECT_METADATA)) {
+            s3ObjectMetadata = s3Helper.getObjectMetadata(attachmentBucket, attachmentId);
+        }
         if (s3ObjectMetadata.getContentLength() == 0) {
             // Don't upload empty files.
             return null;
@@ -462,8 +502,9 @@ public class SynapseHelper {
         s3FileHandle.setContentMd5(s3ObjectMetadata.getUserMetaDataOf(BridgeExporterUtil.KEY_CUSTOM_CONTENT_MD5));
 
         // Create file handle in Synapse.
-        S3FileHandle createdS3FileHandle = createS3FileHandleWithRetry(s3FileHandle);
-        return createdS3FileHandle.getId();
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_CREATE_FILE_HANDLE)) {
+            return createS3FileHandleWithRetry(s3FileHandle).getId();
+        }
     }
 
     /**
@@ -568,6 +609,14 @@ public class SynapseHelper {
      */
     public long uploadTsvFileToTable(String projectId, String tableId, File file) throws BridgeExporterException,
             IOException, SynapseException {
+        try (LatencyHistogram.Timer timer = stageLatencyTracker.startTimer(STAGE_TSV_IMPORT)) {
+            return uploadTsvFileToTableUntimed(tableId, file);
+        }
+    }
+
+    // Helper method which does the work of uploadTsvFileToTable(), so that the whole import is timed.
+    private long uploadTsvFileToTableUntimed(String tableId, File file) throws BridgeExporterException, IOException,
+            SynapseException {
         // Upload TSV as a file handle.
         FileHandle tableFileHandle = createFileHandleWithRetry(file);
         String fileHandleId = tableFileHandle.getId();
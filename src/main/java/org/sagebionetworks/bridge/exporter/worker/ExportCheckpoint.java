@@ -0,0 +1,229 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+/**
+ * <p>
+ * Checkpoint of an export task, written once all records in the task have been read and written to TSVs, but before
+ * the TSVs are uploaded to Synapse. If the request is restarted (for example, because Synapse is down), the restarted
+ * request resumes from the checkpoint, skipping the DDB reads and record processing, and uploads only the tables that
+ * weren't already uploaded.
+ * </p>
+ * <p>
+ * There is no checkpoint of the record-reading phase. Records are read from several sources in parallel, and the TSVs
+ * are still open while records are processed, so there is no consistent record position to resume from. Because of
+ * this, requests aren't restarted while records are still being processed. If a subtask finds that Synapse is down,
+ * the request keeps processing records and is restarted at the end of the stream, before the checkpoint is written.
+ * The restarted request reads and processes all of its records again. If TSV segments were already imported, the
+ * request isn't restarted, and the failed records are redriven instead.
+ * </p>
+ * <p>
+ * This class is serialized to JSON. The set of uploaded tables is tracked separately, since it changes as each table
+ * is uploaded. See {@link ExportCheckpointHelper}.
+ * </p>
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ExportCheckpoint {
+    private Map<String, Integer> counterMap = new HashMap<>();
+    private String exporterDate;
+    private Set<String> studyIdSet = new HashSet<>();
+    private String tmpDir;
+    private List<TsvCheckpoint> tsvList = new ArrayList<>();
+
+    // Not serialized. Populated from the uploaded tables file when the checkpoint is read.
+    private final Set<String> uploadedTableSet = ConcurrentHashMap.newKeySet();
+
+    /** Table key for a health data table, used to track uploaded tables. */
+    public static String getTableKeyForSchema(UploadSchemaKey schemaKey) {
+        return "healthData:" + schemaKey;
+    }
+
+    /** Table key for a meta-table, used to track uploaded tables. */
+    public static String getTableKeyForStudyAndType(String studyId, MetaTableType type) {
+        return "meta:" + studyId + ":" + type.name();
+    }
+
+    /**
+     * Metrics counters at the time of the checkpoint. These are restored into the resumed task's metrics, so that
+     * per-study record counts (and other counters) cover the whole request.
+     */
+    public Map<String, Integer> getCounterMap() {
+        return counterMap;
+    }
+
+    /** @see #getCounterMap */
+    public void setCounterMap(Map<String, Integer> counterMap) {
+        this.counterMap = counterMap;
+    }
+
+    /** Exporter date of the original task, in YYYY-MM-DD format. TSVs written so far already contain this date. */
+    public String getExporterDate() {
+        return exporterDate;
+    }
+
+    /** @see #getExporterDate */
+    public void setExporterDate(String exporterDate) {
+        this.exporterDate = exporterDate;
+    }
+
+    /** Study IDs seen by the original task. Used to write the status tables. */
+    public Set<String> getStudyIdSet() {
+        return studyIdSet;
+    }
+
+    /** @see #getStudyIdSet */
+    public void setStudyIdSet(Set<String> studyIdSet) {
+        this.studyIdSet = studyIdSet;
+    }
+
+    /** Absolute path of the original task's temp dir, which contains the TSVs. The resumed task reuses this dir. */
+    public String getTmpDir() {
+        return tmpDir;
+    }
+
+    /** @see #getTmpDir */
+    public void setTmpDir(String tmpDir) {
+        this.tmpDir = tmpDir;
+    }
+
+    /** TSVs built by the original task, one for each table. */
+    public List<TsvCheckpoint> getTsvList() {
+        return tsvList;
+    }
+
+    /** @see #getTsvList */
+    public void setTsvList(List<TsvCheckpoint> tsvList) {
+        this.tsvList = tsvList;
+    }
+
+    /** Keys of tables that have already been uploaded (or have failed and been redriven), and should be skipped. */
+    @JsonIgnore
+    public Set<String> getUploadedTableSet() {
+        return uploadedTableSet;
+    }
+
+    /**
+     * Checkpoint of a single TSV. Exactly one of schemaKey (health data tables) or studyId and metaTableType
+     * (meta-tables) is set. If the TSV failed to initialize, initErrorMessage is set and the file fields are not.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public static class TsvCheckpoint {
+        private List<String> columnNameList;
+        private String file;
+        private String initErrorMessage;
+        private boolean initErrorRetryable;
+        private int lineCount;
+        private MetaTableType metaTableType;
+        private List<String> recordIdList;
+        private UploadSchemaKey schemaKey;
+        private String studyId;
+
+        /** Table key, used to track whether this table was uploaded. */
+        @JsonIgnore
+        public String getTableKey() {
+            return schemaKey != null ? getTableKeyForSchema(schemaKey) : getTableKeyForStudyAndType(studyId,
+                    metaTableType);
+        }
+
+        /** Column names of the TSV. */
+        public List<String> getColumnNameList() {
+            return columnNameList;
+        }
+
+        /** @see #getColumnNameList */
+        public void setColumnNameList(List<String> columnNameList) {
+            this.columnNameList = columnNameList;
+        }
+
+        /** Absolute path of the TSV file. */
+        public String getFile() {
+            return file;
+        }
+
+        /** @see #getFile */
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        /** Error message, if the TSV failed to initialize. */
+        public String getInitErrorMessage() {
+            return initErrorMessage;
+        }
+
+        /** @see #getInitErrorMessage */
+        public void setInitErrorMessage(String initErrorMessage) {
+            this.initErrorMessage = initErrorMessage;
+        }
+
+        /** True if the TSV initialization error is retryable, so the table should be redriven. */
+        public boolean isInitErrorRetryable() {
+            return initErrorRetryable;
+        }
+
+        /** @see #isInitErrorRetryable */
+        public void setInitErrorRetryable(boolean initErrorRetryable) {
+            this.initErrorRetryable = initErrorRetryable;
+        }
+
+        /** Number of rows in the TSV, excluding the header. */
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        /** @see #getLineCount */
+        public void setLineCount(int lineCount) {
+            this.lineCount = lineCount;
+        }
+
+        /** Meta-table type, for meta-tables. */
+        public MetaTableType getMetaTableType() {
+            return metaTableType;
+        }
+
+        /** @see #getMetaTableType */
+        public void setMetaTableType(MetaTableType metaTableType) {
+            this.metaTableType = metaTableType;
+        }
+
+        /** Record IDs written to the TSV, used to update record exporter status after upload. */
+        public List<String> getRecordIdList() {
+            return recordIdList;
+        }
+
+        /** @see #getRecordIdList */
+        public void setRecordIdList(List<String> recordIdList) {
+            this.recordIdList = recordIdList;
+        }
+
+        /** Schema key, for health data tables. */
+        public UploadSchemaKey getSchemaKey() {
+            return schemaKey;
+        }
+
+        /** @see #getSchemaKey */
+        public void setSchemaKey(UploadSchemaKey schemaKey) {
+            this.schemaKey = schemaKey;
+        }
+
+        /** Study ID, for meta-tables. */
+        public String getStudyId() {
+            return studyId;
+        }
+
+        /** @see #getStudyId */
+        public void setStudyId(String studyId) {
+            this.studyId = studyId;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.json.DefaultObjectMapper;
+
+/**
+ * <p>
+ * Reads and writes export checkpoints on local disk. See {@link ExportCheckpoint}. Checkpoints are keyed by the
+ * request fingerprint, which is a hash of the request JSON, so a restarted request (the same SQS message, delivered
+ * again) finds the checkpoint of the original request. Checkpoints live on local disk, since the TSVs they point to
+ * also live on local disk.
+ * </p>
+ * <p>
+ * Each checkpoint is a directory under checkpoint.dir, named after the request fingerprint. It contains the
+ * checkpoint JSON, and an append-only file listing the tables that have been uploaded since. If checkpoint.dir isn't
+ * configured, checkpointing is disabled. Checkpointing is best effort. Errors are logged, and the request falls back
+ * to starting over.
+ * </p>
+ * <p>
+ * In rolling segment mode, TSV segments are imported into Synapse while records are still being processed. The
+ * directory also has an append-only file listing the records in each imported segment, by table. This is kept until
+ * the request succeeds, even if there's no checkpoint JSON, so a restarted request skips those rows instead of
+ * importing them again.
+ * </p>
+ * <p>
+ * The checkpoint is only written once all records have been processed. A request restarted before then finds no
+ * checkpoint and starts over. Checkpoints hold local paths, so they only help if the request is delivered to the same
+ * host again. On any other host, the request starts over, and rows from imported segments are imported again.
+ * </p>
+ */
+@Component
+public class ExportCheckpointHelper {
+    private static final Logger LOG = LoggerFactory.getLogger(ExportCheckpointHelper.class);
+
+    // package-scoped to be available to unit tests
+    static final String CHECKPOINT_FILENAME = "checkpoint.json";
+    static final String CONFIG_KEY_CHECKPOINT_DIR = "checkpoint.dir";
+    static final String IMPORTED_SEGMENTS_FILENAME = "imported-segments.txt";
+    static final String UPLOADED_TABLES_FILENAME = "uploaded-tables.txt";
+
+    // config vars
+    private File checkpointRootDir;
+
+    /** Config, used to get the checkpoint dir. */
+    @Autowired
+    final void setConfig(Config config) {
+        String checkpointDirPath = config.get(CONFIG_KEY_CHECKPOINT_DIR);
+        checkpointRootDir = StringUtils.isNotBlank(checkpointDirPath) ? new File(checkpointDirPath) : null;
+    }
+
+    /** True if checkpointing is enabled. */
+    public boolean isEnabled() {
+        return checkpointRootDir != null;
+    }
+
+    /**
+     * Reads the checkpoint for the given request, including the tables that have already been uploaded. Returns null
+     * if checkpointing is disabled, there is no checkpoint, or the checkpoint can't be used (for example, if its TSVs
+     * have been deleted).
+     *
+     * @param request
+     *         request to read the checkpoint for
+     * @return checkpoint, or null if there is no usable checkpoint
+     */
+    public ExportCheckpoint readCheckpoint(BridgeExporterRequest request) {
+        if (!isEnabled()) {
+            return null;
+        }
+
+        File checkpointDir = getCheckpointDir(request);
+        File checkpointFile = new File(checkpointDir, CHECKPOINT_FILENAME);
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+
+        ExportCheckpoint checkpoint;
+        try {
+            checkpoint = DefaultObjectMapper.INSTANCE.readValue(checkpointFile, ExportCheckpoint.class);
+
+            File uploadedTablesFile = new File(checkpointDir, UPLOADED_TABLES_FILENAME);
+            if (uploadedTablesFile.exists()) {
+                List<String> uploadedTableList = Files.readAllLines(uploadedTablesFile.toPath(),
+                        StandardCharsets.UTF_8);
+                for (String oneTableKey : uploadedTableList) {
+                    if (StringUtils.isNotBlank(oneTableKey)) {
+                        checkpoint.getUploadedTableSet().add(oneTableKey);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Error reading checkpoint for request " + request + ", starting over: " + ex.getMessage(), ex);
+            discardCheckpoint(request);
+            return null;
+        }
+
+        // Make sure the TSVs are still there. If the host was replaced or the temp dir was cleaned up, we have to
+        // start over.
+        // Uploaded TSVs are deleted after upload, so only check the ones that haven't been uploaded yet.
+        for (ExportCheckpoint.TsvCheckpoint oneTsv : checkpoint.getTsvList()) {
+            if (oneTsv.getFile() != null && !checkpoint.getUploadedTableSet().contains(oneTsv.getTableKey()) &&
+                    !new File(oneTsv.getFile()).exists()) {
+                LOG.warn("TSV " + oneTsv.getFile() + " from checkpoint for request " + request +
+                        " no longer exists, starting over");
+                discardCheckpoint(request);
+                return null;
+            }
+        }
+
+        return checkpoint;
+    }
+
+    /**
+     * Writes the checkpoint for the given request, replacing any existing checkpoint. The checkpoint is written to a
+     * temp file and moved into place, so a crash never leaves a partially written checkpoint.
+     *
+     * @param request
+     *         request to write the checkpoint for
+     * @param checkpoint
+     *         checkpoint to write
+     * @return true if the checkpoint was written
+     */
+    public boolean writeCheckpoint(BridgeExporterRequest request, ExportCheckpoint checkpoint) {
+        if (!isEnabled()) {
+            return false;
+        }
+
+        File checkpointDir = getCheckpointDir(request);
+        try {
+            Files.createDirectories(checkpointDir.toPath());
+            Files.deleteIfExists(new File(checkpointDir, UPLOADED_TABLES_FILENAME).toPath());
+
+            File tmpFile = new File(checkpointDir, CHECKPOINT_FILENAME + ".tmp");
+            DefaultObjectMapper.INSTANCE.writeValue(tmpFile, checkpoint);
+            Files.move(tmpFile.toPath(), new File(checkpointDir, CHECKPOINT_FILENAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("Wrote checkpoint with " + checkpoint.getTsvList().size() + " TSVs for request " + request);
+            return true;
+        } catch (IOException ex) {
+            LOG.error("Error writing checkpoint for request " + request + ": " + ex.getMessage(), ex);
+            discardCheckpoint(request);
+            return false;
+        }
+    }
+
+    /**
+     * Records that the given table has been uploaded (or has failed and been redriven), so a resumed request skips
+     * it. Tables are uploaded in parallel, so this is synchronized to keep appends to the file from interleaving.
+     *
+     * @param request
+     *         request the table belongs to
+     * @param tableKey
+     *         table key, see {@link ExportCheckpoint#getTableKeyForSchema} and
+     *         {@link ExportCheckpoint#getTableKeyForStudyAndType}
+     */
+    public synchronized void markTableUploaded(BridgeExporterRequest request, String tableKey) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        File uploadedTablesFile = new File(getCheckpointDir(request), UPLOADED_TABLES_FILENAME);
+        try (Writer writer = Files.newBufferedWriter(uploadedTablesFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(tableKey);
+            writer.write('\n');
+        } catch (IOException ex) {
+            // At worst, a resumed request uploads this table again.
+            LOG.error("Error marking table " + tableKey + " as uploaded for request " + request + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Records that a TSV segment with the given records was imported into the given table, so a restarted request
+     * skips those rows. Segments are imported in parallel, so this is synchronized to keep appends to the file from
+     * interleaving.
+     *
+     * @param request
+     *         request the segment belongs to
+     * @param tableKey
+     *         key of the table the segment was imported into
+     * @param recordIdList
+     *         IDs of the records in the segment
+     */
+    public synchronized void markSegmentImported(BridgeExporterRequest request, String tableKey,
+            List<String> recordIdList) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        File checkpointDir = getCheckpointDir(request);
+        try {
+            Files.createDirectories(checkpointDir.toPath());
+            try (Writer writer = Files.newBufferedWriter(new File(checkpointDir, IMPORTED_SEGMENTS_FILENAME).toPath(),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (String oneRecordId : recordIdList) {
+                    writer.write(tableKey);
+                    writer.write('\t');
+                    writer.write(oneRecordId);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException ex) {
+            // At worst, a restarted request imports these rows again.
+            LOG.error("Error marking segment for table " + tableKey + " as imported for request " + request + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Reads the records that previous runs of the given request imported in TSV segments, keyed by table. Returns an
+     * empty map if checkpointing is disabled or no segments were imported.
+     *
+     * @param request
+     *         request to read imported segments for
+     * @return sets of imported record IDs, keyed by table
+     */
+    public Map<String, Set<String>> readImportedSegments(BridgeExporterRequest request) {
+        Map<String, Set<String>> recordIdsByTable = new HashMap<>();
+        if (!isEnabled()) {
+            return recordIdsByTable;
+        }
+
+        File importedSegmentsFile = new File(getCheckpointDir(request), IMPORTED_SEGMENTS_FILENAME);
+        if (!importedSegmentsFile.exists()) {
+            return recordIdsByTable;
+        }
+
+        try (Stream<String> lineStream = Files.lines(importedSegmentsFile.toPath(), StandardCharsets.UTF_8)) {
+            lineStream.forEach(oneLine -> {
+                // Skip blank lines. A partial last line (from a crash) just won't match any record.
+                String[] tokens = oneLine.split("\t");
+                if (tokens.length == 2 && StringUtils.isNotBlank(tokens[1])) {
+                    recordIdsByTable.computeIfAbsent(tokens[0], tableKey -> new HashSet<>()).add(tokens[1]);
+                }
+            });
+        } catch (IOException | UncheckedIOException ex) {
+            // Without this, we can't tell which rows are already in Synapse. Log loudly, since the restarted request
+            // may import some rows twice.
+            LOG.error("Error reading imported segments for request " + request + ": " + ex.getMessage(), ex);
+        }
+        return recordIdsByTable;
+    }
+
+    /**
+     * Deletes the checkpoint for the given request, if there is one. This does not delete the TSVs. Those are in the
+     * task's temp dir, which is cleaned up by the record processor.
+     *
+     * @param request
+     *         request to clear the checkpoint for
+     */
+    public void clearCheckpoint(BridgeExporterRequest request) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Path checkpointDirPath = getCheckpointDir(request).toPath();
+        if (!Files.exists(checkpointDirPath)) {
+            return;
+        }
+
+        // Delete files before the dir that contains them.
+        try (Stream<Path> pathStream = Files.walk(checkpointDirPath)) {
+            for (Path onePath : (Iterable<Path>) pathStream.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(onePath);
+            }
+        } catch (IOException ex) {
+            LOG.error("Error clearing checkpoint for request " + request + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Discards the checkpoint for the given request because it can't be used, so the request starts over. Unlike
+     * {@link #clearCheckpoint}, this keeps the imported segments, since their rows are in Synapse either way.
+     *
+     * @param request
+     *         request to discard the checkpoint for
+     */
+    public void discardCheckpoint(BridgeExporterRequest request) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        File checkpointDir = getCheckpointDir(request);
+        if (!new File(checkpointDir, IMPORTED_SEGMENTS_FILENAME).exists()) {
+            clearCheckpoint(request);
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(new File(checkpointDir, CHECKPOINT_FILENAME).toPath());
+            Files.deleteIfExists(new File(checkpointDir, UPLOADED_TABLES_FILENAME).toPath());
+        } catch (IOException ex) {
+            LOG.error("Error discarding checkpoint for request " + request + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Helper method to get the checkpoint dir for the given request.
+    private File getCheckpointDir(BridgeExporterRequest request) {
+        return new File(checkpointRootDir, getRequestFingerprint(request));
+    }
+
+    /**
+     * Request fingerprint, which is the SHA-256 of the request JSON. Package-scoped for unit tests.
+     */
+    static String getRequestFingerprint(BridgeExporterRequest request) {
+        try {
+            return DigestUtils.sha256Hex(DefaultObjectMapper.INSTANCE.writeValueAsBytes(request));
+        } catch (JsonProcessingException ex) {
+            // Requests are always serializable. They come from JSON in the first place.
+            throw new IllegalStateException("Error serializing request: " + ex.getMessage(), ex);
+        }
+    }
+}
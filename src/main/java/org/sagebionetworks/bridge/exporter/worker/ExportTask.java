@@ -1,24 +1,29 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
 import com.google.common.collect.Table;
 import org.joda.time.LocalDate;
 
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 /**
  * An export task corresponds one-to-one with export requests. This class encapsulates the request as well as metadata
- * needed to process the request, such as metrics, temp dir, TSV info per table, and task queue.
+ * needed to process the request, such as metrics, temp dir, TSV info per table, and outstanding subtasks.
  */
 public class ExportTask {
     // TASK PARAMETERS
@@ -117,12 +122,34 @@ public class ExportTask {
     }
 
     // TASK STATE MANAGEMENT
-
-    private final Map<UploadSchemaKey, TsvInfo> healthDataTsvInfoBySchema = new HashMap<>();
-    private final Set<String> studyIdSet = new HashSet<>();
-    private final Queue<ExportSubtaskFuture> subtaskFutureQueue = new LinkedList<>();
+    // Records are dispatched from multiple threads, and handlers run on the worker threads, so task state needs to be
+    // thread-safe.
+
+    private volatile ExportCheckpoint checkpoint;
+    private final Set<String> redriveRecordIdSet = ConcurrentHashMap.newKeySet();
+    private volatile RestartBridgeExporterException restartException;
+    private final Map<UploadSchemaKey, TsvInfo> healthDataTsvInfoBySchema = new ConcurrentHashMap<>();
+    private final Set<String> studyIdSet = ConcurrentHashMap.newKeySet();
+    private final Set<ExportSubtaskFuture> outstandingSubtaskFutureSet = ConcurrentHashMap.newKeySet();
+    private final Object outstandingSubtaskMonitor = new Object();
+    private volatile Map<String, Set<String>> previouslyImportedRecordIdsByTable = ImmutableMap.of();
+    private final Queue<Future<?>> segmentImportFutureQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger numSegmentsImported = new AtomicInteger();
     private boolean success = false;
-    private final Table<String, MetaTableType, TsvInfo> tsvInfoByStudyAndType = HashBasedTable.create();
+    private final Map<StudyAndType, TsvInfo> tsvInfoByStudyAndType = new ConcurrentHashMap<>();
+
+    /**
+     * Checkpoint for this task, either resumed from a previous run of the same request, or written by this task once
+     * all records were processed. Null if there is no checkpoint (yet).
+     */
+    public ExportCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /** @see #getCheckpoint */
+    public void setCheckpoint(ExportCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
 
     /** Gets the health data table TSV info for the specified schema. */
     public TsvInfo getHealthDataTsvInfoForSchema(UploadSchemaKey schemaKey) {
@@ -134,14 +161,132 @@ public class ExportTask {
         healthDataTsvInfoBySchema.put(schemaKey, tsvInfo);
     }
 
-    /** Gets the queue for outstanding subtask executions. */
-    public Queue<ExportSubtaskFuture> getSubtaskFutureQueue() {
-        return subtaskFutureQueue;
+    /** Gets a copy of all health data table TSV infos, keyed by schema. Used to checkpoint the task. */
+    public Map<UploadSchemaKey, TsvInfo> getHealthDataTsvInfoMap() {
+        return ImmutableMap.copyOf(healthDataTsvInfoBySchema);
+    }
+
+    /** Number of subtasks that have been submitted but haven't finished yet. */
+    public int getNumOutstandingSubtasks() {
+        return outstandingSubtaskFutureSet.size();
     }
 
-    /** Adds a subtask execution to the outstanding subtask queue. */
+    /** Adds a subtask execution to the outstanding subtasks. */
     public void addSubtaskFuture(ExportSubtaskFuture subtaskFuture) {
-        subtaskFutureQueue.add(subtaskFuture);
+        outstandingSubtaskFutureSet.add(subtaskFuture);
+    }
+
+    /**
+     * Removes a finished subtask execution from the outstanding subtasks, releasing its record, and wakes up any
+     * threads waiting on outstanding subtasks.
+     */
+    public void removeSubtaskFuture(ExportSubtaskFuture subtaskFuture) {
+        outstandingSubtaskFutureSet.remove(subtaskFuture);
+        synchronized (outstandingSubtaskMonitor) {
+            outstandingSubtaskMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until there are fewer than the given number of outstanding subtasks.
+     *
+     * @param maxOutstandingSubtasks
+     *         number of outstanding subtasks to wait to go below, 1 to wait for all subtasks to finish
+     * @throws InterruptedException
+     *         if the thread is interrupted while waiting
+     */
+    public void waitForOutstandingSubtasksBelow(int maxOutstandingSubtasks) throws InterruptedException {
+        synchronized (outstandingSubtaskMonitor) {
+            while (outstandingSubtaskFutureSet.size() >= maxOutstandingSubtasks) {
+                outstandingSubtaskMonitor.wait();
+            }
+        }
+    }
+
+    /** Adds the import of a sealed TSV segment, so the end of the stream can wait for it. */
+    public void addSegmentImportFuture(Future<?> segmentImportFuture) {
+        segmentImportFutureQueue.add(segmentImportFuture);
+    }
+
+    /** Imports of sealed TSV segments, in the order they were started. */
+    public Queue<Future<?>> getSegmentImportFutureQueue() {
+        return segmentImportFutureQueue;
+    }
+
+    /**
+     * Number of TSV segments this task has imported into Synapse. Once a segment is imported, the task can no longer
+     * restart, since the restarted request would import the segment's rows again.
+     */
+    public int getNumSegmentsImported() {
+        return numSegmentsImported.get();
+    }
+
+    /** Records that a TSV segment was imported into Synapse. */
+    public void incrementNumSegmentsImported() {
+        numSegmentsImported.incrementAndGet();
+    }
+
+    /**
+     * True if a previous run of this request already imported the given record into the given table, in a TSV
+     * segment. Handlers skip these rows, so a restarted request doesn't import them again.
+     *
+     * @param tableKey
+     *         key of the table, as passed to {@link ExportWorkerManager#markSegmentImported}
+     * @param recordId
+     *         record to check
+     * @return true if the record was already imported into the table
+     */
+    public boolean isRecordPreviouslyImported(String tableKey, String recordId) {
+        Set<String> recordIdSet = previouslyImportedRecordIdsByTable.get(tableKey);
+        return recordIdSet != null && recordIdSet.contains(recordId);
+    }
+
+    /**
+     * Sets the record IDs that a previous run of this request imported, keyed by table. This is set once, before
+     * records are processed.
+     *
+     * @see #isRecordPreviouslyImported
+     */
+    public void setPreviouslyImportedRecordIdsByTable(Map<String, Set<String>> previouslyImportedRecordIdsByTable) {
+        this.previouslyImportedRecordIdsByTable = Collections.unmodifiableMap(previouslyImportedRecordIdsByTable);
+    }
+
+    /**
+     * Adds the record ID to the set of records to redrive. Subtasks that fail with a retryable error add their record
+     * as soon as they finish, and the records are redriven at the end of the stream.
+     */
+    public void addRedriveRecordId(String recordId) {
+        redriveRecordIdSet.add(recordId);
+    }
+
+    /** Gets the set of record IDs to redrive. */
+    public Set<String> getRedriveRecordIdSet() {
+        return redriveRecordIdSet;
+    }
+
+    /**
+     * If a subtask found that we need to restart the request (for example, because Synapse is down), this is the
+     * exception to restart the request with. Null otherwise. Records are still processed, and the request is restarted
+     * at the end of the stream.
+     */
+    public RestartBridgeExporterException getRestartException() {
+        return restartException;
+    }
+
+    /**
+     * Sets the restart exception, if the task doesn't already have one.
+     *
+     * @see #getRestartException
+     */
+    public synchronized void setRestartException(RestartBridgeExporterException restartException) {
+        if (this.restartException == null) {
+            this.restartException = restartException;
+        }
+    }
+
+    /** Clears the restart exception, if the request can't be restarted after all. */
+    public synchronized void clearRestartException() {
+        restartException = null;
     }
 
     /** Adds the study ID to the set of seen study IDs. */
@@ -166,11 +311,52 @@ public class ExportTask {
 
     /** Gets the TSV info for the specified study and meta-table type. */
     public TsvInfo getTsvInfoForStudyAndType(String studyId, MetaTableType type) {
-        return tsvInfoByStudyAndType.get(studyId, type);
+        return tsvInfoByStudyAndType.get(new StudyAndType(studyId, type));
+    }
+
+    /**
+     * Gets a copy of all meta-table TSV infos, keyed by study and meta-table type. Used to checkpoint the task and to
+     * report progress. This doesn't lock, so it never blocks handlers looking up their TSVs.
+     */
+    public Table<String, MetaTableType, TsvInfo> getTsvInfoByStudyAndTypeTable() {
+        ImmutableTable.Builder<String, MetaTableType, TsvInfo> tableBuilder = ImmutableTable.builder();
+        for (Map.Entry<StudyAndType, TsvInfo> oneTsvEntry : tsvInfoByStudyAndType.entrySet()) {
+            StudyAndType key = oneTsvEntry.getKey();
+            tableBuilder.put(key.studyId, key.type, oneTsvEntry.getValue());
+        }
+        return tableBuilder.build();
     }
 
     /** Sets the TSV info for the specified study and meta-table type into the task. */
     public void setTsvInfoForStudyAndType(String studyId, MetaTableType type, TsvInfo tsvInfo) {
-        tsvInfoByStudyAndType.put(studyId, type, tsvInfo);
+        tsvInfoByStudyAndType.put(new StudyAndType(studyId, type), tsvInfo);
+    }
+
+    // Key for meta-table TSV infos.
+    private static class StudyAndType {
+        private final String studyId;
+        private final MetaTableType type;
+
+        StudyAndType(String studyId, MetaTableType type) {
+            this.studyId = studyId;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StudyAndType)) {
+                return false;
+            }
+            StudyAndType that = (StudyAndType) o;
+            return Objects.equals(studyId, that.studyId) && type == that.type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(studyId, type);
+        }
     }
 }
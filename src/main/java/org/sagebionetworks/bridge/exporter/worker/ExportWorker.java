@@ -43,6 +43,11 @@ public class ExportWorker implements Callable<Void> {
         return handler;
     }
 
+    /** Simple class name of the export handler, like "SchemaBasedExportHandler". Used to tag executor metrics. */
+    public String getHandlerType() {
+        return handler.getClass().getSimpleName();
+    }
+
     /** Export subtask to handle. Package-scoped to be available to unit tests. */
     ExportSubtask getSubtask() {
         return subtask;
@@ -1,28 +1,39 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 import javax.annotation.Resource;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.gson.JsonParseException;
 import com.google.gson.stream.MalformedJsonException;
 import org.apache.commons.lang3.StringUtils;
@@ -49,6 +60,7 @@ import org.sagebionetworks.bridge.exporter.handler.SchemaBasedExportHandler;
 import org.sagebionetworks.bridge.exporter.handler.SynapseExportHandler;
 import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.exporter.helper.ExportHelper;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
@@ -74,11 +86,22 @@ public class ExportWorkerManager {
     public static final String CONFIG_KEY_EXPORTER_DDB_PREFIX = "exporter.ddb.prefix";
     public static final String CONFIG_KEY_REDRIVE_MAX_COUNT = "redrive.max.count";
     public static final String CONFIG_KEY_SYNAPSE_PRINCIPAL_ID = "synapse.principal.id";
+    public static final String CONFIG_KEY_TSV_SEGMENT_MAX_BYTES = "tsv.segment.max.bytes";
+    public static final String CONFIG_KEY_TSV_SEGMENT_MAX_ROWS = "tsv.segment.max.rows";
+    public static final String CONFIG_KEY_TSV_SHARDED_ENABLED = "tsv.sharded.enabled";
+    public static final String CONFIG_KEY_WORKER_MANAGER_MAX_OUTSTANDING_SUBTASKS =
+            "worker.manager.max.outstanding.subtasks";
     public static final String CONFIG_KEY_WORKER_MANAGER_PROGRESS_REPORT_PERIOD =
             "worker.manager.progress.report.period";
 
     // package-scoped, to be available in tests
+    static final String CONTENT_TYPE_GZIP = "application/gzip";
     static final String DDB_KEY_TABLE_ID = "tableId";
+    static final String METRICS_LATENCY_OUTSTANDING_SUBTASK_WAIT = Metrics.LATENCY_PREFIX +
+            "workerManager.outstandingSubtaskWait";
+    static final String METRICS_LATENCY_SYNAPSE_UPLOAD_TABLE_PREFIX = Metrics.LATENCY_PREFIX + "synapseUpload.table.";
+    static final String METRICS_SEGMENTS_FAILED = "tsvSegments.failed";
+    static final String METRICS_SEGMENTS_IMPORTED = "tsvSegments.imported";
     static final String REDRIVE_TAG_PREFIX = "redrive export; original: ";
     static final String SCHEMA_IOS_SURVEY = "ios-survey";
 
@@ -90,20 +113,28 @@ public class ExportWorkerManager {
     // CONFIG
 
     private String exporterDdbPrefix;
+    private int maxOutstandingSubtasks;
     private int progressReportPeriod;
     private String recordIdOverrideBucket;
     private int redriveMaxCount;
     private long synapsePrincipalId;
     private String sqsQueueUrl;
+    private long tsvSegmentMaxBytes;
+    private int tsvSegmentMaxRows;
+    private boolean tsvShardedEnabled;
 
     /** Bridge config. */
     @Autowired
     public final void setConfig(Config config) {
         this.exporterDdbPrefix = config.get(CONFIG_KEY_EXPORTER_DDB_PREFIX);
+        this.maxOutstandingSubtasks = config.getInt(CONFIG_KEY_WORKER_MANAGER_MAX_OUTSTANDING_SUBTASKS);
         this.recordIdOverrideBucket = config.get(BridgeExporterUtil.CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET);
         this.redriveMaxCount = config.getInt(CONFIG_KEY_REDRIVE_MAX_COUNT);
         this.synapsePrincipalId = config.getInt(CONFIG_KEY_SYNAPSE_PRINCIPAL_ID);
         this.sqsQueueUrl = config.get(BridgeExporterUtil.CONFIG_KEY_SQS_QUEUE_URL);
+        this.tsvSegmentMaxBytes = config.getInt(CONFIG_KEY_TSV_SEGMENT_MAX_BYTES);
+        this.tsvSegmentMaxRows = config.getInt(CONFIG_KEY_TSV_SEGMENT_MAX_ROWS);
+        this.tsvShardedEnabled = Boolean.parseBoolean(config.get(CONFIG_KEY_TSV_SHARDED_ENABLED));
 
         this.progressReportPeriod = config.getInt(CONFIG_KEY_WORKER_MANAGER_PROGRESS_REPORT_PERIOD);
         if (progressReportPeriod == 0) {
@@ -134,6 +165,30 @@ public class ExportWorkerManager {
         return synapsePrincipalId;
     }
 
+    /**
+     * True if each worker thread should write its TSV rows to its own shard file without locking, instead of all
+     * threads sharing the table's TSV writer. See {@link TsvInfo}.
+     */
+    public boolean isTsvShardedEnabled() {
+        return tsvShardedEnabled;
+    }
+
+    /**
+     * In rolling segment mode, a table's TSV segment is sealed and imported to Synapse once it reaches this many bytes.
+     * 0 if segments aren't limited by size.
+     */
+    public long getTsvSegmentMaxBytes() {
+        return tsvSegmentMaxBytes;
+    }
+
+    /**
+     * In rolling segment mode, a table's TSV segment is sealed and imported to Synapse once it reaches this many rows.
+     * 0 if segments aren't limited by row count.
+     */
+    public int getTsvSegmentMaxRows() {
+        return tsvSegmentMaxRows;
+    }
+
     // DYNAMO DB HELPERS AND OVERRIDES
 
     /**
@@ -197,6 +252,7 @@ public class ExportWorkerManager {
     private BridgeHelper bridgeHelper;
     private DynamoDB ddbClient;
     private DynamoHelper dynamoHelper;
+    private ExportCheckpointHelper exportCheckpointHelper;
     private ExportHelper exportHelper;
     private FileHelper fileHelper;
     private S3Helper s3Helper;
@@ -239,6 +295,15 @@ public class ExportWorkerManager {
         this.dynamoHelper = dynamoHelper;
     }
 
+    /**
+     * Export checkpoint helper, used to checkpoint the task before uploading to Synapse, and to save which records were
+     * imported in TSV segments.
+     */
+    @Autowired
+    public final void setExportCheckpointHelper(ExportCheckpointHelper exportCheckpointHelper) {
+        this.exportCheckpointHelper = exportCheckpointHelper;
+    }
+
     /** Export helper, used to handle attachments. */
     public final ExportHelper getExportHelper() {
         return exportHelper;
@@ -337,7 +402,8 @@ public class ExportWorkerManager {
 
     // TASK AND HANDLER MANAGEMENT
 
-    private ExecutorService executor;
+    private ListeningExecutorService executor;
+    private ExecutorService synapseUploadExecutor;
     private final com.google.common.collect.Table<String, MetaTableType, SynapseExportHandler> handlersByStudyAndType
             = HashBasedTable.create();
     private final Map<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlersBySchema = new HashMap<>();
@@ -345,25 +411,42 @@ public class ExportWorkerManager {
 
     /** Executor that runs our export workers. */
     @Resource(name = "workerExecutorService")
-    public final void setExecutor(ExecutorService executor) {
+    public final void setExecutor(ListeningExecutorService executor) {
         this.executor = executor;
     }
 
+    /**
+     * Executor that uploads TSVs to Synapse at the end of the stream. Its thread count bounds how many Synapse table
+     * imports run at once.
+     */
+    @Resource(name = "synapseUploadExecutorService")
+    public final void setSynapseUploadExecutor(ExecutorService synapseUploadExecutor) {
+        this.synapseUploadExecutor = synapseUploadExecutor;
+    }
+
     /**
      * Given the export task and one of the health data records in that task, this creates the export sub-tasks and
-     * routes them to the appropriate export handlers. This returns immediately and queues up asynchronous workers to
-     * handle those sub-tasks.
+     * routes them to the appropriate export handlers. This queues up asynchronous workers to handle those sub-tasks.
+     * <p>
+     * Each outstanding sub-task holds its record in memory. If the task already has the max number of outstanding
+     * sub-tasks, this first blocks until enough sub-tasks finish. This keeps memory flat, no matter how many records
+     * the export has.
      *
      * @param task
      *         export task to be processed
      * @param record
      *         health data record within that export task to be processed
+     * @throws InterruptedException
+     *         if the thread is interrupted while waiting for outstanding sub-tasks
      * @throws IOException
      *         if reading the record data fails
      * @throws SchemaNotFoundException
      *         if the schema corresponding the record can't be found
      */
-    public void addSubtaskForRecord(ExportTask task, Item record) throws IOException, SchemaNotFoundException {
+    public void addSubtaskForRecord(ExportTask task, Item record) throws InterruptedException, IOException,
+            SchemaNotFoundException {
+        waitForOutstandingSubtasks(task);
+
         String studyId = record.getString("studyId");
         UploadSchemaKey schemaKey = BridgeExporterUtil.getSchemaKeyForRecord(record);
 
@@ -418,23 +501,92 @@ public class ExportWorkerManager {
         queueWorker(dataHandler, parentTask, subtask);
     }
 
+    // Helper method which blocks until the task has fewer than the max outstanding subtasks. This is only called when
+    // adding records, not when handlers add subtasks, since those run on the worker threads, and blocking them could
+    // deadlock the executor.
+    private void waitForOutstandingSubtasks(ExportTask task) throws InterruptedException {
+        if (maxOutstandingSubtasks > 0 && task.getNumOutstandingSubtasks() >= maxOutstandingSubtasks) {
+            try (LatencyHistogram.Timer timer = task.getMetrics().getLatencyHistogram(
+                    METRICS_LATENCY_OUTSTANDING_SUBTASK_WAIT).startTimer()) {
+                task.waitForOutstandingSubtasksBelow(maxOutstandingSubtasks);
+            }
+        }
+    }
+
+    // Helper method which handles a subtask as soon as it finishes, on the thread that finished it. This records
+    // failures on the task and removes the subtask from the task's outstanding subtasks, which releases its record.
+    private void onSubtaskDone(ExportTask task, ExportSubtaskFuture subtaskFuture) {
+        try {
+            handleSubtaskResult(task, subtaskFuture);
+        } catch (RestartBridgeExporterException ex) {
+            task.setRestartException(ex);
+        } finally {
+            task.removeSubtaskFuture(subtaskFuture);
+        }
+    }
+
+    // Helper method which gets the result of a finished subtask. If it failed with a retryable error, this adds the
+    // record to the task's redrives. If it failed because Synapse is down, this also throws, so we restart the request
+    // at the end of the stream. See endOfStream().
+    private void handleSubtaskResult(ExportTask task, ExportSubtaskFuture subtaskFuture)
+            throws RestartBridgeExporterException {
+        // ExportWorkers have no return value. If Future.get() returns normally, then the task succeeded. The subtask is
+        // already done, so this doesn't block.
+        try {
+            subtaskFuture.getFuture().get();
+        } catch (ExecutionException | InterruptedException ex) {
+            // The real exception is in the inner exception (if it's an ExecutionException).
+            Throwable originalEx = ex.getCause();
+
+            ExportSubtask subtask = subtaskFuture.getSubtask();
+            String recordId = subtask.getRecordId();
+            UploadSchemaKey schemaKey = subtask.getSchemaKey();
+            if (isSynapseDown(originalEx)) {
+                // If Synapse is down, we should restart the BridgeEX request. We keep processing records, and restart
+                // at the end of the stream, unless TSV segments were imported in the meantime. In that case, we
+                // can't restart, so also redrive the record.
+                task.addRedriveRecordId(recordId);
+                throw new RestartBridgeExporterException("Restarting Bridge Exporter; last recordId=" + recordId +
+                        ": " + originalEx.getMessage(), originalEx);
+            } else {
+                LOG.error("Error completing subtask for study=" + subtask.getStudyId() + " schema=" + schemaKey +
+                        ", recordId=" + recordId + ": " + ex.getMessage(), ex);
+                // We exclude TSV exceptions here. Since TSVs cause the whole table to fail, redrive the table instead
+                // of individual records.
+                if (!(originalEx instanceof BridgeExporterTsvException) && isRetryable(originalEx)) {
+                    // This failure is recoverable. Track which record IDs need to be redriven, so we can redrive it
+                    // later.
+                    task.addRedriveRecordId(recordId);
+                }
+            }
+        }
+    }
+
     /**
-     * Adds the given task to the task queue.
+     * Submits a worker for the given sub-task and adds it to the task's outstanding sub-tasks. The sub-task's result
+     * is handled as soon as it finishes.
      *
      * @param handler
      *         handler to queue up
      * @param parentTask
-     *         parent export task, contains the task queue
+     *         parent export task, tracks the outstanding sub-tasks
      * @param subtask
      *         sub-task to queue up
      */
     private void queueWorker(ExportHandler handler, ExportTask parentTask, ExportSubtask subtask) {
         ExportWorker worker = new ExportWorker(handler, subtask);
-        Future<Void> future = executor.submit(worker);
-        parentTask.addSubtaskFuture(new ExportSubtaskFuture.Builder().withSubtask(subtask).withFuture(future).build());
+        ListenableFuture<Void> future = executor.submit(worker);
+        ExportSubtaskFuture subtaskFuture = new ExportSubtaskFuture.Builder().withSubtask(subtask).withFuture(future)
+                .build();
+        parentTask.addSubtaskFuture(subtaskFuture);
+
+        // If the subtask already finished, this runs the listener right away.
+        future.addListener(() -> onSubtaskDone(parentTask, subtaskFuture), MoreExecutors.directExecutor());
     }
 
-    private SynapseExportHandler getHandlerForStudyAndType(String studyId, MetaTableType type) {
+    // Handler lookups are synchronized, since records are dispatched from multiple threads, and the
+    // IosSurveyExportHandler also calls back into the manager from worker threads.
+    private synchronized SynapseExportHandler getHandlerForStudyAndType(String studyId, MetaTableType type) {
         SynapseExportHandler handler = handlersByStudyAndType.get(studyId, type);
         if (handler == null) {
             handler = createHandlerForStudyAndType(studyId, type);
@@ -463,8 +615,8 @@ public class ExportWorkerManager {
      * @throws SchemaNotFoundException
      *         if getting the schema fails
      */
-    private SchemaBasedExportHandler getHealthDataHandlerForSchema(Metrics metrics, UploadSchemaKey schemaKey)
-            throws SchemaNotFoundException {
+    private synchronized SchemaBasedExportHandler getHealthDataHandlerForSchema(Metrics metrics,
+            UploadSchemaKey schemaKey) throws SchemaNotFoundException {
         SchemaBasedExportHandler handler = healthDataHandlersBySchema.get(schemaKey);
         if (handler == null) {
             handler = createHealthDataHandler(metrics, schemaKey);
@@ -495,7 +647,7 @@ public class ExportWorkerManager {
      *         study ID to get the handler for
      * @return legacy survey handler
      */
-    private IosSurveyExportHandler getSurveyHandlerForStudy(String studyId) {
+    private synchronized IosSurveyExportHandler getSurveyHandlerForStudy(String studyId) {
         IosSurveyExportHandler handler = surveyHandlersByStudy.get(studyId);
         if (handler == null) {
             handler = new IosSurveyExportHandler();
@@ -508,7 +660,8 @@ public class ExportWorkerManager {
 
     /**
      * Signals the end of the record stream for the given export task. This waits for all of the outstanding tasks to
-     * complete and signals the handlers to upload their TSVs to Synapse.
+     * complete and signals the handlers to upload their TSVs to Synapse. Health data tables, then meta tables, then
+     * status tables are each uploaded in parallel on the Synapse upload executor.
      *
      * @param task
      *         export task to be finished
@@ -520,54 +673,53 @@ public class ExportWorkerManager {
         String tag = request.getTag();
         LOG.info("End of stream signaled for request " + request.toString());
 
-        // Wait for all outstanding tasks to complete
+        // Wait for all outstanding tasks to complete. Subtasks are handled as they finish, so we only need to wait for
+        // them, and log progress every progressReportPeriod subtasks.
         Stopwatch stopwatch = Stopwatch.createStarted();
-        Queue<ExportSubtaskFuture> subtaskFutureQueue = task.getSubtaskFutureQueue();
-        Set<String> redriveRecordIdSet = new HashSet<>();
-        while (!subtaskFutureQueue.isEmpty()) {
-            int numOutstanding = subtaskFutureQueue.size();
-            if (numOutstanding % progressReportPeriod == 0) {
-                LOG.info("Num outstanding tasks: " + numOutstanding + " after " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                        " seconds");
+        int numOutstanding = task.getNumOutstandingSubtasks();
+        while (numOutstanding > 0) {
+            LOG.info("Num outstanding tasks: " + numOutstanding + " after " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                    " seconds");
+            try {
+                task.waitForOutstandingSubtasksBelow(Math.max(numOutstanding - progressReportPeriod + 1, 1));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for outstanding tasks: " + ex.getMessage(), ex);
             }
+            numOutstanding = task.getNumOutstandingSubtasks();
+        }
 
-            // ExportWorkers have no return value. If Future.get() returns normally, then the task is done.
-            ExportSubtaskFuture subtaskFuture = subtaskFutureQueue.remove();
-            try {
-                subtaskFuture.getFuture().get();
-            } catch (ExecutionException | InterruptedException ex) {
-                // The real exception is in the inner exception (if it's an ExecutionException).
-                Throwable originalEx = ex.getCause();
-
-                ExportSubtask subtask = subtaskFuture.getSubtask();
-                String recordId = subtask.getRecordId();
-                UploadSchemaKey schemaKey = subtask.getSchemaKey();
-                if (isSynapseDown(originalEx)) {
-                    // If Synapse is down, we should restart the BridgeEX request. Note that since BridgeEX is
-                    // multi-threaded, there may be other subtasks scheduled that will run to completion. Nothing will
-                    // get written to the Synapse tables, however, since (a) we never call upload to Synapse and
-                    // (b) Synapse is down anyway.
-                    throw new RestartBridgeExporterException("Restarting Bridge Exporter; last recordId=" + recordId +
-                            ": " + originalEx.getMessage(), originalEx);
-                } else {
-                    LOG.error("Error completing subtask for study=" + subtask.getStudyId() + " schema=" + schemaKey +
-                            ", recordId=" + recordId + ": " + ex.getMessage(), ex);
-                    // We exclude TSV exceptions here. Since TSVs cause the whole table to fail, redrive the table
-                    // instead of individual records.
-                    if (!(originalEx instanceof BridgeExporterTsvException) && isRetryable(originalEx)) {
-                        // This failure is recoverable. Track which record IDs need to be redriven, so we can redrive it
-                        // later.
-                        redriveRecordIdSet.add(recordId);
-                    }
-                }
+        // In rolling segment mode, tables that rolled over import their last segment the same way as the others. Wait
+        // for all segment imports. Failed segments are redriven along with failed records.
+        for (SchemaBasedExportHandler oneHandler : healthDataHandlersBySchema.values()) {
+            oneHandler.rollLastSegmentForTask(task);
+        }
+        for (SynapseExportHandler oneHandler : handlersByStudyAndType.values()) {
+            oneHandler.rollLastSegmentForTask(task);
+        }
+        waitForFutures(task.getSegmentImportFutureQueue());
+
+        // If a subtask found that Synapse is down, restart now that all records are processed. The checkpoint isn't
+        // written yet, since the TSVs are missing the failed records, so the restarted request starts over. If TSV
+        // segments were imported, restarting would import them again, so the failed records are redriven instead.
+        RestartBridgeExporterException restartException = task.getRestartException();
+        if (restartException != null) {
+            if (task.getNumSegmentsImported() == 0) {
+                throw restartException;
             }
+            LOG.warn("Not restarting, since " + task.getNumSegmentsImported() + " TSV segments were already " +
+                    "imported. Redriving failed records instead: " + restartException.getMessage());
+            task.clearRestartException();
         }
+
+        Set<String> redriveRecordIdSet = task.getRedriveRecordIdSet();
         if (!redriveRecordIdSet.isEmpty() && redriveCount < redriveMaxCount) {
             // Upload the list of record IDs that need to be redriven to S3. The filename *should* be unique, since we
             // use the timestamp for the filename, and we currently only run one Export job at a time.
             // Use UTC timezone so we can easily sort and search for files. Redrives should be relatively rare, so
-            // performance considerations on S3 buckets aren't an issue.
-            String filename = "redrive-record-ids." + DateTime.now().withZone(DateTimeZone.UTC).toString();
+            // performance considerations on S3 buckets aren't an issue. The file is gzipped, since redrives after a
+            // large failure can have millions of record IDs.
+            String filename = "redrive-record-ids." + DateTime.now().withZone(DateTimeZone.UTC).toString() + ".gz";
 
             // Create a copy of the original request, except add the record override and update the tag. Also, clear
             // date, startDateTime, and endDateTime as these conflict with record override.
@@ -579,12 +731,12 @@ public class ExportWorkerManager {
             }
             BridgeExporterRequest redriveRequest = new BridgeExporterRequest.Builder().copyOf(request)
                     .withStartDateTime(null).withEndDateTime(null).withRecordIdS3Override(filename).withTag(redriveTag)
-                    .withRedriveCount(redriveCount + 1).withUseLastExportTime(false).build();
+                    .withRedriveCount(redriveCount + 1).withUseLastExportTime(false).withUseParallelScan(false).build();
             LOG.info("Redriving records using S3 file " + filename);
 
             try {
                 // upload to S3
-                s3Helper.writeLinesToS3(recordIdOverrideBucket, filename, redriveRecordIdSet);
+                writeGzippedLinesToS3(recordIdOverrideBucket, filename, redriveRecordIdSet);
 
                 // send request to SQS
                 sqsHelper.sendMessageAsJson(sqsQueueUrl, redriveRequest, REDRIVE_DELAY_SECONDS);
@@ -596,42 +748,69 @@ public class ExportWorkerManager {
 
         LOG.info("All subtasks done for request " + request.toString());
 
-        // Tell each health data handler to upload their TSVs to Synapse.
-        // Use a TreeMap so we can iterate our redrives in a predictable order.
-        Map<String, Set<UploadSchemaKey>> redriveTablesByStudy = new TreeMap<>();
+        // All TSVs are complete. Checkpoint the task, so that if we need to restart the request while uploading to
+        // Synapse, the restarted request doesn't need to process all the records again. If this task was resumed from
+        // a checkpoint, that checkpoint is still valid.
+        if (task.getCheckpoint() == null && exportCheckpointHelper.isEnabled()) {
+            writeCheckpoint(task);
+        }
+
+        // Tell each health data handler to upload their TSVs to Synapse. Uploads run in parallel on the Synapse upload
+        // executor. Use a sorted map so we can iterate our redrives in a predictable order.
+        Stopwatch uploadStopwatch = Stopwatch.createStarted();
+        Map<String, Set<UploadSchemaKey>> redriveTablesByStudy = new ConcurrentSkipListMap<>();
+        List<Runnable> healthDataUploadList = new ArrayList<>();
         for (Map.Entry<UploadSchemaKey, SchemaBasedExportHandler> healthDataHandlerEntry
                 : healthDataHandlersBySchema.entrySet()) {
             UploadSchemaKey schemaKey = healthDataHandlerEntry.getKey();
             SchemaBasedExportHandler handler = healthDataHandlerEntry.getValue();
-            try {
-                handler.uploadToSynapseForTask(task);
-            } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
-                Throwable originalEx = ex;
-                if (originalEx instanceof BridgeExporterTsvException) {
-                    // TSV exception is just a wrapper. Go down one level to get the real exception.
-                    originalEx = originalEx.getCause();
+            String tableKey = ExportCheckpoint.getTableKeyForSchema(schemaKey);
+            if (isTableUploaded(task, tableKey)) {
+                continue;
+            }
+
+            healthDataUploadList.add(() -> {
+                if (task.getRestartException() != null) {
+                    // Another upload found that Synapse is down. Don't start any more uploads.
+                    return;
                 }
 
-                if (isSynapseDown(originalEx)) {
-                    // Similarly, if Synapse is down, restart BridgeEX.
-                    throw new RestartBridgeExporterException("Restarting Bridge Exporter; last schema=" + schemaKey +
-                            ": " + originalEx.getMessage(), originalEx);
-                } else {
-                    LOG.error("Error uploading health data to Synapse for schema=" + schemaKey + ": " +
-                            originalEx.getMessage(), originalEx);
-                    if (isRetryable(originalEx)) {
-                        // Similarly, track which tables (schemas) to redrive.
-                        String studyId = schemaKey.getAppId();
-                        Set<UploadSchemaKey> redriveTableSet = redriveTablesByStudy.get(studyId);
-                        if (redriveTableSet == null) {
-                            redriveTableSet = new HashSet<>();
-                            redriveTablesByStudy.put(studyId, redriveTableSet);
+                Throwable originalEx = uploadTableToSynapse(task, tableKey, handler);
+                if (originalEx != null) {
+                    if (originalEx instanceof BridgeExporterTsvException) {
+                        // TSV exception is just a wrapper. Go down one level to get the real exception.
+                        originalEx = originalEx.getCause();
+                    }
+
+                    if (isSynapseDown(originalEx) && task.getNumSegmentsImported() == 0) {
+                        // Similarly, if Synapse is down, restart BridgeEX. The table isn't marked as uploaded, so the
+                        // restarted request uploads it again. If segments were already imported, redrive the table
+                        // instead. Tables with imported segments have nothing left to upload, so only this table is
+                        // exported again.
+                        task.setRestartException(new RestartBridgeExporterException(
+                                "Restarting Bridge Exporter; last schema=" + schemaKey + ": " +
+                                        originalEx.getMessage(), originalEx));
+                        return;
+                    } else {
+                        LOG.error("Error uploading health data to Synapse for schema=" + schemaKey + ": " +
+                                originalEx.getMessage(), originalEx);
+                        if (isRetryable(originalEx)) {
+                            // Similarly, track which tables (schemas) to redrive.
+                            redriveTablesByStudy.computeIfAbsent(schemaKey.getAppId(),
+                                    studyId -> ConcurrentHashMap.newKeySet()).add(schemaKey);
                         }
-                        redriveTableSet.add(schemaKey);
                     }
                 }
-            }
+
+                // Either uploaded or redriven. Either way, a restarted request shouldn't upload this table again.
+                markTableUploaded(task, tableKey);
+            });
         }
+        runOnSynapseUploadExecutor(healthDataUploadList);
+        if (task.getRestartException() != null) {
+            throw task.getRestartException();
+        }
+
         if (!redriveTablesByStudy.isEmpty() && redriveCount < redriveMaxCount) {
             for (Map.Entry<String, Set<UploadSchemaKey>> oneRedriveTableEntry : redriveTablesByStudy.entrySet()) {
                 String oneStudyId = oneRedriveTableEntry.getKey();
@@ -674,33 +853,327 @@ public class ExportWorkerManager {
         }
 
         // Also, the meta table handlers.
+        List<Runnable> metaTableUploadList = new ArrayList<>();
         for (com.google.common.collect.Table.Cell<String, MetaTableType, SynapseExportHandler> handlerCell
                 : handlersByStudyAndType.cellSet()) {
             String studyId = handlerCell.getRowKey();
             MetaTableType type = handlerCell.getColumnKey();
             SynapseExportHandler handler = handlerCell.getValue();
-            try {
-                //noinspection ConstantConditions
-                handler.uploadToSynapseForTask(task);
-            } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
-                // TODO: Improved error handling
-                LOG.error("Error uploading " + type + " table to Synapse for study=" + studyId + ": " +
-                        ex.getMessage(), ex);
+            String tableKey = ExportCheckpoint.getTableKeyForStudyAndType(studyId, type);
+            if (isTableUploaded(task, tableKey)) {
+                continue;
             }
+
+            metaTableUploadList.add(() -> {
+                Throwable ex = uploadTableToSynapse(task, tableKey, handler);
+                if (ex != null) {
+                    // TODO: Improved error handling
+                    LOG.error("Error uploading " + type + " table to Synapse for study=" + studyId + ": " +
+                            ex.getMessage(), ex);
+                }
+                markTableUploaded(task, tableKey);
+            });
         }
+        runOnSynapseUploadExecutor(metaTableUploadList);
 
         // Write status table. Status tables are individual for each study.
+        List<Runnable> statusTableWriteList = new ArrayList<>();
         for (String oneStudyId : task.getStudyIdSet()) {
+            statusTableWriteList.add(() -> {
+                try {
+                    synapseStatusTableHelper.initTableAndWriteStatus(task, oneStudyId);
+                } catch (BridgeExporterException | InterruptedException | RuntimeException | SynapseException ex) {
+                    // TODO: Improved error handling
+                    // Similarly, status table is also not critical, but we should think about how to improve this.
+                    LOG.error("Error writing to status table for study=" + oneStudyId + ": " + ex.getMessage(), ex);
+                }
+            });
+        }
+        runOnSynapseUploadExecutor(statusTableWriteList);
+
+        LOG.info("Uploaded " + (healthDataUploadList.size() + metaTableUploadList.size()) + " tables to Synapse in " +
+                uploadStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        LOG.info("Done uploading to Synapse for request " + request.toString());
+    }
+
+    /**
+     * Imports a sealed TSV segment to Synapse in the background, on the Synapse upload executor. The end of the stream
+     * waits for segment imports to finish. If the import fails, for any reason, the segment's records are redriven.
+     * Failed segments never restart the request, since other segments may already be imported, and the restarted
+     * request would import their rows again. If the request is already restarting, the segment isn't imported.
+     *
+     * @param task
+     *         task the segment belongs to
+     * @param handler
+     *         handler for the segment's table
+     * @param segment
+     *         sealed TSV segment
+     */
+    public void importTsvSegmentAsync(ExportTask task, SynapseExportHandler handler, TsvInfo segment) {
+        Future<?> future = synapseUploadExecutor.submit(() -> importTsvSegment(task, handler, segment));
+        task.addSegmentImportFuture(future);
+    }
+
+    // Helper method which imports a sealed TSV segment and tracks whether it succeeded.
+    private void importTsvSegment(ExportTask task, SynapseExportHandler handler, TsvInfo segment) {
+        Metrics metrics = task.getMetrics();
+        String segmentName = segment.getFile().getName();
+        if (task.getRestartException() != null) {
+            // A subtask found that Synapse is down. Don't import any more segments. The restarted request exports
+            // these rows again, or if segments were imported before this and we can't restart, they're redriven.
+            LOG.info("Skipping import of TSV segment " + segmentName + ", since the request is restarting");
+            redriveSegment(task, segment);
+            return;
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            handler.uploadSegmentToSynapse(task, segment);
+            metrics.incrementCounter(METRICS_SEGMENTS_IMPORTED);
+            LOG.info("Imported TSV segment " + segmentName + " with " + segment.getLineCount() + " lines in " +
+                    stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted importing TSV segment " + segmentName + ", redriving its records", ex);
+            redriveSegment(task, segment);
+        } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
+            Throwable originalEx = ex;
+            if (originalEx instanceof BridgeExporterTsvException) {
+                // TSV exception is just a wrapper. Go down one level to get the real exception.
+                originalEx = originalEx.getCause();
+            }
+
+            metrics.incrementCounter(METRICS_SEGMENTS_FAILED);
+            LOG.error("Error importing TSV segment " + segmentName + ", redriving its records: " +
+                    originalEx.getMessage(), originalEx);
+            redriveSegment(task, segment);
+        }
+    }
+
+    // Helper method which adds the segment's records to the task's redrives. This includes segments that failed with
+    // non-retryable errors, since the redrive is bounded by the max redrive count, and otherwise the rows are lost.
+    private static void redriveSegment(ExportTask task, TsvInfo segment) {
+        for (String oneRecordId : segment.getRecordIds()) {
+            task.addRedriveRecordId(oneRecordId);
+        }
+    }
+
+    /**
+     * Records that a TSV segment was imported into Synapse. Called by the handler once the import succeeds. After
+     * this, the task no longer restarts, and the segment's records are saved with the request's checkpoint, so a
+     * restarted run of the request skips them. See {@link ExportCheckpointHelper#markSegmentImported}.
+     *
+     * @param task
+     *         task the segment belongs to
+     * @param tableKey
+     *         key of the table the segment was imported into, see {@link ExportTask#isRecordPreviouslyImported}
+     * @param recordIdList
+     *         IDs of the records in the segment
+     */
+    public void markSegmentImported(ExportTask task, String tableKey, List<String> recordIdList) {
+        task.incrementNumSegmentsImported();
+        exportCheckpointHelper.markSegmentImported(task.getRequest(), tableKey, recordIdList);
+    }
+
+    /**
+     * Restores the given checkpoint into the given task, so that {@link #endOfStream} uploads the TSVs from the
+     * checkpoint, skipping tables that were already uploaded. This also restores the task's metrics counters and
+     * study IDs. Called by the record processor instead of processing records, when resuming a restarted request.
+     *
+     * @param task
+     *         export task to restore into
+     * @param checkpoint
+     *         checkpoint written by a previous run of the same request
+     * @throws SchemaNotFoundException
+     *         if getting the schema for one of the health data tables fails
+     */
+    public void resumeFromCheckpoint(ExportTask task, ExportCheckpoint checkpoint) throws SchemaNotFoundException {
+        // Create handlers first. This is the only step that can fail, so if it does, the task is left untouched.
+        List<ExportCheckpoint.TsvCheckpoint> tsvToRestoreList = new ArrayList<>();
+        for (ExportCheckpoint.TsvCheckpoint oneTsv : checkpoint.getTsvList()) {
+            if (checkpoint.getUploadedTableSet().contains(oneTsv.getTableKey())) {
+                continue;
+            }
+
+            if (oneTsv.getSchemaKey() != null) {
+                getHealthDataHandlerForSchema(task.getMetrics(), oneTsv.getSchemaKey());
+            } else {
+                getHandlerForStudyAndType(oneTsv.getStudyId(), oneTsv.getMetaTableType());
+            }
+            tsvToRestoreList.add(oneTsv);
+        }
+
+        for (ExportCheckpoint.TsvCheckpoint oneTsv : tsvToRestoreList) {
+            TsvInfo tsvInfo;
+            if (oneTsv.getInitErrorMessage() != null) {
+                String errorMessage = "TSV failed to initialize in previous run: " + oneTsv.getInitErrorMessage();
+                tsvInfo = new TsvInfo(oneTsv.isInitErrorRetryable() ? new BridgeExporterException(errorMessage) :
+                        new BridgeExporterNonRetryableException(errorMessage));
+            } else {
+                tsvInfo = new TsvInfo(oneTsv.getColumnNameList(), new File(oneTsv.getFile()), oneTsv.getLineCount(),
+                        oneTsv.getRecordIdList());
+            }
+
+            if (oneTsv.getSchemaKey() != null) {
+                task.setHealthDataTsvInfoForSchema(oneTsv.getSchemaKey(), tsvInfo);
+            } else {
+                task.setTsvInfoForStudyAndType(oneTsv.getStudyId(), oneTsv.getMetaTableType(), tsvInfo);
+            }
+        }
+
+        Metrics metrics = task.getMetrics();
+        for (Map.Entry<String, Integer> oneCounterEntry : checkpoint.getCounterMap().entrySet()) {
+            metrics.incrementCounter(oneCounterEntry.getKey(), oneCounterEntry.getValue());
+        }
+        for (String oneStudyId : checkpoint.getStudyIdSet()) {
+            task.addStudyId(oneStudyId);
+        }
+        task.setCheckpoint(checkpoint);
+
+        LOG.info("Resumed " + tsvToRestoreList.size() + " TSVs from checkpoint, skipping " +
+                checkpoint.getUploadedTableSet().size() + " already uploaded tables");
+    }
+
+    // Helper method which flushes the task's TSVs and writes the checkpoint. If any TSV can't be checkpointed, this
+    // logs and returns without writing the checkpoint, and a restarted request starts over.
+    private void writeCheckpoint(ExportTask task) {
+        ExportCheckpoint checkpoint = new ExportCheckpoint();
+        List<ExportCheckpoint.TsvCheckpoint> tsvList = checkpoint.getTsvList();
+        try {
+            for (Map.Entry<UploadSchemaKey, TsvInfo> oneTsvEntry : task.getHealthDataTsvInfoMap().entrySet()) {
+                ExportCheckpoint.TsvCheckpoint tsvCheckpoint = makeTsvCheckpoint(oneTsvEntry.getValue());
+                if (tsvCheckpoint == null) {
+                    return;
+                }
+                tsvCheckpoint.setSchemaKey(oneTsvEntry.getKey());
+                tsvList.add(tsvCheckpoint);
+            }
+
+            for (com.google.common.collect.Table.Cell<String, MetaTableType, TsvInfo> oneTsvCell
+                    : task.getTsvInfoByStudyAndTypeTable().cellSet()) {
+                ExportCheckpoint.TsvCheckpoint tsvCheckpoint = makeTsvCheckpoint(oneTsvCell.getValue());
+                if (tsvCheckpoint == null) {
+                    return;
+                }
+                tsvCheckpoint.setStudyId(oneTsvCell.getRowKey());
+                tsvCheckpoint.setMetaTableType(oneTsvCell.getColumnKey());
+                tsvList.add(tsvCheckpoint);
+            }
+        } catch (BridgeExporterException ex) {
+            LOG.error("Error flushing TSVs, not writing checkpoint: " + ex.getMessage(), ex);
+            return;
+        }
+
+        for (Multiset.Entry<String> oneCounterEntry : task.getMetrics().getCounterMap().entrySet()) {
+            checkpoint.getCounterMap().put(oneCounterEntry.getElement(), oneCounterEntry.getCount());
+        }
+        checkpoint.getStudyIdSet().addAll(task.getStudyIdSet());
+        checkpoint.setExporterDate(task.getExporterDate().toString());
+        checkpoint.setTmpDir(task.getTmpDir().getAbsolutePath());
+
+        if (exportCheckpointHelper.writeCheckpoint(task.getRequest(), checkpoint)) {
+            task.setCheckpoint(checkpoint);
+        }
+    }
+
+    // Helper method which flushes the given TSV and makes a checkpoint of it. Returns null if the TSV failed to
+    // initialize because Synapse was down. That TSV is missing records, so we can't resume from it.
+    private static ExportCheckpoint.TsvCheckpoint makeTsvCheckpoint(TsvInfo tsvInfo) throws BridgeExporterException {
+        ExportCheckpoint.TsvCheckpoint tsvCheckpoint = new ExportCheckpoint.TsvCheckpoint();
+        Throwable initError = tsvInfo.getInitError();
+        if (initError != null) {
+            if (isSynapseDown(initError)) {
+                LOG.warn("TSV failed to initialize because Synapse is down, not writing checkpoint");
+                return null;
+            }
+            tsvCheckpoint.setInitErrorMessage(initError.getMessage());
+            tsvCheckpoint.setInitErrorRetryable(isRetryable(initError));
+        } else {
+            tsvInfo.flush();
+            tsvCheckpoint.setColumnNameList(tsvInfo.getColumnNameList());
+            tsvCheckpoint.setFile(tsvInfo.getFile().getAbsolutePath());
+            tsvCheckpoint.setLineCount(tsvInfo.getLineCount());
+            tsvCheckpoint.setRecordIdList(tsvInfo.getRecordIds());
+        }
+        return tsvCheckpoint;
+    }
+
+    // Helper method which uploads the handler's TSV to Synapse and records how long the upload took in the task's
+    // per-table upload latency histogram. Returns the error if the upload failed, or null if it succeeded.
+    private Throwable uploadTableToSynapse(ExportTask task, String tableKey, SynapseExportHandler handler) {
+        long startNanos = System.nanoTime();
+        try {
+            handler.uploadToSynapseForTask(task);
+            return null;
+        } catch (BridgeExporterException | IOException | RuntimeException | SynapseException ex) {
+            return ex;
+        } finally {
+            long elapsedNanos = System.nanoTime() - startNanos;
+            task.getMetrics().getLatencyHistogram(METRICS_LATENCY_SYNAPSE_UPLOAD_TABLE_PREFIX + tableKey).recordNanos(
+                    elapsedNanos);
+            LOG.info("Synapse upload for table " + tableKey + " took " +
+                    TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms");
+        }
+    }
+
+    // Helper method which runs the given uploads on the Synapse upload executor and waits for all of them to finish.
+    // Each upload handles its own errors. Synapse calls are rate limited by the SynapseHelper, so running uploads in
+    // parallel mostly overlaps the time spent waiting for Synapse to import each TSV.
+    private void runOnSynapseUploadExecutor(List<Runnable> uploadList) {
+        List<Future<?>> futureList = new ArrayList<>();
+        for (Runnable oneUpload : uploadList) {
+            futureList.add(synapseUploadExecutor.submit(oneUpload));
+        }
+        waitForFutures(futureList);
+    }
+
+    // Helper method which waits for the given Synapse uploads to finish.
+    private static void waitForFutures(Iterable<Future<?>> futureIterable) {
+        for (Future<?> oneFuture : futureIterable) {
             try {
-                synapseStatusTableHelper.initTableAndWriteStatus(task, oneStudyId);
-            } catch (BridgeExporterException | InterruptedException | RuntimeException | SynapseException ex) {
-                // TODO: Improved error handling
-                // Similarly, status table is also not critical, but we should think about how to improve this.
-                LOG.error("Error writing to status table for study=" + oneStudyId + ": " + ex.getMessage(), ex);
+                oneFuture.get();
+            } catch (ExecutionException ex) {
+                // Uploads catch their own exceptions, so this is an Error. Propagate it.
+                throw new RuntimeException("Unexpected error uploading to Synapse: " + ex.getCause().getMessage(),
+                        ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted waiting for Synapse uploads: " + ex.getMessage(), ex);
+            }
+        }
+    }
+
+    // Helper method which returns true if the task was resumed from a checkpoint, and the given table was already
+    // uploaded by a previous run.
+    private static boolean isTableUploaded(ExportTask task, String tableKey) {
+        ExportCheckpoint checkpoint = task.getCheckpoint();
+        return checkpoint != null && checkpoint.getUploadedTableSet().contains(tableKey);
+    }
+
+    // Helper method which records in the task's checkpoint (if any) that the given table is done.
+    private void markTableUploaded(ExportTask task, String tableKey) {
+        ExportCheckpoint checkpoint = task.getCheckpoint();
+        if (checkpoint != null) {
+            checkpoint.getUploadedTableSet().add(tableKey);
+            exportCheckpointHelper.markTableUploaded(task.getRequest(), tableKey);
+        }
+    }
+
+    // Helper method which gzips the given lines, one per line, and uploads them to S3 with server-side encryption.
+    private void writeGzippedLinesToS3(String bucket, String key, Iterable<String> lineIter) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(byteArrayOutputStream),
+                StandardCharsets.UTF_8)) {
+            for (String oneLine : lineIter) {
+                writer.write(oneLine);
+                writer.write('\n');
             }
         }
 
-        LOG.info("Done uploading to Synapse for request " + request.toString());
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(CONTENT_TYPE_GZIP);
+        metadata.setSSEAlgorithm(ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+        s3Helper.writeBytesToS3(bucket, key, byteArrayOutputStream.toByteArray(), metadata);
     }
 
     // Advice from Synapse team is that 503 means Synapse is down (either for maintenance or otherwise). In this case,
@@ -1,11 +1,23 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
 import java.io.File;
+import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import au.com.bytecode.opencsv.CSVWriter;
 
@@ -15,21 +27,70 @@ import org.slf4j.LoggerFactory;
 
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterTsvException;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 
 /**
+ * <p>
  * Helper class that keeps track of a TSV file, the writer that writes to the file, and a method for tracking and
  * incrementing TSV line counts.
+ * </p>
+ * <p>
+ * By default, rows are written to the TSV file under this object's lock. Popular tables (like a study's appVersion
+ * table) get rows from every worker thread, so in sharded mode, each thread writes its rows to its own shard file
+ * without locking. Shards are appended to the TSV file (which only has the header) when the TSV is flushed, using
+ * FileChannel.transferTo(), so sharded TSVs must be on the local file system. Line counts, record IDs, and upload
+ * times add up across shards.
+ * </p>
+ * <p>
+ * In rolling segment mode, a TsvInfo is one segment of a table. When the segment is full, it's sealed and imported
+ * while new rows go to the next segment. Writers call {@link #tryBeginRow} and {@link #endRow} around each row, so the
+ * importer can wait for rows that were in progress when the segment was sealed.
+ * </p>
  */
 public class TsvInfo {
     private static final Logger LOG = LoggerFactory.getLogger(TsvInfo.class);
 
+    // package-scoped to be available to unit tests
+    static final String METRICS_LATENCY_FLUSH = Metrics.LATENCY_PREFIX + "tsv.flushAndClose";
+    static final String METRICS_LATENCY_WRITE_ROW = Metrics.LATENCY_PREFIX + "tsv.writeRow";
+    static final String SHARD_FILE_SUFFIX = ".shard";
+
+    /** Upload times are counted in buckets of this width, in milliseconds, starting at the epoch. */
+    public static final long UPLOADED_ON_BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     private final List<String> columnNameList;
     private final File file;
     private final CSVWriter tsvWriter;
     private final Throwable initError;
+
+    // Record IDs and upload time counts of rows written to the TSV file, and of shards that have been appended to it.
+    // Guarded by this object's lock.
     private final List<String> recordIds = new ArrayList<>();
+    private final UploadedOnCounts uploadedOnCounts = new UploadedOnCounts();
+
+    private final ByteCountingWriter byteCountingWriter;
+
+    // Volatile, so the progress endpoint can read it without locking. Only written under this object's lock.
+    private volatile int lineCount = 0;
+    private final long restoredNumBytes;
 
-    private int lineCount = 0;
+    // Sharded mode only. Shards for the threads that wrote rows since the last flush, keyed by thread ID.
+    private final ShardWriterFactory shardWriterFactory;
+    private final ConcurrentMap<Long, Shard> shardsByThreadId = new ConcurrentHashMap<>();
+    private final AtomicInteger numShardsCreated = new AtomicInteger();
+    private volatile long appendedShardNumBytes = 0;
+
+    // Rolling segments. Once sealed, no new rows are started. Rows already in progress are counted, so the importer
+    // can wait for them.
+    private final AtomicInteger numRowsInProgress = new AtomicInteger();
+    private final Object rowsInProgressMonitor = new Object();
+    private volatile boolean sealed = false;
+    private int segmentIndex = 0;
+
+    // Latency histograms, if metrics are set. Otherwise, latencies aren't recorded.
+    private LatencyHistogram flushLatencyHistogram;
+    private LatencyHistogram writeRowLatencyHistogram;
 
     /**
      * TSV info constructor.
@@ -42,18 +103,64 @@ public class TsvInfo {
      *         writer for the TSV file
      */
     public TsvInfo(List<String> columnNameList, File file, Writer writer) {
+        this(columnNameList, file, writer, null);
+    }
+
+    /**
+     * Constructs a TsvInfo in sharded mode, where each thread writes its rows to its own shard file. The TSV file only
+     * gets the header until the TSV is flushed.
+     *
+     * @param columnNameList
+     *         list of column names in this TSV
+     * @param file
+     *         TSV file, on the local file system
+     * @param writer
+     *         writer for the TSV file
+     * @param shardWriterFactory
+     *         opens writers for shard files, or null to write all rows to the TSV file
+     */
+    public TsvInfo(List<String> columnNameList, File file, Writer writer, ShardWriterFactory shardWriterFactory) {
         this.columnNameList = columnNameList;
         this.file = file;
         this.initError = null;
+        this.restoredNumBytes = 0;
+        this.shardWriterFactory = shardWriterFactory;
 
-        // Set CsvWriter with tab separator character.
-        this.tsvWriter = new CSVWriter(writer, '\t');
+        // Set CsvWriter with tab separator character. Count bytes on the way through, for progress reporting.
+        this.byteCountingWriter = new ByteCountingWriter(writer);
+        this.tsvWriter = new CSVWriter(byteCountingWriter, '\t');
 
         // Write headers. The new String[0] looks weird, but according to official Oracle javadoc, this is how you use
         // toArray().
         tsvWriter.writeNext(columnNameList.toArray(new String[0]));
     }
 
+    /**
+     * Constructs a TsvInfo for a TSV file that was already written and flushed, for example by a previous run of the
+     * same request. See {@link ExportCheckpoint}. There is no writer, so rows can't be written to this TSV. It can
+     * only be uploaded.
+     *
+     * @param columnNameList
+     *         list of column names in this TSV
+     * @param file
+     *         TSV file, which already contains the header and all rows
+     * @param lineCount
+     *         number of rows in the TSV, excluding the header
+     * @param recordIdList
+     *         record IDs written to the TSV
+     */
+    public TsvInfo(List<String> columnNameList, File file, int lineCount, List<String> recordIdList) {
+        this.columnNameList = columnNameList;
+        this.file = file;
+        this.tsvWriter = null;
+        this.byteCountingWriter = null;
+        this.initError = null;
+        this.lineCount = lineCount;
+        this.restoredNumBytes = file.length();
+        this.shardWriterFactory = null;
+        this.recordIds.addAll(recordIdList);
+    }
+
     /**
      * Constructs a TsvInfo that failed to initialize. Used to represent, for example, TSVs where creating or updating
      * the Synapse table failed, or where the schema changes dictate an impossible table update. This wraps an internal
@@ -63,7 +170,74 @@ public class TsvInfo {
         this.columnNameList = null;
         this.file = null;
         this.tsvWriter = null;
+        this.byteCountingWriter = null;
         this.initError = t;
+        this.restoredNumBytes = 0;
+        this.shardWriterFactory = null;
+    }
+
+    /** Task metrics. If set, row write and flush latencies are recorded in these metrics. */
+    public void setMetrics(Metrics metrics) {
+        this.flushLatencyHistogram = metrics.getLatencyHistogram(METRICS_LATENCY_FLUSH);
+        this.writeRowLatencyHistogram = metrics.getLatencyHistogram(METRICS_LATENCY_WRITE_ROW);
+    }
+
+    /** Index of this TSV's segment in its table, starting at 0. Later segments are created when a segment is full. */
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    /** @see #getSegmentIndex */
+    public void setSegmentIndex(int segmentIndex) {
+        this.segmentIndex = segmentIndex;
+    }
+
+    /**
+     * Starts writing a row and its record ID and upload time. Returns false if the segment is sealed, in which case
+     * the caller should write to the table's next segment instead. If this returns true, the caller must call
+     * {@link #endRow} when it's done.
+     */
+    public boolean tryBeginRow() {
+        numRowsInProgress.incrementAndGet();
+        if (sealed) {
+            endRow();
+            return false;
+        }
+        return true;
+    }
+
+    /** Finishes a row started by {@link #tryBeginRow}. */
+    public void endRow() {
+        if (numRowsInProgress.decrementAndGet() == 0 && sealed) {
+            synchronized (rowsInProgressMonitor) {
+                rowsInProgressMonitor.notifyAll();
+            }
+        }
+    }
+
+    /** Seals the segment, so no new rows are started. Rows already in progress can still finish. */
+    public void seal() {
+        sealed = true;
+    }
+
+    /** True if the segment has been sealed. */
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Waits for the rows that were in progress when the segment was sealed. Call this before flushing and closing a
+     * sealed segment.
+     *
+     * @throws InterruptedException
+     *         if the thread is interrupted while waiting
+     */
+    public void waitForRowsInProgress() throws InterruptedException {
+        synchronized (rowsInProgressMonitor) {
+            while (numRowsInProgress.get() > 0) {
+                rowsInProgressMonitor.wait();
+            }
+        }
     }
 
     /** Checks if the TSV is properly initialized. Throws a BridgeExporterException if it isn't. */
@@ -74,9 +248,49 @@ public class TsvInfo {
         }
     }
 
-    /** Flushes and closes the writer. This also checks the writer for errors and will throw if there are errors. */
-    public void flushAndCloseWriter() throws BridgeExporterException {
+    /** Column names in this TSV, or null if the TSV failed to initialize. */
+    public List<String> getColumnNameList() {
+        return columnNameList;
+    }
+
+    /** The error that caused the TSV to fail to initialize, or null if the TSV was initialized successfully. */
+    public Throwable getInitError() {
+        return initError;
+    }
+
+    /**
+     * Flushes the writer without closing it, so that the file on disk contains every row written so far. Used to
+     * checkpoint the TSV. This also checks the writer for errors and will throw if there are errors. In sharded mode,
+     * this appends the shards to the file, so this must only be called once all rows are written.
+     */
+    public synchronized void flush() throws BridgeExporterException {
+        checkInitAndThrow();
+        if (tsvWriter == null) {
+            // Restored from a checkpoint. Already flushed.
+            return;
+        }
+
+        try {
+            tsvWriter.flush();
+        } catch (IOException ex) {
+            throw new BridgeExporterException("Error flushing TSV writer: " + ex.getMessage(), ex);
+        }
+        if (tsvWriter.checkError()) {
+            throw new BridgeExporterException("TSV writer has unknown error");
+        }
+        appendShards();
+    }
+
+    /**
+     * Flushes and closes the writer. This also checks the writer for errors and will throw if there are errors. In
+     * sharded mode, this appends the shards to the file, so this must only be called once all rows are written.
+     */
+    public synchronized void flushAndCloseWriter() throws BridgeExporterException {
         checkInitAndThrow();
+        if (tsvWriter == null) {
+            // Restored from a checkpoint. The file was fully flushed before the checkpoint was written.
+            return;
+        }
 
         // Error handling code here is a bit of a mess. Internally, CSVWriter creates a PrintWriter, which doesn't
         // throw, but exposes checkError() check for errors. However, CSVWriter declares that flush() throws, even
@@ -85,12 +299,14 @@ public class TsvInfo {
         // implementation to make sure all the libraries are doing what we expect, this makes testing error handling
         // code difficult at best. As such, none of the error handling code is exercised by tests. Fortunately, we log
         // and rethrow very thoroughly, so if an error occurs, we shouldn't have any problems.
+        long startNanos = System.nanoTime();
         try {
             tsvWriter.flush();
             if (tsvWriter.checkError()) {
                 LOG.error("TSV writer has unknown error");
                 throw new BridgeExporterException("TSV writer has unknown error");
             }
+            appendShards();
         } catch (IOException ex) {
             LOG.error("Error flushing TSV writer: " + ex.getMessage(), ex);
             throw new BridgeExporterException("Error flushing TSV writer: " + ex.getMessage(), ex);
@@ -101,42 +317,157 @@ public class TsvInfo {
                 LOG.error("Error closing TSV writer: " + ex.getMessage(), ex);
                 //noinspection ThrowFromFinallyBlock
                 throw new BridgeExporterException("Error closing TSV writer: " + ex.getMessage(), ex);
+            } finally {
+                if (flushLatencyHistogram != null) {
+                    flushLatencyHistogram.recordNanos(System.nanoTime() - startNanos);
+                }
             }
         }
     }
 
+    // Closes each shard and appends it to the end of the TSV file, which must already be flushed. Nothing else writes
+    // to the TSV file in sharded mode, so appending through a separate channel doesn't interleave with the writer.
+    // FileChannel.transferTo() lets the OS copy the file without reading it into the JVM. Must be called under this
+    // object's lock.
+    private void appendShards() throws BridgeExporterException {
+        if (shardsByThreadId.isEmpty()) {
+            return;
+        }
+
+        try (FileChannel tsvChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            Iterator<Shard> shardIter = shardsByThreadId.values().iterator();
+            while (shardIter.hasNext()) {
+                Shard shard = shardIter.next();
+                shard.close();
+
+                long shardSize;
+                try (FileChannel shardChannel = FileChannel.open(shard.file.toPath(), StandardOpenOption.READ)) {
+                    shardSize = shardChannel.size();
+                    long position = 0;
+                    while (position < shardSize) {
+                        position += shardChannel.transferTo(position, shardSize - position, tsvChannel);
+                    }
+                }
+                Files.delete(shard.file.toPath());
+
+                // Remove the shard before adding its counts, so progress reports undercount rather than overcount.
+                shardIter.remove();
+                appendedShardNumBytes += shardSize;
+                lineCount += shard.lineCount;
+                synchronized (shard) {
+                    recordIds.addAll(shard.recordIds);
+                    uploadedOnCounts.addAll(shard.uploadedOnCounts);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.error("Error appending TSV shards to file " + file.getName() + ": " + ex.getMessage(), ex);
+            throw new BridgeExporterException("Error appending TSV shards to file " + file.getName() + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
     /** TSV file. */
     public File getFile() {
         return file;
     }
 
-    /** Number of lines written to TSV file. */
+    /** Number of lines written to TSV file, including lines in shards that haven't been appended yet. */
     public int getLineCount() {
-        return lineCount;
+        int count = lineCount;
+        for (Shard oneShard : shardsByThreadId.values()) {
+            count += oneShard.lineCount;
+        }
+        return count;
     }
 
     /**
-     * helper method to add a record id into the list
+     * Number of bytes written to the TSV file, as UTF-8, including the header and shards that haven't been appended
+     * yet. Rows may still be buffered in the writer, so this can be ahead of the file on disk.
      */
+    public long getNumBytes() {
+        if (byteCountingWriter == null) {
+            return restoredNumBytes;
+        }
+
+        long count = byteCountingWriter.numBytes + appendedShardNumBytes;
+        for (Shard oneShard : shardsByThreadId.values()) {
+            count += oneShard.byteCountingWriter.numBytes;
+        }
+        return count;
+    }
+
+    /** Adds the ID of a record written to the TSV. Must be called on the thread that wrote the record's row. */
     public void addRecordId(String recordId) {
-        this.recordIds.add(recordId);
+        Shard shard = getShardForCurrentThread();
+        if (shard != null) {
+            synchronized (shard) {
+                shard.recordIds.add(recordId);
+            }
+        } else {
+            synchronized (this) {
+                recordIds.add(recordId);
+            }
+        }
+    }
+
+    /** IDs of the records written to the TSV, including records in shards that haven't been appended yet. */
+    public synchronized List<String> getRecordIds() {
+        ImmutableList.Builder<String> recordIdListBuilder = ImmutableList.<String>builder().addAll(recordIds);
+        for (Shard oneShard : shardsByThreadId.values()) {
+            synchronized (oneShard) {
+                recordIdListBuilder.addAll(oneShard.recordIds);
+            }
+        }
+        return recordIdListBuilder.build();
     }
 
-    public List<String> getRecordIds() {
-        return ImmutableList.copyOf(this.recordIds);
+    /**
+     * Adds the upload time of a record written to the TSV, in epoch milliseconds. Must be called on the thread that
+     * wrote the record's row.
+     */
+    public void addUploadedOn(long uploadedOn) {
+        Shard shard = getShardForCurrentThread();
+        if (shard != null) {
+            synchronized (shard) {
+                shard.uploadedOnCounts.add(uploadedOn);
+            }
+        } else {
+            synchronized (this) {
+                uploadedOnCounts.add(uploadedOn);
+            }
+        }
+    }
+
+    /**
+     * Number of records written to the TSV, by upload time. Keys are the start of each {@link
+     * #UPLOADED_ON_BUCKET_MILLIS} bucket, in epoch milliseconds, in ascending order. TSVs restored from a checkpoint
+     * don't keep upload times, so this is empty for those.
+     */
+    public synchronized SortedMap<Long, Integer> getUploadedOnCountsByBucket() {
+        UploadedOnCounts allUploadedOnCounts = new UploadedOnCounts();
+        allUploadedOnCounts.addAll(uploadedOnCounts);
+        for (Shard oneShard : shardsByThreadId.values()) {
+            synchronized (oneShard) {
+                allUploadedOnCounts.addAll(oneShard.uploadedOnCounts);
+            }
+        }
+        return new TreeMap<>(allUploadedOnCounts.countsByBucket);
     }
 
     /**
      * Writes the row to the TSV writer and increments the line count. Automatically appends a newline. If there are
-     * missing or extra values, this method silently ignores them, for backwards compatibility with older formats.
+     * missing or extra values, this method silently ignores them, for backwards compatibility with older formats. In
+     * sharded mode, this writes to the current thread's shard without locking.
      *
      * @param rowValueMap
      *         Map representing the row. Keys are column names, values are column values.
      * @throws BridgeExporterException
-     *         if the TSV info was not properly initialized
+     *         if the TSV info was not properly initialized, or if the shard file couldn't be created
      */
-    public synchronized void writeRow(Map<String, String> rowValueMap) throws BridgeExporterException {
+    public void writeRow(Map<String, String> rowValueMap) throws BridgeExporterException {
         checkInitAndThrow();
+        long startNanos = System.nanoTime();
 
         // Using the columnNameList, go through the row values in order and flatten them into an array.
         int numColumns = columnNameList.size();
@@ -145,7 +476,144 @@ public class TsvInfo {
             rowValueArray[i] = rowValueMap.get(columnNameList.get(i));
         }
 
-        tsvWriter.writeNext(rowValueArray);
-        lineCount++;
+        if (shardWriterFactory != null) {
+            // Only the current thread writes to its shard, so the line count doesn't need to be atomic.
+            Shard shard = getOrCreateShardForCurrentThread();
+            shard.tsvWriter.writeNext(rowValueArray);
+            shard.lineCount++;
+        } else {
+            synchronized (this) {
+                tsvWriter.writeNext(rowValueArray);
+                lineCount++;
+            }
+        }
+
+        if (writeRowLatencyHistogram != null) {
+            writeRowLatencyHistogram.recordNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    // Returns the current thread's shard, or null if not in sharded mode or if this thread hasn't written any rows.
+    private Shard getShardForCurrentThread() {
+        if (shardWriterFactory == null) {
+            return null;
+        }
+        return shardsByThreadId.get(Thread.currentThread().getId());
+    }
+
+    // Returns the current thread's shard, creating it if this is the thread's first row. Shards are only created by
+    // the thread that owns them, so the common case is a lock-free get().
+    private Shard getOrCreateShardForCurrentThread() throws BridgeExporterException {
+        long threadId = Thread.currentThread().getId();
+        Shard shard = shardsByThreadId.get(threadId);
+        if (shard == null) {
+            File shardFile = new File(file.getPath() + SHARD_FILE_SUFFIX + numShardsCreated.getAndIncrement());
+            try {
+                shard = new Shard(shardFile, shardWriterFactory.getWriter(shardFile));
+            } catch (IOException ex) {
+                throw new BridgeExporterException("Error creating TSV shard " + shardFile.getName() + ": " +
+                        ex.getMessage(), ex);
+            }
+            shardsByThreadId.put(threadId, shard);
+        }
+        return shard;
+    }
+
+    /** Opens writers for TSV shard files. See {@link TsvInfo#TsvInfo(List, File, Writer, ShardWriterFactory)}. */
+    @FunctionalInterface
+    public interface ShardWriterFactory {
+        /** Opens a writer for the given shard file. */
+        Writer getWriter(File shardFile) throws IOException;
+    }
+
+    // Rows written by a single thread, in sharded mode. The writer and line count are only written by the owning
+    // thread. Record IDs and upload time counts are guarded by the shard's lock, which is uncontended except while
+    // the TSV is being flushed.
+    private static class Shard {
+        private final File file;
+        private final ByteCountingWriter byteCountingWriter;
+        private final CSVWriter tsvWriter;
+        private volatile int lineCount = 0;
+        private final List<String> recordIds = new ArrayList<>();
+        private final UploadedOnCounts uploadedOnCounts = new UploadedOnCounts();
+
+        Shard(File file, Writer writer) {
+            this.file = file;
+            this.byteCountingWriter = new ByteCountingWriter(writer);
+            this.tsvWriter = new CSVWriter(byteCountingWriter, '\t');
+        }
+
+        // Flushes and closes the shard writer, so the shard file has all of the shard's rows.
+        void close() throws IOException {
+            tsvWriter.flush();
+            if (tsvWriter.checkError()) {
+                throw new IOException("TSV shard writer has unknown error");
+            }
+            tsvWriter.close();
+        }
+    }
+
+    // Counts of upload times, bucketed at write time. This grows with the time range the records were uploaded in,
+    // not with the number of records, so large TSVs don't hold on to a value per row.
+    private static class UploadedOnCounts {
+        private final Map<Long, Integer> countsByBucket = new HashMap<>();
+
+        void add(long uploadedOn) {
+            long bucketStart = Math.floorDiv(uploadedOn, UPLOADED_ON_BUCKET_MILLIS) * UPLOADED_ON_BUCKET_MILLIS;
+            countsByBucket.merge(bucketStart, 1, Integer::sum);
+        }
+
+        void addAll(UploadedOnCounts other) {
+            other.countsByBucket.forEach((bucketStart, count) -> countsByBucket.merge(bucketStart, count,
+                    Integer::sum));
+        }
+    }
+
+    // Writer that counts the UTF-8 bytes written through it. Writes come from CSVWriter, which is only called in the
+    // constructor and under the TsvInfo's lock, or by a shard's owning thread, so the count doesn't need to be atomic.
+    // It's volatile so it can be read without locking.
+    private static class ByteCountingWriter extends FilterWriter {
+        private volatile long numBytes = 0;
+
+        ByteCountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            numBytes += utf8Length((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            long count = 0;
+            for (int i = off; i < off + len; i++) {
+                count += utf8Length(cbuf[i]);
+            }
+            numBytes += count;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            long count = 0;
+            for (int i = off; i < off + len; i++) {
+                count += utf8Length(str.charAt(i));
+            }
+            numBytes += count;
+        }
+
+        // UTF-8 length of a single UTF-16 char. A surrogate pair is 4 bytes in UTF-8, so each half counts for 2.
+        private static int utf8Length(char c) {
+            if (c < 0x80) {
+                return 1;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                return 2;
+            } else {
+                return 3;
+            }
+        }
     }
 }
@@ -1,6 +1,8 @@
 package org.sagebionetworks.bridge.exporter.dynamo;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -9,9 +11,17 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.EXPIRES_ON;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.EXPORTED_ON;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.FRESHNESS_MAX_LAG_MILLIS;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.FRESHNESS_NUM_RECORDS;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.FRESHNESS_P50_LAG_MILLIS;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.FRESHNESS_P99_LAG_MILLIS;
 import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.IDENTIFIER;
 import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.LAST_EXPORT_DATE_TIME;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.LAST_EXPORT_RECORD_COUNT;
 import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.STUDY_ID;
+import static org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper.TAG;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
@@ -20,17 +30,34 @@ import static org.testng.Assert.assertTrue;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.GetItemOutcome;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyAttribute;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.GetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatcher;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoScanHelper;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 
@@ -51,6 +78,8 @@ public class DynamoHelperTest {
     private static final String CALCULATED_LAST_EXPORT_TIME_STRING = "2016-05-08T00:00:00.000-0700";
     private static final DateTime CALCULATED_LAST_EXPORT_TIME = DateTime.parse(CALCULATED_LAST_EXPORT_TIME_STRING);
 
+    private static final double GET_ITEM_CONSUMED_CAPACITY = 1.5;
+
     @Test
     public void getStudyInfo() {
         // mock DDB Study table - only include relevant attributes
@@ -58,10 +87,11 @@ public class DynamoHelperTest {
                 .withString("synapseProjectId", "test-synapse-table");
 
         Table mockStudyTable = mock(Table.class);
-        when(mockStudyTable.getItem("identifier", "test-study")).thenReturn(studyItem);
+        mockGetItem(mockStudyTable, "identifier", "test-study", studyItem);
 
         // set up Dynamo Helper
         DynamoHelper helper = new DynamoHelper();
+        helper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         helper.setDdbStudyTable(mockStudyTable);
 
         // execute and validate
@@ -79,10 +109,11 @@ public class DynamoHelperTest {
     public void getStudyInfoNullStudy() {
         // mock DDB Study table
         Table mockStudyTable = mock(Table.class);
-        when(mockStudyTable.getItem("identifier", "test-study")).thenReturn(null);
+        mockGetItem(mockStudyTable, "identifier", "test-study", null);
 
         // set up Dynamo Helper
         DynamoHelper helper = new DynamoHelper();
+        helper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         helper.setDdbStudyTable(mockStudyTable);
 
         // execute and validate - should return null instead of crashing
@@ -96,10 +127,11 @@ public class DynamoHelperTest {
         Item studyItem = new Item().withString("synapseProjectId", "test-synapse-table");
 
         Table mockStudyTable = mock(Table.class);
-        when(mockStudyTable.getItem("identifier", "test-study")).thenReturn(studyItem);
+        mockGetItem(mockStudyTable, "identifier", "test-study", studyItem);
 
         // set up Dynamo Helper
         DynamoHelper helper = new DynamoHelper();
+        helper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         helper.setDdbStudyTable(mockStudyTable);
 
         // execute and validate - studyInfo is null because the StudyInfo builder returns null if either attributes are
@@ -114,10 +146,11 @@ public class DynamoHelperTest {
         Item studyItem = new Item().withLong("synapseDataAccessTeamId", 1337);
 
         Table mockStudyTable = mock(Table.class);
-        when(mockStudyTable.getItem("identifier", "test-study")).thenReturn(studyItem);
+        mockGetItem(mockStudyTable, "identifier", "test-study", studyItem);
 
         // set up Dynamo Helper
         DynamoHelper helper = new DynamoHelper();
+        helper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         helper.setDdbStudyTable(mockStudyTable);
 
         // execute and validate - Similarly, studyInfo is also null here
@@ -133,10 +166,11 @@ public class DynamoHelperTest {
                 .withInt("studyIdExcludedInExport", 1).withInt("usesCustomExportSchedule", 1);
 
         Table mockStudyTable = mock(Table.class);
-        when(mockStudyTable.getItem("identifier", "test-study")).thenReturn(studyItem);
+        mockGetItem(mockStudyTable, "identifier", "test-study", studyItem);
 
         // set up Dynamo Helper
         DynamoHelper helper = new DynamoHelper();
+        helper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         helper.setDdbStudyTable(mockStudyTable);
 
         // execute and validate
@@ -166,11 +200,12 @@ public class DynamoHelperTest {
                 LAST_EXPORT_DATE_TIME, FOO_LAST_EXPORT_TIME.getMillis());
         Item barItem = new Item().withString(STUDY_ID, "ddb-bar").withLong(
                 LAST_EXPORT_DATE_TIME, BAR_LAST_EXPORT_TIME.getMillis());
-        when(mockExportTimeTable.getItem(STUDY_ID, "ddb-foo")).thenReturn(fooItem);
-        when(mockExportTimeTable.getItem(STUDY_ID, "ddb-bar")).thenReturn(barItem);
+        mockGetItem(mockExportTimeTable, STUDY_ID, "ddb-foo", fooItem);
+        mockGetItem(mockExportTimeTable, STUDY_ID, "ddb-bar", barItem);
 
         // Spy DynamoHelper, so we can mock getStudyInfo() and not entwine the implementation of that with this test.
         DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         dynamoHelper.setDdbExportTimeTable(mockExportTimeTable);
         dynamoHelper.setConfig(mockConfig());
         mockDdbScanHelperWithStudies(dynamoHelper, "ddb-foo", "ddb-bar", "unconfigured-study", "disabled-study",
@@ -212,11 +247,12 @@ public class DynamoHelperTest {
                 LAST_EXPORT_DATE_TIME, FOO_LAST_EXPORT_TIME.getMillis());
         Item barItem = new Item().withString(STUDY_ID, "custom-export-study-bar").withLong(
                 LAST_EXPORT_DATE_TIME, BAR_LAST_EXPORT_TIME.getMillis());
-        when(mockExportTimeTable.getItem(STUDY_ID, "normal-study-foo")).thenReturn(fooItem);
-        when(mockExportTimeTable.getItem(STUDY_ID, "custom-export-study-bar")).thenReturn(barItem);
+        mockGetItem(mockExportTimeTable, STUDY_ID, "normal-study-foo", fooItem);
+        mockGetItem(mockExportTimeTable, STUDY_ID, "custom-export-study-bar", barItem);
 
         // Spy DynamoHelper, so we can mock getStudyInfo() and not entwine the implementation of that with this test.
         DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         dynamoHelper.setDdbScanHelper(mockDdbScanHelper);
         dynamoHelper.setDdbExportTimeTable(mockExportTimeTable);
         dynamoHelper.setConfig(mockConfig());
@@ -250,6 +286,7 @@ public class DynamoHelperTest {
 
         // Spy DynamoHelper, so we can mock getStudyInfo() and not entwine the implementation of that with this test.
         DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         dynamoHelper.setDdbExportTimeTable(mockExportTimeTable);
         dynamoHelper.setConfig(mockConfig());
         mockDdbScanHelperWithStudies(dynamoHelper, "ddb-foo", "ddb-bar");
@@ -272,7 +309,7 @@ public class DynamoHelperTest {
         assertEquals(studyIdsToUpdate.get("ddb-bar").toString(), START_DATE_TIME.toString());
 
         // We never call the export time table
-        verify(mockExportTimeTable, never()).getItem(any(), any());
+        verify(mockExportTimeTable, never()).getItemOutcome(any(GetItemSpec.class));
     }
 
     @Test
@@ -282,6 +319,7 @@ public class DynamoHelperTest {
 
         // Spy DynamoHelper, so we can mock getStudyInfo() and not entwine the implementation of that with this test.
         DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         dynamoHelper.setDdbExportTimeTable(mockExportTimeTable);
         dynamoHelper.setConfig(mockConfig());
         mockDdbScanHelperWithStudies(dynamoHelper, "ddb-foo", "ddb-bar");
@@ -312,11 +350,12 @@ public class DynamoHelperTest {
                 LAST_EXPORT_DATE_TIME, END_DATE_TIME.getMillis());
         Item barItem = new Item().withString(STUDY_ID, "ddb-bar").withLong(
                 LAST_EXPORT_DATE_TIME, END_DATE_TIME.getMillis() + 10000);
-        when(mockExportTimeTable.getItem(STUDY_ID, "ddb-foo")).thenReturn(fooItem);
-        when(mockExportTimeTable.getItem(STUDY_ID, "ddb-bar")).thenReturn(barItem);
+        mockGetItem(mockExportTimeTable, STUDY_ID, "ddb-foo", fooItem);
+        mockGetItem(mockExportTimeTable, STUDY_ID, "ddb-bar", barItem);
 
         // Spy DynamoHelper, so we can mock getStudyInfo() and not entwine the implementation of that with this test.
         DynamoHelper dynamoHelper = spy(new DynamoHelper());
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
         dynamoHelper.setDdbExportTimeTable(mockExportTimeTable);
         dynamoHelper.setConfig(mockConfig());
         mockDdbScanHelperWithStudies(dynamoHelper, "ddb-foo", "ddb-bar");
@@ -367,7 +406,7 @@ public class DynamoHelperTest {
         testStudyIdsToUpdate.add("id2");
 
         // execute
-        dynamoHelper.updateExportTimeTable(testStudyIdsToUpdate, END_DATE_TIME);
+        dynamoHelper.updateExportTimeTable(testStudyIdsToUpdate, END_DATE_TIME, ImmutableMap.of("id1", 42));
 
         // verify
         ArgumentCaptor<Item> itemArgumentCaptor = ArgumentCaptor.forClass(Item.class);
@@ -377,9 +416,11 @@ public class DynamoHelperTest {
         Item item1 = items.get(0);
         assertEquals(item1.get(STUDY_ID), "id1");
         assertEquals(item1.getLong(LAST_EXPORT_DATE_TIME), END_DATE_TIME.getMillis());
+        assertEquals(item1.getInt(LAST_EXPORT_RECORD_COUNT), 42);
         Item item2 = items.get(1);
         assertEquals(item2.get(STUDY_ID), "id2");
         assertEquals(item2.getLong(LAST_EXPORT_DATE_TIME), END_DATE_TIME.getMillis());
+        assertFalse(item2.hasAttribute(LAST_EXPORT_RECORD_COUNT));
     }
 
     @Test
@@ -389,7 +430,7 @@ public class DynamoHelperTest {
         dynamoHelper.setDdbExportTimeTable(mockDdbExportTimeTable);
 
         // execute
-        dynamoHelper.updateExportTimeTable(ImmutableList.of(), END_DATE_TIME);
+        dynamoHelper.updateExportTimeTable(ImmutableList.of(), END_DATE_TIME, ImmutableMap.of());
 
         // verify
         verifyNoMoreInteractions(mockDdbExportTimeTable);
@@ -406,17 +447,143 @@ public class DynamoHelperTest {
         testStudyIdsToUpdate.add("id2");
 
         // execute
-        dynamoHelper.updateExportTimeTable(testStudyIdsToUpdate, null);
+        dynamoHelper.updateExportTimeTable(testStudyIdsToUpdate, null, ImmutableMap.of());
 
         // verify
         verifyNoMoreInteractions(mockDdbExportTimeTable);
     }
 
+    @Test
+    public void addFreshnessHistory() {
+        Table mockDdbExportFreshnessTable = mock(Table.class);
+        DynamoHelper dynamoHelper = new DynamoHelper();
+        dynamoHelper.setConfig(mockConfig());
+        dynamoHelper.setDdbExportFreshnessTable(mockDdbExportFreshnessTable);
+
+        // foo has 2 records, 1 and 3 hours from upload to import. bar has no records.
+        LatencyHistogram fooHistogram = new LatencyHistogram();
+        fooHistogram.recordNanos(TimeUnit.HOURS.toNanos(1));
+        fooHistogram.recordNanos(TimeUnit.HOURS.toNanos(3));
+
+        // execute
+        dynamoHelper.addFreshnessHistory(END_DATE_TIME, "unit-test-tag", ImmutableMap.of("foo",
+                fooHistogram.snapshot(), "bar", new LatencyHistogram().snapshot()));
+
+        // verify - Percentiles are accurate to about 3%.
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockDdbExportFreshnessTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(STUDY_ID), "foo");
+        assertEquals(item.getLong(EXPORTED_ON), END_DATE_TIME.getMillis());
+        assertEquals(item.getString(TAG), "unit-test-tag");
+        assertEquals(item.getLong(FRESHNESS_NUM_RECORDS), 2);
+        assertEquals(item.getLong(FRESHNESS_P50_LAG_MILLIS), TimeUnit.HOURS.toMillis(1),
+                TimeUnit.HOURS.toMillis(1) * 0.04);
+        assertEquals(item.getLong(FRESHNESS_P99_LAG_MILLIS), TimeUnit.HOURS.toMillis(3),
+                TimeUnit.HOURS.toMillis(3) * 0.04);
+        assertEquals(item.getLong(FRESHNESS_MAX_LAG_MILLIS), TimeUnit.HOURS.toMillis(3));
+        assertEquals(item.getLong(EXPIRES_ON), TimeUnit.MILLISECONDS.toSeconds(END_DATE_TIME.getMillis()) +
+                TimeUnit.DAYS.toSeconds(90));
+    }
+
+    @Test
+    public void getLastExportRecordCounts() {
+        // foo has a record count, bar has an export time but no record count, baz has no export time.
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        Table mockDdbExportTimeTable = mock(Table.class);
+        when(mockDdbExportTimeTable.getTableName()).thenReturn("ExportTime");
+
+        List<Map<String, AttributeValue>> itemList = ImmutableList.of(
+                ImmutableMap.of(STUDY_ID, new AttributeValue().withS("foo"),
+                        LAST_EXPORT_RECORD_COUNT, new AttributeValue().withN("1234")),
+                ImmutableMap.of(STUDY_ID, new AttributeValue().withS("bar")));
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenReturn(new BatchGetItemOutcome(new BatchGetItemResult().withResponses(ImmutableMap.of(
+                        "ExportTime", itemList))));
+
+        DynamoHelper dynamoHelper = new DynamoHelper();
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
+        dynamoHelper.setDdbClient(mockDdbClient);
+        dynamoHelper.setDdbExportTimeTable(mockDdbExportTimeTable);
+
+        // execute and validate
+        Map<String, Integer> recordCountsByStudy = dynamoHelper.getLastExportRecordCounts(ImmutableList.of("foo",
+                "bar", "baz"));
+        assertEquals(recordCountsByStudy, ImmutableMap.of("foo", 1234));
+
+        ArgumentCaptor<TableKeysAndAttributes> keysCaptor = ArgumentCaptor.forClass(TableKeysAndAttributes.class);
+        verify(mockDdbClient).batchGetItem(eq(ReturnConsumedCapacity.TOTAL), keysCaptor.capture());
+        assertEquals(keysCaptor.getValue().getTableName(), "ExportTime");
+        assertEquals(keysCaptor.getValue().getPrimaryKeys().size(), 3);
+    }
+
+    @Test
+    public void getLastExportRecordCountsError() {
+        DynamoDB mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class))).thenThrow(
+                AmazonClientException.class);
+
+        DynamoHelper dynamoHelper = new DynamoHelper();
+        dynamoHelper.setDdbReadThrottle(mock(DynamoReadThrottle.class));
+        dynamoHelper.setDdbClient(mockDdbClient);
+        dynamoHelper.setDdbExportTimeTable(mock(Table.class));
+
+        // Errors are treated as unknown record counts.
+        assertTrue(dynamoHelper.getLastExportRecordCounts(ImmutableList.of("foo")).isEmpty());
+    }
+
+    @Test
+    public void getItemRecordsConsumedCapacity() {
+        Item studyItem = new Item().withLong("synapseDataAccessTeamId", 1337)
+                .withString("synapseProjectId", "test-synapse-table");
+        Table mockStudyTable = mock(Table.class);
+        mockGetItem(mockStudyTable, "identifier", "test-study", studyItem);
+
+        DynamoReadThrottle mockThrottle = mock(DynamoReadThrottle.class);
+        DynamoHelper helper = new DynamoHelper();
+        helper.setDdbStudyTable(mockStudyTable);
+        helper.setDdbReadThrottle(mockThrottle);
+
+        // execute and validate - the throttle is charged what DDB returned, not a fixed estimate
+        helper.getStudyInfo("test-study");
+
+        ArgumentCaptor<List> consumedCapacityCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockThrottle).acquire();
+        verify(mockThrottle).recordConsumedCapacity(consumedCapacityCaptor.capture(), eq(0.5));
+        List<ConsumedCapacity> consumedCapacityList = consumedCapacityCaptor.getValue();
+        assertEquals(consumedCapacityList.size(), 1);
+        assertEquals(consumedCapacityList.get(0).getCapacityUnits(), GET_ITEM_CONSUMED_CAPACITY);
+
+        ArgumentCaptor<GetItemSpec> getItemSpecCaptor = ArgumentCaptor.forClass(GetItemSpec.class);
+        verify(mockStudyTable).getItemOutcome(getItemSpecCaptor.capture());
+        assertEquals(getItemSpecCaptor.getValue().getReturnConsumedCapacity(),
+                ReturnConsumedCapacity.TOTAL.toString());
+    }
+
+    // Mocks a get of the item with the given hash key, returning the given item (which may be null) and
+    // GET_ITEM_CONSUMED_CAPACITY.
+    private static void mockGetItem(Table mockTable, String hashKeyName, String hashKeyValue, Item item) {
+        GetItemOutcome mockOutcome = mock(GetItemOutcome.class);
+        when(mockOutcome.getItem()).thenReturn(item);
+        when(mockOutcome.getGetItemResult()).thenReturn(new GetItemResult().withConsumedCapacity(
+                new ConsumedCapacity().withCapacityUnits(GET_ITEM_CONSUMED_CAPACITY)));
+
+        when(mockTable.getItemOutcome(argThat(new ArgumentMatcher<GetItemSpec>() {
+            @Override
+            public boolean matches(Object argument) {
+                KeyAttribute key = Iterables.getOnlyElement(((GetItemSpec) argument).getKeyComponents());
+                return hashKeyName.equals(key.getName()) && hashKeyValue.equals(key.getValue());
+            }
+        }))).thenReturn(mockOutcome);
+    }
+
     private static Config mockConfig() {
         Config mockConfig = mock(Config.class);
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET))
                 .thenReturn("dummy-override-bucket");
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME)).thenReturn("America/Los_Angeles");
+        when(mockConfig.getInt(DynamoHelper.CONFIG_KEY_FRESHNESS_HISTORY_RETENTION_DAYS)).thenReturn(90);
         return mockConfig;
     }
 }
@@ -0,0 +1,182 @@
+package org.sagebionetworks.bridge.exporter.dynamo;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.ProvisionedThroughputDescription;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class DynamoReadThrottleTest {
+    private static final double DELTA = 0.001;
+    private static final long START_MILLIS = 1000000L;
+
+    private Table mockRecordTable;
+    private DynamoReadThrottle throttle;
+
+    @BeforeMethod
+    public void before() {
+        // Provisioned read capacity of 100, so the ceiling is 80.
+        mockRecordTable = mock(Table.class);
+        when(mockRecordTable.describe()).thenReturn(makeTableDescription(100L));
+
+        throttle = spy(new DynamoReadThrottle());
+        throttle.setConfig(mockConfig(50.0));
+        throttle.setDdbRecordTable(mockRecordTable);
+        doReturn(START_MILLIS).when(throttle).now();
+    }
+
+    @Test
+    public void initialRate() {
+        assertEquals(throttle.getRate(), 50.0, DELTA);
+    }
+
+    @Test
+    public void increasesOncePerPeriodUpToCeiling() {
+        // First read adjusts immediately, since we've never adjusted before.
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 60.0, DELTA);
+
+        // Another read in the same period doesn't change the rate.
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 60.0, DELTA);
+
+        // Each period raises the rate by the step, until the ceiling.
+        for (int i = 1; i <= 5; i++) {
+            doReturn(START_MILLIS + i * 1000).when(throttle).now();
+            throttle.recordConsumedCapacity(1.0);
+        }
+        assertEquals(throttle.getRate(), 80.0, DELTA);
+
+        // The table is only described once.
+        verify(mockRecordTable, times(1)).describe();
+    }
+
+    @Test
+    public void throttledCutsRateOncePerPeriod() {
+        throttle.onThrottled();
+        assertEquals(throttle.getRate(), 25.0, DELTA);
+
+        // Same burst, rate isn't cut again.
+        throttle.onThrottled();
+        assertEquals(throttle.getRate(), 25.0, DELTA);
+        assertEquals(throttle.getNumThrottleEvents(), 2);
+
+        // Next period, rate is cut again.
+        doReturn(START_MILLIS + 1000).when(throttle).now();
+        throttle.onThrottled();
+        assertEquals(throttle.getRate(), 12.5, DELTA);
+    }
+
+    @Test
+    public void throttledWhileReading() {
+        // Reads and throttling events in the same periods. The first read raises the rate, but the throttling event in
+        // the same period still cuts it.
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 60.0, DELTA);
+        throttle.onThrottled();
+        assertEquals(throttle.getRate(), 30.0, DELTA);
+
+        // The cut restarts the increase period, so reads later in the period don't raise the rate.
+        doReturn(START_MILLIS + 500).when(throttle).now();
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 30.0, DELTA);
+
+        // Next period, a read raises the rate, and a throttling event cuts it again.
+        doReturn(START_MILLIS + 1000).when(throttle).now();
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 40.0, DELTA);
+        throttle.onThrottled();
+        assertEquals(throttle.getRate(), 20.0, DELTA);
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 20.0, DELTA);
+        assertEquals(throttle.getNumThrottleEvents(), 2);
+    }
+
+    @Test
+    public void throttledDoesNotGoBelowMinRate() {
+        for (int i = 0; i < 10; i++) {
+            doReturn(START_MILLIS + i * 1000).when(throttle).now();
+            throttle.onThrottled();
+        }
+        assertEquals(throttle.getRate(), 5.0, DELTA);
+    }
+
+    @Test
+    public void initialRateAboveCeilingIsLoweredOnFirstAdjustment() {
+        throttle.setConfig(mockConfig(500.0));
+        assertEquals(throttle.getRate(), 500.0, DELTA);
+
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 80.0, DELTA);
+    }
+
+    @Test
+    public void onDemandTableUsesMaxRate() {
+        when(mockRecordTable.describe()).thenReturn(makeTableDescription(0L));
+        throttle.setConfig(mockConfig(995.0));
+
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 1000.0, DELTA);
+    }
+
+    @Test
+    public void describeErrorUsesMaxRate() {
+        when(mockRecordTable.describe()).thenThrow(AmazonClientException.class);
+        throttle.setConfig(mockConfig(995.0));
+
+        throttle.recordConsumedCapacity(1.0);
+        assertEquals(throttle.getRate(), 1000.0, DELTA);
+    }
+
+    @Test
+    public void consumedCapacityAndEstimates() {
+        // These should all record without error. Consumed capacity is paid on the next acquire.
+        throttle.recordConsumedCapacity(ImmutableList.of(new ConsumedCapacity().withCapacityUnits(2.0)), 10.0);
+        throttle.recordConsumedCapacity(null, 1.5);
+        throttle.recordConsumedCapacity(ImmutableList.of(new ConsumedCapacity()), 0.5);
+        throttle.acquire();
+        throttle.acquire();
+    }
+
+    @Test
+    public void publishMetrics() {
+        throttle.onThrottled();
+        throttle.onThrottled();
+
+        Metrics metrics = new Metrics();
+        throttle.publishMetrics(metrics, 0L, 1);
+        assertEquals(metrics.getKeyValuesMap().get(DynamoReadThrottle.METRICS_RATE).first(), "25.0");
+        assertEquals(metrics.getCounterMap().count(DynamoReadThrottle.METRICS_THROTTLE_EVENTS), 1);
+    }
+
+    private static Config mockConfig(double initialRate) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(DynamoReadThrottle.CONFIG_KEY_ADJUST_PERIOD_MILLIS)).thenReturn(1000);
+        when(mockConfig.get(DynamoReadThrottle.CONFIG_KEY_DECREASE_FACTOR)).thenReturn("0.5");
+        when(mockConfig.get(DynamoReadThrottle.CONFIG_KEY_INCREASE_STEP)).thenReturn("10");
+        when(mockConfig.get(DynamoReadThrottle.CONFIG_KEY_INITIAL_RATE)).thenReturn(String.valueOf(initialRate));
+        when(mockConfig.get(DynamoReadThrottle.CONFIG_KEY_MAX_RATE)).thenReturn("1000");
+        when(mockConfig.get(DynamoReadThrottle.CONFIG_KEY_MIN_RATE)).thenReturn("5");
+        when(mockConfig.get(DynamoReadThrottle.CONFIG_KEY_TARGET_FRACTION)).thenReturn("0.8");
+        return mockConfig;
+    }
+
+    private static TableDescription makeTableDescription(long readCapacityUnits) {
+        return new TableDescription().withProvisionedThroughput(new ProvisionedThroughputDescription()
+                .withReadCapacityUnits(readCapacityUnits));
+    }
+}
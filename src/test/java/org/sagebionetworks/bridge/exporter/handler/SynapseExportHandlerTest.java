@@ -9,6 +9,7 @@ import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
@@ -23,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.SortedMap;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -32,6 +34,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multiset;
 import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.sagebionetworks.repo.model.file.FileHandle;
@@ -41,8 +44,10 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
 import org.sagebionetworks.bridge.exporter.helper.BridgeHelperTest;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
@@ -50,6 +55,7 @@ import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.synapse.TransferMethod;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
 import org.sagebionetworks.bridge.exporter.util.TestUtil;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.worker.ExportSubtask;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.ExportWorkerManager;
@@ -122,6 +128,7 @@ public class SynapseExportHandlerTest {
             DUMMY_DATA_GROUPS_FLATTENED, DUMMY_SUBSTUDY_MEMBERSHIPS, String.valueOf(DUMMY_CREATED_ON), DUMMY_USER_SHARING_SCOPE);
 
     private ExportWorkerManager manager;
+    private ExportCheckpointHelper mockCheckpointHelper;
     private InMemoryFileHelper mockFileHelper;
     private SynapseHelper mockSynapseHelper;
     private byte[] tsvBytes;
@@ -163,9 +170,11 @@ public class SynapseExportHandlerTest {
         mockSynapseHelper = mock(SynapseHelper.class);
 
         // setup manager - This is mostly used to get helper objects.
+        mockCheckpointHelper = mock(ExportCheckpointHelper.class);
         manager = spy(new ExportWorkerManager());
         manager.setBridgeHelper(mockBridgeHelper);
         manager.setConfig(mockConfig);
+        manager.setExportCheckpointHelper(mockCheckpointHelper);
         manager.setFileHelper(mockFileHelper);
         manager.setSynapseHelper(mockSynapseHelper);
         manager.setSynapseColumnDefinitions(MOCK_COLUMN_DEFINITION);
@@ -245,9 +254,18 @@ public class SynapseExportHandlerTest {
         assertEquals(counterMap.count(handler.getDdbTableKeyValue() + ".lineCount"), 2);
         assertEquals(counterMap.count(handler.getDdbTableKeyValue() + ".errorCount"), 1);
 
+        // Freshness is recorded for both rows. These records don't have uploadedOn, so it falls back to createdOn.
+        SortedMap<String, LatencyHistogram.Snapshot> latencyMap = task.getMetrics().getLatencyHistograms();
+        assertEquals(latencyMap.get(SynapseExportHandler.METRICS_FRESHNESS_STUDY_PREFIX + TEST_STUDY_ID).getCount(),
+                2);
+        assertEquals(latencyMap.get(SynapseExportHandler.METRICS_FRESHNESS_TABLE_PREFIX +
+                handler.getDdbTableKeyValue()).getCount(), 2);
+
         // validate tsvInfo
         TsvInfo tsvInfo = handler.getTsvInfoForTask(task);
         assertEquals(tsvInfo.getLineCount(), 2);
+        long createdOnBucket = DUMMY_CREATED_ON - DUMMY_CREATED_ON % TsvInfo.UPLOADED_ON_BUCKET_MILLIS;
+        assertEquals(tsvInfo.getUploadedOnCountsByBucket(), ImmutableMap.of(createdOnBucket, 2));
         assertNotNull(tsvInfo.getRecordIds());
         List<String> recordIds = tsvInfo.getRecordIds();
         assertEquals(recordIds.size(), 2);
@@ -294,6 +312,119 @@ public class SynapseExportHandlerTest {
         assertTrue(tsvString.contains("test record"));
     }
 
+    @Test
+    public void rollingSegments() throws Exception {
+        // Segments roll over every 2 rows. Imports run on the calling thread, so each segment is imported as soon as
+        // it's full.
+        SynapseExportHandler handler = new TestSynapseHandler();
+        setup(handler);
+        doReturn(2).when(manager).getTsvSegmentMaxRows();
+        manager.setSynapseUploadExecutor(MoreExecutors.newDirectExecutorService());
+
+        List<List<String>> uploadedTsvList = new ArrayList<>();
+        when(mockSynapseHelper.uploadTsvFileToTable(eq(TEST_SYNAPSE_PROJECT_ID), eq(TEST_SYNAPSE_TABLE_ID),
+                notNull(File.class))).thenAnswer(invocation -> {
+            File tsvFile = invocation.getArgumentAt(2, File.class);
+            List<String> tsvLineList = TestUtil.bytesToLines(mockFileHelper.getBytes(tsvFile));
+            uploadedTsvList.add(tsvLineList);
+
+            // Exclude the header.
+            return tsvLineList.size() - 1;
+        });
+
+        // execute - 5 rows. The first 4 rows are imported in 2 segments. The 5th row is in the 3rd segment, which is
+        // imported as the last segment.
+        for (int i = 0; i < 5; i++) {
+            handler.handle(makeSubtask(task, "foo", "record " + i));
+        }
+        assertEquals(uploadedTsvList.size(), 2);
+        assertEquals(handler.getTsvInfoForTask(task).getSegmentIndex(), 2);
+        assertEquals(handler.getTsvInfoForTask(task).getLineCount(), 1);
+
+        handler.rollLastSegmentForTask(task);
+        assertEquals(uploadedTsvList.size(), 3);
+
+        // Validate segments. Each has the header and its own rows.
+        for (int i = 0; i < 3; i++) {
+            List<String> tsvLineList = uploadedTsvList.get(i);
+            validateTsvHeaders(tsvLineList.get(0), "foo");
+            for (int j = 1; j < tsvLineList.size(); j++) {
+                validateTsvRow(tsvLineList.get(j), "record " + (i * 2 + j - 1));
+            }
+        }
+        assertEquals(uploadedTsvList.get(2).size(), 2);
+
+        // All rows are counted, and all segments are imported.
+        Multiset<String> counterMap = task.getMetrics().getCounterMap();
+        assertEquals(counterMap.count(handler.getDdbTableKeyValue() + ".lineCount"), 5);
+        assertEquals(counterMap.count("tsvSegments.imported"), 3);
+        assertEquals(counterMap.count("tsvSegments.failed"), 0);
+
+        // Each segment's records are saved, so a restarted request doesn't import them again.
+        assertEquals(task.getNumSegmentsImported(), 3);
+        verify(mockCheckpointHelper, times(2)).markSegmentImported(DUMMY_REQUEST, handler.getDdbTableKeyValue(),
+                ImmutableList.of(DUMMY_RECORD_ID, DUMMY_RECORD_ID));
+        verify(mockCheckpointHelper).markSegmentImported(DUMMY_REQUEST, handler.getDdbTableKeyValue(),
+                ImmutableList.of(DUMMY_RECORD_ID));
+
+        // The task is left with an empty segment, which isn't uploaded at the end of the stream.
+        TsvInfo tsvInfo = handler.getTsvInfoForTask(task);
+        assertEquals(tsvInfo.getSegmentIndex(), 3);
+        assertEquals(tsvInfo.getLineCount(), 0);
+        handler.uploadToSynapseForTask(task);
+        verify(mockSynapseHelper, times(3)).uploadTsvFileToTable(any(), any(), any());
+
+        postValidation();
+    }
+
+    @Test
+    public void noRollingSegmentsWhileRestarting() throws Exception {
+        // A subtask found that Synapse is down and set the restart exception, so full segments aren't rolled over or
+        // imported.
+        SynapseExportHandler handler = new TestSynapseHandler();
+        setup(handler);
+        doReturn(2).when(manager).getTsvSegmentMaxRows();
+        manager.setSynapseUploadExecutor(MoreExecutors.newDirectExecutorService());
+        mockSynapseHelperUploadTsv(3);
+        task.setRestartException(new RestartBridgeExporterException("test exception"));
+
+        for (int i = 0; i < 3; i++) {
+            handler.handle(makeSubtask(task, "foo", "record " + i));
+        }
+        handler.rollLastSegmentForTask(task);
+
+        TsvInfo tsvInfo = handler.getTsvInfoForTask(task);
+        assertEquals(tsvInfo.getSegmentIndex(), 0);
+        assertEquals(tsvInfo.getLineCount(), 3);
+        verify(mockSynapseHelper, never()).uploadTsvFileToTable(any(), any(), any());
+
+        // Upload to clean up the TSV.
+        handler.uploadToSynapseForTask(task);
+        postValidation();
+    }
+
+    @Test
+    public void previouslyImportedRowsSkipped() throws Exception {
+        // A previous run of this request imported this record into this table, but not into another table.
+        SynapseExportHandler handler = new TestSynapseHandler();
+        setup(handler);
+        mockSynapseHelperUploadTsv(1);
+        task.setPreviouslyImportedRecordIdsByTable(ImmutableMap.of(handler.getDdbTableKeyValue(),
+                ImmutableSet.of(DUMMY_RECORD_ID), "other-table", ImmutableSet.of("other-record")));
+
+        handler.handle(makeSubtask(task, "foo", "imported record"));
+
+        // The row is skipped. The TSV is never created.
+        assertNull(handler.getTsvInfoForTask(task));
+        Multiset<String> counterMap = task.getMetrics().getCounterMap();
+        assertEquals(counterMap.count(handler.getDdbTableKeyValue() + ".previouslyImportedCount"), 1);
+        assertEquals(counterMap.count(handler.getDdbTableKeyValue() + ".lineCount"), 0);
+
+        handler.uploadToSynapseForTask(task);
+        verify(mockSynapseHelper, never()).uploadTsvFileToTable(any(), any(), any());
+        postValidation();
+    }
+
     @Test
     public void noRows() throws Exception {
         SynapseExportHandler handler = new TestSynapseHandler();
@@ -0,0 +1,194 @@
+package org.sagebionetworks.bridge.exporter.helper;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+public class SharingScopeCacheTest {
+    private static final String HEALTH_CODE_1 = "health-code-1";
+    private static final String HEALTH_CODE_2 = "health-code-2";
+    private static final String HEALTH_CODE_3 = "health-code-3";
+    private static final String STUDY_ID = "test-study";
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final int REFRESH_MINUTES = 5;
+    private static final int TTL_MINUTES = 60;
+    private static final long START_MILLIS = 1470000000000L;
+
+    private BridgeHelper mockBridgeHelper;
+
+    @BeforeMethod
+    public void before() {
+        mockBridgeHelper = mock(BridgeHelper.class);
+    }
+
+    @Test
+    public void missThenHit() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        SharingScopeCache cache = makeCache(100, START_MILLIS);
+
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1);
+        assertEquals(cache.getStats().hitCount(), 1);
+        assertEquals(cache.getStats().missCount(), 1);
+    }
+
+    @Test
+    public void refreshAhead() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        SharingScopeCache cache = makeCache(100, START_MILLIS);
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+
+        // Within the refresh period, the cached value is used.
+        mockParticipant(HEALTH_CODE_1, SharingScope.NO_SHARING);
+        doReturn(START_MILLIS + REFRESH_MINUTES * MILLIS_PER_MINUTE - 1).when(cache).now();
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1);
+
+        // After the refresh period, the cached value is still returned, but it's refreshed in the background. The
+        // tests run refreshes on the calling thread, so the next call sees the refreshed value.
+        doReturn(START_MILLIS + REFRESH_MINUTES * MILLIS_PER_MINUTE).when(cache).now();
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.NO_SHARING);
+        verify(mockBridgeHelper, times(2)).getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1);
+    }
+
+    @Test
+    public void expiredEntryIsReloaded() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        SharingScopeCache cache = makeCache(100, START_MILLIS);
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+
+        // After the TTL, the stale value is never returned.
+        mockParticipant(HEALTH_CODE_1, SharingScope.NO_SHARING);
+        doReturn(START_MILLIS + TTL_MINUTES * MILLIS_PER_MINUTE).when(cache).now();
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.NO_SHARING);
+        verify(mockBridgeHelper, times(2)).getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1);
+    }
+
+    @Test
+    public void nullSharingScope() {
+        mockParticipant(HEALTH_CODE_1, null);
+        SharingScopeCache cache = makeCache(100, START_MILLIS);
+
+        assertNull(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1));
+        assertNull(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1));
+        verify(mockBridgeHelper, times(1)).getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1);
+    }
+
+    @Test
+    public void failedLookupIsNotCached() {
+        BridgeSDKException bridgeException = new BridgeSDKException("test exception", null);
+        StudyParticipant participant = new StudyParticipant();
+        participant.setSharingScope(SharingScope.SPONSORS_AND_PARTNERS);
+        when(mockBridgeHelper.getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1)).thenThrow(bridgeException)
+                .thenReturn(participant);
+        SharingScopeCache cache = makeCache(100, START_MILLIS);
+
+        // The first call fails with the original exception.
+        try {
+            cache.getSharingScope(STUDY_ID, HEALTH_CODE_1);
+            fail("expected exception");
+        } catch (BridgeSDKException ex) {
+            assertEquals(ex, bridgeException);
+        }
+
+        // The next call tries again.
+        assertEquals(cache.getSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.SPONSORS_AND_PARTNERS);
+        verify(mockBridgeHelper, times(2)).getParticipantByHealthCode(STUDY_ID, HEALTH_CODE_1);
+    }
+
+    @Test
+    public void peek() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.SPONSORS_AND_PARTNERS);
+        mockParticipant(HEALTH_CODE_2, null);
+        SharingScopeCache cache = makeCache(100, START_MILLIS);
+
+        // Not cached. Peek never calls Bridge.
+        assertNull(cache.peekSharingScope(STUDY_ID, HEALTH_CODE_1));
+        verifyZeroInteractions(mockBridgeHelper);
+
+        // Cached. Participants without a sharing scope are NO_SHARING. Peeks aren't counted in the stats.
+        cache.getSharingScope(STUDY_ID, HEALTH_CODE_1);
+        cache.getSharingScope(STUDY_ID, HEALTH_CODE_2);
+        assertEquals(cache.peekSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.SPONSORS_AND_PARTNERS);
+        assertEquals(cache.peekSharingScope(STUDY_ID, HEALTH_CODE_2), SharingScope.NO_SHARING);
+        assertEquals(cache.getStats().requestCount(), 2);
+
+        // Expired.
+        doReturn(START_MILLIS + TTL_MINUTES * MILLIS_PER_MINUTE).when(cache).now();
+        assertNull(cache.peekSharingScope(STUDY_ID, HEALTH_CODE_1));
+    }
+
+    @Test
+    public void publishMetrics() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        mockParticipant(HEALTH_CODE_2, SharingScope.SPONSORS_AND_PARTNERS);
+        mockParticipant(HEALTH_CODE_3, SharingScope.NO_SHARING);
+        SharingScopeCache cache = makeCache(2, START_MILLIS);
+
+        // Stats from before the request aren't counted.
+        cache.getSharingScope(STUDY_ID, HEALTH_CODE_1);
+        CacheStats statsAtStart = cache.getStats();
+
+        // 1 hit and 2 misses. The cache only holds 2 entries, so at least one entry is evicted.
+        cache.getSharingScope(STUDY_ID, HEALTH_CODE_1);
+        cache.getSharingScope(STUDY_ID, HEALTH_CODE_2);
+        cache.getSharingScope(STUDY_ID, HEALTH_CODE_3);
+
+        Metrics metrics = new Metrics();
+        cache.publishMetrics(metrics, statsAtStart);
+        assertEquals(metrics.getCounterMap().count(SharingScopeCache.METRICS_HITS), 1);
+        assertEquals(metrics.getCounterMap().count(SharingScopeCache.METRICS_MISSES), 2);
+
+        int size = Integer.parseInt(Iterables.getOnlyElement(metrics.getKeyValuesMap().get(
+                SharingScopeCache.METRICS_SIZE)));
+        int evictions = metrics.getCounterMap().count(SharingScopeCache.METRICS_EVICTIONS);
+        assertTrue(size <= 2);
+        assertTrue(evictions >= 1);
+        assertEquals(size + evictions, 3);
+    }
+
+    private SharingScopeCache makeCache(int maxSize, long nowMillis) {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(SharingScopeCache.CONFIG_KEY_MAX_SIZE)).thenReturn(maxSize);
+        when(mockConfig.getInt(SharingScopeCache.CONFIG_KEY_REFRESH_MINUTES)).thenReturn(REFRESH_MINUTES);
+        when(mockConfig.getInt(SharingScopeCache.CONFIG_KEY_TTL_MINUTES)).thenReturn(TTL_MINUTES);
+
+        // Spy now(), so we can control time. Refreshes run on the calling thread, so the tests are deterministic.
+        SharingScopeCache cache = spy(new SharingScopeCache());
+        doReturn(nowMillis).when(cache).now();
+        cache.setBridgeHelper(mockBridgeHelper);
+        cache.setRefreshExecutorService(MoreExecutors.newDirectExecutorService());
+        cache.setConfig(mockConfig);
+        return cache;
+    }
+
+    private void mockParticipant(String healthCode, SharingScope sharingScope) {
+        StudyParticipant participant = new StudyParticipant();
+        participant.setSharingScope(sharingScope);
+        when(mockBridgeHelper.getParticipantByHealthCode(STUDY_ID, healthCode)).thenReturn(participant);
+    }
+}
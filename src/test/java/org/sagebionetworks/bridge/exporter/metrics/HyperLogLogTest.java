@@ -0,0 +1,72 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class HyperLogLogTest {
+    @Test
+    public void empty() {
+        assertEquals(new HyperLogLog(14).estimate(), 0);
+    }
+
+    @Test
+    public void duplicatesDontChangeEstimate() {
+        HyperLogLog sketch = new HyperLogLog(14);
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("health-code-" + i);
+        }
+        long estimate = sketch.estimate();
+
+        for (int i = 0; i < 1000; i++) {
+            sketch.add("health-code-" + i);
+        }
+        assertEquals(sketch.estimate(), estimate);
+    }
+
+    @Test
+    public void smallCardinalityIsNearlyExact() {
+        // Linear counting is used while there are still empty registers.
+        HyperLogLog sketch = new HyperLogLog(14);
+        for (int i = 0; i < 100; i++) {
+            sketch.add("health-code-" + i);
+        }
+        assertTrue(Math.abs(sketch.estimate() - 100) <= 2, "estimate=" + sketch.estimate());
+    }
+
+    @Test
+    public void largeCardinalityWithinError() {
+        HyperLogLog sketch = new HyperLogLog(14);
+        int numValues = 200000;
+        for (int i = 0; i < numValues; i++) {
+            sketch.add("health-code-" + i);
+        }
+
+        // 4 standard errors, so this doesn't flake.
+        double error = Math.abs(sketch.estimate() - numValues) / (double) numValues;
+        assertTrue(error < 4 * sketch.getRelativeError(), "error=" + error);
+    }
+
+    @Test
+    public void precisionFromMaxRelativeError() {
+        // 1.04 / sqrt(2^14) = 0.81%
+        HyperLogLog sketch = HyperLogLog.withMaxRelativeError(0.01);
+        assertEquals(sketch.getPrecision(), 14);
+        assertTrue(sketch.getRelativeError() <= 0.01);
+
+        // Clamped to the supported precisions.
+        assertEquals(HyperLogLog.withMaxRelativeError(0.5).getPrecision(), HyperLogLog.MIN_PRECISION);
+        assertEquals(HyperLogLog.withMaxRelativeError(0.0001).getPrecision(), HyperLogLog.MAX_PRECISION);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void precisionTooLow() {
+        new HyperLogLog(HyperLogLog.MIN_PRECISION - 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void precisionTooHigh() {
+        new HyperLogLog(HyperLogLog.MAX_PRECISION + 1);
+    }
+}
@@ -0,0 +1,60 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class InstrumentedRateLimiterTest {
+    @Test
+    public void recordsWaits() {
+        // At 20 permits per second, the first call doesn't wait, and each call after that waits about 50ms.
+        InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter("test", 20.0);
+        assertEquals(rateLimiter.getName(), "test");
+        assertEquals(rateLimiter.getRate(), 20.0, 0.001);
+
+        rateLimiter.acquire();
+        InstrumentedRateLimiter.Stats statsAfterFirst = rateLimiter.snapshot();
+        assertEquals(statsAfterFirst.getNumCalls(), 1);
+        assertEquals(statsAfterFirst.getNumPermits(), 1);
+        assertEquals(statsAfterFirst.getNumWaitedCalls(), 0);
+        assertEquals(statsAfterFirst.getTotalWaitMillis(), 0);
+        assertEquals(statsAfterFirst.getSaturation(), 0.0, 0.001);
+
+        rateLimiter.acquire();
+        rateLimiter.acquire(2);
+        InstrumentedRateLimiter.Stats stats = rateLimiter.snapshot();
+        assertEquals(stats.getNumCalls(), 3);
+        assertEquals(stats.getNumPermits(), 4);
+        assertEquals(stats.getNumWaitedCalls(), 2);
+        assertTrue(stats.getTotalWaitMillis() > 0);
+        assertEquals(stats.getSaturation(), 2.0 / 3.0, 0.001);
+        assertEquals(stats.getWaitLatencies().getCount(), 3);
+
+        // Stats since the first call.
+        InstrumentedRateLimiter.Stats delta = stats.minus(statsAfterFirst);
+        assertEquals(delta.getRate(), 20.0, 0.001);
+        assertEquals(delta.getNumCalls(), 2);
+        assertEquals(delta.getNumPermits(), 3);
+        assertEquals(delta.getNumWaitedCalls(), 2);
+        assertEquals(delta.getTotalWaitMillis(), stats.getTotalWaitMillis());
+        assertEquals(delta.getSaturation(), 1.0, 0.001);
+        assertEquals(delta.getWaitLatencies().getCount(), 2);
+    }
+
+    @Test
+    public void setRate() {
+        InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter("test", 1.0);
+        rateLimiter.setRate(5.0);
+        assertEquals(rateLimiter.getRate(), 5.0, 0.001);
+        assertEquals(rateLimiter.snapshot().getRate(), 5.0, 0.001);
+    }
+
+    @Test
+    public void emptyStats() {
+        InstrumentedRateLimiter.Stats stats = InstrumentedRateLimiter.Stats.EMPTY;
+        assertEquals(stats.getNumCalls(), 0);
+        assertEquals(stats.getSaturation(), 0.0, 0.001);
+        assertEquals(stats.getWaitLatencies().getCount(), 0);
+    }
+}
@@ -0,0 +1,169 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class InstrumentedThreadPoolExecutorTest {
+    private InstrumentedThreadPoolExecutor executor;
+
+    @AfterMethod
+    public void after() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void latenciesByTag() throws Exception {
+        executor = makeExecutor(2, 0);
+        assertEquals(executor.getName(), "testExecutor");
+
+        // One task before the snapshot, which shouldn't count.
+        executor.submit(new TaggedTask("foo")).get();
+        InstrumentedThreadPoolExecutor.Stats statsAtStart = executor.snapshot();
+
+        // 2 foo tasks through submit(), and 1 bar task through execute(), which has no Future, so use a latch.
+        executor.submit(new TaggedTask("foo")).get();
+        executor.submit(new TaggedTask("foo"), "result").get();
+        CountDownLatch barLatch = new CountDownLatch(1);
+        executor.execute(new TaggedTask("bar", barLatch::countDown));
+        assertTrue(barLatch.await(5, TimeUnit.SECONDS));
+
+        // The bar task counts down the latch before it finishes, so wait for the executor to finish it.
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+        InstrumentedThreadPoolExecutor.Stats delta = executor.snapshot().minus(statsAtStart);
+        assertEquals(delta.getQueueWaitByTag().get("foo").getCount(), 2);
+        assertEquals(delta.getExecutionByTag().get("foo").getCount(), 2);
+        assertEquals(delta.getQueueWaitByTag().get("bar").getCount(), 1);
+        assertEquals(delta.getExecutionByTag().get("bar").getCount(), 1);
+        assertEquals(delta.getNumCallerRuns(), 0);
+        assertEquals(delta.getNumRejected(), 0);
+        assertEquals(executor.getNumActiveThreads(), 0);
+    }
+
+    @Test
+    public void callerRunsWhenQueueIsFull() throws Exception {
+        // 1 thread and room for 1 queued task. Block the thread, then fill the queue.
+        executor = makeExecutor(1, 1);
+        CountDownLatch startedLatch = new CountDownLatch(1);
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        executor.execute(new TaggedTask("blocking", () -> {
+            startedLatch.countDown();
+            try {
+                blockingLatch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(startedLatch.await(5, TimeUnit.SECONDS));
+        executor.execute(new TaggedTask("queued"));
+        assertEquals(executor.getQueueDepth(), 1);
+        assertEquals(executor.getNumActiveThreads(), 1);
+
+        // The next task runs on this thread.
+        AtomicReference<Thread> callerRunsThread = new AtomicReference<>();
+        executor.submit(new TaggedTask("callerRuns", () -> callerRunsThread.set(Thread.currentThread()))).get();
+        assertSame(callerRunsThread.get(), Thread.currentThread());
+
+        InstrumentedThreadPoolExecutor.Stats stats = executor.snapshot();
+        assertEquals(stats.getNumCallerRuns(), 1);
+        assertEquals(stats.getExecutionByTag().get("callerRuns").getCount(), 1);
+
+        blockingLatch.countDown();
+    }
+
+    @Test
+    public void rejectedAfterShutdown() {
+        executor = makeExecutor(1, 0);
+        executor.shutdown();
+        try {
+            executor.submit(new TaggedTask("foo"));
+            fail("expected exception");
+        } catch (RejectedExecutionException ex) {
+            // expected exception
+        }
+        assertEquals(executor.snapshot().getNumRejected(), 1);
+    }
+
+    @Test
+    public void listenableFutures() throws Exception {
+        executor = makeExecutor(1, 0);
+
+        // Listener added before the task finishes.
+        CountDownLatch blockingLatch = new CountDownLatch(1);
+        ListenableFuture<?> future = executor.submit(new TaggedTask("foo", () -> {
+            try {
+                blockingLatch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        CountDownLatch listenerLatch = new CountDownLatch(1);
+        future.addListener(listenerLatch::countDown, MoreExecutors.directExecutor());
+        assertEquals(listenerLatch.getCount(), 1);
+
+        blockingLatch.countDown();
+        assertTrue(listenerLatch.await(5, TimeUnit.SECONDS));
+
+        // Listener added after the task finishes runs right away.
+        ListenableFuture<String> doneFuture = executor.submit(() -> "result");
+        assertEquals(doneFuture.get(), "result");
+        CountDownLatch doneListenerLatch = new CountDownLatch(1);
+        doneFuture.addListener(doneListenerLatch::countDown, MoreExecutors.directExecutor());
+        assertEquals(doneListenerLatch.getCount(), 0);
+    }
+
+    @Test
+    public void publishMetrics() throws Exception {
+        executor = makeExecutor(1, 0);
+        InstrumentedThreadPoolExecutor.Stats statsAtStart = executor.snapshot();
+        executor.submit(new TaggedTask("foo")).get();
+
+        Metrics metrics = new Metrics();
+        executor.publishMetrics(metrics, statsAtStart);
+        assertEquals(metrics.getLatencyHistograms().get("latency.testExecutor.queueWait[foo]").getCount(), 1);
+        assertEquals(metrics.getLatencyHistograms().get("latency.testExecutor.execution[foo]").getCount(), 1);
+        assertEquals(metrics.getKeyValuesMap().get("testExecutor.utilization").size(), 1);
+        assertEquals(metrics.getCounterMap().count("testExecutor.callerRuns"), 0);
+        assertEquals(metrics.getCounterMap().count("testExecutor.rejected"), 0);
+    }
+
+    private static InstrumentedThreadPoolExecutor makeExecutor(int numThreads, int queueCapacity) {
+        return new InstrumentedThreadPoolExecutor("testExecutor", numThreads, queueCapacity,
+                task -> task instanceof TaggedTask ? ((TaggedTask) task).tag : "unknown");
+    }
+
+    // Runnable with a tag, which the executor's tag function reads.
+    private static class TaggedTask implements Runnable {
+        private final String tag;
+        private final Runnable delegate;
+
+        TaggedTask(String tag) {
+            this(tag, () -> {});
+        }
+
+        TaggedTask(String tag, Runnable delegate) {
+            this.tag = tag;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            delegate.run();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(snapshot.getCount(), 0);
+        assertEquals(snapshot.getMaxMicros(), 0);
+        assertEquals(snapshot.getValueAtPercentile(50), 0);
+    }
+
+    @Test
+    public void smallLatenciesAreExact() {
+        // Latencies under 64 micros each have their own bucket.
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 50);
+        assertEquals(snapshot.getValueAtPercentile(50), 25);
+        assertEquals(snapshot.getValueAtPercentile(90), 45);
+        assertEquals(snapshot.getValueAtPercentile(100), 50);
+        assertEquals(snapshot.getMaxMicros(), 50);
+    }
+
+    @Test
+    public void percentilesWithinBucketPrecision() {
+        // 1 to 10000 millis, so the true percentile is p * 100 millis.
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10000; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 10000);
+        assertEquals(snapshot.getMaxMicros(), 10000000);
+        for (double percentile : new double[] { 50, 90, 99 }) {
+            double expected = percentile * 100000;
+            double actual = snapshot.getValueAtPercentile(percentile);
+            assertTrue(actual >= expected && actual <= expected * 1.035, "p" + percentile + "=" + actual);
+        }
+    }
+
+    @Test
+    public void outOfRangeLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-1);
+        histogram.recordNanos(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 2);
+        assertEquals(snapshot.getValueAtPercentile(50), 0);
+        assertEquals(snapshot.getMaxMicros(), LatencyHistogram.MAX_TRACKABLE_MICROS);
+        assertEquals(snapshot.getValueAtPercentile(100), LatencyHistogram.MAX_TRACKABLE_MICROS);
+    }
+
+    @Test
+    public void recordWithCount() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(10), 99);
+        histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(20));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(snapshot.getCount(), 100);
+        assertEquals(snapshot.getValueAtPercentile(99), 10);
+        assertEquals(snapshot.getValueAtPercentile(100), 20);
+        assertEquals(snapshot.getMaxMicros(), 20);
+    }
+
+    @Test
+    public void minusAndAdd() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(500));
+        LatencyHistogram.Snapshot before = histogram.snapshot();
+
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        LatencyHistogram.Snapshot delta = histogram.snapshot().minus(before);
+
+        // The 500ms latency was before, so it's not in the delta. The delta's max is the top of the 20ms bucket.
+        assertEquals(delta.getCount(), 2);
+        assertTrue(delta.getMaxMicros() >= 20000 && delta.getMaxMicros() < 21000, "max=" + delta.getMaxMicros());
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.recordNanos(TimeUnit.MILLISECONDS.toNanos(30));
+        other.add(delta);
+        LatencyHistogram.Snapshot combined = other.snapshot();
+        assertEquals(combined.getCount(), 3);
+        assertEquals(combined.getMaxMicros(), 30000);
+    }
+
+    @Test
+    public void timer() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        try (LatencyHistogram.Timer timer = histogram.startTimer()) {
+            // Time an empty block. It still counts.
+        }
+        assertEquals(histogram.snapshot().getCount(), 1);
+    }
+}
@@ -0,0 +1,93 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Multiset;
+import com.google.common.collect.TreeMultiset;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmark for counter contention in {@link Metrics}, simulating record threads counting per-study metrics.
+ * Compares the previous implementation (synchronized TreeMultiset), counters by name, and counters by name template.
+ * This isn't a unit test. Run {@link #main} to run it with 4, 16, and 64 threads. See README.md.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Fork(1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+public class MetricsBenchmark {
+    private static final MetricName<String> METRICS_ACCEPTED = new MetricName<>("accepted[", "]");
+    private static final String[] STUDY_IDS = { "study-a", "study-b", "study-c", "study-d", "study-e", "study-f",
+            "study-g", "study-h" };
+
+    private LockedTreeMetrics lockedTreeMetrics;
+    private Metrics metrics;
+
+    /** Each thread cycles through the study IDs, like a stream of records from multiple studies. */
+    @State(Scope.Thread)
+    public static class RecordState {
+        private int nextIndex;
+
+        String nextStudyId() {
+            String studyId = STUDY_IDS[nextIndex];
+            nextIndex = (nextIndex + 1) % STUDY_IDS.length;
+            return studyId;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        lockedTreeMetrics = new LockedTreeMetrics();
+        metrics = new Metrics();
+    }
+
+    @Benchmark
+    public int lockedTreeByName(RecordState recordState) {
+        return lockedTreeMetrics.incrementCounter("accepted[" + recordState.nextStudyId() + "]");
+    }
+
+    @Benchmark
+    public int counterByName(RecordState recordState) {
+        return metrics.incrementCounter("accepted[" + recordState.nextStudyId() + "]");
+    }
+
+    @Benchmark
+    public Metrics.Counter counterByTemplate(RecordState recordState) {
+        Metrics.Counter counter = metrics.getCounter(METRICS_ACCEPTED, recordState.nextStudyId());
+        counter.increment();
+        return counter;
+    }
+
+    /** Runs the benchmark with 4, 16, and 64 threads. */
+    public static void main(String[] args) throws RunnerException {
+        for (int numThreads : new int[] { 4, 16, 64 }) {
+            new Runner(new OptionsBuilder().include(MetricsBenchmark.class.getName()).threads(numThreads).build())
+                    .run();
+        }
+    }
+
+    // The previous Metrics counters, for comparison.
+    private static class LockedTreeMetrics {
+        private final Multiset<String> counterMap = TreeMultiset.create();
+
+        synchronized int incrementCounter(String name) {
+            counterMap.add(name);
+            return counterMap.count(name);
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package org.sagebionetworks.bridge.exporter.metrics;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.google.common.collect.SortedSetMultimap;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.config.Config;
+
 public class MetricsHelperTest {
     @Test
     public void captureMetricsForRecord() {
@@ -29,6 +35,30 @@ public class MetricsHelperTest {
         assertTrue(healthCodeSet.contains("dummy-health-code"));
     }
 
+    @Test
+    public void captureMetricsForRecordApproximate() {
+        // Config with exact limit 1, so the second health code switches to a sketch.
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(MetricsHelper.CONFIG_KEY_SET_COUNTER_EXACT_LIMIT)).thenReturn(1);
+        when(mockConfig.get(MetricsHelper.CONFIG_KEY_SET_COUNTER_MAX_ERROR)).thenReturn("0.01");
+
+        MetricsHelper metricsHelper = new MetricsHelper();
+        metricsHelper.setConfig(mockConfig);
+
+        // execute
+        Metrics metrics = new Metrics();
+        metricsHelper.captureMetricsForRecord(metrics, new Item().withString("healthCode", "health-code-1")
+                .withString("studyId", "test-study"));
+        Metrics.SetCounter setCounter = metrics.getSetCounters().get("uniqueHealthCodes[test-study]");
+        assertFalse(setCounter.isApproximate());
+        assertEquals(MetricsHelper.formatSetCounter(setCounter), "1 (exact)");
+
+        metricsHelper.captureMetricsForRecord(metrics, new Item().withString("healthCode", "health-code-2")
+                .withString("studyId", "test-study"));
+        assertTrue(setCounter.isApproximate());
+        assertEquals(MetricsHelper.formatSetCounter(setCounter), "2 (approximate, +/-0.81%)");
+    }
+
     @Test
     public void publishMetrics() {
         // Note that since this writes to the logs, we can't actually verify anything. This test is mainly to
@@ -42,6 +72,10 @@ public class MetricsHelperTest {
 
         metrics.incrementSetCounter("qwerty-set-counter", "qwerty value");
         metrics.incrementSetCounter("asdf-set-counter", "asdf value");
+        metrics.getSetCounter("approximate-set-counter", SetCounterMode.approximateAbove(0, 0.01)).add(
+                "approximate value");
+
+        metrics.getLatencyHistogram("latency.foo").recordNanos(TimeUnit.MILLISECONDS.toNanos(10));
 
         metrics.addKeyValuePair("aaa-key", "aaa value");
         metrics.addKeyValuePair("bbb-key", "bbb value");
@@ -49,4 +83,18 @@ public class MetricsHelperTest {
         // execute
         new MetricsHelper().publishMetrics(metrics);
     }
+
+    @Test
+    public void formatLatencies() {
+        // 10 latencies at 1ms and 1 at 5ms, so p99 is the 5ms latency. Percentiles are capped by the max, so these are
+        // exact.
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 10; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertEquals(MetricsHelper.formatLatencies(histogram.snapshot()),
+                "count=11, p50=1.0ms, p90=1.0ms, p99=5.0ms, max=5.0ms");
+    }
 }
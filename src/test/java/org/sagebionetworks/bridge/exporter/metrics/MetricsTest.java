@@ -2,9 +2,15 @@ package org.sagebionetworks.bridge.exporter.metrics;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.SortedMultiset;
 import com.google.common.collect.SortedSetMultimap;
@@ -30,6 +36,96 @@ public class MetricsTest {
         assertEquals(counterMap.count("baz"), 3);
     }
 
+    @Test
+    public void countersWithDelta() {
+        Metrics metrics = new Metrics();
+        assertEquals(metrics.incrementCounter("latencyMillis", 40), 40);
+        assertEquals(metrics.incrementCounter("latencyMillis", 2), 42);
+        assertEquals(metrics.incrementCounter("latencyMillis", 0), 42);
+        assertEquals(metrics.incrementCounter("latencyMillis"), 43);
+
+        SortedMultiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("latencyMillis"), 43);
+    }
+
+    @Test
+    public void counterHandles() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter counter = metrics.getCounter("foo");
+        assertSame(metrics.getCounter("foo"), counter);
+
+        // Handles and names update the same counter.
+        counter.increment();
+        counter.add(2);
+        assertEquals(metrics.incrementCounter("foo"), 4);
+        assertEquals(counter.get(), 4);
+        assertEquals(metrics.getCounterMap().count("foo"), 4);
+    }
+
+    @Test
+    public void counterTemplates() {
+        MetricName<String> acceptedName = new MetricName<>("accepted[", "]");
+        MetricName<Integer> revisionName = new MetricName<>(revision -> "schema-v" + revision + ".lineCount");
+
+        Metrics metrics = new Metrics();
+        Metrics.Counter studyCounter = metrics.getCounter(acceptedName, "test-study");
+        assertSame(metrics.getCounter(acceptedName, "test-study"), studyCounter);
+        assertSame(metrics.getCounter("accepted[test-study]"), studyCounter);
+
+        studyCounter.increment();
+        metrics.incrementCounter("accepted[test-study]");
+        metrics.getCounter(acceptedName, "other-study").increment();
+        metrics.getCounter(revisionName, 3).add(5);
+
+        SortedMultiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.elementSet().size(), 3);
+        assertEquals(counterMap.count("accepted[test-study]"), 2);
+        assertEquals(counterMap.count("accepted[other-study]"), 1);
+        assertEquals(counterMap.count("schema-v3.lineCount"), 5);
+    }
+
+    @Test
+    public void zeroCountersNotInCounterMap() {
+        Metrics metrics = new Metrics();
+        metrics.getCounter("never-incremented");
+        metrics.incrementCounter("zero-delta", 0);
+        assertTrue(metrics.getCounterMap().isEmpty());
+    }
+
+    @Test
+    public void concurrentIncrements() throws Exception {
+        int numThreads = 8;
+        int numIncrementsPerThread = 10000;
+        MetricName<String> acceptedName = new MetricName<>("accepted[", "]");
+
+        Metrics metrics = new Metrics();
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                String studyId = "study-" + (i % 2);
+                futureList.add(executorService.submit(() -> {
+                    for (int j = 0; j < numIncrementsPerThread; j++) {
+                        metrics.incrementCounter("numTotal");
+                        metrics.getCounter(acceptedName, studyId).increment();
+                        metrics.incrementSetCounter("uniqueValues", String.valueOf(j));
+                    }
+                }));
+            }
+            for (Future<?> oneFuture : futureList) {
+                oneFuture.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        SortedMultiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("numTotal"), numThreads * numIncrementsPerThread);
+        assertEquals(counterMap.count("accepted[study-0]"), numThreads / 2 * numIncrementsPerThread);
+        assertEquals(counterMap.count("accepted[study-1]"), numThreads / 2 * numIncrementsPerThread);
+        assertEquals(metrics.getSetCounterMap().get("uniqueValues").size(), numIncrementsPerThread);
+    }
+
     @Test
     public void keyValuePairs() {
         // init with some data
@@ -69,6 +165,122 @@ public class MetricsTest {
         assertFalse(originalKeyValuesMap.containsKey("foo"));
     }
 
+    @Test
+    public void keyValuePairTemplates() {
+        MetricName<String> appVersionsName = new MetricName<>("uniqueAppVersions[", "]");
+
+        Metrics metrics = new Metrics();
+        assertEquals(metrics.addKeyValuePair(appVersionsName, "test-study", "version 1"), 1);
+        assertEquals(metrics.addKeyValuePair(appVersionsName, "test-study", "version 2"), 2);
+        assertEquals(metrics.addKeyValuePair("uniqueAppVersions[test-study]", "version 2"), 2);
+
+        Set<String> appVersionSet = metrics.getKeyValuesMap().get("uniqueAppVersions[test-study]");
+        assertEquals(appVersionSet.size(), 2);
+        assertTrue(appVersionSet.contains("version 1"));
+        assertTrue(appVersionSet.contains("version 2"));
+    }
+
+    @Test
+    public void setCounterHandles() {
+        MetricName<String> healthCodesName = new MetricName<>("uniqueHealthCodes[", "]");
+
+        Metrics metrics = new Metrics();
+        Metrics.SetCounter setCounter = metrics.getSetCounter(healthCodesName, "test-study");
+        assertSame(metrics.getSetCounter("uniqueHealthCodes[test-study]"), setCounter);
+        assertEquals(setCounter.add("health-code-1"), 1);
+        assertEquals(setCounter.add("health-code-1"), 1);
+        assertEquals(metrics.incrementSetCounter("uniqueHealthCodes[test-study]", "health-code-2"), 2);
+
+        // Key-value pairs with the same name are separate.
+        assertTrue(metrics.getKeyValuesMap().isEmpty());
+        assertEquals(metrics.getSetCounterMap().get("uniqueHealthCodes[test-study]").size(), 2);
+    }
+
+    @Test
+    public void approximateSetCounter() {
+        Metrics metrics = new Metrics();
+        SetCounterMode mode = SetCounterMode.approximateAbove(3, 0.01);
+        Metrics.SetCounter setCounter = metrics.getSetCounter("uniqueHealthCodes[big-study]", mode);
+
+        // Exact up to the limit.
+        assertEquals(setCounter.add("health-code-1"), 1);
+        assertEquals(setCounter.add("health-code-2"), 2);
+        assertEquals(setCounter.add("health-code-3"), 3);
+        assertEquals(setCounter.add("health-code-3"), 3);
+        assertFalse(setCounter.isApproximate());
+        assertEquals(setCounter.getRelativeError(), 0.0);
+        assertEquals(metrics.getSetCounterMap().get("uniqueHealthCodes[big-study]").size(), 3);
+
+        // Switches to a sketch past the limit. Small counts are still nearly exact.
+        assertEquals(setCounter.add("health-code-4"), 4);
+        assertEquals(setCounter.add("health-code-1"), 4);
+        assertTrue(setCounter.isApproximate());
+        assertTrue(setCounter.getRelativeError() > 0.0 && setCounter.getRelativeError() <= 0.01);
+
+        // Getting the set-counter again keeps its mode.
+        assertSame(metrics.getSetCounter("uniqueHealthCodes[big-study]"), setCounter);
+
+        // Values are no longer kept, so they're not in the set-counter map, but they're in the set-counters.
+        assertFalse(metrics.getSetCounterMap().containsKey("uniqueHealthCodes[big-study]"));
+        assertSame(metrics.getSetCounters().get("uniqueHealthCodes[big-study]"), setCounter);
+    }
+
+    @Test
+    public void approximateSetCounterTemplate() {
+        MetricName<String> healthCodesName = new MetricName<>("uniqueHealthCodes[", "]");
+        SetCounterMode mode = SetCounterMode.approximateAbove(0, 0.01);
+
+        Metrics metrics = new Metrics();
+        Metrics.SetCounter setCounter = metrics.getSetCounter(healthCodesName, "test-study", mode);
+        assertSame(metrics.getSetCounter(healthCodesName, "test-study"), setCounter);
+        assertEquals(setCounter.add("health-code-1"), 1);
+        assertTrue(setCounter.isApproximate());
+    }
+
+    @Test
+    public void approximateSetCounterConcurrentSwitch() throws Exception {
+        // Many threads add values while the set-counter switches to a sketch. No values should be lost in the switch.
+        int numThreads = 8;
+        int numValuesPerThread = 5000;
+        Metrics metrics = new Metrics();
+        Metrics.SetCounter setCounter = metrics.getSetCounter("uniqueValues",
+                SetCounterMode.approximateAbove(1000, 0.01));
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (int i = 0; i < numThreads; i++) {
+                int threadNum = i;
+                futureList.add(executor.submit(() -> {
+                    for (int j = 0; j < numValuesPerThread; j++) {
+                        setCounter.add(threadNum + "-" + j);
+                    }
+                }));
+            }
+            for (Future<?> oneFuture : futureList) {
+                oneFuture.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // 4 standard errors, so this doesn't flake.
+        int numValues = numThreads * numValuesPerThread;
+        double error = Math.abs(setCounter.size() - numValues) / (double) numValues;
+        assertTrue(setCounter.isApproximate());
+        assertTrue(error < 4 * setCounter.getRelativeError(), "error=" + error);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void approximateSetCounterNegativeLimit() {
+        SetCounterMode.approximateAbove(-1, 0.01);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void approximateSetCounterInvalidError() {
+        SetCounterMode.approximateAbove(1000, 0.0);
+    }
+
     @Test
     public void setCounters() {
         // Note that this test is identical to keyValuePairs(). See comments on Metrics.java for details.
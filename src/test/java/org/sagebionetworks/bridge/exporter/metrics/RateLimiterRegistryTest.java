@@ -0,0 +1,107 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.Test;
+
+public class RateLimiterRegistryTest {
+    @Test
+    public void register() {
+        InstrumentedRateLimiter fooRateLimiter = new InstrumentedRateLimiter("foo", 10.0);
+        InstrumentedRateLimiter barRateLimiter = new InstrumentedRateLimiter("bar", 10.0);
+
+        RateLimiterRegistry registry = new RateLimiterRegistry();
+        registry.register(fooRateLimiter);
+        registry.register(barRateLimiter);
+
+        SortedMap<String, InstrumentedRateLimiter> rateLimiterMap = registry.getRateLimiters();
+        assertEquals(rateLimiterMap.size(), 2);
+        assertSame(rateLimiterMap.get("foo"), fooRateLimiter);
+        assertSame(rateLimiterMap.get("bar"), barRateLimiter);
+    }
+
+    @Test
+    public void setRate() {
+        InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter("foo", 10.0);
+        RateLimiterRegistry registry = new RateLimiterRegistry();
+        registry.register(rateLimiter);
+
+        assertTrue(registry.setRate("foo", 2.5));
+        assertEquals(rateLimiter.getRate(), 2.5, 0.001);
+
+        assertFalse(registry.setRate("does-not-exist", 2.5));
+    }
+
+    @Test
+    public void setRateAboveConfiguredRate() {
+        InstrumentedRateLimiter rateLimiter = new InstrumentedRateLimiter("foo", 10.0);
+        RateLimiterRegistry registry = new RateLimiterRegistry();
+        registry.register(rateLimiter);
+
+        // Lower the rate, then raise it back up to the configured rate.
+        assertTrue(registry.setRate("foo", 2.5));
+        assertTrue(registry.setRate("foo", 10.0));
+        assertEquals(rateLimiter.getRate(), 10.0, 0.001);
+
+        try {
+            registry.setRate("foo", 1e9);
+            fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            // expected exception
+        }
+        assertEquals(rateLimiter.getRate(), 10.0, 0.001);
+        assertEquals(rateLimiter.getConfiguredRate(), 10.0, 0.001);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void setRateZero() {
+        new RateLimiterRegistry().setRate("foo", 0.0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void setRateNaN() {
+        new RateLimiterRegistry().setRate("foo", Double.NaN);
+    }
+
+    @Test
+    public void publishMetrics() {
+        InstrumentedRateLimiter fooRateLimiter = new InstrumentedRateLimiter("foo", 1000.0);
+        InstrumentedRateLimiter idleRateLimiter = new InstrumentedRateLimiter("idle", 1.0);
+        RateLimiterRegistry registry = new RateLimiterRegistry();
+        registry.register(fooRateLimiter);
+        registry.register(idleRateLimiter);
+
+        // Calls from a previous request.
+        fooRateLimiter.acquire();
+        Map<String, InstrumentedRateLimiter.Stats> snapshotAtStart = registry.snapshot();
+
+        // Calls from this request, including a rate limiter that wasn't in the snapshot.
+        fooRateLimiter.acquire(3);
+        InstrumentedRateLimiter newRateLimiter = new InstrumentedRateLimiter("new", 1000.0);
+        registry.register(newRateLimiter);
+        newRateLimiter.acquire();
+
+        // execute and validate
+        Metrics metrics = new Metrics();
+        registry.publishMetrics(metrics, snapshotAtStart);
+
+        assertEquals(metrics.getCounterMap().count("rateLimiter.foo.calls"), 1);
+        assertEquals(metrics.getCounterMap().count("rateLimiter.foo.permits"), 3);
+        assertEquals(metrics.getCounterMap().count("rateLimiter.new.calls"), 1);
+        assertEquals(metrics.getKeyValuesMap().get("rateLimiter.foo.rate"), ImmutableSet.of("1000.00"));
+        assertEquals(metrics.getLatencyHistograms().get("latency.rateLimiter.foo.wait").getCount(), 1);
+
+        // The idle rate limiter only publishes its rate.
+        assertEquals(metrics.getKeyValuesMap().get("rateLimiter.idle.rate"), ImmutableSet.of("1.00"));
+        assertEquals(metrics.getCounterMap().count("rateLimiter.idle.calls"), 0);
+        assertFalse(metrics.getKeyValuesMap().containsKey("rateLimiter.idle.saturation"));
+    }
+}
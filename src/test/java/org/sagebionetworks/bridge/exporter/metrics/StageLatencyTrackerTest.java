@@ -0,0 +1,43 @@
+package org.sagebionetworks.bridge.exporter.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+public class StageLatencyTrackerTest {
+    @Test
+    public void publishesLatenciesSinceSnapshot() {
+        StageLatencyTracker tracker = new StageLatencyTracker();
+        assertSame(tracker.getHistogram("foo"), tracker.getHistogram("foo"));
+
+        // Latencies from a previous request.
+        tracker.getHistogram("foo").recordNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        tracker.getHistogram("bar").recordNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        Map<String, LatencyHistogram.Snapshot> snapshotAtStart = tracker.snapshot();
+
+        // Latencies from this request, including a stage that wasn't in the snapshot.
+        tracker.getHistogram("foo").recordNanos(TimeUnit.MILLISECONDS.toNanos(20));
+        tracker.getHistogram("foo").recordNanos(TimeUnit.MILLISECONDS.toNanos(30));
+        try (LatencyHistogram.Timer timer = tracker.startTimer("baz")) {
+            // Time an empty block.
+        }
+
+        // execute and validate
+        Metrics metrics = new Metrics();
+        tracker.publishMetrics(metrics, snapshotAtStart);
+
+        SortedMap<String, LatencyHistogram.Snapshot> latencyMap = metrics.getLatencyHistograms();
+        assertEquals(latencyMap.size(), 2);
+        assertEquals(latencyMap.get("latency.foo").getCount(), 2);
+        assertEquals(latencyMap.get("latency.baz").getCount(), 1);
+
+        // bar had no latencies during this request.
+        assertFalse(latencyMap.containsKey("latency.bar"));
+    }
+}
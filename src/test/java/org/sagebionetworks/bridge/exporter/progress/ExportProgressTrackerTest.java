@@ -0,0 +1,339 @@
+package org.sagebionetworks.bridge.exporter.progress;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedRateLimiter;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedThreadPoolExecutor;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.worker.ExportSubtaskFuture;
+import org.sagebionetworks.bridge.exporter.worker.ExportTask;
+import org.sagebionetworks.bridge.exporter.worker.MetaTableType;
+import org.sagebionetworks.bridge.exporter.worker.TsvInfo;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class ExportProgressTrackerTest {
+    private static final DateTime END_DATE_TIME = DateTime.parse("2016-05-09T23:59:59.999-0700");
+    private static final LocalDate EXPORTER_DATE = LocalDate.parse("2016-05-10");
+    private static final BridgeExporterRequest LAST_EXPORT_TIME_REQUEST = new BridgeExporterRequest.Builder()
+            .withEndDateTime(END_DATE_TIME).withTag("unit-test-tag").withUseLastExportTime(true).build();
+    private static final BridgeExporterRequest START_END_REQUEST = new BridgeExporterRequest.Builder()
+            .withStartDateTime(END_DATE_TIME.minusDays(1)).withEndDateTime(END_DATE_TIME).withTag("unit-test-tag")
+            .withUseLastExportTime(false).build();
+    private static final UploadSchemaKey SCHEMA_KEY = new UploadSchemaKey.Builder().withAppId("study-a")
+            .withSchemaId("test-schema").withRevision(1).build();
+
+    private DynamoReadThrottle mockDdbReadThrottle;
+    private DynamoHelper mockDynamoHelper;
+    private Metrics.Counter numRecordsCounter;
+    private InstrumentedRateLimiter synapseRateLimiter;
+    private ExportProgressTracker tracker;
+    private InstrumentedThreadPoolExecutor workerExecutor;
+    private CountDownLatch workerLatch;
+
+    @BeforeMethod
+    public void before() {
+        mockDdbReadThrottle = mock(DynamoReadThrottle.class);
+        when(mockDdbReadThrottle.getRate()).thenReturn(40.0);
+        when(mockDdbReadThrottle.getCeilingRate()).thenReturn(100.0);
+
+        mockDynamoHelper = mock(DynamoHelper.class);
+
+        synapseRateLimiter = new InstrumentedRateLimiter("synapse", 1000.0);
+        RateLimiterRegistry rateLimiterRegistry = new RateLimiterRegistry();
+        rateLimiterRegistry.register(synapseRateLimiter);
+
+        // Worker executor with a single thread, so tests can block it. The participant lookup executor doesn't expose
+        // its queue.
+        workerExecutor = new InstrumentedThreadPoolExecutor("workerExecutor", 1, 0, task -> "TestHandler");
+        workerLatch = new CountDownLatch(1);
+
+        numRecordsCounter = new Metrics().getCounter("numTotal");
+
+        tracker = spy(new ExportProgressTracker());
+        tracker.setDdbReadThrottle(mockDdbReadThrottle);
+        tracker.setDynamoHelper(mockDynamoHelper);
+        tracker.setParticipantLookupExecutorService(mock(ExecutorService.class));
+        tracker.setRateLimiterRegistry(rateLimiterRegistry);
+        tracker.setWorkerExecutorService(workerExecutor);
+        mockNow(0L);
+    }
+
+    @AfterMethod
+    public void after() {
+        workerLatch.countDown();
+        workerExecutor.shutdownNow();
+    }
+
+    @Test
+    public void noActiveTask() {
+        JsonNode progressNode = tracker.getProgress();
+        assertEquals(progressNode.size(), 1);
+        assertFalse(progressNode.get("active").booleanValue());
+    }
+
+    @Test
+    public void recordsPhase() throws Exception {
+        // Last export had 150 records, so we expect 150 records this time.
+        when(mockDynamoHelper.getLastExportRecordCounts(ImmutableSet.of("study-a", "study-b"))).thenReturn(
+                ImmutableMap.of("study-a", 100, "study-b", 50));
+        when(mockDdbReadThrottle.getTotalWaitMillis()).thenReturn(1000L, 4000L);
+
+        // The Synapse rate limiter was called before the task, and twice during the task, for 3 permits.
+        synapseRateLimiter.acquire();
+        ExportTask task = makeTask(LAST_EXPORT_TIME_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a", "study-b"));
+        synapseRateLimiter.acquire();
+        synapseRateLimiter.acquire(2);
+
+        // The worker executor ran a subtask before the task, and one during the task. Then one subtask is blocked on
+        // the worker thread, and 2 are queued behind it.
+        workerExecutor.submit(() -> {}).get();
+        workerExecutor.submit(() -> {}).get();
+        CountDownLatch workerStartedLatch = new CountDownLatch(1);
+        workerExecutor.submit(() -> {
+            workerStartedLatch.countDown();
+            workerLatch.await();
+            return null;
+        });
+        workerStartedLatch.await();
+        workerExecutor.submit(() -> {});
+        workerExecutor.submit(() -> {});
+
+        // Write 2 rows to a health data TSV and 1 row to a meta-table TSV.
+        TsvInfo healthDataTsvInfo = new TsvInfo(ImmutableList.of("foo"), new File("dummy"), new StringWriter());
+        healthDataTsvInfo.writeRow(ImmutableMap.of("foo", "ab"));
+        healthDataTsvInfo.writeRow(ImmutableMap.of("foo", "\u00e9"));
+        task.setHealthDataTsvInfoForSchema(SCHEMA_KEY, healthDataTsvInfo);
+
+        TsvInfo appVersionTsvInfo = new TsvInfo(ImmutableList.of("bar"), new File("dummy"), new StringWriter());
+        appVersionTsvInfo.writeRow(ImmutableMap.of("bar", "c"));
+        task.setTsvInfoForStudyAndType("study-a", MetaTableType.APP_VERSION, appVersionTsvInfo);
+
+        // 30 records in 10 seconds.
+        numRecordsCounter.add(30);
+        mockNow(10000L);
+
+        // execute and validate
+        JsonNode progressNode = tracker.getProgress();
+        assertTrue(progressNode.get("active").booleanValue());
+        assertEquals(progressNode.get("request").textValue(), LAST_EXPORT_TIME_REQUEST.toString());
+        assertEquals(progressNode.get("exporterDate").textValue(), "2016-05-10");
+        assertEquals(progressNode.get("elapsedSeconds").longValue(), 10);
+        assertEquals(progressNode.get("phase").textValue(), ExportProgressTracker.PHASE_RECORDS);
+        assertEquals(progressNode.get("records").get("processed").longValue(), 30);
+        assertEquals(progressNode.get("records").get("expected").longValue(), 150);
+
+        // The task hasn't run for a full window, so every window is measured from the start.
+        JsonNode recordRateNode = progressNode.get("recordsPerSecond");
+        assertEquals(recordRateNode.get("1m").doubleValue(), 3.0, 0.001);
+        assertEquals(recordRateNode.get("5m").doubleValue(), 3.0, 0.001);
+        assertEquals(recordRateNode.get("15m").doubleValue(), 3.0, 0.001);
+        assertEquals(recordRateNode.get("sinceStart").doubleValue(), 3.0, 0.001);
+
+        assertEquals(progressNode.get("outstandingSubtasks").intValue(), 0);
+        assertEquals(progressNode.get("executorQueueDepth").get("worker").intValue(), 2);
+        assertTrue(progressNode.get("executorQueueDepth").get("participantLookup").isNull());
+
+        // Both subtasks that started during the task count. The queued subtasks don't count until they start.
+        JsonNode workerExecutorNode = progressNode.get("workerExecutor");
+        assertEquals(workerExecutorNode.get("queueDepth").intValue(), 2);
+        assertEquals(workerExecutorNode.get("activeThreads").intValue(), 1);
+        assertEquals(workerExecutorNode.get("callerRuns").longValue(), 0);
+        assertEquals(workerExecutorNode.get("rejected").longValue(), 0);
+        assertTrue(workerExecutorNode.has("utilization"));
+        JsonNode handlerNode = workerExecutorNode.get("handlers").get("TestHandler");
+        assertEquals(handlerNode.get("count").longValue(), 2);
+        assertTrue(handlerNode.has("p50QueueWaitMillis"));
+        assertTrue(handlerNode.has("p99QueueWaitMillis"));
+        assertTrue(handlerNode.has("p50ExecutionMillis"));
+        assertTrue(handlerNode.has("p99ExecutionMillis"));
+
+        // Each value is quoted and followed by a newline. The health data TSV is 6 + 5 + 5 bytes (e-acute is 2 bytes in
+        // UTF-8). The app version TSV is 6 + 4 bytes.
+        JsonNode tablesNode = progressNode.get("tables");
+        assertEquals(tablesNode.size(), 2);
+        JsonNode healthDataTableNode = tablesNode.get(ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+        assertEquals(healthDataTableNode.get("lines").intValue(), 2);
+        assertEquals(healthDataTableNode.get("bytes").longValue(), 16);
+        JsonNode appVersionTableNode = tablesNode.get(ExportCheckpoint.getTableKeyForStudyAndType("study-a",
+                MetaTableType.APP_VERSION));
+        assertEquals(appVersionTableNode.get("lines").intValue(), 1);
+        assertEquals(appVersionTableNode.get("bytes").longValue(), 10);
+
+        // Callers waited 3 seconds on the DDB throttle in 10 seconds.
+        JsonNode ddbNode = progressNode.get("rateLimiters").get("ddbRead");
+        assertEquals(ddbNode.get("rate").doubleValue(), 40.0, 0.001);
+        assertEquals(ddbNode.get("ceilingRate").doubleValue(), 100.0, 0.001);
+        assertEquals(ddbNode.get("waitMillis").longValue(), 3000);
+        assertEquals(ddbNode.get("waitMillisPerSecond").doubleValue(), 300.0, 0.001);
+
+        JsonNode synapseNode = progressNode.get("rateLimiters").get("synapse");
+        assertEquals(synapseNode.get("rate").doubleValue(), 1000.0, 0.001);
+        assertEquals(synapseNode.get("permits").longValue(), 3);
+        assertTrue(synapseNode.has("waitMillis"));
+        assertTrue(synapseNode.has("p99WaitMillis"));
+        assertTrue(synapseNode.has("saturation"));
+
+        // 120 records left at 3 records per second.
+        assertEquals(progressNode.get("estimatedSecondsRemaining").longValue(), 40);
+    }
+
+    @Test
+    public void recordsPhaseUnknownExpected() {
+        ExportTask task = makeTask(START_END_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a"));
+        verifyZeroInteractions(mockDynamoHelper);
+
+        // 600 records in the first minute, then 1200 records in the second minute.
+        numRecordsCounter.add(600);
+        mockNow(60000L);
+        tracker.sample();
+
+        numRecordsCounter.add(1200);
+        mockNow(120000L);
+
+        // execute and validate - The 1 minute window is measured from the sample at 1 minute.
+        JsonNode progressNode = tracker.getProgress();
+        assertTrue(progressNode.get("records").get("expected").isNull());
+        JsonNode recordRateNode = progressNode.get("recordsPerSecond");
+        assertEquals(recordRateNode.get("1m").doubleValue(), 20.0, 0.001);
+        assertEquals(recordRateNode.get("5m").doubleValue(), 15.0, 0.001);
+        assertEquals(recordRateNode.get("sinceStart").doubleValue(), 15.0, 0.001);
+        assertTrue(progressNode.get("estimatedSecondsRemaining").isNull());
+    }
+
+    @Test
+    public void sampleRingWrapsAround() {
+        ExportTask task = makeTask(START_END_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a"));
+
+        // Sample 10 records per second for longer than the ring holds. Then speed up to 20 records per second for the
+        // last minute.
+        int numSamples = ExportProgressTracker.NUM_SAMPLES + 100;
+        for (int i = 1; i <= numSamples; i++) {
+            numRecordsCounter.add(i <= numSamples - 60 ? 10 : 20);
+            mockNow(i * 1000L);
+            tracker.sample();
+        }
+
+        // execute and validate
+        JsonNode recordRateNode = tracker.getProgress().get("recordsPerSecond");
+        assertEquals(recordRateNode.get("1m").doubleValue(), 20.0, 0.001);
+        assertEquals(recordRateNode.get("sinceStart").doubleValue(), (numSamples * 10.0 + 600.0) / numSamples,
+                0.001);
+    }
+
+    @Test
+    public void samplesAtMostOncePerSecond() {
+        ExportTask task = makeTask(START_END_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a"));
+
+        // Sample at 61 seconds. The sample at 61.5 seconds is skipped, so the 1 minute window at 121.5 seconds is
+        // measured from 61 seconds.
+        numRecordsCounter.add(100);
+        mockNow(61000L);
+        tracker.sample();
+
+        numRecordsCounter.add(100);
+        mockNow(61500L);
+        tracker.sample();
+
+        numRecordsCounter.add(600);
+        mockNow(121500L);
+        JsonNode recordRateNode = tracker.getProgress().get("recordsPerSecond");
+        assertEquals(recordRateNode.get("1m").doubleValue(), 700.0 / 60.5, 0.001);
+    }
+
+    @Test
+    public void subtasksPhase() {
+        ExportTask task = makeTask(LAST_EXPORT_TIME_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a"));
+
+        // All records are done after 10 seconds, with 10 outstanding subtasks.
+        List<ExportSubtaskFuture> subtaskFutureList = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            ExportSubtaskFuture subtaskFuture = mock(ExportSubtaskFuture.class);
+            subtaskFutureList.add(subtaskFuture);
+            task.addSubtaskFuture(subtaskFuture);
+        }
+        numRecordsCounter.add(100);
+        mockNow(10000L);
+        tracker.recordsDone(task);
+
+        // 4 subtasks finish in the next 10 seconds.
+        for (int i = 0; i < 4; i++) {
+            task.removeSubtaskFuture(subtaskFutureList.get(i));
+        }
+        mockNow(20000L);
+
+        // execute and validate - 6 subtasks left at 0.4 subtasks per second.
+        JsonNode progressNode = tracker.getProgress();
+        assertEquals(progressNode.get("phase").textValue(), ExportProgressTracker.PHASE_SUBTASKS);
+        assertEquals(progressNode.get("outstandingSubtasks").intValue(), 6);
+        assertEquals(progressNode.get("estimatedSecondsRemaining").longValue(), 15);
+    }
+
+    @Test
+    public void uploadPhase() {
+        ExportTask task = makeTask(LAST_EXPORT_TIME_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a"));
+        mockNow(10000L);
+        tracker.recordsDone(task);
+
+        // execute and validate
+        JsonNode progressNode = tracker.getProgress();
+        assertEquals(progressNode.get("phase").textValue(), ExportProgressTracker.PHASE_UPLOAD);
+        assertTrue(progressNode.get("estimatedSecondsRemaining").isNull());
+    }
+
+    @Test
+    public void finishTask() {
+        ExportTask task = makeTask(LAST_EXPORT_TIME_REQUEST);
+        tracker.startTask(task, numRecordsCounter, ImmutableSet.of("study-a"));
+
+        // Finishing some other task doesn't affect the active task.
+        tracker.finishTask(makeTask(LAST_EXPORT_TIME_REQUEST));
+        assertTrue(tracker.getProgress().get("active").booleanValue());
+
+        tracker.finishTask(task);
+        assertFalse(tracker.getProgress().get("active").booleanValue());
+    }
+
+    private void mockNow(long millis) {
+        doReturn(millis).when(tracker).now();
+    }
+
+    private static ExportTask makeTask(BridgeExporterRequest request) {
+        return new ExportTask.Builder().withExporterDate(EXPORTER_DATE).withMetrics(new Metrics())
+                .withRequest(request).withTmpDir(mock(File.class)).build();
+    }
+}
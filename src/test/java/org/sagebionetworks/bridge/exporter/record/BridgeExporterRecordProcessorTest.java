@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.exporter.record;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -12,31 +13,50 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
 import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
+import org.sagebionetworks.bridge.exporter.metrics.InstrumentedThreadPoolExecutor;
+import org.sagebionetworks.bridge.exporter.metrics.LatencyHistogram;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.metrics.MetricsHelper;
+import org.sagebionetworks.bridge.exporter.metrics.RateLimiterRegistry;
+import org.sagebionetworks.bridge.exporter.metrics.StageLatencyTracker;
+import org.sagebionetworks.bridge.exporter.progress.ExportProgressTracker;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpoint;
+import org.sagebionetworks.bridge.exporter.worker.ExportCheckpointHelper;
 import org.sagebionetworks.bridge.exporter.worker.ExportTask;
 import org.sagebionetworks.bridge.exporter.worker.ExportWorkerManager;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
@@ -52,47 +72,92 @@ public class BridgeExporterRecordProcessorTest {
     private static final BridgeExporterRequest REQUEST = new BridgeExporterRequest.Builder()
             .withEndDateTime(END_DATE_TIME).withTag("unit-test-tag").withUseLastExportTime(true).build();
 
-    private Table mockDdbRecordTable;
+    private ExportCheckpointHelper mockCheckpointHelper;
+    private ExportDryRunPlanner mockDryRunPlanner;
+    private ExportProgressTracker mockExportProgressTracker;
     private InMemoryFileHelper mockFileHelper;
     private ExportWorkerManager mockManager;
     private MetricsHelper mockMetricsHelper;
+    private RateLimiterRegistry mockRateLimiterRegistry;
+    private SynapseHelper mockSynapseHelper;
+    private RecordBatchGetHelper mockRecordBatchGetHelper;
     private RecordFilterHelper mockRecordFilterHelper;
     private RecordIdSourceFactory mockRecordIdFactory;
+    private SharingScopeCache mockSharingScopeCache;
+    private StageLatencyTracker mockStageLatencyTracker;
+    private InstrumentedThreadPoolExecutor mockWorkerExecutorService;
+    private RecordFilterPlan mockRecordFilterPlan;
     private BridgeExporterRecordProcessor recordProcessor;
     private DynamoHelper mockDynamoHelper;
+    private DynamoReadThrottle mockDdbReadThrottle;
+    private ExecutorService executorService;
+
+    @BeforeClass
+    public void beforeClass() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @AfterClass
+    public void afterClass() {
+        executorService.shutdownNow();
+    }
 
     @BeforeMethod
     public void before() throws Exception {
-        // mock Config - For branch coverage, make progress report period 2
+        // mock Config - For branch coverage, make progress report period 2 and batch size 3. Also, use multiple
+        // threads for each pipeline stage, so that records are processed concurrently.
         Config mockConfig = mock(Config.class);
-        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_LOOP_DELAY_MILLIS)).thenReturn(0);
+        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_PIPELINE_DISPATCH_PARALLELISM)).thenReturn(2);
+        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_PIPELINE_FILTER_PARALLELISM)).thenReturn(2);
+        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_PIPELINE_HYDRATE_PARALLELISM)).thenReturn(2);
+        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_PIPELINE_QUEUE_SIZE)).thenReturn(10);
+        when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_BATCH_GET_SIZE)).thenReturn(3);
         when(mockConfig.getInt(BridgeExporterRecordProcessor.CONFIG_KEY_RECORD_LOOP_PROGRESS_REPORT_PERIOD))
                 .thenReturn(2);
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_TIME_ZONE_NAME))
                 .thenReturn("America/Los_Angeles");
 
         // mock Synapse Helper - For this test, Synapse is up and writable.
-        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
+        mockSynapseHelper = mock(SynapseHelper.class);
         when(mockSynapseHelper.isSynapseWritable()).thenReturn(true);
 
         // mocks
-        mockDdbRecordTable = mock(Table.class);
+        mockCheckpointHelper = mock(ExportCheckpointHelper.class);
+        mockDryRunPlanner = mock(ExportDryRunPlanner.class);
+        mockExportProgressTracker = mock(ExportProgressTracker.class);
         mockFileHelper = new InMemoryFileHelper();
         mockManager = mock(ExportWorkerManager.class);
         mockMetricsHelper = mock(MetricsHelper.class);
+        mockRateLimiterRegistry = mock(RateLimiterRegistry.class);
+        mockRecordBatchGetHelper = mock(RecordBatchGetHelper.class);
+        mockSharingScopeCache = mock(SharingScopeCache.class);
+        mockStageLatencyTracker = mock(StageLatencyTracker.class);
+        mockWorkerExecutorService = mock(InstrumentedThreadPoolExecutor.class);
+        mockRecordFilterPlan = mock(RecordFilterPlan.class);
         mockRecordFilterHelper = mock(RecordFilterHelper.class);
+        when(mockRecordFilterHelper.compileFilterPlan(any(), any())).thenReturn(mockRecordFilterPlan);
         mockRecordIdFactory = mock(RecordIdSourceFactory.class);
         mockDynamoHelper = mock(DynamoHelper.class);
+        mockDdbReadThrottle = mock(DynamoReadThrottle.class);
 
         // set up record processor
         recordProcessor = spy(new BridgeExporterRecordProcessor());
         recordProcessor.setConfig(mockConfig);
-        recordProcessor.setDdbRecordTable(mockDdbRecordTable);
+        recordProcessor.setExportCheckpointHelper(mockCheckpointHelper);
+        recordProcessor.setExportDryRunPlanner(mockDryRunPlanner);
+        recordProcessor.setExportProgressTracker(mockExportProgressTracker);
         recordProcessor.setFileHelper(mockFileHelper);
         recordProcessor.setMetricsHelper(mockMetricsHelper);
+        recordProcessor.setRateLimiterRegistry(mockRateLimiterRegistry);
+        recordProcessor.setRecordBatchGetHelper(mockRecordBatchGetHelper);
         recordProcessor.setRecordFilterHelper(mockRecordFilterHelper);
         recordProcessor.setRecordIdSourceFactory(mockRecordIdFactory);
+        recordProcessor.setDdbReadThrottle(mockDdbReadThrottle);
+        recordProcessor.setRecordPipelineExecutorService(executorService);
+        recordProcessor.setSharingScopeCache(mockSharingScopeCache);
+        recordProcessor.setStageLatencyTracker(mockStageLatencyTracker);
         recordProcessor.setSynapseHelper(mockSynapseHelper);
+        recordProcessor.setWorkerExecutorService(mockWorkerExecutorService);
         recordProcessor.setWorkerManager(mockManager);
         recordProcessor.setDynamoHelper(mockDynamoHelper);
     }
@@ -106,29 +171,33 @@ public class BridgeExporterRecordProcessorTest {
         // * error
         // * success again
 
-        // mock DDB record table - We don't look inside any of these records, so for the purposes of this test, just
-        // make dummy DDB record items with no content.
-        Item dummySuccessRecord1 = new Item();
-        Item dummyFilteredRecord = new Item();
+        // mock record batch get helper - We don't look inside any of these records, so for the purposes of this
+        // test, just make dummy DDB record items with no content. Batch size is 3, so this is 2 batches. Two of the
+        // records have a study ID, to validate per-study record counts, which are counted before filtering.
+        Item dummySuccessRecord1 = new Item().withString("studyId", "fake-key");
+        Item dummyFilteredRecord = new Item().withString("studyId", "fake-key");
         Item dummyErrorRecord = new Item();
         Item dummySuccessRecord2 = new Item();
 
-        when(mockDdbRecordTable.getItem("id", "success-record-1")).thenReturn(dummySuccessRecord1);
-        when(mockDdbRecordTable.getItem("id", "filtered-record")).thenReturn(dummyFilteredRecord);
-        when(mockDdbRecordTable.getItem("id", "error-record")).thenReturn(dummyErrorRecord);
-        when(mockDdbRecordTable.getItem("id", "success-record-2")).thenReturn(dummySuccessRecord2);
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList("success-record-1",
+                "filtered-record", "missing-record")))).thenReturn(Arrays.asList(dummySuccessRecord1,
+                dummyFilteredRecord, null));
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList("error-record",
+                "success-record-2")))).thenReturn(ImmutableList.of(dummyErrorRecord, dummySuccessRecord2));
 
-        // mock record filter helper - Only mock the filtered record. All the others will return false by default in
+        // mock record filter plan - Only mock the filtered record. All the others will return false by default in
         // Mockito.
         ArgumentCaptor<Metrics> recordFilterMetricsCaptor = ArgumentCaptor.forClass(Metrics.class);
-        when(mockRecordFilterHelper.shouldExcludeRecord(recordFilterMetricsCaptor.capture(), same(REQUEST),
-                same(dummyFilteredRecord))).thenReturn(true);
+        when(mockRecordFilterHelper.compileFilterPlan(recordFilterMetricsCaptor.capture(), same(REQUEST)))
+                .thenReturn(mockRecordFilterPlan);
+        when(mockRecordFilterPlan.shouldExcludeRecord(same(dummyFilteredRecord))).thenReturn(true);
 
         // mock record ID factory
-        List<String> recordIdList = ImmutableList.of("success-record-1", "filtered-record", "missing-record",
+        List<Item> recordIdList = makeKeyItemList("success-record-1", "filtered-record", "missing-record",
                 "error-record", "success-record-2");
         Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
-        when(mockRecordIdFactory.getRecordSourceForRequest(REQUEST, fakeStudyIds)).thenReturn(recordIdList);
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds)))
+                .thenReturn(recordIdList);
         when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
 
         // mock export worker manager - Only mock error record. The others will just no-op by default in Mockito.
@@ -171,6 +240,12 @@ public class BridgeExporterRecordProcessorTest {
         // verify that we marked the task as success
         verify(recordProcessor).setTaskSuccess(any());
 
+        // validate that each hydrated batch was prefetched for sharing scope lookups, and that the deferred filter
+        // metrics were counted once all records were filtered
+        verify(mockRecordFilterPlan).prefetch(Arrays.asList(dummySuccessRecord1, dummyFilteredRecord, null));
+        verify(mockRecordFilterPlan).prefetch(ImmutableList.of(dummyErrorRecord, dummySuccessRecord2));
+        verify(mockRecordFilterPlan).completeDeferredMetrics();
+
         // validate record filter metrics is the same as the one passed to the metrics helper
         Metrics recordFilterMetrics = recordFilterMetricsCaptor.getValue();
         assertSame(recordFilterMetrics, metricsHelperArgList.get(0));
@@ -178,13 +253,43 @@ public class BridgeExporterRecordProcessorTest {
         // validate that we cleaned up all our files
         assertTrue(mockFileHelper.isEmpty());
 
-        verify(mockRecordIdFactory).getRecordSourceForRequest(REQUEST, fakeStudyIds);
+        // validate we counted all records, including the missing one
+        assertEquals(recordFilterMetrics.getCounterMap().count("numTotal"), 5);
+
+        // validate we published DDB read throttle and sharing scope cache metrics
+        verify(mockDdbReadThrottle).publishMetrics(same(recordFilterMetrics), eq(0L), eq(0));
+        verify(mockSharingScopeCache).publishMetrics(same(recordFilterMetrics), any());
+        verify(mockStageLatencyTracker).publishMetrics(same(recordFilterMetrics), any());
+        verify(mockRateLimiterRegistry).publishMetrics(same(recordFilterMetrics), any());
+        verify(mockWorkerExecutorService).publishMetrics(same(recordFilterMetrics), any());
+
+        // validate the progress tracker tracked the task from start to finish
+        ArgumentCaptor<ExportTask> progressTaskCaptor = ArgumentCaptor.forClass(ExportTask.class);
+        verify(mockExportProgressTracker).startTask(progressTaskCaptor.capture(), any(), eq(fakeStudyIds.keySet()));
+        ExportTask progressTask = progressTaskCaptor.getValue();
+        assertSame(progressTask.getMetrics(), recordFilterMetrics);
+        verify(mockExportProgressTracker).recordsDone(progressTask);
+        verify(mockExportProgressTracker).finishTask(progressTask);
+
+        // validate pipeline stage latencies - 2 batches, 4 records filtered (the missing one is skipped), 3 records
+        // dispatched, and 1 end of stream
+        SortedMap<String, LatencyHistogram.Snapshot> latencyMap = recordFilterMetrics.getLatencyHistograms();
+        assertEquals(latencyMap.get(BridgeExporterRecordProcessor.METRICS_LATENCY_HYDRATE).getCount(), 2);
+        assertEquals(latencyMap.get(BridgeExporterRecordProcessor.METRICS_LATENCY_FILTER).getCount(), 4);
+        assertEquals(latencyMap.get(BridgeExporterRecordProcessor.METRICS_LATENCY_DISPATCH).getCount(), 3);
+        assertEquals(latencyMap.get(BridgeExporterRecordProcessor.METRICS_LATENCY_END_OF_STREAM).getCount(), 1);
+
+        verify(mockRecordIdFactory).getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds));
         verify(mockDynamoHelper).bootstrapStudyIdsToQuery(REQUEST);
         ArgumentCaptor<List> listArgumentCaptor = ArgumentCaptor.forClass(List.class);
-        verify(mockDynamoHelper).updateExportTimeTable(listArgumentCaptor.capture(), eq(END_DATE_TIME));
+        verify(mockDynamoHelper).updateExportTimeTable(listArgumentCaptor.capture(), eq(END_DATE_TIME),
+                eq(ImmutableMap.of("fake-key", 2)));
         List<String> studyIdsToUpdate = listArgumentCaptor.getValue();
         assertEquals(1, studyIdsToUpdate.size());
         assertEquals(studyIdsToUpdate.get(0), "fake-key");
+
+        // The worker manager is a mock, so nothing was imported into Synapse, and there's no freshness to save.
+        verify(mockDynamoHelper).addFreshnessHistory(any(), eq(REQUEST.getTag()), eq(ImmutableMap.of()));
     }
 
     @Test
@@ -192,16 +297,18 @@ public class BridgeExporterRecordProcessorTest {
         BridgeExporterRequest newRequest = new BridgeExporterRequest.Builder().withStartDateTime(START_DATE_TIME)
                 .withEndDateTime(END_DATE_TIME).withUseLastExportTime(false).withTag("unit-test-tag").build();
 
-        // mock DDB record table - We don't look inside any of these records, so for the purposes of this test, just
-        // make dummy DDB record items with no content.
+        // mock record batch get helper - We don't look inside any of these records, so for the purposes of this
+        // test, just make dummy DDB record items with no content.
         Item dummySuccessRecord1 = new Item();
 
-        when(mockDdbRecordTable.getItem("id", "success-record-1")).thenReturn(dummySuccessRecord1);
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList(
+                "success-record-1")))).thenReturn(ImmutableList.of(dummySuccessRecord1));
 
         // mock record ID factory
-        List<String> recordIdList = ImmutableList.of("success-record-1");
+        List<Item> recordIdList = makeKeyItemList("success-record-1");
         Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
-        when(mockRecordIdFactory.getRecordSourceForRequest(newRequest, fakeStudyIds)).thenReturn(recordIdList);
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(newRequest), eq(fakeStudyIds)))
+                .thenReturn(recordIdList);
         when(mockDynamoHelper.bootstrapStudyIdsToQuery(newRequest)).thenReturn(fakeStudyIds);
 
         // execute
@@ -209,18 +316,19 @@ public class BridgeExporterRecordProcessorTest {
 
         // verify that we marked the task as success
         verify(recordProcessor).setTaskSuccess(any());
-        verify(mockDynamoHelper, times(0)).updateExportTimeTable(any(), any());
+        verify(mockDynamoHelper, times(0)).updateExportTimeTable(any(), any(), any());
     }
 
     @Test
     public void endOfStreamThrows() throws Exception {
         // Only need 1 test record this time.
 
-        // mock DDB record table and record ID factory
-        when(mockDdbRecordTable.getItem("id", "dummy-record")).thenReturn(new Item());
+        // mock record batch get helper and record ID factory
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList("dummy-record"))))
+                .thenReturn(ImmutableList.of(new Item()));
         Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
-        when(mockRecordIdFactory.getRecordSourceForRequest(REQUEST, fakeStudyIds)).thenReturn(ImmutableList.of(
-                "dummy-record"));
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds)))
+                .thenReturn(makeKeyItemList("dummy-record"));
         when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
 
         // ExportWorkerManager throws in endOfStream()
@@ -237,4 +345,186 @@ public class BridgeExporterRecordProcessorTest {
         // verify that we're NOT marking the task as success
         verify(recordProcessor, never()).setTaskSuccess(any());
     }
+
+    @Test
+    public void restartDuringIngestion() throws Exception {
+        // A subtask found that Synapse is down, so the worker manager sets the restart exception on the task. We keep
+        // processing records, and end of stream decides whether to restart.
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList("foo-record",
+                "bar-record")))).thenReturn(ImmutableList.of(new Item(), new Item()));
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds)))
+                .thenReturn(makeKeyItemList("foo-record", "bar-record"));
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        RestartBridgeExporterException restartException = new RestartBridgeExporterException("test exception");
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(0, ExportTask.class).setRestartException(restartException);
+            return null;
+        }).when(mockManager).addSubtaskForRecord(any(), any());
+        doThrow(restartException).when(mockManager).endOfStream(any(), any());
+
+        // execute (this will throw)
+        try {
+            recordProcessor.processRecordsForRequest(REQUEST);
+            fail("expected exception");
+        } catch (RestartBridgeExporterException ex) {
+            assertSame(ex, restartException);
+        }
+
+        // verify that we dispatched both records and signaled end of stream, but didn't mark the task as success
+        verify(mockManager, times(2)).addSubtaskForRecord(any(), any());
+        verify(mockManager).endOfStream(any(), any());
+        verify(recordProcessor, never()).setTaskSuccess(any());
+    }
+
+    @Test
+    public void batchGetThrows() throws Exception {
+        // 2 batches: the first one fails, the second one succeeds
+        Item dummySuccessRecord = new Item();
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList("error-record-1",
+                "error-record-2", "error-record-3")))).thenThrow(RuntimeException.class);
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), eq(makeKeyItemList("success-record"))))
+                .thenReturn(ImmutableList.of(dummySuccessRecord));
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds)))
+                .thenReturn(makeKeyItemList("error-record-1", "error-record-2", "error-record-3", "success-record"));
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // execute
+        recordProcessor.processRecordsForRequest(REQUEST);
+
+        // We still process the second batch and count all records.
+        ArgumentCaptor<Metrics> metricsCaptor = ArgumentCaptor.forClass(Metrics.class);
+        verify(mockMetricsHelper).captureMetricsForRecord(metricsCaptor.capture(), same(dummySuccessRecord));
+        verify(mockManager).addSubtaskForRecord(any(ExportTask.class), same(dummySuccessRecord));
+        verify(recordProcessor).setTaskSuccess(any());
+        assertEquals(metricsCaptor.getValue().getCounterMap().count("numTotal"), 4);
+    }
+
+    @Test
+    public void recordIdSourceThrows() throws Exception {
+        // The record ID source fails partway through. This fails the request.
+        Iterable<Item> recordIdIterable = () -> new Iterator<Item>() {
+            private int numRead = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (numRead >= 1) {
+                    throw new IllegalStateException("test exception");
+                }
+                return true;
+            }
+
+            @Override
+            public Item next() {
+                numRead++;
+                return new Item().withString("id", "dummy-record");
+            }
+        };
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds)))
+                .thenReturn(recordIdIterable);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // execute (this will throw)
+        try {
+            recordProcessor.processRecordsForRequest(REQUEST);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        // verify that we're NOT marking the task as success or signaling end of stream
+        verify(recordProcessor, never()).setTaskSuccess(any());
+        verify(mockManager, never()).endOfStream(any(), any());
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        // The checkpoint points to the temp dir from the previous run.
+        File checkpointTmpDir = mockFileHelper.createTempDir();
+        ExportCheckpoint checkpoint = new ExportCheckpoint();
+        checkpoint.setExporterDate("2016-05-08");
+        checkpoint.setTmpDir(checkpointTmpDir.getAbsolutePath());
+        when(mockCheckpointHelper.readCheckpoint(REQUEST)).thenReturn(checkpoint);
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+
+        // execute
+        recordProcessor.processRecordsForRequest(REQUEST);
+
+        // We restore the checkpoint instead of reading records, then proceed to end of stream as normal.
+        ArgumentCaptor<ExportTask> taskCaptor = ArgumentCaptor.forClass(ExportTask.class);
+        verify(mockManager).resumeFromCheckpoint(taskCaptor.capture(), same(checkpoint));
+        verify(mockManager).endOfStream(same(taskCaptor.getValue()), eq(fakeStudyIds));
+        verifyNoMoreInteractions(mockManager);
+        verifyNoMoreInteractions(mockRecordIdFactory, mockRecordBatchGetHelper);
+
+        ExportTask task = taskCaptor.getValue();
+        assertEquals(task.getExporterDate(), LocalDate.parse("2016-05-08"));
+        assertEquals(task.getTmpDir().getAbsolutePath(), checkpointTmpDir.getAbsolutePath());
+
+        // Success clears the checkpoint, and we still clean up the temp dir.
+        verify(recordProcessor).setTaskSuccess(any());
+        verify(mockCheckpointHelper).clearCheckpoint(REQUEST);
+        assertTrue(mockFileHelper.isEmpty());
+    }
+
+    @Test
+    public void previouslyImportedSegments() throws Exception {
+        // A previous run of this request imported a segment, then restarted before writing a checkpoint.
+        when(mockCheckpointHelper.readImportedSegments(REQUEST)).thenReturn(ImmutableMap.of("test-table",
+                ImmutableSet.of("imported-record")));
+
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(REQUEST)).thenReturn(fakeStudyIds);
+        when(mockRecordIdFactory.getRecordSourceForRequest(any(Metrics.class), eq(REQUEST), eq(fakeStudyIds)))
+                .thenReturn(ImmutableList.of());
+
+        // execute
+        recordProcessor.processRecordsForRequest(REQUEST);
+
+        // The task knows which rows to skip.
+        ArgumentCaptor<ExportTask> taskCaptor = ArgumentCaptor.forClass(ExportTask.class);
+        verify(mockManager).endOfStream(taskCaptor.capture(), eq(fakeStudyIds));
+        ExportTask task = taskCaptor.getValue();
+        assertTrue(task.isRecordPreviouslyImported("test-table", "imported-record"));
+        assertFalse(task.isRecordPreviouslyImported("test-table", "other-record"));
+        assertFalse(task.isRecordPreviouslyImported("other-table", "imported-record"));
+    }
+
+    @Test
+    public void dryRun() throws Exception {
+        BridgeExporterRequest dryRunRequest = new BridgeExporterRequest.Builder().copyOf(REQUEST).withDryRun(true)
+                .build();
+        Map<String, DateTime> fakeStudyIds = ImmutableMap.of("fake-key", START_DATE_TIME);
+        when(mockDynamoHelper.bootstrapStudyIdsToQuery(dryRunRequest)).thenReturn(fakeStudyIds);
+
+        // execute
+        recordProcessor.processRecordsForRequest(dryRunRequest);
+
+        // We plan the export and publish the plan.
+        ArgumentCaptor<Metrics> metricsCaptor = ArgumentCaptor.forClass(Metrics.class);
+        verify(mockDryRunPlanner).planExport(metricsCaptor.capture(), eq(END_DATE_TIME), eq(fakeStudyIds));
+        verify(mockMetricsHelper).publishMetrics(same(metricsCaptor.getValue()));
+
+        // We don't run the export, call Synapse, or update the export time table.
+        verifyNoMoreInteractions(mockManager, mockRecordIdFactory, mockRecordBatchGetHelper, mockSynapseHelper,
+                mockCheckpointHelper);
+        verify(mockDynamoHelper, never()).updateExportTimeTable(any(), any(), any());
+        verify(mockDynamoHelper, never()).addFreshnessHistory(any(), any(), any());
+        assertTrue(mockFileHelper.isEmpty());
+    }
+
+    private static List<Item> makeKeyItemList(String... recordIds) {
+        ImmutableList.Builder<Item> keyItemListBuilder = ImmutableList.builder();
+        for (String oneRecordId : recordIds) {
+            keyItemListBuilder.add(new Item().withString("id", oneRecordId));
+        }
+        return keyItemListBuilder.build();
+    }
 }
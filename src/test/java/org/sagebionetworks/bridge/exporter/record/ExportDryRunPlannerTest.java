@@ -0,0 +1,245 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.amazonaws.services.dynamodbv2.document.Index;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.QueryResult;
+import com.amazonaws.services.dynamodbv2.model.Select;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.exporter.helper.BridgeHelperTest;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.synapse.SynapseHelper;
+import org.sagebionetworks.bridge.rest.model.UploadFieldDefinition;
+import org.sagebionetworks.bridge.rest.model.UploadFieldType;
+import org.sagebionetworks.bridge.rest.model.UploadSchema;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+@SuppressWarnings("unchecked")
+public class ExportDryRunPlannerTest {
+    private static final DateTime START_DATE_TIME = DateTime.parse("2016-05-09T00:00:00.000-0700");
+    private static final DateTime END_DATE_TIME = DateTime.parse("2016-05-09T23:59:59.999-0700");
+    private static final ConsumedCapacity COUNT_CONSUMED_CAPACITY = new ConsumedCapacity().withCapacityUnits(2.0);
+    private static final String EMPTY_STUDY_ID = "empty-study";
+    private static final ConsumedCapacity SAMPLE_CONSUMED_CAPACITY = new ConsumedCapacity().withCapacityUnits(1.0);
+    private static final int SAMPLE_SIZE = 10;
+    private static final String STUDY_ID = BridgeHelperTest.TEST_STUDY_ID;
+    private static final int STUDY_RECORD_COUNT = 20;
+
+    private static final UploadSchemaKey SCHEMA_KEY = BridgeHelperTest.TEST_SCHEMA_KEY;
+
+    private BridgeHelper mockBridgeHelper;
+    private DynamoReadThrottle mockDdbReadThrottle;
+    private Index mockIndex;
+    private RecordBatchGetHelper mockRecordBatchGetHelper;
+    private ExportDryRunPlanner planner;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.getInt(ExportDryRunPlanner.CONFIG_KEY_SAMPLE_SIZE)).thenReturn(SAMPLE_SIZE);
+
+        // Schema has one attachment field and one inline field.
+        UploadSchema schema = BridgeHelperTest.simpleSchemaBuilder().fieldDefinitions(ImmutableList.of(
+                new UploadFieldDefinition().name("file").type(UploadFieldType.ATTACHMENT_V2),
+                new UploadFieldDefinition().name("foo").type(UploadFieldType.STRING)));
+        mockBridgeHelper = mock(BridgeHelper.class);
+        when(mockBridgeHelper.getSchema(any(), any())).thenReturn(schema);
+
+        // The DDB ceiling is high enough that Synapse dominates the projected time.
+        mockDdbReadThrottle = mock(DynamoReadThrottle.class);
+        when(mockDdbReadThrottle.getCeilingRate()).thenReturn(1000.0);
+
+        // Both studies get a single slice.
+        RecordIdSourceFactory mockRecordIdSourceFactory = mock(RecordIdSourceFactory.class);
+        when(mockRecordIdSourceFactory.planSliceCounts(any())).thenReturn(ImmutableMap.of(STUDY_ID, 1,
+                EMPTY_STUDY_ID, 1));
+
+        SynapseHelper mockSynapseHelper = mock(SynapseHelper.class);
+        when(mockSynapseHelper.getAsyncIntervalMillis()).thenReturn(1000);
+        when(mockSynapseHelper.getRateLimitPerSecond()).thenReturn(10.0);
+
+        mockIndex = mock(Index.class);
+        mockRecordBatchGetHelper = mock(RecordBatchGetHelper.class);
+
+        planner = new ExportDryRunPlanner();
+        planner.setConfig(mockConfig);
+        planner.setBridgeHelper(mockBridgeHelper);
+        planner.setDdbReadThrottle(mockDdbReadThrottle);
+        planner.setDdbRecordStudyUploadedOnIndex(mockIndex);
+        planner.setRecordBatchGetHelper(mockRecordBatchGetHelper);
+        planner.setRecordIdSourceFactory(mockRecordIdSourceFactory);
+        planner.setSynapseHelper(mockSynapseHelper);
+    }
+
+    @Test
+    public void planExport() throws Exception {
+        // Sampled records:
+        // * a schema record with an attachment field and a raw data attachment (2 S3 calls, 2 file handles)
+        // * a schemaless record with user metadata (0 S3 calls, 1 file handle)
+        Item schemaRecord = new Item().withString("id", "schema-record").withString("healthCode", "dummy")
+                .withString("studyId", STUDY_ID).withString("schemaId", SCHEMA_KEY.getSchemaId())
+                .withInt("schemaRevision", SCHEMA_KEY.getRevision())
+                .withString("data", "{\"file\":\"attachment-id\", \"foo\":\"bar\"}")
+                .withString("rawDataAttachmentId", "raw-data-id");
+        Item schemalessRecord = new Item().withString("id", "schemaless-record").withString("healthCode", "dummy")
+                .withString("studyId", STUDY_ID).withString("data", "{}")
+                .withString("userMetadata", "{\"foo\":\"bar\"}");
+
+        // mock index - Count queries return the record count. The non-empty study's count is split across 2 pages.
+        // The sample query returns the sampled record keys.
+        List<QuerySpec> sampleQuerySpecList = new ArrayList<>();
+        when(mockIndex.query(any(QuerySpec.class))).thenAnswer(invocation -> {
+            QuerySpec querySpec = invocation.getArgumentAt(0, QuerySpec.class);
+            String studyId = (String) querySpec.getHashKey().getValue();
+            if (Select.COUNT.toString().equals(querySpec.getSelect())) {
+                if (STUDY_ID.equals(studyId)) {
+                    return makeCountResult(8, STUDY_RECORD_COUNT - 8);
+                } else {
+                    return makeCountResult(0);
+                }
+            } else {
+                sampleQuerySpecList.add(querySpec);
+                return makeItemResult(ImmutableList.of(new Item().withString("id", "schema-record"),
+                        new Item().withString("id", "schemaless-record")));
+            }
+        });
+
+        when(mockRecordBatchGetHelper.hydrateRecords(any(Metrics.class), anyList())).thenReturn(ImmutableList.of(
+                schemaRecord, schemalessRecord));
+
+        // execute
+        Metrics metrics = new Metrics();
+        planner.planExport(metrics, END_DATE_TIME, ImmutableMap.of(STUDY_ID, START_DATE_TIME, EMPTY_STUDY_ID,
+                START_DATE_TIME));
+
+        // Each query page, including the sample query, waits on the throttle and is charged to it. That's 2 pages for
+        // the non-empty study's count, 1 for the empty study's count, and 1 for the sample. Only the non-empty study is
+        // sampled.
+        verify(mockDdbReadThrottle, times(4)).acquire();
+        verify(mockDdbReadThrottle, times(3)).recordConsumedCapacity(eq(ImmutableList.of(COUNT_CONSUMED_CAPACITY)),
+                anyDouble());
+        verify(mockDdbReadThrottle, times(1)).recordConsumedCapacity(eq(ImmutableList.of(SAMPLE_CONSUMED_CAPACITY)),
+                anyDouble());
+        verify(mockRecordBatchGetHelper, times(1)).hydrateRecords(any(Metrics.class), anyList());
+        assertEquals(sampleQuerySpecList.size(), 1);
+        assertEquals(sampleQuerySpecList.get(0).getMaxResultSize().intValue(), SAMPLE_SIZE);
+
+        // Validate plan.
+        Map<String, Integer> expectedCounterMap = ImmutableMap.<String, Integer>builder()
+                .put(ExportDryRunPlanner.METRICS_PREFIX_NUM_RECORDS + STUDY_ID + "]", STUDY_RECORD_COUNT)
+                .put(ExportDryRunPlanner.METRICS_NUM_RECORDS, STUDY_RECORD_COUNT)
+                .put(ExportDryRunPlanner.METRICS_NUM_SAMPLED_RECORDS, 2)
+                // Average of 1 S3 call and 1.5 file handles per record.
+                .put(ExportDryRunPlanner.METRICS_S3_METADATA_CALLS, 20)
+                .put(ExportDryRunPlanner.METRICS_SYNAPSE_FILE_HANDLES, 30)
+                // Status table for each study, plus the schema, app version, and default tables for the non-empty
+                // study.
+                .put(ExportDryRunPlanner.METRICS_SYNAPSE_TSV_JOBS, 5)
+                // 30 file handles + 5 TSV jobs * 3 calls = 45 calls at 10/sec = 4.5 sec, plus 5 TSV jobs * 1 sec.
+                .put(ExportDryRunPlanner.METRICS_ESTIMATED_SECONDS, 10)
+                .build();
+        for (Map.Entry<String, Integer> oneExpectedCounter : expectedCounterMap.entrySet()) {
+            assertEquals(metrics.getCounterMap().count(oneExpectedCounter.getKey()),
+                    oneExpectedCounter.getValue().intValue(), oneExpectedCounter.getKey());
+        }
+        assertEquals(metrics.getCounterMap().count(ExportDryRunPlanner.METRICS_PREFIX_NUM_RECORDS + EMPTY_STUDY_ID +
+                "]"), 0);
+
+        double expectedReadUnits = (DynamoReadThrottle.estimateReadUnits(schemaRecord) +
+                DynamoReadThrottle.estimateReadUnits(schemalessRecord)) / 2 * STUDY_RECORD_COUNT;
+        assertEquals(metrics.getCounterMap().count(ExportDryRunPlanner.METRICS_DDB_READ_UNITS),
+                (int) Math.ceil(expectedReadUnits));
+
+        Set<String> attachmentsPerRecord = metrics.getKeyValuesMap().get(
+                ExportDryRunPlanner.METRICS_PREFIX_ATTACHMENTS_PER_RECORD + SCHEMA_KEY + "]");
+        assertEquals(attachmentsPerRecord, ImmutableSet.of("2.00"));
+    }
+
+    @Test
+    public void noRecords() throws Exception {
+        when(mockIndex.query(any(QuerySpec.class))).thenAnswer(invocation -> makeCountResult(0));
+
+        // execute
+        Metrics metrics = new Metrics();
+        planner.planExport(metrics, END_DATE_TIME, ImmutableMap.of(STUDY_ID, START_DATE_TIME));
+
+        // Nothing is sampled. The plan is just the status table.
+        verifyZeroInteractions(mockBridgeHelper, mockRecordBatchGetHelper);
+        assertEquals(metrics.getCounterMap().count(ExportDryRunPlanner.METRICS_NUM_RECORDS), 0);
+        assertEquals(metrics.getCounterMap().count(ExportDryRunPlanner.METRICS_DDB_READ_UNITS), 0);
+        assertEquals(metrics.getCounterMap().count(ExportDryRunPlanner.METRICS_SYNAPSE_TSV_JOBS), 1);
+    }
+
+    // Makes a count query result, with one page for each count.
+    private static ItemCollection<QueryOutcome> makeCountResult(int... pageCounts) {
+        TestPage page = null;
+        for (int i = pageCounts.length - 1; i >= 0; i--) {
+            page = new TestPage(ImmutableList.of(), pageCounts[i], COUNT_CONSUMED_CAPACITY, page);
+        }
+        return makeResult(page);
+    }
+
+    private static ItemCollection<QueryOutcome> makeItemResult(List<Item> itemList) {
+        return makeResult(new TestPage(itemList, itemList.size(), SAMPLE_CONSUMED_CAPACITY, null));
+    }
+
+    private static ItemCollection<QueryOutcome> makeResult(TestPage firstPage) {
+        ItemCollection<QueryOutcome> mockResult = mock(ItemCollection.class);
+        when(mockResult.firstPage()).thenReturn(firstPage);
+        return mockResult;
+    }
+
+    // Query result page, chained to the next page.
+    private static class TestPage extends Page<Item, QueryOutcome> {
+        private final TestPage nextPage;
+
+        TestPage(List<Item> itemList, int count, ConsumedCapacity consumedCapacity, TestPage nextPage) {
+            super(itemList, new QueryOutcome(new QueryResult().withCount(count).withConsumedCapacity(
+                    consumedCapacity)));
+            this.nextPage = nextPage;
+        }
+
+        @Override
+        public boolean hasNextPage() {
+            return nextPage != null;
+        }
+
+        @Override
+        public Page<Item, QueryOutcome> nextPage() {
+            if (nextPage == null) {
+                throw new NoSuchElementException();
+            }
+            return nextPage;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+public class FanOutRecordIdSourceTest {
+    private static final RecordIdSource.Converter<Item> IDENTITY_CONVERTER = from -> from;
+
+    private ExecutorService executorService;
+
+    @BeforeMethod
+    public void before() {
+        executorService = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void mergesAllSources() {
+        Map<String, Iterable<Item>> sourcesByName = ImmutableMap.of("foo", makeItemList("foo", 10),
+                "bar", makeItemList("bar", 20), "empty", ImmutableList.of());
+
+        Metrics metrics = new Metrics();
+        FanOutRecordIdSource source = new FanOutRecordIdSource(executorService, sourcesByName, IDENTITY_CONVERTER,
+                5, 2, metrics);
+        List<String> recordIdList = new ArrayList<>();
+        for (Item oneItem : source) {
+            recordIdList.add(oneItem.getString("id"));
+        }
+        assertFalse(source.hasNext());
+
+        // All records are returned, and records within a source are in order.
+        assertEquals(recordIdList.size(), 30);
+        assertInOrder(recordIdList, "foo", 10);
+        assertInOrder(recordIdList, "bar", 20);
+
+        // validate metrics
+        assertEquals(metrics.getCounterMap().count(FanOutRecordIdSource.METRICS_PREFIX_NUM_RECORDS + "foo]"), 10);
+        assertEquals(metrics.getCounterMap().count(FanOutRecordIdSource.METRICS_PREFIX_NUM_RECORDS + "bar]"), 20);
+        assertEquals(metrics.getCounterMap().count(FanOutRecordIdSource.METRICS_PREFIX_NUM_RECORDS + "empty]"), 0);
+        assertTrue(metrics.getKeyValuesMap().containsKey(FanOutRecordIdSource.METRICS_PREFIX_RECORDS_PER_SEC +
+                "foo]"));
+    }
+
+    @Test
+    public void convertsItems() {
+        RecordIdSource.Converter<Item> converter = from -> new Item().withString("id", from.getString("id") +
+                "-converted");
+        FanOutRecordIdSource source = new FanOutRecordIdSource(executorService, ImmutableMap.of("foo",
+                makeItemList("foo", 1)), converter, 5, 2, new Metrics());
+        assertEquals(source.next().getString("id"), "foo-0-converted");
+        assertFalse(source.hasNext());
+    }
+
+    @Test
+    public void prefetchDepthBoundsEachSource() throws Exception {
+        // Source counts how many records have been read from it.
+        AtomicInteger numRead = new AtomicInteger();
+        Iterable<Item> countingSource = () -> new Iterator<Item>() {
+            @Override
+            public boolean hasNext() {
+                return numRead.get() < 100;
+            }
+
+            @Override
+            public Item next() {
+                return new Item().withString("id", "foo-" + numRead.getAndIncrement());
+            }
+        };
+
+        FanOutRecordIdSource source = new FanOutRecordIdSource(executorService, ImmutableMap.of("foo",
+                countingSource), IDENTITY_CONVERTER, 50, 3, new Metrics());
+        try {
+            // Don't consume anything. The source should block after filling its prefetch depth. (It reads one extra
+            // record before blocking on the prefetch permit.)
+            Thread.sleep(200);
+            assertEquals(numRead.get(), 4);
+
+            // Consuming one record lets the source read one more.
+            assertEquals(source.next().getString("id"), "foo-0");
+            Thread.sleep(200);
+            assertEquals(numRead.get(), 5);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    public void sourceErrorPropagatesToConsumer() {
+        Iterable<Item> errorSource = () -> new Iterator<Item>() {
+            @Override
+            public boolean hasNext() {
+                throw new IllegalStateException("test exception");
+            }
+
+            @Override
+            public Item next() {
+                throw new IllegalStateException("test exception");
+            }
+        };
+
+        FanOutRecordIdSource source = new FanOutRecordIdSource(executorService, ImmutableMap.of("error",
+                errorSource), IDENTITY_CONVERTER, 5, 2, new Metrics());
+        try {
+            source.hasNext();
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        // Source is closed after the error.
+        assertFalse(source.hasNext());
+    }
+
+    @Test
+    public void closeCancelsBlockedSources() throws Exception {
+        // Each source has more records than fit in the buffer, so they'll block and tie up both executor threads.
+        Map<String, Iterable<Item>> sourcesByName = ImmutableMap.of("foo", makeItemList("foo", 100),
+                "bar", makeItemList("bar", 100));
+        FanOutRecordIdSource source = new FanOutRecordIdSource(executorService, sourcesByName, IDENTITY_CONVERTER,
+                2, 2, new Metrics());
+        source.next();
+        source.close();
+        assertFalse(source.hasNext());
+
+        // The source reads are cancelled rather than blocking forever, so the executor threads are freed up.
+        CountDownLatch latch = new CountDownLatch(2);
+        executorService.submit(latch::countDown);
+        executorService.submit(latch::countDown);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private static List<Item> makeItemList(String prefix, int numItems) {
+        List<Item> itemList = new ArrayList<>();
+        for (int i = 0; i < numItems; i++) {
+            itemList.add(new Item().withString("id", prefix + "-" + i));
+        }
+        return itemList;
+    }
+
+    private static void assertInOrder(List<String> recordIdList, String prefix, int numItems) {
+        int lastIndex = -1;
+        for (int i = 0; i < numItems; i++) {
+            int index = recordIdList.indexOf(prefix + "-" + i);
+            assertTrue(index > lastIndex, "record " + prefix + "-" + i + " out of order");
+            lastIndex = index;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.BatchGetItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConsumedCapacity;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.ReturnConsumedCapacity;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+
+@SuppressWarnings("unchecked")
+public class RecordBatchGetHelperTest {
+    private static final double CONSUMED_CAPACITY_UNITS = 1.5;
+    private static final String TABLE_NAME = "test-HealthDataRecord3";
+
+    private DynamoDB mockDdbClient;
+    private DynamoReadThrottle mockDdbReadThrottle;
+    private Table mockRecordTable;
+    private RecordBatchGetHelper helper;
+
+    @BeforeMethod
+    public void before() {
+        mockDdbClient = mock(DynamoDB.class);
+        mockDdbReadThrottle = mock(DynamoReadThrottle.class);
+        mockRecordTable = mock(Table.class);
+        when(mockRecordTable.getTableName()).thenReturn(TABLE_NAME);
+
+        // Spy so we can skip the backoff sleep.
+        helper = spy(new RecordBatchGetHelper());
+        helper.setDdbClient(mockDdbClient);
+        helper.setDdbReadThrottle(mockDdbReadThrottle);
+        helper.setDdbRecordTable(mockRecordTable);
+        doNothing().when(helper).sleepBeforeRetry(anyInt());
+    }
+
+    @Test
+    public void preservesOrderAndReturnsNullForMissing() {
+        // DDB returns records in arbitrary order, and doesn't return missing records. Also, request a duplicate.
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenReturn(makeOutcome(ImmutableList.of("record-c", "record-a"), null));
+
+        Metrics metrics = new Metrics();
+        List<Item> recordList = helper.getRecordsForIds(metrics, ImmutableList.of("record-a", "record-b",
+                "record-c", "record-a"));
+        assertEquals(recordList.size(), 4);
+        assertEquals(recordList.get(0).getString("id"), "record-a");
+        assertNull(recordList.get(1));
+        assertEquals(recordList.get(2).getString("id"), "record-c");
+        assertEquals(recordList.get(3).getString("id"), "record-a");
+
+        // Validate we de-duped keys for DDB.
+        ArgumentCaptor<TableKeysAndAttributes> keysCaptor = ArgumentCaptor.forClass(TableKeysAndAttributes.class);
+        verify(mockDdbClient).batchGetItem(eq(ReturnConsumedCapacity.TOTAL), keysCaptor.capture());
+        TableKeysAndAttributes keys = keysCaptor.getValue();
+        assertEquals(keys.getTableName(), TABLE_NAME);
+        assertEquals(getKeyIds(keys), ImmutableList.of("record-a", "record-b", "record-c"));
+
+        // Validate metrics.
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_BATCH_COUNT), 1);
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_UNPROCESSED_KEYS), 0);
+
+        // Validate we waited on the read throttle and reported the consumed capacity from DDB.
+        ArgumentCaptor<List> consumedCapacityCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockDdbReadThrottle).acquire();
+        verify(mockDdbReadThrottle).recordConsumedCapacity(consumedCapacityCaptor.capture(), anyDouble());
+        List<ConsumedCapacity> consumedCapacityList = consumedCapacityCaptor.getValue();
+        assertEquals(consumedCapacityList.size(), 1);
+        assertEquals(consumedCapacityList.get(0).getCapacityUnits(), CONSUMED_CAPACITY_UNITS);
+        verify(mockDdbReadThrottle, never()).onThrottled();
+    }
+
+    @Test
+    public void splitsLargeLists() {
+        // 250 records is 3 batches: 100, 100, 50
+        List<String> recordIdList = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            recordIdList.add("record-" + i);
+        }
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenAnswer(invocation -> {
+            TableKeysAndAttributes keys = (TableKeysAndAttributes) invocation.getArguments()[1];
+            return makeOutcome(getKeyIds(keys), null);
+        });
+
+        Metrics metrics = new Metrics();
+        List<Item> recordList = helper.getRecordsForIds(metrics, recordIdList);
+        assertEquals(recordList.size(), 250);
+        for (int i = 0; i < 250; i++) {
+            assertEquals(recordList.get(i).getString("id"), "record-" + i);
+        }
+
+        ArgumentCaptor<TableKeysAndAttributes> keysCaptor = ArgumentCaptor.forClass(TableKeysAndAttributes.class);
+        verify(mockDdbClient, times(3)).batchGetItem(eq(ReturnConsumedCapacity.TOTAL), keysCaptor.capture());
+        List<TableKeysAndAttributes> keysList = keysCaptor.getAllValues();
+        assertEquals(keysList.get(0).getPrimaryKeys().size(), 100);
+        assertEquals(keysList.get(1).getPrimaryKeys().size(), 100);
+        assertEquals(keysList.get(2).getPrimaryKeys().size(), 50);
+
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_BATCH_COUNT), 3);
+    }
+
+    @Test
+    public void retriesUnprocessedKeys() {
+        // First call returns record-a and leaves record-b unprocessed. Retry returns record-b.
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenReturn(makeOutcome(ImmutableList.of("record-a"), ImmutableList.of("record-b")));
+        when(mockDdbClient.batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL), anyMap())).thenReturn(
+                makeOutcome(ImmutableList.of("record-b"), null));
+
+        Metrics metrics = new Metrics();
+        List<Item> recordList = helper.getRecordsForIds(metrics, ImmutableList.of("record-a", "record-b"));
+        assertEquals(recordList.get(0).getString("id"), "record-a");
+        assertEquals(recordList.get(1).getString("id"), "record-b");
+
+        ArgumentCaptor<Map> unprocessedKeysCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(mockDdbClient).batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL),
+                unprocessedKeysCaptor.capture());
+        Map<String, KeysAndAttributes> unprocessedKeys = unprocessedKeysCaptor.getValue();
+        assertEquals(unprocessedKeys.get(TABLE_NAME).getKeys().get(0).get("id").getS(), "record-b");
+
+        verify(helper).sleepBeforeRetry(0);
+        verify(mockRecordTable, never()).getItem(any(String.class), any());
+        verify(mockDdbReadThrottle).onThrottled();
+        verify(mockDdbReadThrottle, times(2)).acquire();
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_UNPROCESSED_KEYS), 1);
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_UNPROCESSED_FALLBACK_KEYS), 0);
+    }
+
+    @Test
+    public void fallsBackToSingleGetsAfterRetries() {
+        // record-b is never processed by batch get.
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenReturn(makeOutcome(ImmutableList.of("record-a"), ImmutableList.of("record-b")));
+        when(mockDdbClient.batchGetItemUnprocessed(eq(ReturnConsumedCapacity.TOTAL), anyMap())).thenReturn(
+                makeOutcome(ImmutableList.of(), ImmutableList.of("record-b")));
+        when(mockRecordTable.getItem("id", "record-b")).thenReturn(new Item().withString("id", "record-b"));
+
+        Metrics metrics = new Metrics();
+        List<Item> recordList = helper.getRecordsForIds(metrics, ImmutableList.of("record-a", "record-b"));
+        assertEquals(recordList.get(0).getString("id"), "record-a");
+        assertEquals(recordList.get(1).getString("id"), "record-b");
+
+        verify(mockDdbClient, times(RecordBatchGetHelper.MAX_UNPROCESSED_RETRIES)).batchGetItemUnprocessed(
+                eq(ReturnConsumedCapacity.TOTAL), anyMap());
+        verify(mockRecordTable).getItem("id", "record-b");
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_UNPROCESSED_KEYS),
+                RecordBatchGetHelper.MAX_UNPROCESSED_RETRIES);
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_UNPROCESSED_FALLBACK_KEYS), 1);
+    }
+
+    @Test
+    public void hydrateRecordsPassesThroughFullRecords() {
+        // record-a is a full record, record-b is a key item, record-c is missing.
+        Item fullRecordA = new Item().withString("id", "record-a").withString("healthCode", "dummy-health-code")
+                .withString("data", "{}");
+        Item keyItemB = new Item().withString("id", "record-b");
+        Item keyItemC = new Item().withString("id", "record-c");
+        when(mockDdbClient.batchGetItem(eq(ReturnConsumedCapacity.TOTAL), any(TableKeysAndAttributes.class)))
+                .thenReturn(makeOutcome(ImmutableList.of("record-b"), null));
+
+        Metrics metrics = new Metrics();
+        List<Item> recordList = helper.hydrateRecords(metrics, ImmutableList.of(fullRecordA, keyItemB, keyItemC));
+        assertEquals(recordList.size(), 3);
+        assertSame(recordList.get(0), fullRecordA);
+        assertEquals(recordList.get(1).getString("id"), "record-b");
+        assertNull(recordList.get(2));
+
+        // Only the key items are fetched.
+        ArgumentCaptor<TableKeysAndAttributes> keysCaptor = ArgumentCaptor.forClass(TableKeysAndAttributes.class);
+        verify(mockDdbClient).batchGetItem(eq(ReturnConsumedCapacity.TOTAL), keysCaptor.capture());
+        assertEquals(getKeyIds(keysCaptor.getValue()), ImmutableList.of("record-b", "record-c"));
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_FULL_RECORDS), 1);
+    }
+
+    @Test
+    public void hydrateRecordsAllFullRecords() {
+        Item fullRecord = new Item().withString("id", "record-a").withString("healthCode", "dummy-health-code")
+                .withString("data", "{}");
+
+        Metrics metrics = new Metrics();
+        List<Item> recordList = helper.hydrateRecords(metrics, ImmutableList.of(fullRecord));
+        assertEquals(recordList.size(), 1);
+        assertSame(recordList.get(0), fullRecord);
+
+        verify(mockDdbClient, never()).batchGetItem(eq(ReturnConsumedCapacity.TOTAL),
+                any(TableKeysAndAttributes.class));
+        assertEquals(metrics.getCounterMap().count(RecordBatchGetHelper.METRICS_BATCH_COUNT), 0);
+    }
+
+    private static BatchGetItemOutcome makeOutcome(List<String> foundRecordIdList,
+            List<String> unprocessedRecordIdList) {
+        List<Map<String, AttributeValue>> itemList = foundRecordIdList.stream()
+                .map(id -> ImmutableMap.of("id", new AttributeValue().withS(id))).collect(Collectors.toList());
+        BatchGetItemResult result = new BatchGetItemResult().withResponses(ImmutableMap.of(TABLE_NAME, itemList))
+                .withConsumedCapacity(new ConsumedCapacity().withTableName(TABLE_NAME).withCapacityUnits(
+                        CONSUMED_CAPACITY_UNITS));
+
+        if (unprocessedRecordIdList != null) {
+            List<Map<String, AttributeValue>> keyList = unprocessedRecordIdList.stream()
+                    .map(id -> ImmutableMap.of("id", new AttributeValue().withS(id))).collect(Collectors.toList());
+            result.setUnprocessedKeys(ImmutableMap.of(TABLE_NAME, new KeysAndAttributes().withKeys(keyList)));
+        }
+        return new BatchGetItemOutcome(result);
+    }
+
+    private static List<String> getKeyIds(TableKeysAndAttributes keys) {
+        return keys.getPrimaryKeys().stream().map(PrimaryKey::getComponents)
+                .map(components -> (String) components.iterator().next().getValue()).collect(Collectors.toList());
+    }
+}
@@ -7,18 +7,19 @@ import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.joda.time.DateTime;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
-import org.sagebionetworks.bridge.exporter.helper.BridgeHelper;
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterSharingMode;
 import org.sagebionetworks.bridge.rest.model.SharingScope;
-import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
 
 public class RecordFilterHelperTest {
@@ -260,6 +261,27 @@ public class RecordFilterHelperTest {
         assertEquals(counterMap.count("excluded[test-study-default]"), 1);
     }
 
+    @Test
+    public void compileFilterPlan() {
+        // set up inputs
+        Metrics metrics = new Metrics();
+        BridgeExporterRequest request = makeRequestBuilder().build();
+        Item record = makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, TEST_STUDY);
+
+        // Lookups run on the calling thread, so the test is deterministic.
+        RecordFilterHelper helper = makeRecordFilterHelper(SharingScope.SPONSORS_AND_PARTNERS);
+        helper.setParticipantLookupExecutorService(MoreExecutors.newDirectExecutorService());
+
+        // execute and validate
+        RecordFilterPlan filterPlan = helper.compileFilterPlan(metrics, request);
+        filterPlan.prefetch(ImmutableList.of(record));
+        assertFalse(filterPlan.shouldExcludeRecord(record));
+
+        Multiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 1);
+        assertEquals(counterMap.count(SharingScopeResolver.METRICS_NUM_LOOKUPS), 1);
+    }
+
     private static Item makeRecord(SharingScope recordSharingScope, String studyId) {
         Item record = new Item().with("healthCode", DUMMY_HEALTH_CODE);
 
@@ -275,16 +297,17 @@ public class RecordFilterHelperTest {
     }
 
     private static RecordFilterHelper makeRecordFilterHelper(SharingScope userSharingScope) {
-        // mock BridgeHelper
-        StudyParticipant participant = new StudyParticipant();
-        participant.setSharingScope(userSharingScope);
+        // mock SharingScopeCache
+        SharingScopeCache mockSharingScopeCache = mock(SharingScopeCache.class);
+        when(mockSharingScopeCache.getSharingScope(TEST_STUDY, DUMMY_HEALTH_CODE)).thenReturn(userSharingScope);
 
-        BridgeHelper mockBridgeHelper = mock(BridgeHelper.class);
-        when(mockBridgeHelper.getParticipantByHealthCode(TEST_STUDY, DUMMY_HEALTH_CODE)).thenReturn(participant);
+        // Records excluded by other filters get their sharing scope metrics from the cache, without calling Bridge.
+        when(mockSharingScopeCache.peekSharingScope(TEST_STUDY, DUMMY_HEALTH_CODE)).thenReturn(
+                userSharingScope != null ? userSharingScope : SharingScope.NO_SHARING);
 
         // set up record filter helper
         RecordFilterHelper helper = new RecordFilterHelper();
-        helper.setBridgeHelper(mockBridgeHelper);
+        helper.setSharingScopeCache(mockSharingScopeCache);
         return helper;
     }
 
@@ -0,0 +1,245 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Multiset;
+import org.joda.time.DateTime;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterSharingMode;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+@SuppressWarnings("unchecked")
+public class RecordFilterPlanTest {
+    private static final String HEALTH_CODE = "dummy-health-code";
+    private static final String OTHER_HEALTH_CODE = "other-health-code";
+    private static final String TEST_STUDY = "test-study";
+    private static final UploadSchemaKey ACCEPTED_SCHEMA_KEY = new UploadSchemaKey.Builder().withAppId(TEST_STUDY)
+            .withSchemaId("test-schema").withRevision(3).build();
+
+    private Metrics metrics;
+    private SharingScopeCache mockSharingScopeCache;
+    private SharingScopeResolver mockSharingScopeResolver;
+
+    @BeforeMethod
+    public void before() {
+        metrics = new Metrics();
+        mockSharingScopeCache = mock(SharingScopeCache.class);
+        mockSharingScopeResolver = mock(SharingScopeResolver.class);
+    }
+
+    @Test
+    public void acceptedRecordUsesResolver() {
+        when(mockSharingScopeResolver.getUserSharingScope(TEST_STUDY, HEALTH_CODE)).thenReturn(
+                SharingScope.SPONSORS_AND_PARTNERS);
+
+        // execute and validate
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.SHARED);
+        assertFalse(filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 3,
+                HEALTH_CODE)));
+
+        Multiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("accepted[" + ACCEPTED_SCHEMA_KEY + "]"), 1);
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 1);
+        assertEquals(counterMap.count(RecordFilterPlan.METRICS_NUM_LOOKUPS_SKIPPED), 0);
+        verifyZeroInteractions(mockSharingScopeCache);
+    }
+
+    @Test
+    public void tableFilterSkipsLookup() {
+        when(mockSharingScopeCache.peekSharingScope(TEST_STUDY, HEALTH_CODE)).thenReturn(
+                SharingScope.SPONSORS_AND_PARTNERS);
+
+        // Same schema, different revision.
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.SHARED);
+        assertTrue(filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5,
+                HEALTH_CODE)));
+        verifyZeroInteractions(mockSharingScopeResolver);
+
+        // The table counter is counted right away. The sharing scope counter waits for the deferred metrics.
+        Multiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("excluded[test-study-test-schema-v5]"), 1);
+        assertEquals(counterMap.count(RecordFilterPlan.METRICS_NUM_LOOKUPS_SKIPPED), 1);
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 0);
+
+        filterPlan.completeDeferredMetrics();
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 1);
+        assertEquals(counterMap.count(RecordFilterPlan.METRICS_NUM_NOT_RESOLVED), 0);
+
+        // Deferred metrics are only counted once.
+        filterPlan.completeDeferredMetrics();
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 1);
+    }
+
+    @Test
+    public void recordSharingScopeSkipsLookup() {
+        // The record's sharing scope is excluded by the sharing mode, so the user's sharing scope doesn't matter.
+        when(mockSharingScopeCache.peekSharingScope(TEST_STUDY, HEALTH_CODE)).thenReturn(SharingScope.NO_SHARING);
+
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.PUBLIC_ONLY);
+        assertTrue(filterPlan.shouldExcludeRecord(makeRecord(SharingScope.SPONSORS_AND_PARTNERS, 3,
+                HEALTH_CODE)));
+        verifyZeroInteractions(mockSharingScopeResolver);
+
+        // The reconciled sharing scope comes from the cache.
+        filterPlan.completeDeferredMetrics();
+        assertEquals(metrics.getCounterMap().count("excluded[NO_SHARING]"), 1);
+        assertEquals(metrics.getCounterMap().count("excluded[SPONSORS_AND_PARTNERS]"), 0);
+    }
+
+    @Test
+    public void recordNoSharingCountedImmediately() {
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.SHARED);
+        assertTrue(filterPlan.shouldExcludeRecord(makeRecord(null, 3, HEALTH_CODE)));
+
+        // NO_SHARING is already the most restrictive sharing scope, so nothing is deferred.
+        assertEquals(metrics.getCounterMap().count("excluded[NO_SHARING]"), 1);
+        filterPlan.completeDeferredMetrics();
+        assertEquals(metrics.getCounterMap().count("excluded[NO_SHARING]"), 1);
+        verifyZeroInteractions(mockSharingScopeCache, mockSharingScopeResolver);
+    }
+
+    @Test
+    public void deferredMetricsPerParticipant() {
+        when(mockSharingScopeCache.peekSharingScope(TEST_STUDY, HEALTH_CODE)).thenReturn(
+                SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        when(mockSharingScopeResolver.getUserSharingScope(TEST_STUDY, OTHER_HEALTH_CODE)).thenReturn(
+                SharingScope.SPONSORS_AND_PARTNERS);
+
+        // Three excluded records for one participant, one for a participant that isn't cached.
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.ALL);
+        filterPlan.shouldExcludeRecord(makeRecord(SharingScope.SPONSORS_AND_PARTNERS, 5, HEALTH_CODE));
+        filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5, HEALTH_CODE));
+        filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5, HEALTH_CODE));
+        filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5, OTHER_HEALTH_CODE));
+        verifyZeroInteractions(mockSharingScopeResolver);
+        filterPlan.completeDeferredMetrics();
+
+        // Each participant is only resolved once. The uncached participant is looked up through the resolver.
+        verify(mockSharingScopeCache, times(1)).peekSharingScope(TEST_STUDY, HEALTH_CODE);
+        verify(mockSharingScopeCache, times(1)).peekSharingScope(TEST_STUDY, OTHER_HEALTH_CODE);
+        verify(mockSharingScopeResolver).prefetchParticipant(TEST_STUDY, OTHER_HEALTH_CODE);
+        verify(mockSharingScopeResolver).getUserSharingScope(TEST_STUDY, OTHER_HEALTH_CODE);
+        verifyNoMoreInteractions(mockSharingScopeResolver);
+
+        // Every record is counted by sharing scope.
+        Multiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 2);
+        assertEquals(counterMap.count("accepted[ALL_QUALIFIED_RESEARCHERS]"), 2);
+        assertEquals(counterMap.count(RecordFilterPlan.METRICS_NUM_NOT_RESOLVED), 0);
+        assertEquals(counterMap.count(RecordFilterPlan.METRICS_NUM_LOOKUPS_SKIPPED), 4);
+    }
+
+    @Test
+    public void deferredLookupFails() {
+        when(mockSharingScopeResolver.getUserSharingScope(TEST_STUDY, HEALTH_CODE)).thenThrow(
+                new RuntimeException("test exception"));
+
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.ALL);
+        filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5, HEALTH_CODE));
+        filterPlan.shouldExcludeRecord(makeRecord(SharingScope.SPONSORS_AND_PARTNERS, 5, HEALTH_CODE));
+        filterPlan.completeDeferredMetrics();
+
+        // The records were already excluded, so a failed lookup only means they can't be counted by sharing scope.
+        Multiset<String> counterMap = metrics.getCounterMap();
+        assertEquals(counterMap.count(RecordFilterPlan.METRICS_NUM_NOT_RESOLVED), 2);
+        assertEquals(counterMap.count("accepted[SPONSORS_AND_PARTNERS]"), 0);
+        assertEquals(counterMap.count("accepted[ALL_QUALIFIED_RESEARCHERS]"), 0);
+    }
+
+    @Test
+    public void deferredLookupWithoutResolver() {
+        when(mockSharingScopeCache.getSharingScope(TEST_STUDY, HEALTH_CODE)).thenReturn(null);
+
+        RecordFilterPlan filterPlan = new RecordFilterPlan(metrics, makeRequest(BridgeExporterSharingMode.SHARED),
+                mockSharingScopeCache, null);
+        assertTrue(filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5,
+                HEALTH_CODE)));
+        verify(mockSharingScopeCache, never()).getSharingScope(any(), any());
+
+        // User without a sharing scope is treated as NO_SHARING.
+        filterPlan.completeDeferredMetrics();
+        assertEquals(metrics.getCounterMap().count("excluded[NO_SHARING]"), 1);
+        verify(mockSharingScopeCache).getSharingScope(TEST_STUDY, HEALTH_CODE);
+    }
+
+    @Test
+    public void prefetchOnlyAcceptedRecords() {
+        Item acceptedRecord = makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 3, HEALTH_CODE);
+        Item wrongTableRecord = makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 5, OTHER_HEALTH_CODE);
+        Item schemalessRecord = new Item().withString("studyId", TEST_STUDY).withString("healthCode",
+                OTHER_HEALTH_CODE).withString("userSharingScope", SharingScope.ALL_QUALIFIED_RESEARCHERS.name());
+        Item noSharingRecord = makeRecord(SharingScope.NO_SHARING, 3, OTHER_HEALTH_CODE);
+        Item noStudyRecord = new Item().withString("healthCode", OTHER_HEALTH_CODE);
+
+        RecordFilterPlan filterPlan = makeFilterPlan(BridgeExporterSharingMode.SHARED);
+        filterPlan.prefetch(Arrays.asList(acceptedRecord, wrongTableRecord, schemalessRecord, noSharingRecord,
+                noStudyRecord, null));
+
+        ArgumentCaptor<Iterable> prefetchCaptor = ArgumentCaptor.forClass(Iterable.class);
+        verify(mockSharingScopeResolver).prefetch(prefetchCaptor.capture());
+        assertEquals(ImmutableList.copyOf(prefetchCaptor.getValue()), ImmutableList.of(acceptedRecord));
+    }
+
+    @Test
+    public void prefetchWithoutResolver() {
+        RecordFilterPlan filterPlan = new RecordFilterPlan(metrics, makeRequest(BridgeExporterSharingMode.SHARED),
+                mockSharingScopeCache, null);
+        filterPlan.prefetch(ImmutableList.of(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 3, HEALTH_CODE)));
+        verifyZeroInteractions(mockSharingScopeCache);
+    }
+
+    @Test
+    public void noResolverUsesCache() {
+        when(mockSharingScopeCache.getSharingScope(TEST_STUDY, HEALTH_CODE)).thenReturn(null);
+
+        // User without a sharing scope is treated as NO_SHARING.
+        RecordFilterPlan filterPlan = new RecordFilterPlan(metrics, makeRequest(BridgeExporterSharingMode.ALL),
+                mockSharingScopeCache, null);
+        assertFalse(filterPlan.shouldExcludeRecord(makeRecord(SharingScope.ALL_QUALIFIED_RESEARCHERS, 3,
+                HEALTH_CODE)));
+        assertEquals(metrics.getCounterMap().count("accepted[NO_SHARING]"), 1);
+        verify(mockSharingScopeCache).getSharingScope(any(), any());
+    }
+
+    private RecordFilterPlan makeFilterPlan(BridgeExporterSharingMode sharingMode) {
+        return new RecordFilterPlan(metrics, makeRequest(sharingMode), mockSharingScopeCache,
+                mockSharingScopeResolver);
+    }
+
+    private static BridgeExporterRequest makeRequest(BridgeExporterSharingMode sharingMode) {
+        return new BridgeExporterRequest.Builder().withEndDateTime(DateTime.parse("2015-10-31T23:59:59Z"))
+                .withTag("RecordFilterPlanTest").withUseLastExportTime(true).withSharingMode(sharingMode)
+                .withTableWhitelist(ImmutableSet.of(ACCEPTED_SCHEMA_KEY)).build();
+    }
+
+    private static Item makeRecord(SharingScope recordSharingScope, int schemaRevision, String healthCode) {
+        Item record = new Item().withString("studyId", TEST_STUDY).withString("healthCode", healthCode)
+                .withString("schemaId", "test-schema").withInt("schemaRevision", schemaRevision);
+        if (recordSharingScope != null) {
+            record.withString("userSharingScope", recordSharingScope.name());
+        }
+        return record;
+    }
+}
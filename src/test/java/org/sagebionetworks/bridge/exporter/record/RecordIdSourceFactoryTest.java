@@ -1,30 +1,61 @@
 package org.sagebionetworks.bridge.exporter.record;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.sagebionetworks.bridge.exporter.record.RecordIdSourceFactory.STUDY_ID;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
 import com.amazonaws.services.dynamodbv2.document.KeyConditions;
 import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.GlobalSecondaryIndexDescription;
+import com.amazonaws.services.dynamodbv2.model.KeySchemaElement;
+import com.amazonaws.services.dynamodbv2.model.KeyType;
+import com.amazonaws.services.dynamodbv2.model.Projection;
+import com.amazonaws.services.dynamodbv2.model.ProjectionType;
+import com.amazonaws.services.dynamodbv2.model.TableDescription;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.S3Object;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoHelper;
+import org.sagebionetworks.bridge.exporter.dynamo.DynamoReadThrottle;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.exporter.synapse.ColumnDefinition;
 import org.sagebionetworks.bridge.exporter.util.BridgeExporterUtil;
-import org.sagebionetworks.bridge.s3.S3Helper;
 
 public class RecordIdSourceFactoryTest {
     private static final String FOO_LAST_EXPORT_TIME_STRING = "2016-05-09T20:25:31.346-0700";
@@ -48,11 +79,9 @@ public class RecordIdSourceFactoryTest {
         ArgumentCaptor<RangeKeyCondition> barRangeKeyCaptor = ArgumentCaptor.forClass(RangeKeyCondition.class);
         ArgumentCaptor<RangeKeyCondition> fooRangeKeyCaptor = ArgumentCaptor.forClass(RangeKeyCondition.class);
 
-        // mock DDB
-        List<Item> fooStudyItemList = ImmutableList.of(new Item().withString("id", "foo-1"),
-                new Item().withString("id", "foo-2"));
-        List<Item> barStudyItemList = ImmutableList.of(new Item().withString("id", "bar-1"),
-                new Item().withString("id", "bar-2"));
+        // mock DDB - Include an extra attribute, to verify that we strip the items down to key items.
+        List<Item> fooStudyItemList = ImmutableList.of(makeIndexItem("foo-1"), makeIndexItem("foo-2"));
+        List<Item> barStudyItemList = ImmutableList.of(makeIndexItem("bar-1"), makeIndexItem("bar-2"));
 
         when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-bar"), barRangeKeyCaptor.capture()))
                 .thenReturn(barStudyItemList);
@@ -61,25 +90,253 @@ public class RecordIdSourceFactoryTest {
                 .thenReturn(fooStudyItemList);
 
         // set up factory
+        DynamoReadThrottle mockDdbReadThrottle = mock(DynamoReadThrottle.class);
         RecordIdSourceFactory factory = new RecordIdSourceFactory();
         factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setDdbReadThrottle(mockDdbReadThrottle);
         factory.setConfig(mockConfig());
         factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
 
         // execute and validate
         BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
                 .withUseLastExportTime(true).build();
-        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, studyIdsToQuery);
+        Iterable<Item> recordIdIter = factory.getRecordSourceForRequest(new Metrics(), request, studyIdsToQuery);
 
-        List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+        List<Item> recordIdList = ImmutableList.copyOf(recordIdIter);
         assertEquals(recordIdList.size(), 4); // only output records in given time range
-        assertEquals(recordIdList.get(0), "foo-1");
-        assertEquals(recordIdList.get(1), "foo-2");
-        assertEquals(recordIdList.get(2), "bar-1");
-        assertEquals(recordIdList.get(3), "bar-2");
+        assertKeyItem(recordIdList.get(0), "foo-1");
+        assertKeyItem(recordIdList.get(1), "foo-2");
+        assertKeyItem(recordIdList.get(2), "bar-1");
+        assertKeyItem(recordIdList.get(3), "bar-2");
 
         validateRangeKey(fooRangeKeyCaptor.getValue(), FOO_LAST_EXPORT_TIME.getMillis(), END_DATE_TIME.getMillis());
         validateRangeKey(barRangeKeyCaptor.getValue(), BAR_LAST_EXPORT_TIME.getMillis(), END_DATE_TIME.getMillis());
+
+        // Each record read is charged to the DDB read throttle.
+        verify(mockDdbReadThrottle, atLeastOnce()).acquire();
+        verify(mockDdbReadThrottle, times(4)).recordConsumedCapacity(anyDouble());
+    }
+
+    @Test
+    public void fromDdbFanOut() throws Exception {
+        Map<String, DateTime> studyIdsToQuery = ImmutableMap.<String, DateTime>builder()
+                .put("ddb-foo", FOO_LAST_EXPORT_TIME).put("ddb-bar", BAR_LAST_EXPORT_TIME).build();
+
+        // mock DDB
+        Index mockRecordIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-foo"), any(RangeKeyCondition.class)))
+                .thenReturn(ImmutableList.of(makeIndexItem("foo-1"), makeIndexItem("foo-2")));
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-bar"), any(RangeKeyCondition.class)))
+                .thenReturn(ImmutableList.of(makeIndexItem("bar-1"), makeIndexItem("bar-2")));
+
+        // set up factory
+        Config mockConfig = mockConfigWithFanOut();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig);
+        factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setDdbReadThrottle(mock(DynamoReadThrottle.class));
+        factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+        factory.setDynamoHelper(mock(DynamoHelper.class));
+        factory.setRecordQueryExecutorService(executorService);
+
+        // execute and validate - Studies are interleaved in arbitrary order, but each study is in order.
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withUseLastExportTime(true).build();
+        Metrics metrics = new Metrics();
+        try {
+            Iterable<Item> recordIdIter = factory.getRecordSourceForRequest(metrics, request, studyIdsToQuery);
+            assertTrue(recordIdIter instanceof FanOutRecordIdSource);
+
+            List<String> recordIdList = new ArrayList<>();
+            for (Item oneItem : recordIdIter) {
+                assertKeyItem(oneItem, oneItem.getString("id"));
+                recordIdList.add(oneItem.getString("id"));
+            }
+            assertEquals(recordIdList.size(), 4);
+            assertTrue(recordIdList.indexOf("foo-1") < recordIdList.indexOf("foo-2"));
+            assertTrue(recordIdList.indexOf("bar-1") < recordIdList.indexOf("bar-2"));
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void fromDdbTimeSlices() throws Exception {
+        // Window is 4 hours, split into 4 slices.
+        DateTime startDateTime = END_DATE_TIME.minusHours(4);
+        Map<String, DateTime> studyIdsToQuery = ImmutableMap.of("ddb-foo", startDateTime);
+
+        // mock DDB - Each slice returns one record.
+        Index mockRecordIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        ArgumentCaptor<RangeKeyCondition> rangeKeyCaptor = ArgumentCaptor.forClass(RangeKeyCondition.class);
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-foo"), rangeKeyCaptor.capture()))
+                .thenReturn(ImmutableList.of(makeIndexItem("foo-1")), ImmutableList.of(makeIndexItem("foo-2")),
+                        ImmutableList.of(makeIndexItem("foo-3")), ImmutableList.of(makeIndexItem("foo-4")));
+
+        // set up factory
+        Config mockConfig = mockConfigWithFanOut();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_SLICE_COUNT)).thenReturn(4);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig);
+        factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setDdbReadThrottle(mock(DynamoReadThrottle.class));
+        factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+        factory.setRecordQueryExecutorService(executorService);
+
+        // execute
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withUseLastExportTime(true).build();
+        Metrics metrics = new Metrics();
+        List<Item> recordList;
+        try {
+            recordList = ImmutableList.copyOf(factory.getRecordSourceForRequest(metrics, request, studyIdsToQuery));
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // validate all records were returned
+        assertEquals(recordList.size(), 4);
+
+        // validate slices cover the window with no gaps or overlaps
+        List<RangeKeyCondition> rangeKeyList = rangeKeyCaptor.getAllValues();
+        assertEquals(rangeKeyList.size(), 4);
+        long expectedSliceStartMillis = startDateTime.getMillis();
+        for (int i = 0; i < 4; i++) {
+            long expectedSliceEndMillis = startDateTime.plusHours(i + 1).getMillis();
+            validateRangeKey(rangeKeyList.get(i), expectedSliceStartMillis, expectedSliceEndMillis);
+            expectedSliceStartMillis = expectedSliceEndMillis;
+        }
+
+        // Each slice is its own progress unit.
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(metrics.getCounterMap().count(FanOutRecordIdSource.METRICS_PREFIX_NUM_RECORDS +
+                    "ddb-foo#" + i + "/4]"), 1);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void fromDdbParallelScan() throws Exception {
+        // Two studies with different windows. Bar starts before foo.
+        Map<String, DateTime> studyIdsToQuery = ImmutableMap.<String, DateTime>builder()
+                .put("ddb-foo", FOO_LAST_EXPORT_TIME).put("ddb-bar", BAR_LAST_EXPORT_TIME).build();
+
+        // mock DDB - Two segments. Scans return every record, including other studies and records outside the
+        // window. Scans return full records.
+        List<Item> segment0ItemList = ImmutableList.of(
+                makeScanItem("foo-in-window", "ddb-foo", FOO_LAST_EXPORT_TIME.getMillis()),
+                makeScanItem("foo-too-early", "ddb-foo", BAR_LAST_EXPORT_TIME.getMillis()),
+                makeScanItem("other-study", "ddb-other", FOO_LAST_EXPORT_TIME.getMillis()));
+        List<Item> segment1ItemList = ImmutableList.of(
+                makeScanItem("bar-in-window", "ddb-bar", BAR_LAST_EXPORT_TIME.getMillis()),
+                makeScanItem("bar-too-late", "ddb-bar", END_DATE_TIME.getMillis()),
+                new Item().withString("id", "no-study"));
+
+        Table mockRecordTable = mock(Table.class);
+        ArgumentCaptor<ScanSpec> scanSpecCaptor = ArgumentCaptor.forClass(ScanSpec.class);
+        when(mockRecordTable.scan(scanSpecCaptor.capture())).thenAnswer(invocation -> {
+            ScanSpec scanSpec = invocation.getArgumentAt(0, ScanSpec.class);
+            List<Item> itemList = scanSpec.getSegment() == 0 ? segment0ItemList : segment1ItemList;
+            ItemCollection<ScanOutcome> mockItemCollection = mock(ItemCollection.class);
+            when(mockItemCollection.iterator()).thenAnswer(iteratorInvocation -> itemList.iterator());
+            return mockItemCollection;
+        });
+
+        // set up factory
+        Config mockConfig = mockConfigWithFanOut();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_SCAN_SEGMENT_COUNT)).thenReturn(2);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_SCAN_SEGMENT_RATE)).thenReturn(1000);
+
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        DynamoReadThrottle mockDdbReadThrottle = mock(DynamoReadThrottle.class);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig);
+        factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setDdbReadThrottle(mockDdbReadThrottle);
+        factory.setDdbRecordTable(mockRecordTable);
+        factory.setRecordQueryExecutorService(executorService);
+
+        // execute
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withUseLastExportTime(true).withUseParallelScan(true).build();
+        Metrics metrics = new Metrics();
+        List<Item> recordList;
+        try {
+            recordList = ImmutableList.copyOf(factory.getRecordSourceForRequest(metrics, request, studyIdsToQuery));
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        // validate - Only records in the studies' windows are returned, as full records.
+        assertEquals(recordList.size(), 2);
+        assertEquals(ImmutableSet.of(recordList.get(0).getString("id"), recordList.get(1).getString("id")),
+                ImmutableSet.of("foo-in-window", "bar-in-window"));
+        for (Item oneRecord : recordList) {
+            assertTrue(oneRecord.hasAttribute("data"));
+        }
+
+        // validate scan segments
+        List<ScanSpec> scanSpecList = scanSpecCaptor.getAllValues();
+        assertEquals(scanSpecList.size(), 2);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(scanSpecList.get(i).getSegment().intValue(), i);
+            assertEquals(scanSpecList.get(i).getTotalSegments().intValue(), 2);
+        }
+
+        // We never query the index. Every scanned record is charged to the DDB read throttle.
+        verifyZeroInteractions(mockQueryHelper);
+        verify(mockDdbReadThrottle, times(6)).recordConsumedCapacity(anyDouble());
+
+        // Each segment is its own progress unit.
+        for (int i = 1; i <= 2; i++) {
+            assertEquals(metrics.getCounterMap().count(ScanSegmentRecordIterable.METRICS_PREFIX_NUM_SCANNED +
+                    "scan#" + i + "/2]"), 3);
+            assertEquals(metrics.getCounterMap().count(FanOutRecordIdSource.METRICS_PREFIX_NUM_RECORDS +
+                    "scan#" + i + "/2]"), 1);
+        }
+    }
+
+    @Test
+    public void planSliceCountsFromLastRecordCount() {
+        // Target is 1000 records per slice, max 8 slices.
+        Config mockConfig = mockConfigWithFanOut();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_SLICE_MAX_COUNT)).thenReturn(8);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_SLICE_TARGET_RECORDS)).thenReturn(1000);
+
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        when(mockDynamoHelper.getLastExportRecordCounts(ImmutableSet.of("small", "medium", "huge", "unknown")))
+                .thenReturn(ImmutableMap.of("small", 10, "medium", 2500, "huge", 1000000));
+
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig);
+        factory.setDynamoHelper(mockDynamoHelper);
+
+        Map<String, Integer> sliceCountsByStudy = factory.planSliceCounts(ImmutableSet.of("small", "medium", "huge",
+                "unknown"));
+        assertEquals(sliceCountsByStudy, ImmutableMap.of("small", 1, "medium", 3, "huge", 8, "unknown", 1));
+    }
+
+    @Test
+    public void planSliceCountsNoFanOut() {
+        // Slicing doesn't help without fan-out, so we don't even look up record counts.
+        Config mockConfig = mockConfig();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_SLICE_COUNT)).thenReturn(4);
+
+        DynamoHelper mockDynamoHelper = mock(DynamoHelper.class);
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig);
+        factory.setDynamoHelper(mockDynamoHelper);
+
+        Map<String, Integer> sliceCountsByStudy = factory.planSliceCounts(ImmutableSet.of("foo"));
+        assertEquals(sliceCountsByStudy, ImmutableMap.of("foo", 1));
+        verifyZeroInteractions(mockDynamoHelper);
     }
 
     private static void validateRangeKey(RangeKeyCondition rangeKey, long expectedStartMillis,
@@ -98,25 +355,160 @@ public class RecordIdSourceFactoryTest {
     @Test
     public void fromS3Override() throws Exception {
         // mock S3
-        List<String> s3Lines = ImmutableList.of("s3-foo", "s3-bar", "s3-baz");
-        S3Helper mockS3Helper = mock(S3Helper.class);
-        when(mockS3Helper.readS3FileAsLines("dummy-override-bucket", "dummy-override-file")).thenReturn(s3Lines);
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectContent(new ByteArrayInputStream("s3-foo\ns3-bar\ns3-baz\n".getBytes(
+                StandardCharsets.UTF_8)));
+        AmazonS3Client mockS3Client = mock(AmazonS3Client.class);
+        when(mockS3Client.getObject("dummy-override-bucket", "dummy-override-file")).thenReturn(s3Object);
 
         // set up factory
         RecordIdSourceFactory factory = new RecordIdSourceFactory();
         factory.setConfig(mockConfig());
-        factory.setS3Helper(mockS3Helper);
+        factory.setS3Client(mockS3Client);
 
         // execute and validate
         BridgeExporterRequest request = new BridgeExporterRequest.Builder()
                 .withRecordIdS3Override("dummy-override-file").withUseLastExportTime(false).build();
-        Iterable<String> recordIdIter = factory.getRecordSourceForRequest(request, ImmutableMap.of());
+        Iterable<Item> recordIdIter = factory.getRecordSourceForRequest(new Metrics(), request, ImmutableMap.of());
 
-        List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+        List<Item> recordIdList = ImmutableList.copyOf(recordIdIter);
         assertEquals(recordIdList.size(), 3);
-        assertEquals(recordIdList.get(0), "s3-foo");
-        assertEquals(recordIdList.get(1), "s3-bar");
-        assertEquals(recordIdList.get(2), "s3-baz");
+        assertKeyItem(recordIdList.get(0), "s3-foo");
+        assertKeyItem(recordIdList.get(1), "s3-bar");
+        assertKeyItem(recordIdList.get(2), "s3-baz");
+    }
+
+    @Test
+    public void fromDdbIndexFastPath() throws Exception {
+        // mock DDB
+        Index mockRecordIndex = mock(Index.class);
+        DynamoQueryHelper mockQueryHelper = mock(DynamoQueryHelper.class);
+        Item fooItem = makeIndexItem("foo-1");
+        when(mockQueryHelper.query(same(mockRecordIndex), eq(STUDY_ID), eq("ddb-foo"), any(RangeKeyCondition.class)))
+                .thenReturn(ImmutableList.of(fooItem));
+
+        Table mockRecordTable = mockRecordTable(new Projection().withProjectionType(ProjectionType.ALL));
+
+        // set up factory
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setColumnDefinitionList(ImmutableList.of());
+        factory.setConfig(mockConfigWithFastPath());
+        factory.setDdbQueryHelper(mockQueryHelper);
+        factory.setDdbReadThrottle(mock(DynamoReadThrottle.class));
+        factory.setDdbRecordStudyUploadedOnIndex(mockRecordIndex);
+        factory.setDdbRecordTable(mockRecordTable);
+
+        // execute and validate - index items are passed through as full records
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withUseLastExportTime(true).build();
+        List<Item> recordList = ImmutableList.copyOf(factory.getRecordSourceForRequest(new Metrics(), request,
+                ImmutableMap.of("ddb-foo", FOO_LAST_EXPORT_TIME)));
+        assertEquals(recordList.size(), 1);
+        assertSame(recordList.get(0), fooItem);
+
+        // The index projection is only described once.
+        factory.getRecordSourceForRequest(new Metrics(), request, ImmutableMap.of("ddb-foo", FOO_LAST_EXPORT_TIME));
+        verify(mockRecordTable, times(1)).describe();
+    }
+
+    @Test
+    public void indexFastPathDisabledInConfig() {
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setConfig(mockConfig());
+        assertFalse(factory.isIndexFastPathEnabled());
+    }
+
+    @Test
+    public void indexFastPathIncludeProjectionComplete() {
+        ColumnDefinition columnDefinition = new ColumnDefinition();
+        columnDefinition.setName("externalId");
+        columnDefinition.setDdbName("userExternalId");
+
+        List<String> projectedAttributeList = ImmutableList.<String>builder()
+                .addAll(RecordIdSourceFactory.REQUIRED_RECORD_ATTRIBUTES).add("userExternalId").build();
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setColumnDefinitionList(ImmutableList.of(columnDefinition));
+        factory.setConfig(mockConfigWithFastPath());
+        factory.setDdbRecordTable(mockRecordTable(new Projection().withProjectionType(ProjectionType.INCLUDE)
+                .withNonKeyAttributes(projectedAttributeList)));
+        assertTrue(factory.isIndexFastPathEnabled());
+    }
+
+    @Test
+    public void indexFastPathIncludeProjectionMissingAttributes() {
+        // The index projects all required attributes except the one from the column definition.
+        ColumnDefinition columnDefinition = new ColumnDefinition();
+        columnDefinition.setName("externalId");
+        columnDefinition.setDdbName("userExternalId");
+
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setColumnDefinitionList(ImmutableList.of(columnDefinition));
+        factory.setConfig(mockConfigWithFastPath());
+        factory.setDdbRecordTable(mockRecordTable(new Projection().withProjectionType(ProjectionType.INCLUDE)
+                .withNonKeyAttributes(RecordIdSourceFactory.REQUIRED_RECORD_ATTRIBUTES)));
+        assertFalse(factory.isIndexFastPathEnabled());
+    }
+
+    @Test
+    public void indexFastPathKeysOnlyProjection() {
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setColumnDefinitionList(ImmutableList.of());
+        factory.setConfig(mockConfigWithFastPath());
+        factory.setDdbRecordTable(mockRecordTable(new Projection().withProjectionType(ProjectionType.KEYS_ONLY)));
+        assertFalse(factory.isIndexFastPathEnabled());
+    }
+
+    @Test
+    public void indexFastPathDescribeThrows() {
+        Table mockRecordTable = mock(Table.class);
+        when(mockRecordTable.describe()).thenThrow(AmazonClientException.class);
+
+        RecordIdSourceFactory factory = new RecordIdSourceFactory();
+        factory.setColumnDefinitionList(ImmutableList.of());
+        factory.setConfig(mockConfigWithFastPath());
+        factory.setDdbRecordTable(mockRecordTable);
+        assertFalse(factory.isIndexFastPathEnabled());
+    }
+
+    private static Item makeIndexItem(String recordId) {
+        return new Item().withString("id", recordId).withString("healthCode", "dummy-health-code");
+    }
+
+    private static void assertKeyItem(Item item, String expectedRecordId) {
+        assertEquals(item.getString("id"), expectedRecordId);
+        assertEquals(item.numberOfAttributes(), 1);
+    }
+
+    private static Table mockRecordTable(Projection projection) {
+        GlobalSecondaryIndexDescription indexDescription = new GlobalSecondaryIndexDescription()
+                .withIndexName(RecordIdSourceFactory.STUDY_UPLOADED_ON_INDEX_NAME).withProjection(projection)
+                .withKeySchema(new KeySchemaElement("studyId", KeyType.HASH),
+                        new KeySchemaElement("uploadedOn", KeyType.RANGE));
+        TableDescription tableDescription = new TableDescription().withKeySchema(new KeySchemaElement("id",
+                KeyType.HASH)).withGlobalSecondaryIndexes(indexDescription);
+
+        Table mockRecordTable = mock(Table.class);
+        when(mockRecordTable.describe()).thenReturn(tableDescription);
+        return mockRecordTable;
+    }
+
+    private static Item makeScanItem(String recordId, String studyId, long uploadedOn) {
+        return new Item().withString("id", recordId).withString("data", "dummy data").withString(STUDY_ID, studyId)
+                .withLong("uploadedOn", uploadedOn);
+    }
+
+    private static Config mockConfigWithFanOut() {
+        Config mockConfig = mockConfig();
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_FANOUT_BUFFER_SIZE)).thenReturn(10);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_FANOUT_CONCURRENCY)).thenReturn(2);
+        when(mockConfig.getInt(RecordIdSourceFactory.CONFIG_KEY_FANOUT_PREFETCH_DEPTH)).thenReturn(5);
+        return mockConfig;
+    }
+
+    private static Config mockConfigWithFastPath() {
+        Config mockConfig = mockConfig();
+        when(mockConfig.get(RecordIdSourceFactory.CONFIG_KEY_INDEX_FAST_PATH_ENABLED)).thenReturn("true");
+        return mockConfig;
     }
 
     private static Config mockConfig() {
@@ -4,23 +4,25 @@ import static org.testng.Assert.assertEquals;
 
 import java.util.List;
 
+import com.amazonaws.services.dynamodbv2.document.Item;
 import com.google.common.collect.ImmutableList;
 import org.testng.annotations.Test;
 
 public class RecordIdSourceTest {
-    private static final RecordIdSource.Converter<String> TEST_CONVERTER = from -> from + "-converted";
+    private static final RecordIdSource.Converter<String> TEST_CONVERTER = from -> new Item().withString("id",
+            from + "-converted");
 
     @Test
     public void test() {
         // make source
         List<String> testIterable = ImmutableList.of("foo", "bar", "baz");
-        Iterable<String> recordIdIter = new RecordIdSource<>(testIterable, TEST_CONVERTER);
+        Iterable<Item> recordIdIter = new RecordIdSource<>(testIterable, TEST_CONVERTER);
 
         // iterate and validate
-        List<String> recordIdList = ImmutableList.copyOf(recordIdIter);
+        List<Item> recordIdList = ImmutableList.copyOf(recordIdIter);
         assertEquals(recordIdList.size(), 3);
-        assertEquals(recordIdList.get(0), "foo-converted");
-        assertEquals(recordIdList.get(1), "bar-converted");
-        assertEquals(recordIdList.get(2), "baz-converted");
+        assertEquals(recordIdList.get(0).getString("id"), "foo-converted");
+        assertEquals(recordIdList.get(1).getString("id"), "bar-converted");
+        assertEquals(recordIdList.get(2).getString("id"), "baz-converted");
     }
 }
@@ -0,0 +1,129 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RecordPipelineTest {
+    private ExecutorService executorService;
+
+    @BeforeMethod
+    public void before() {
+        executorService = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void after() {
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void allItemsFlowThroughAllStages() throws Exception {
+        List<Integer> outputList = Collections.synchronizedList(new ArrayList<>());
+        new RecordPipeline(executorService)
+                .<Integer>addStage("double", 3, 2, (input, emitter) -> emitter.emit(input * 2))
+                .<Integer>addStage("filter", 2, 2, (input, emitter) -> {
+                    if (input % 4 == 0) {
+                        emitter.emit(input);
+                    }
+                })
+                .<Integer>addStage("collect", 2, 2, (input, emitter) -> outputList.add(input))
+                .run(makeIntList(100));
+
+        // Stages run concurrently, so sort before comparing.
+        Collections.sort(outputList);
+        List<Integer> expectedList = new ArrayList<>();
+        for (int i = 0; i < 100; i += 2) {
+            expectedList.add(i * 2);
+        }
+        assertEquals(outputList, expectedList);
+    }
+
+    @Test
+    public void emptySource() throws Exception {
+        AtomicInteger numProcessed = new AtomicInteger();
+        new RecordPipeline(executorService)
+                .<Integer>addStage("count", 2, 1, (input, emitter) -> numProcessed.incrementAndGet())
+                .run(Collections.emptyList());
+        assertEquals(numProcessed.get(), 0);
+    }
+
+    @Test
+    public void sourceErrorFailsPipeline() throws Exception {
+        Iterable<Integer> errorSource = () -> new Iterator<Integer>() {
+            private int numRead = 0;
+
+            @Override
+            public boolean hasNext() {
+                if (numRead >= 5) {
+                    throw new IllegalStateException("test exception");
+                }
+                return true;
+            }
+
+            @Override
+            public Integer next() {
+                return numRead++;
+            }
+        };
+
+        AtomicInteger numProcessed = new AtomicInteger();
+        RecordPipeline pipeline = new RecordPipeline(executorService)
+                .<Integer>addStage("count", 2, 1, (input, emitter) -> numProcessed.incrementAndGet());
+        try {
+            pipeline.run(errorSource);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void stageErrorAbortsPipeline() throws Exception {
+        // The first stage fails on item 10. Queues are small, so without the abort, the source would block forever
+        // once downstream stages stop consuming.
+        AtomicInteger numCollected = new AtomicInteger();
+        RecordPipeline pipeline = new RecordPipeline(executorService)
+                .<Integer>addStage("fail", 2, 1, (input, emitter) -> {
+                    if (input == 10) {
+                        throw new IllegalArgumentException("test exception");
+                    }
+                    emitter.emit(input);
+                })
+                .<Integer>addStage("collect", 1, 1, (input, emitter) -> numCollected.incrementAndGet());
+        try {
+            pipeline.run(makeIntList(1000));
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IllegalArgumentException);
+        }
+
+        // Processing stopped shortly after the error.
+        assertTrue(numCollected.get() < 1000);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void noStages() throws Exception {
+        new RecordPipeline(executorService).run(makeIntList(1));
+    }
+
+    private static List<Integer> makeIntList(int numItems) {
+        List<Integer> intList = new ArrayList<>();
+        for (int i = 0; i < numItems; i++) {
+            intList.add(i);
+        }
+        return intList;
+    }
+}
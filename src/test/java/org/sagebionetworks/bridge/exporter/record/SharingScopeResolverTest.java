@@ -0,0 +1,171 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.exporter.helper.SharingScopeCache;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
+import org.sagebionetworks.bridge.rest.exceptions.BridgeSDKException;
+import org.sagebionetworks.bridge.rest.model.SharingScope;
+
+public class SharingScopeResolverTest {
+    private static final String HEALTH_CODE_1 = "health-code-1";
+    private static final String HEALTH_CODE_2 = "health-code-2";
+    private static final String STUDY_ID = "test-study";
+
+    private SharingScopeCache mockSharingScopeCache;
+    private Metrics metrics;
+    private SharingScopeResolver resolver;
+
+    @BeforeMethod
+    public void before() {
+        mockSharingScopeCache = mock(SharingScopeCache.class);
+        metrics = new Metrics();
+
+        // Run lookups on the calling thread, so the tests are deterministic.
+        ExecutorService executorService = MoreExecutors.newDirectExecutorService();
+        resolver = new SharingScopeResolver(mockSharingScopeCache, executorService, metrics);
+    }
+
+    @Test
+    public void prefetchLooksUpEachParticipantOnce() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        mockParticipant(HEALTH_CODE_2, SharingScope.SPONSORS_AND_PARTNERS);
+
+        // Two records for the same participant, one for a different participant, and records that can't be looked
+        // up.
+        resolver.prefetch(Arrays.asList(makeRecord(HEALTH_CODE_1), makeRecord(HEALTH_CODE_1),
+                makeRecord(HEALTH_CODE_2), new Item().withString("studyId", STUDY_ID), null));
+
+        // Getting the sharing scope uses the prefetched lookup.
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_2), SharingScope.SPONSORS_AND_PARTNERS);
+
+        verify(mockSharingScopeCache).getSharingScope(STUDY_ID, HEALTH_CODE_1);
+        verify(mockSharingScopeCache).getSharingScope(STUDY_ID, HEALTH_CODE_2);
+        verifyNoMoreInteractions(mockSharingScopeCache);
+        assertEquals(metrics.getCounterMap().count(SharingScopeResolver.METRICS_NUM_LOOKUPS), 2);
+    }
+
+    @Test
+    public void prefetchParticipant() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+
+        resolver.prefetchParticipant(STUDY_ID, HEALTH_CODE_1);
+        resolver.prefetchParticipant(STUDY_ID, HEALTH_CODE_1);
+        verify(mockSharingScopeCache, times(1)).getSharingScope(STUDY_ID, HEALTH_CODE_1);
+
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        verifyNoMoreInteractions(mockSharingScopeCache);
+        assertEquals(metrics.getCounterMap().count(SharingScopeResolver.METRICS_NUM_LOOKUPS), 1);
+    }
+
+    @Test
+    public void getWithoutPrefetch() {
+        mockParticipant(HEALTH_CODE_1, SharingScope.ALL_QUALIFIED_RESEARCHERS);
+
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.ALL_QUALIFIED_RESEARCHERS);
+
+        // Memoized after the first call.
+        verify(mockSharingScopeCache, times(1)).getSharingScope(STUDY_ID, HEALTH_CODE_1);
+        assertEquals(metrics.getCounterMap().count(SharingScopeResolver.METRICS_NUM_LOOKUPS), 1);
+    }
+
+    @Test
+    public void nullSharingScope() {
+        mockParticipant(HEALTH_CODE_1, null);
+        assertNull(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1));
+    }
+
+    @Test
+    public void failedLookupIsRetried() {
+        BridgeSDKException bridgeException = new BridgeSDKException("test exception", null);
+        when(mockSharingScopeCache.getSharingScope(STUDY_ID, HEALTH_CODE_1)).thenThrow(bridgeException)
+                .thenReturn(SharingScope.SPONSORS_AND_PARTNERS);
+
+        // The first lookup fails with the original exception.
+        resolver.prefetch(ImmutableList.of(makeRecord(HEALTH_CODE_1)));
+        try {
+            resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1);
+            fail("expected exception");
+        } catch (BridgeSDKException ex) {
+            assertEquals(ex, bridgeException);
+        }
+
+        // Failures aren't memoized, so the next call tries again.
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.SPONSORS_AND_PARTNERS);
+        verify(mockSharingScopeCache, times(2)).getSharingScope(STUDY_ID, HEALTH_CODE_1);
+    }
+
+    @Test
+    public void lookupErrorIsThrownAndRetried() {
+        // Errors aren't RuntimeExceptions, but still complete the lookup.
+        AssertionError testError = new AssertionError("test error");
+        when(mockSharingScopeCache.getSharingScope(STUDY_ID, HEALTH_CODE_1)).thenThrow(testError)
+                .thenReturn(SharingScope.SPONSORS_AND_PARTNERS);
+
+        resolver.prefetch(ImmutableList.of(makeRecord(HEALTH_CODE_1)));
+        try {
+            resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1);
+            fail("expected exception");
+        } catch (AssertionError ex) {
+            assertSame(ex, testError);
+        }
+
+        assertEquals(resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1), SharingScope.SPONSORS_AND_PARTNERS);
+        verify(mockSharingScopeCache, times(2)).getSharingScope(STUDY_ID, HEALTH_CODE_1);
+    }
+
+    @Test
+    public void rejectedLookupIsThrownAndNotMemoized() {
+        // The executor rejects all lookups.
+        ExecutorService rejectingExecutor = MoreExecutors.newDirectExecutorService();
+        rejectingExecutor.shutdown();
+        resolver = new SharingScopeResolver(mockSharingScopeCache, rejectingExecutor, metrics);
+
+        // Each call starts a new lookup, which fails instead of hanging.
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.getUserSharingScope(STUDY_ID, HEALTH_CODE_1);
+                fail("expected exception");
+            } catch (RejectedExecutionException ex) {
+                // expected exception
+            }
+        }
+        assertEquals(metrics.getCounterMap().count(SharingScopeResolver.METRICS_NUM_LOOKUPS), 2);
+        verifyZeroInteractions(mockSharingScopeCache);
+    }
+
+    @Test
+    public void prefetchEmptyWindow() {
+        resolver.prefetch(ImmutableList.of());
+        verifyZeroInteractions(mockSharingScopeCache);
+    }
+
+    private void mockParticipant(String healthCode, SharingScope sharingScope) {
+        when(mockSharingScopeCache.getSharingScope(STUDY_ID, healthCode)).thenReturn(sharingScope);
+    }
+
+    private static Item makeRecord(String healthCode) {
+        return new Item().withString("studyId", STUDY_ID).withString("healthCode", healthCode);
+    }
+}
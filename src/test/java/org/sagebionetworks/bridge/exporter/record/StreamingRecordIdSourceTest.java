@@ -0,0 +1,128 @@
+package org.sagebionetworks.bridge.exporter.record;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.Test;
+
+public class StreamingRecordIdSourceTest {
+    private static final String TEST_CONTENT = "foo\nbar\r\n\n   \n baz \nfoo\nbar\nqux";
+
+    @Test
+    public void plainText() throws Exception {
+        assertRecordIds(new StreamingRecordIdSource(makeStream(TEST_CONTENT.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void gzipped() throws Exception {
+        assertRecordIds(new StreamingRecordIdSource(makeStream(gzip(TEST_CONTENT))));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        StreamingRecordIdSource source = new StreamingRecordIdSource(makeStream(new byte[0]));
+        assertFalse(source.hasNext());
+    }
+
+    @Test
+    public void manyRecordIds() throws Exception {
+        // Enough record IDs to resize the hash set several times, each written twice.
+        StringBuilder contentBuilder = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            contentBuilder.append("record-").append(i).append('\n');
+        }
+        String halfContent = contentBuilder.toString();
+        Iterable<Item> source = new StreamingRecordIdSource(makeStream(gzip(halfContent + halfContent)));
+
+        List<Item> recordIdList = ImmutableList.copyOf(source);
+        assertEquals(recordIdList.size(), 10000);
+        assertEquals(recordIdList.get(0).getString("id"), "record-0");
+        assertEquals(recordIdList.get(9999).getString("id"), "record-9999");
+    }
+
+    @Test
+    public void uuidRecordIds() throws Exception {
+        // Enough UUIDs to resize the UUID set several times, each written twice. Non-canonical forms of the same UUID
+        // (uppercase) are different record IDs, so they aren't duplicates.
+        List<String> uuidList = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            uuidList.add(UUID.randomUUID().toString());
+        }
+        String nilUuid = new UUID(0, 0).toString();
+        String uppercaseUuid = uuidList.get(0).toUpperCase();
+
+        StringBuilder contentBuilder = new StringBuilder();
+        for (int i = 0; i < 2; i++) {
+            for (String oneUuid : uuidList) {
+                contentBuilder.append(oneUuid).append('\n');
+            }
+            contentBuilder.append(nilUuid).append('\n');
+            contentBuilder.append(uppercaseUuid).append('\n');
+        }
+        Iterable<Item> source = new StreamingRecordIdSource(makeStream(gzip(contentBuilder.toString())));
+
+        List<Item> recordIdList = ImmutableList.copyOf(source);
+        assertEquals(recordIdList.size(), 10002);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(recordIdList.get(i).getString("id"), uuidList.get(i));
+        }
+        assertEquals(recordIdList.get(10000).getString("id"), nilUuid);
+        assertEquals(recordIdList.get(10001).getString("id"), uppercaseUuid);
+    }
+
+    @Test
+    public void closeClosesStream() throws Exception {
+        boolean[] closed = { false };
+        InputStream inputStream = new ByteArrayInputStream(TEST_CONTENT.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+
+        StreamingRecordIdSource source = new StreamingRecordIdSource(inputStream);
+        assertTrue(source.hasNext());
+        source.close();
+        assertTrue(closed[0]);
+        assertFalse(source.hasNext());
+
+        // Closing twice is safe.
+        source.close();
+    }
+
+    private static void assertRecordIds(Iterable<Item> source) {
+        // Blank lines and duplicates are skipped. Whitespace is trimmed.
+        List<Item> recordIdList = ImmutableList.copyOf(source);
+        assertEquals(recordIdList.size(), 4);
+        assertEquals(recordIdList.get(0).getString("id"), "foo");
+        assertEquals(recordIdList.get(1).getString("id"), "bar");
+        assertEquals(recordIdList.get(2).getString("id"), "baz");
+        assertEquals(recordIdList.get(3).getString("id"), "qux");
+    }
+
+    private static InputStream makeStream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private static byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream)) {
+            gzipOutputStream.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+}
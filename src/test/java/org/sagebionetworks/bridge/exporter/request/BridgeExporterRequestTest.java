@@ -2,6 +2,7 @@ package org.sagebionetworks.bridge.exporter.request;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
@@ -90,6 +91,54 @@ public class BridgeExporterRequestTest {
         assertEquals(copy, request);
     }
 
+    @Test
+    public void withUseParallelScan() throws Exception {
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withStartDateTime(START_DATE_TIME)
+                .withEndDateTime(END_DATE_TIME).withUseLastExportTime(false).withUseParallelScan(true).build();
+        assertTrue(request.getUseParallelScan());
+
+        // test toString
+        assertEquals(request.toString(), "startDateTime=" + START_DATE_TIME + ", endDateTime=" + END_DATE_TIME +
+                ", redriveCount=0, tag=" + BridgeExporterRequest.DEFAULT_TAG + ", useLastExportTime=false" +
+                ", useParallelScan=true");
+
+        // test copy
+        BridgeExporterRequest copy = new BridgeExporterRequest.Builder().copyOf(request).build();
+        assertEquals(copy, request);
+
+        // test JSON round trip
+        String jsonText = DefaultObjectMapper.INSTANCE.writeValueAsString(request);
+        BridgeExporterRequest deserialized = DefaultObjectMapper.INSTANCE.readValue(jsonText,
+                BridgeExporterRequest.class);
+        assertEquals(deserialized, request);
+    }
+
+    @Test
+    public void withDryRun() throws Exception {
+        BridgeExporterRequest request = new BridgeExporterRequest.Builder().withEndDateTime(END_DATE_TIME)
+                .withUseLastExportTime(true).withDryRun(true).build();
+        assertTrue(request.getDryRun());
+
+        // test toString
+        assertEquals(request.toString(), "endDateTime=" + END_DATE_TIME + ", redriveCount=0, tag=" +
+                BridgeExporterRequest.DEFAULT_TAG + ", useLastExportTime=true, dryRun=true");
+
+        // Dry run requests are different from the same request without dry run.
+        BridgeExporterRequest notDryRun = new BridgeExporterRequest.Builder().copyOf(request).withDryRun(false)
+                .build();
+        assertNotEquals(notDryRun, request);
+
+        // test copy
+        BridgeExporterRequest copy = new BridgeExporterRequest.Builder().copyOf(request).build();
+        assertEquals(copy, request);
+
+        // test JSON round trip
+        String jsonText = DefaultObjectMapper.INSTANCE.writeValueAsString(request);
+        BridgeExporterRequest deserialized = DefaultObjectMapper.INSTANCE.readValue(jsonText,
+                BridgeExporterRequest.class);
+        assertEquals(deserialized, request);
+    }
+
     @Test
     public void withOptionalParams() {
         // Make collections. We make them specifically for this test, because we want to modify them to make sure they
@@ -252,6 +301,20 @@ public class BridgeExporterRequestTest {
                 .withSynapseProjectOverrideMap(TEST_PROJECT_OVERRIDE_MAP).withUseLastExportTime(true).build();
     }
 
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "Cannot specify both recordIdS3Override and useParallelScan.")
+    public void recordOverrideWithParallelScan() {
+        new BridgeExporterRequest.Builder().withRecordIdS3Override(TEST_RECORD_OVERRIDE).withUseLastExportTime(false)
+                .withUseParallelScan(true).build();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "Cannot specify both recordIdS3Override and dryRun.")
+    public void recordOverrideWithDryRun() {
+        new BridgeExporterRequest.Builder().withRecordIdS3Override(TEST_RECORD_OVERRIDE).withUseLastExportTime(false)
+                .withDryRun(true).build();
+    }
+
     @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
             "exporterDdbPrefixOverride and synapseProjectOverrideMap must both be specified or both be absent.")
     public void blankDdbPrefixOverride() {
@@ -23,6 +23,7 @@ import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.config.Config;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
+import org.sagebionetworks.bridge.exporter.metrics.StageLatencyTracker;
 
 // Tests for SynapseHelper.uploadTsvFileToTable() and related methods.
 @SuppressWarnings("unchecked")
@@ -34,6 +35,7 @@ public class SynapseHelperUploadTsvToTableTest {
 
     private File mockTsvFile;
     private SynapseClient mockSynapseClient;
+    private StageLatencyTracker stageLatencyTracker;
     private SynapseHelper synapseHelper;
     private ArgumentCaptor<CsvTableDescriptor> tableDescCaptor;
 
@@ -62,6 +64,9 @@ public class SynapseHelperUploadTsvToTableTest {
         synapseHelper.setConfig(config);
         synapseHelper.setSynapseClient(mockSynapseClient);
 
+        stageLatencyTracker = new StageLatencyTracker();
+        synapseHelper.setStageLatencyTracker(stageLatencyTracker);
+
         // Spy createFileHandle. This is tested somewhere else, and spying it here means we don't have to change tests
         // in 3 different places when we change the createFileHandle implementation.
         FileHandle mockFileHandle = mock(FileHandle.class);
@@ -80,6 +85,7 @@ public class SynapseHelperUploadTsvToTableTest {
         // execute and validate
         long linesProcessed = synapseHelper.uploadTsvFileToTable(TEST_PROJECT_ID, TEST_TABLE_ID, mockTsvFile);
         assertEquals(linesProcessed, 42);
+        assertEquals(stageLatencyTracker.getHistogram(SynapseHelper.STAGE_TSV_IMPORT).snapshot().getCount(), 1);
 
         // validate CsvTableDescriptor
         CsvTableDescriptor tableDesc = tableDescCaptor.getValue();
@@ -0,0 +1,245 @@
+package org.sagebionetworks.bridge.exporter.worker;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTime;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.config.Config;
+import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
+import org.sagebionetworks.bridge.schema.UploadSchemaKey;
+
+public class ExportCheckpointHelperTest {
+    private static final BridgeExporterRequest REQUEST = new BridgeExporterRequest.Builder()
+            .withEndDateTime(DateTime.parse("2016-08-15T23:59:59.999-0700")).withTag("test tag")
+            .withUseLastExportTime(true).build();
+    private static final UploadSchemaKey SCHEMA_KEY = new UploadSchemaKey.Builder().withAppId("test-study")
+            .withSchemaId("test-schema").withRevision(1).build();
+
+    private File checkpointRootDir;
+    private ExportCheckpointHelper helper;
+    private File tsvFile;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        checkpointRootDir = Files.createTempDirectory("checkpoint-test").toFile();
+        tsvFile = File.createTempFile("checkpoint-test", ".tsv");
+
+        Config mockConfig = mock(Config.class);
+        when(mockConfig.get(ExportCheckpointHelper.CONFIG_KEY_CHECKPOINT_DIR)).thenReturn(
+                checkpointRootDir.getAbsolutePath());
+
+        helper = new ExportCheckpointHelper();
+        helper.setConfig(mockConfig);
+    }
+
+    @AfterMethod
+    public void after() throws Exception {
+        try (Stream<File> fileStream = Files.walk(checkpointRootDir.toPath()).sorted(Comparator.reverseOrder())
+                .map(Path::toFile)) {
+            fileStream.forEach(File::delete);
+        }
+        //noinspection ResultOfMethodCallIgnored
+        tsvFile.delete();
+    }
+
+    @Test
+    public void noCheckpoint() {
+        assertTrue(helper.isEnabled());
+        assertNull(helper.readCheckpoint(REQUEST));
+    }
+
+    @Test
+    public void writeAndRead() {
+        assertTrue(helper.writeCheckpoint(REQUEST, makeCheckpoint()));
+        helper.markTableUploaded(REQUEST, ExportCheckpoint.getTableKeyForStudyAndType("test-study",
+                MetaTableType.DEFAULT));
+
+        ExportCheckpoint checkpoint = helper.readCheckpoint(REQUEST);
+        assertNotNull(checkpoint);
+        assertEquals(checkpoint.getCounterMap(), ImmutableMap.of("numRecords[test-study]", 3));
+        assertEquals(checkpoint.getExporterDate(), "2016-08-15");
+        assertEquals(checkpoint.getStudyIdSet(), ImmutableSet.of("test-study"));
+        assertEquals(checkpoint.getTmpDir(), "/tmp/dummy");
+        assertEquals(checkpoint.getUploadedTableSet(), ImmutableSet.of(ExportCheckpoint.getTableKeyForStudyAndType(
+                "test-study", MetaTableType.DEFAULT)));
+
+        assertEquals(checkpoint.getTsvList().size(), 2);
+
+        ExportCheckpoint.TsvCheckpoint healthDataTsv = checkpoint.getTsvList().get(0);
+        assertEquals(healthDataTsv.getColumnNameList(), ImmutableList.of("recordId", "foo"));
+        assertEquals(healthDataTsv.getFile(), tsvFile.getAbsolutePath());
+        assertEquals(healthDataTsv.getLineCount(), 1);
+        assertEquals(healthDataTsv.getRecordIdList(), ImmutableList.of("test-record"));
+        assertEquals(healthDataTsv.getSchemaKey(), SCHEMA_KEY);
+        assertEquals(healthDataTsv.getTableKey(), ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+
+        ExportCheckpoint.TsvCheckpoint metaTableTsv = checkpoint.getTsvList().get(1);
+        assertNull(metaTableTsv.getFile());
+        assertEquals(metaTableTsv.getInitErrorMessage(), "test error");
+        assertTrue(metaTableTsv.isInitErrorRetryable());
+        assertEquals(metaTableTsv.getMetaTableType(), MetaTableType.DEFAULT);
+        assertEquals(metaTableTsv.getStudyId(), "test-study");
+    }
+
+    @Test
+    public void rewriteClearsUploadedTables() {
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        helper.markTableUploaded(REQUEST, ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+
+        ExportCheckpoint checkpoint = helper.readCheckpoint(REQUEST);
+        assertTrue(checkpoint.getUploadedTableSet().isEmpty());
+    }
+
+    @Test
+    public void missingTsvStartsOver() {
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        //noinspection ResultOfMethodCallIgnored
+        tsvFile.delete();
+
+        assertNull(helper.readCheckpoint(REQUEST));
+
+        // The checkpoint is cleared.
+        assertEquals(checkpointRootDir.list().length, 0);
+    }
+
+    @Test
+    public void missingTsvAlreadyUploaded() {
+        // Uploaded TSVs may have been cleaned up. That's fine.
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        helper.markTableUploaded(REQUEST, ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+        //noinspection ResultOfMethodCallIgnored
+        tsvFile.delete();
+
+        assertNotNull(helper.readCheckpoint(REQUEST));
+    }
+
+    @Test
+    public void importedSegments() {
+        assertTrue(helper.readImportedSegments(REQUEST).isEmpty());
+
+        helper.markSegmentImported(REQUEST, "table-A", ImmutableList.of("record-1", "record-2"));
+        helper.markSegmentImported(REQUEST, "table-B", ImmutableList.of("record-1"));
+        helper.markSegmentImported(REQUEST, "table-A", ImmutableList.of("record-3"));
+
+        // Imported segments don't need a checkpoint.
+        assertNull(helper.readCheckpoint(REQUEST));
+        assertEquals(helper.readImportedSegments(REQUEST), ImmutableMap.of(
+                "table-A", ImmutableSet.of("record-1", "record-2", "record-3"),
+                "table-B", ImmutableSet.of("record-1")));
+    }
+
+    @Test
+    public void missingTsvKeepsImportedSegments() {
+        // The checkpoint can't be used, but the imported rows are still in Synapse.
+        helper.markSegmentImported(REQUEST, "table-A", ImmutableList.of("record-1"));
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        //noinspection ResultOfMethodCallIgnored
+        tsvFile.delete();
+
+        assertNull(helper.readCheckpoint(REQUEST));
+        assertEquals(helper.readImportedSegments(REQUEST), ImmutableMap.of("table-A", ImmutableSet.of("record-1")));
+    }
+
+    @Test
+    public void discardKeepsImportedSegments() {
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        helper.markTableUploaded(REQUEST, ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+        helper.markSegmentImported(REQUEST, "table-A", ImmutableList.of("record-1"));
+        helper.discardCheckpoint(REQUEST);
+
+        assertNull(helper.readCheckpoint(REQUEST));
+        assertEquals(helper.readImportedSegments(REQUEST), ImmutableMap.of("table-A", ImmutableSet.of("record-1")));
+
+        // Without imported segments, discarding is the same as clearing.
+        helper.clearCheckpoint(REQUEST);
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        helper.discardCheckpoint(REQUEST);
+        assertEquals(checkpointRootDir.list().length, 0);
+    }
+
+    @Test
+    public void clear() {
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        helper.markTableUploaded(REQUEST, ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+        helper.markSegmentImported(REQUEST, "table-A", ImmutableList.of("record-1"));
+        helper.clearCheckpoint(REQUEST);
+
+        assertNull(helper.readCheckpoint(REQUEST));
+        assertTrue(helper.readImportedSegments(REQUEST).isEmpty());
+        assertEquals(checkpointRootDir.list().length, 0);
+
+        // Clearing a non-existent checkpoint is a no-op.
+        helper.clearCheckpoint(REQUEST);
+    }
+
+    @Test
+    public void differentRequestsHaveDifferentCheckpoints() {
+        BridgeExporterRequest otherRequest = new BridgeExporterRequest.Builder().copyOf(REQUEST)
+                .withTag("other tag").build();
+        assertNotEquals(ExportCheckpointHelper.getRequestFingerprint(otherRequest),
+                ExportCheckpointHelper.getRequestFingerprint(REQUEST));
+
+        helper.writeCheckpoint(REQUEST, makeCheckpoint());
+        assertNull(helper.readCheckpoint(otherRequest));
+    }
+
+    @Test
+    public void disabled() {
+        Config mockConfig = mock(Config.class);
+        ExportCheckpointHelper disabledHelper = new ExportCheckpointHelper();
+        disabledHelper.setConfig(mockConfig);
+        assertFalse(disabledHelper.isEnabled());
+
+        // All calls are no-ops.
+        assertFalse(disabledHelper.writeCheckpoint(REQUEST, makeCheckpoint()));
+        disabledHelper.markTableUploaded(REQUEST, ExportCheckpoint.getTableKeyForSchema(SCHEMA_KEY));
+        disabledHelper.markSegmentImported(REQUEST, "table-A", ImmutableList.of("record-1"));
+        assertNull(disabledHelper.readCheckpoint(REQUEST));
+        assertTrue(disabledHelper.readImportedSegments(REQUEST).isEmpty());
+        disabledHelper.discardCheckpoint(REQUEST);
+        disabledHelper.clearCheckpoint(REQUEST);
+    }
+
+    private ExportCheckpoint makeCheckpoint() {
+        ExportCheckpoint.TsvCheckpoint healthDataTsv = new ExportCheckpoint.TsvCheckpoint();
+        healthDataTsv.setColumnNameList(ImmutableList.of("recordId", "foo"));
+        healthDataTsv.setFile(tsvFile.getAbsolutePath());
+        healthDataTsv.setLineCount(1);
+        healthDataTsv.setRecordIdList(ImmutableList.of("test-record"));
+        healthDataTsv.setSchemaKey(SCHEMA_KEY);
+
+        ExportCheckpoint.TsvCheckpoint metaTableTsv = new ExportCheckpoint.TsvCheckpoint();
+        metaTableTsv.setInitErrorMessage("test error");
+        metaTableTsv.setInitErrorRetryable(true);
+        metaTableTsv.setMetaTableType(MetaTableType.DEFAULT);
+        metaTableTsv.setStudyId("test-study");
+
+        ExportCheckpoint checkpoint = new ExportCheckpoint();
+        checkpoint.setCounterMap(ImmutableMap.of("numRecords[test-study]", 3));
+        checkpoint.setExporterDate("2016-08-15");
+        checkpoint.setStudyIdSet(ImmutableSet.of("test-study"));
+        checkpoint.setTmpDir("/tmp/dummy");
+        checkpoint.setTsvList(ImmutableList.of(healthDataTsv, metaTableTsv));
+        return checkpoint;
+    }
+}
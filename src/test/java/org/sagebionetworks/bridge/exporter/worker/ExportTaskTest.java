@@ -2,19 +2,21 @@ package org.sagebionetworks.bridge.exporter.worker;
 
 import static org.mockito.Mockito.mock;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.io.File;
 import java.io.Writer;
-import java.util.Queue;
 import java.util.Set;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Table;
 import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.exporter.exceptions.RestartBridgeExporterException;
 import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.exporter.request.BridgeExporterRequest;
 import org.sagebionetworks.bridge.schema.UploadSchemaKey;
@@ -92,6 +94,13 @@ public class ExportTaskTest {
                 barAppVersionTsvInfo);
         assertSame(task.getTsvInfoForStudyAndType("bar-study", MetaTableType.DEFAULT),
                 barDefaultTsvInfo);
+
+        Table<String, MetaTableType, TsvInfo> tsvInfoTable = task.getTsvInfoByStudyAndTypeTable();
+        assertEquals(tsvInfoTable.size(), 4);
+        assertSame(tsvInfoTable.get("foo-study", MetaTableType.APP_VERSION), fooAppVersionTsvInfo);
+        assertSame(tsvInfoTable.get("foo-study", MetaTableType.DEFAULT), fooDefaultTsvInfo);
+        assertSame(tsvInfoTable.get("bar-study", MetaTableType.APP_VERSION), barAppVersionTsvInfo);
+        assertSame(tsvInfoTable.get("bar-study", MetaTableType.DEFAULT), barDefaultTsvInfo);
     }
 
     @Test
@@ -115,21 +124,37 @@ public class ExportTaskTest {
     }
 
     @Test
-    public void taskQueue() {
+    public void outstandingSubtasks() throws Exception {
         ExportTask task = createTask();
 
-        // add mock tasks to queue
+        // add mock subtasks
         ExportSubtaskFuture mockFooFuture = mock(ExportSubtaskFuture.class);
         task.addSubtaskFuture(mockFooFuture);
 
         ExportSubtaskFuture mockBarFuture = mock(ExportSubtaskFuture.class);
         task.addSubtaskFuture(mockBarFuture);
+        assertEquals(task.getNumOutstandingSubtasks(), 2);
+
+        // Remove one. Waiting for fewer than 2 outstanding subtasks returns right away.
+        task.removeSubtaskFuture(mockFooFuture);
+        assertEquals(task.getNumOutstandingSubtasks(), 1);
+        task.waitForOutstandingSubtasksBelow(2);
+    }
+
+    @Test
+    public void restartException() throws Exception {
+        ExportTask task = createTask();
+        assertNull(task.getRestartException());
+
+        // Only the first restart exception is kept.
+        RestartBridgeExporterException fooException = new RestartBridgeExporterException("foo");
+        task.setRestartException(fooException);
+        task.setRestartException(new RestartBridgeExporterException("bar"));
+        assertSame(task.getRestartException(), fooException);
 
-        // get tasks back in order
-        Queue<ExportSubtaskFuture> taskQueue = task.getSubtaskFutureQueue();
-        assertSame(taskQueue.remove(), mockFooFuture);
-        assertSame(taskQueue.remove(), mockBarFuture);
-        assertTrue(taskQueue.isEmpty());
+        // Clear it.
+        task.clearRestartException();
+        assertNull(task.getRestartException());
     }
 
     @Test
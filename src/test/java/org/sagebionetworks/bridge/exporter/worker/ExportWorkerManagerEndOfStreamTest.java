@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.exporter.worker;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -13,22 +14,37 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
 import org.joda.time.LocalDate;
@@ -58,6 +74,7 @@ import org.sagebionetworks.bridge.sqs.SqsHelper;
 public class ExportWorkerManagerEndOfStreamTest {
     private static final String DUMMY_JSON_TEXT = "{\"key\":\"value\"}";
     private static final String DUMMY_RECORD_ID_OVERRIDE_BUCKET = "dummy-bucket";
+    private static final String REDRIVE_FILENAME = "redrive-record-ids.2016-08-16T01:30:00.001Z.gz";
     private static final DateTime START_DATE_TIME = DateTime.parse("2015-12-08T09:19:11.193-0700");
     private static final DateTime END_DATE_TIME = DateTime.parse("2015-12-08T23:31:01.799-0700");
     private static final String TEST_STUDY = "test-study";
@@ -70,9 +87,11 @@ public class ExportWorkerManagerEndOfStreamTest {
 
     private static final String DUMMY_SQS_QUEUE_URL = "dummy-sqs-url";
 
+    private ExportCheckpointHelper mockCheckpointHelper;
+    private Config mockConfig;
     private ExportWorkerManager manager;
-    private ExecutorService mockExecutor;
-    private List<Future<?>> mockFutureList;
+    private ListeningExecutorService mockExecutor;
+    private List<SettableFuture<Void>> mockFutureList;
     private List<SchemaBasedExportHandler> mockHealthDataHandlerList;
     private List<SynapseExportHandler> mockMetaTableHandlerList;
     private SynapseStatusTableHelper mockSynapseStatusTableHelper;
@@ -97,7 +116,7 @@ public class ExportWorkerManagerEndOfStreamTest {
         mockMetaTableHandlerList = new ArrayList<>();
 
         // Mock config - Set progress report interval to 2 to test branch coverage
-        Config mockConfig = mock(Config.class);
+        mockConfig = mock(Config.class);
         when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_WORKER_MANAGER_PROGRESS_REPORT_PERIOD)).thenReturn(2);
         when(mockConfig.get(BridgeExporterUtil.CONFIG_KEY_RECORD_ID_OVERRIDE_BUCKET)).thenReturn(
                 DUMMY_RECORD_ID_OVERRIDE_BUCKET);
@@ -108,7 +127,8 @@ public class ExportWorkerManagerEndOfStreamTest {
         when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_REDRIVE_MAX_COUNT)).thenReturn(2);
 
         // mock helpers - Individual tests can overwrite behavior or verify different behavior.
-        mockExecutor = mock(ExecutorService.class);
+        mockCheckpointHelper = mock(ExportCheckpointHelper.class);
+        mockExecutor = mock(ListeningExecutorService.class);
         mockSynapseStatusTableHelper = mock(SynapseStatusTableHelper.class);
         mockS3Helper = mock(S3Helper.class);
         mockSqsHelper = mock(SqsHelper.class);
@@ -117,28 +137,46 @@ public class ExportWorkerManagerEndOfStreamTest {
         manager = spy(new ExportWorkerManager());
         manager.setConfig(mockConfig);
         manager.setExecutor(mockExecutor);
+        manager.setSynapseUploadExecutor(MoreExecutors.newDirectExecutorService());
+        manager.setExportCheckpointHelper(mockCheckpointHelper);
         manager.setS3Helper(mockS3Helper);
         manager.setSqsHelper(mockSqsHelper);
         manager.setSynapseStatusTableHelper(mockSynapseStatusTableHelper);
     }
 
     private void mockRecordIdExceptions(Map<String, Exception> recordIdToException) {
-        // Mock the executor to create mock futures. This allows us to inject failures into record processing.
+        // Mock the executor to create futures that are already done. This allows us to inject failures into record
+        // processing.
         when(mockExecutor.submit(any(ExportWorker.class))).thenAnswer(invocation -> {
-            Future<?> mockFuture = mock(Future.class);
+            SettableFuture<Void> future = SettableFuture.create();
 
             ExportWorker worker = invocation.getArgumentAt(0, ExportWorker.class);
             Exception ex = recordIdToException.get(worker.getSubtask().getRecordId());
             if (ex != null) {
-                // Future.get() exceptions are always wrapped in an ExecutionException.
-                when(mockFuture.get()).thenThrow(new ExecutionException(ex));
+                future.setException(ex);
+            } else {
+                future.set(null);
             }
 
-            mockFutureList.add(mockFuture);
-            return mockFuture;
+            mockFutureList.add(future);
+            return future;
         });
     }
 
+    private void mockPendingSubtasks() {
+        // Similarly, but the futures aren't done. Tests finish them by setting them.
+        when(mockExecutor.submit(any(ExportWorker.class))).thenAnswer(invocation -> {
+            SettableFuture<Void> future = SettableFuture.create();
+            mockFutureList.add(future);
+            return future;
+        });
+    }
+
+    private static Item makeRecord(String recordId) {
+        return new Item().withString("studyId", TEST_STUDY).withString("schemaId", "test-schema")
+                .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", recordId);
+    }
+
     private void mockSchemaIdExceptions(Map<String, Exception> schemaIdToException) throws Exception {
         // Similarly, spy createHealthDataHandler(). This injects failures into the upload TSV step.
         doAnswer(invocation -> {
@@ -252,9 +290,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
         // verify futures processed (6 records, plus 1 duplicate A, doubled for the appVersion handlers)
         assertEquals(mockFutureList.size(), 14);
-        for (Future<?> oneMockFuture : mockFutureList) {
-            verify(oneMockFuture).get();
-        }
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
 
         // verify handlers called to uploaded TSVs (6 tables, 6 studies (appVersion table))
         assertEquals(mockHealthDataHandlerList.size(), 6);
@@ -277,8 +313,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
         // verify redrives
         // We redrive records A and C, but not E, since TSV failures skip individual record redrives.
-        verify(mockS3Helper).writeLinesToS3(DUMMY_RECORD_ID_OVERRIDE_BUCKET,
-                "redrive-record-ids.2016-08-16T01:30:00.001Z", ImmutableSet.of("record-A", "record-C"));
+        verifyRedriveRecordIds(ImmutableSet.of("record-A", "record-C"));
 
         ArgumentCaptor<BridgeExporterRequest> redriveRequestCaptor = ArgumentCaptor.forClass(
                 BridgeExporterRequest.class);
@@ -289,7 +324,7 @@ public class ExportWorkerManagerEndOfStreamTest {
         BridgeExporterRequest redriveRecordRequest = redriveRequestList.get(0);
         assertNull(redriveRecordRequest.getStartDateTime());
         assertNull(redriveRecordRequest.getEndDateTime());
-        assertEquals(redriveRecordRequest.getRecordIdS3Override(), "redrive-record-ids.2016-08-16T01:30:00.001Z");
+        assertEquals(redriveRecordRequest.getRecordIdS3Override(), REDRIVE_FILENAME);
         assertEquals(redriveRecordRequest.getRedriveCount(), 1);
         assertEquals(redriveRecordRequest.getSharingMode(), request.getSharingMode());
         assertEquals(redriveRecordRequest.getTag(), ExportWorkerManager.REDRIVE_TAG_PREFIX + request.getTag());
@@ -354,9 +389,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
         // Verify futures processed. (1 record, doubled for the appVersion handlers.)
         assertEquals(mockFutureList.size(), 2);
-        for (Future<?> oneMockFuture : mockFutureList) {
-            verify(oneMockFuture).get();
-        }
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
 
         // Verify handlers called to uploaded TSVs. No health data handlers, but 2 meta table handlers (schemaless and
         // appVersion).
@@ -368,8 +401,297 @@ public class ExportWorkerManagerEndOfStreamTest {
         }
 
         // no redrives
-        verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
+        verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
+    }
+
+    @Test
+    public void tablesUploadedInParallel() throws Exception {
+        // Two schemas. Each upload waits for the other upload to start, so this only finishes if they run in parallel.
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        CountDownLatch uploadLatch = new CountDownLatch(2);
+        doAnswer(invocation -> {
+            SchemaBasedExportHandler mockHandler = mock(SchemaBasedExportHandler.class);
+            doAnswer(uploadInvocation -> {
+                uploadLatch.countDown();
+                if (!uploadLatch.await(5, TimeUnit.SECONDS)) {
+                    throw new BridgeExporterException("uploads didn't run in parallel");
+                }
+                return null;
+            }).when(mockHandler).uploadToSynapseForTask(any());
+
+            mockHealthDataHandlerList.add(mockHandler);
+            return mockHandler;
+        }).when(manager).createHealthDataHandler(any(), any());
+
+        ExecutorService synapseUploadExecutor = Executors.newFixedThreadPool(2);
+        manager.setSynapseUploadExecutor(synapseUploadExecutor);
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // Execute test.
+        try {
+            manager.addSubtaskForRecord(task, makeRecord("record-1").withString("schemaId", "schema-1"));
+            manager.addSubtaskForRecord(task, makeRecord("record-2").withString("schemaId", "schema-2"));
+            manager.endOfStream(task, START_DATES_BY_STUDY);
+        } finally {
+            synapseUploadExecutor.shutdownNow();
+        }
+
+        // Both tables uploaded, with no errors, so no redrives.
+        assertEquals(uploadLatch.getCount(), 0);
+        assertEquals(mockHealthDataHandlerList.size(), 2);
         verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
+
+        // Upload durations are recorded per table.
+        for (String oneSchemaId : ImmutableList.of("schema-1", "schema-2")) {
+            String tableKey = ExportCheckpoint.getTableKeyForSchema(new UploadSchemaKey.Builder().withAppId(TEST_STUDY)
+                    .withSchemaId(oneSchemaId).withRevision(1).build());
+            assertEquals(task.getMetrics().getLatencyHistograms().get(
+                    ExportWorkerManager.METRICS_LATENCY_SYNAPSE_UPLOAD_TABLE_PREFIX + tableKey).getCount(), 1);
+        }
+        verify(mockSynapseStatusTableHelper).initTableAndWriteStatus(task, TEST_STUDY);
+    }
+
+    @Test
+    public void failedSegmentRedrivesRecords() throws Exception {
+        // The schema's table rolled over into 2 segments. At end of stream, the handler imports both. The first
+        // segment fails with a retryable error, so its records are redriven. The request isn't restarted.
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        TsvInfo badSegment = new TsvInfo(ImmutableList.of("foo"), new File("bad-segment.tsv"), 2,
+                ImmutableList.of("record-A", "record-B"));
+        TsvInfo goodSegment = new TsvInfo(ImmutableList.of("foo"), new File("good-segment.tsv"), 1,
+                ImmutableList.of("record-C"));
+        mockSegmentedHealthDataHandler(new BridgeExporterException("test exception"), badSegment, goodSegment);
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // Execute test.
+        manager.addSubtaskForRecord(task, makeRecord("record-A"));
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // Both segments were imported, and the table is still uploaded at the end.
+        assertEquals(mockHealthDataHandlerList.size(), 1);
+        SchemaBasedExportHandler mockHandler = mockHealthDataHandlerList.get(0);
+        verify(mockHandler).uploadSegmentToSynapse(task, badSegment);
+        verify(mockHandler).uploadSegmentToSynapse(task, goodSegment);
+        verify(mockHandler).uploadToSynapseForTask(task);
+
+        assertEquals(task.getMetrics().getCounterMap().count(ExportWorkerManager.METRICS_SEGMENTS_IMPORTED), 1);
+        assertEquals(task.getMetrics().getCounterMap().count(ExportWorkerManager.METRICS_SEGMENTS_FAILED), 1);
+
+        // The bad segment's records are redriven.
+        verifyRedriveRecordIds(ImmutableSet.of("record-A", "record-B"));
+    }
+
+    @Test
+    public void failedSegmentNotRetryable() throws Exception {
+        // Similarly, but the first segment fails with an error that isn't retryable. The segment's records are still
+        // redriven, since otherwise those rows are lost.
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        TsvInfo badSegment = new TsvInfo(ImmutableList.of("foo"), new File("bad-segment.tsv"), 2,
+                ImmutableList.of("record-A", "record-B"));
+        TsvInfo goodSegment = new TsvInfo(ImmutableList.of("foo"), new File("good-segment.tsv"), 1,
+                ImmutableList.of("record-C"));
+        mockSegmentedHealthDataHandler(new BadRequestException("test exception", "dummy endpoint"), badSegment, goodSegment);
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // Execute test.
+        manager.addSubtaskForRecord(task, makeRecord("record-A"));
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // Both segments were imported, and the table is still uploaded at the end.
+        assertEquals(mockHealthDataHandlerList.size(), 1);
+        SchemaBasedExportHandler mockHandler = mockHealthDataHandlerList.get(0);
+        verify(mockHandler).uploadSegmentToSynapse(task, badSegment);
+        verify(mockHandler).uploadSegmentToSynapse(task, goodSegment);
+        verify(mockHandler).uploadToSynapseForTask(task);
+
+        assertEquals(task.getMetrics().getCounterMap().count(ExportWorkerManager.METRICS_SEGMENTS_IMPORTED), 1);
+        assertEquals(task.getMetrics().getCounterMap().count(ExportWorkerManager.METRICS_SEGMENTS_FAILED), 1);
+
+        verifyRedriveRecordIds(ImmutableSet.of("record-A", "record-B"));
+    }
+
+    @Test
+    public void noRestartAfterSegmentImported() throws Exception {
+        // A segment was imported. Then a record fails because Synapse is down, and a table upload fails because
+        // Synapse is down. Restarting would import the segment's rows again, so the record and the table are
+        // redriven instead.
+        mockRecordIdExceptions(ImmutableMap.of("bad-record", new SynapseServiceUnavailable("test exception")));
+        mockSchemaIdExceptions(ImmutableMap.of("bad-schema", new SynapseServiceUnavailable("test exception")));
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // Execute test.
+        manager.markSegmentImported(task, "segmented-table", ImmutableList.of("imported-record"));
+        manager.addSubtaskForRecord(task, makeRecord("bad-record"));
+        manager.addSubtaskForRecord(task, new Item().withString("studyId", TEST_STUDY)
+                .withString("schemaId", "bad-schema").withInt("schemaRevision", 1)
+                .withString("data", DUMMY_JSON_TEXT).withString("id", "bad-schema-record"));
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // The imported segment is saved with the checkpoint.
+        assertEquals(task.getNumSegmentsImported(), 1);
+        verify(mockCheckpointHelper).markSegmentImported(DUMMY_REQUEST, "segmented-table",
+                ImmutableList.of("imported-record"));
+
+        // The bad record and the bad table are redriven.
+        verifyRedriveRecordIds(ImmutableSet.of("bad-record"));
+
+        ArgumentCaptor<BridgeExporterRequest> requestCaptor = ArgumentCaptor.forClass(BridgeExporterRequest.class);
+        verify(mockSqsHelper, times(2)).sendMessageAsJson(eq(DUMMY_SQS_QUEUE_URL), requestCaptor.capture(),
+                eq(ExportWorkerManager.REDRIVE_DELAY_SECONDS));
+        BridgeExporterRequest redriveTableRequest = requestCaptor.getAllValues().get(1);
+        assertEquals(redriveTableRequest.getTableWhitelist(), ImmutableSet.of(new UploadSchemaKey.Builder()
+                .withAppId(TEST_STUDY).withSchemaId("bad-schema").withRevision(1).build()));
+
+        // The rest of the export finishes.
+        verify(mockSynapseStatusTableHelper).initTableAndWriteStatus(task, TEST_STUDY);
+    }
+
+    @Test
+    public void segmentImportedAfterRecordFailureSynapse503() throws Exception {
+        // A record fails because Synapse is down. A segment that was already importing finishes afterwards.
+        // Restarting would import the segment's rows again, so the record is redriven instead.
+        mockRecordIdExceptions(ImmutableMap.of("bad-record", new SynapseServiceUnavailable("test exception")));
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        // Execute test.
+        manager.addSubtaskForRecord(task, makeRecord("bad-record"));
+        assertNotNull(task.getRestartException());
+        manager.markSegmentImported(task, "segmented-table", ImmutableList.of("imported-record"));
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // The restart is cleared. The bad record is redriven, and the tables are uploaded.
+        assertNull(task.getRestartException());
+        verifyRedriveRecordIds(ImmutableSet.of("bad-record"));
+        verify(mockHealthDataHandlerList.get(0)).uploadToSynapseForTask(task);
+        verify(mockMetaTableHandlerList.get(0)).uploadToSynapseForTask(task);
+        verify(mockSynapseStatusTableHelper).initTableAndWriteStatus(task, TEST_STUDY);
+    }
+
+    // Spies createHealthDataHandler() to make a handler that imports the given segments at the end of the stream. The
+    // bad segment's import throws the given exception.
+    private void mockSegmentedHealthDataHandler(Exception badSegmentEx, TsvInfo badSegment, TsvInfo goodSegment)
+            throws Exception {
+        doAnswer(invocation -> {
+            SchemaBasedExportHandler mockHandler = mock(SchemaBasedExportHandler.class);
+            doThrow(badSegmentEx).when(mockHandler).uploadSegmentToSynapse(any(), same(badSegment));
+            doAnswer(rollInvocation -> {
+                ExportTask task = rollInvocation.getArgumentAt(0, ExportTask.class);
+                manager.importTsvSegmentAsync(task, mockHandler, badSegment);
+                manager.importTsvSegmentAsync(task, mockHandler, goodSegment);
+                return null;
+            }).when(mockHandler).rollLastSegmentForTask(any());
+
+            mockHealthDataHandlerList.add(mockHandler);
+            return mockHandler;
+        }).when(manager).createHealthDataHandler(any(), any());
+    }
+
+    @Test
+    public void checkpointWrittenBeforeUpload() throws Exception {
+        Item record = new Item().withString("studyId", TEST_STUDY)
+                .withString("data", DUMMY_JSON_TEXT).withString("id", "my-record");
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        when(mockCheckpointHelper.isEnabled()).thenReturn(true);
+        when(mockCheckpointHelper.writeCheckpoint(eq(DUMMY_REQUEST), any())).thenReturn(true);
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(new File("/tmp/dummy")).build();
+
+        // Execute test.
+        manager.addSubtaskForRecord(task, record);
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // Checkpoint is written with the task's state. (Mock handlers don't create TSVs.)
+        ArgumentCaptor<ExportCheckpoint> checkpointCaptor = ArgumentCaptor.forClass(ExportCheckpoint.class);
+        verify(mockCheckpointHelper).writeCheckpoint(eq(DUMMY_REQUEST), checkpointCaptor.capture());
+        ExportCheckpoint checkpoint = checkpointCaptor.getValue();
+        assertEquals(checkpoint.getExporterDate(), "2015-12-09");
+        assertEquals(checkpoint.getStudyIdSet(), ImmutableSet.of(TEST_STUDY));
+        assertEquals(checkpoint.getTmpDir(), new File("/tmp/dummy").getAbsolutePath());
+
+        // Both meta tables are marked as uploaded.
+        verify(mockCheckpointHelper).markTableUploaded(DUMMY_REQUEST, ExportCheckpoint.getTableKeyForStudyAndType(
+                TEST_STUDY, MetaTableType.APP_VERSION));
+        verify(mockCheckpointHelper).markTableUploaded(DUMMY_REQUEST, ExportCheckpoint.getTableKeyForStudyAndType(
+                TEST_STUDY, MetaTableType.DEFAULT));
+    }
+
+    @Test
+    public void resumeFromCheckpointSkipsUploadedTables() throws Exception {
+        mockRecordIdExceptions(ImmutableMap.of());
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        // Checkpoint has both meta tables for the study. The default table was already uploaded.
+        ExportCheckpoint.TsvCheckpoint appVersionTsv = new ExportCheckpoint.TsvCheckpoint();
+        appVersionTsv.setColumnNameList(ImmutableList.of("recordId"));
+        appVersionTsv.setFile("/tmp/dummy/appVersion.tsv");
+        appVersionTsv.setLineCount(1);
+        appVersionTsv.setMetaTableType(MetaTableType.APP_VERSION);
+        appVersionTsv.setRecordIdList(ImmutableList.of("my-record"));
+        appVersionTsv.setStudyId(TEST_STUDY);
+
+        ExportCheckpoint.TsvCheckpoint defaultTsv = new ExportCheckpoint.TsvCheckpoint();
+        defaultTsv.setMetaTableType(MetaTableType.DEFAULT);
+        defaultTsv.setStudyId(TEST_STUDY);
+
+        ExportCheckpoint checkpoint = new ExportCheckpoint();
+        checkpoint.setCounterMap(ImmutableMap.of("numRecords[" + TEST_STUDY + "]", 3));
+        checkpoint.setExporterDate("2015-12-09");
+        checkpoint.setStudyIdSet(ImmutableSet.of(TEST_STUDY));
+        checkpoint.setTmpDir("/tmp/dummy");
+        checkpoint.setTsvList(ImmutableList.of(appVersionTsv, defaultTsv));
+        checkpoint.getUploadedTableSet().add(defaultTsv.getTableKey());
+
+        when(mockCheckpointHelper.isEnabled()).thenReturn(true);
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(new File("/tmp/dummy")).build();
+
+        // Execute test.
+        manager.resumeFromCheckpoint(task, checkpoint);
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+
+        // Task state is restored.
+        assertEquals(task.getMetrics().getCounterMap().count("numRecords[" + TEST_STUDY + "]"), 3);
+        assertEquals(task.getStudyIdSet(), ImmutableSet.of(TEST_STUDY));
+        TsvInfo appVersionTsvInfo = task.getTsvInfoForStudyAndType(TEST_STUDY, MetaTableType.APP_VERSION);
+        assertEquals(appVersionTsvInfo.getFile(), new File("/tmp/dummy/appVersion.tsv"));
+        assertEquals(appVersionTsvInfo.getLineCount(), 1);
+        assertEquals(appVersionTsvInfo.getRecordIds(), ImmutableList.of("my-record"));
+
+        // Only the app version table is uploaded. The checkpoint is not rewritten.
+        assertEquals(mockMetaTableHandlerList.size(), 1);
+        verify(mockMetaTableHandlerList.get(0)).uploadToSynapseForTask(task);
+        verify(mockCheckpointHelper).markTableUploaded(DUMMY_REQUEST, appVersionTsv.getTableKey());
+        verify(mockCheckpointHelper, never()).markTableUploaded(DUMMY_REQUEST, defaultTsv.getTableKey());
+        verify(mockCheckpointHelper, never()).writeCheckpoint(any(), any());
+
+        // Status table is still written.
+        verify(mockSynapseStatusTableHelper).initTableAndWriteStatus(task, TEST_STUDY);
     }
 
     @Test
@@ -425,7 +747,7 @@ public class ExportWorkerManagerEndOfStreamTest {
         assertFalse(redriveTableRequest.getUseLastExportTime());
 
         // no record redrives
-        verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
     }
 
     @Test
@@ -480,7 +802,7 @@ public class ExportWorkerManagerEndOfStreamTest {
         assertFalse(redriveTableRequest.getUseLastExportTime());
 
         // no record redrives
-        verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
     }
 
     @Test
@@ -515,8 +837,7 @@ public class ExportWorkerManagerEndOfStreamTest {
         // Skip verifying futures and handlers. This is tested elsewhere.
 
         // verify redrives - We redrive one record "test-record" and one table "test-schema".
-        verify(mockS3Helper).writeLinesToS3(DUMMY_RECORD_ID_OVERRIDE_BUCKET,
-                "redrive-record-ids.2016-08-16T01:30:00.001Z", ImmutableSet.of("test-record"));
+        verifyRedriveRecordIds(ImmutableSet.of("test-record"));
 
         ArgumentCaptor<BridgeExporterRequest> redriveRequestCaptor = ArgumentCaptor.forClass(
                 BridgeExporterRequest.class);
@@ -526,7 +847,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
         // Verify redrive count is bumped to 2. Since tag included the prefix, it's unchanged.
         BridgeExporterRequest redriveRecordRequest = redriveRequestList.get(0);
-        assertEquals(redriveRecordRequest.getRecordIdS3Override(), "redrive-record-ids.2016-08-16T01:30:00.001Z");
+        assertEquals(redriveRecordRequest.getRecordIdS3Override(), REDRIVE_FILENAME);
         assertEquals(redriveRecordRequest.getRedriveCount(), 2);
         assertEquals(redriveRecordRequest.getTag(), request.getTag());
 
@@ -570,13 +891,14 @@ public class ExportWorkerManagerEndOfStreamTest {
         // Skip verifying futures and handlers. This is tested elsewhere.
 
         // no redrives
-        verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
         verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
     }
 
     @Test
     public void recordFailureSynapse503() throws Exception {
-        // "Bad record" fails with a Synapse 503. "Good record" is never processed.
+        // "Bad record" fails with a Synapse 503. "Good record" is still processed, and the request is restarted at the
+        // end of the stream.
         Item badRecord = new Item().withString("studyId", TEST_STUDY).withString("schemaId", "test-schema")
                 .withInt("schemaRevision", 1).withString("data", DUMMY_JSON_TEXT).withString("id", "bad-record");
         Item goodRecord = new Item().withString("studyId", TEST_STUDY).withString("schemaId", "test-schema")
@@ -594,9 +916,11 @@ public class ExportWorkerManagerEndOfStreamTest {
         ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
                 .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
 
-        // set up test
+        // set up test - The bad record's subtasks fail as soon as they're submitted, but adding the good record
+        // doesn't throw.
         manager.addSubtaskForRecord(task, badRecord);
         manager.addSubtaskForRecord(task, goodRecord);
+        assertNotNull(task.getRestartException());
 
         // end of stream
         try {
@@ -607,12 +931,9 @@ public class ExportWorkerManagerEndOfStreamTest {
             assertTrue(ex.getCause() instanceof SynapseServiceUnavailable);
         }
 
-        // We have 4 futures, but only the first one throws and the rest are never executed.
+        // 2 records = 4 futures (health data and app version).
         assertEquals(mockFutureList.size(), 4);
-        verify(mockFutureList.get(0)).get();
-        for (int i = 1; i < 4; i++) {
-            verify(mockFutureList.get(i), never()).get();
-        }
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
 
         // 1 study, 1 schema, 2 handlers (table, appVersion), but neither one is ever called
         assertEquals(mockHealthDataHandlerList.size(), 1);
@@ -625,10 +946,168 @@ public class ExportWorkerManagerEndOfStreamTest {
         verify(mockSynapseStatusTableHelper, never()).initTableAndWriteStatus(any(), any());
 
         // no redrives
-        verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
+        verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
+    }
+
+    @Test
+    public void maxOutstandingSubtasks() throws Exception {
+        // Max 2 outstanding subtasks. Each record has 2 subtasks (health data and appVersion), so after the first
+        // record, adding another record waits for a subtask to finish.
+        when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_WORKER_MANAGER_MAX_OUTSTANDING_SUBTASKS)).thenReturn(2);
+        manager.setConfig(mockConfig);
+
+        mockPendingSubtasks();
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        manager.addSubtaskForRecord(task, makeRecord("record-1"));
+        assertEquals(task.getNumOutstandingSubtasks(), 2);
+
+        // Add record 2 on another thread, since it blocks.
+        ExecutorService addRecordExecutor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> addRecordFuture = addRecordExecutor.submit(() -> {
+                manager.addSubtaskForRecord(task, makeRecord("record-2"));
+                return null;
+            });
+            try {
+                addRecordFuture.get(100, TimeUnit.MILLISECONDS);
+                fail("expected exception");
+            } catch (TimeoutException ex) {
+                // expected exception
+            }
+            assertEquals(mockFutureList.size(), 2);
+
+            // Record 1's first subtask fails with a retryable error. This is handled right away, and unblocks
+            // record 2.
+            mockFutureList.get(0).setException(new BridgeExporterException());
+            addRecordFuture.get(5, TimeUnit.SECONDS);
+        } finally {
+            addRecordExecutor.shutdownNow();
+        }
+
+        assertEquals(mockFutureList.size(), 4);
+        assertEquals(task.getNumOutstandingSubtasks(), 3);
+        assertEquals(task.getRedriveRecordIdSet(), ImmutableSet.of("record-1"));
+        assertEquals(task.getMetrics().getLatencyHistograms().get(
+                ExportWorkerManager.METRICS_LATENCY_OUTSTANDING_SUBTASK_WAIT).getCount(), 1);
+
+        // Finish the rest of the subtasks. End of stream doesn't need to wait, and redrives record 1.
+        for (int i = 1; i < 4; i++) {
+            mockFutureList.get(i).set(null);
+        }
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
+        manager.endOfStream(task, START_DATES_BY_STUDY);
+        verifyRedriveRecordIds(ImmutableSet.of("record-1"));
+    }
+
+    @Test
+    public void maxOutstandingSubtasksSynapse503() throws Exception {
+        // Similarly, but record 1's first subtask fails with a Synapse 503 while record 2 is waiting. Records are
+        // still processed, and the request is restarted at the end of the stream.
+        when(mockConfig.getInt(ExportWorkerManager.CONFIG_KEY_WORKER_MANAGER_MAX_OUTSTANDING_SUBTASKS)).thenReturn(2);
+        manager.setConfig(mockConfig);
+
+        mockPendingSubtasks();
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        manager.addSubtaskForRecord(task, makeRecord("record-1"));
+
+        ExecutorService addRecordExecutor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> addRecordFuture = addRecordExecutor.submit(() -> {
+                manager.addSubtaskForRecord(task, makeRecord("record-2"));
+                return null;
+            });
+            try {
+                addRecordFuture.get(100, TimeUnit.MILLISECONDS);
+                fail("expected exception");
+            } catch (TimeoutException ex) {
+                // expected exception
+            }
+
+            // The restart is saved for the end of the stream. Record 2 is still added.
+            mockFutureList.get(0).setException(new SynapseServiceUnavailable("test exception"));
+            addRecordFuture.get(5, TimeUnit.SECONDS);
+        } finally {
+            addRecordExecutor.shutdownNow();
+        }
+        assertNotNull(task.getRestartException());
+        assertEquals(mockFutureList.size(), 4);
+        assertEquals(task.getNumOutstandingSubtasks(), 3);
+
+        // End of stream waits for the rest of the subtasks, then throws.
+        ExecutorService finishExecutor = Executors.newSingleThreadExecutor();
+        try {
+            finishExecutor.submit(() -> {
+                for (int i = 1; i < 4; i++) {
+                    mockFutureList.get(i).set(null);
+                }
+            });
+            manager.endOfStream(task, START_DATES_BY_STUDY);
+            fail("expected exception");
+        } catch (RestartBridgeExporterException ex) {
+            assertEquals(ex.getMessage(), "Restarting Bridge Exporter; last recordId=record-1: test exception");
+            assertTrue(ex.getCause() instanceof SynapseServiceUnavailable);
+        } finally {
+            finishExecutor.shutdownNow();
+        }
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
+
+        // No tables are uploaded.
+        verify(mockHealthDataHandlerList.get(0), never()).uploadToSynapseForTask(any());
+        verify(mockMetaTableHandlerList.get(0), never()).uploadToSynapseForTask(any());
+        verify(mockSynapseStatusTableHelper, never()).initTableAndWriteStatus(any(), any());
+
+        // no redrives
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
         verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
     }
 
+    @Test
+    public void endOfStreamWaitsForOutstandingSubtasks() throws Exception {
+        mockPendingSubtasks();
+        mockSchemaIdExceptions(ImmutableMap.of());
+        mockStudyIdExceptions(ImmutableMap.of());
+
+        ExportTask task = new ExportTask.Builder().withExporterDate(LocalDate.parse("2015-12-09"))
+                .withMetrics(new Metrics()).withRequest(DUMMY_REQUEST).withTmpDir(mock(File.class)).build();
+
+        manager.addSubtaskForRecord(task, makeRecord("record-1"));
+        manager.addSubtaskForRecord(task, makeRecord("record-2"));
+        manager.addSubtaskForRecord(task, makeRecord("record-3"));
+
+        // Finish the subtasks in reverse order, after end of stream starts.
+        ExecutorService finishExecutor = Executors.newSingleThreadExecutor();
+        try {
+            finishExecutor.submit(() -> {
+                for (int i = mockFutureList.size() - 1; i >= 0; i--) {
+                    mockFutureList.get(i).set(null);
+                }
+            });
+            manager.endOfStream(task, START_DATES_BY_STUDY);
+        } finally {
+            finishExecutor.shutdownNow();
+        }
+
+        // All subtasks finished, and the tables are uploaded.
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
+        for (SynapseExportHandler oneMockHandler : mockHealthDataHandlerList) {
+            verify(oneMockHandler).uploadToSynapseForTask(task);
+        }
+        for (SynapseExportHandler oneMockHandler : mockMetaTableHandlerList) {
+            verify(oneMockHandler).uploadToSynapseForTask(task);
+        }
+    }
+
     @Test
     public void tableFailureSynapse503() throws Exception {
         // "Bad schema" upload TSV fails with a 503. "Good schema" is never uploaded. This happens after both records
@@ -665,9 +1144,7 @@ public class ExportWorkerManagerEndOfStreamTest {
 
         // 2 records = 4 futures (health data and app version). All of these are processed.
         assertEquals(mockFutureList.size(), 4);
-        for (Future<?> oneMockFuture : mockFutureList) {
-            verify(oneMockFuture).get();
-        }
+        assertEquals(task.getNumOutstandingSubtasks(), 0);
 
         // 3 handlers (bad-schema, good-schema, appVersion). We know that health data handlers are processed before
         // appVersion handlers, so we know the appVersion handler was never uploaded. However, because we use a hash
@@ -684,7 +1161,26 @@ public class ExportWorkerManagerEndOfStreamTest {
         verify(mockSynapseStatusTableHelper, never()).initTableAndWriteStatus(any(), any());
 
         // no redrives
-        verify(mockS3Helper, never()).writeLinesToS3(any(), any(), any());
+        verify(mockS3Helper, never()).writeBytesToS3(any(), any(), any(), any());
         verify(mockSqsHelper, never()).sendMessageAsJson(any(), any(), any());
     }
+
+    // Verifies the redrive file was uploaded gzipped and encrypted, and contains exactly the given record IDs.
+    private void verifyRedriveRecordIds(Set<String> expectedRecordIdSet) throws Exception {
+        ArgumentCaptor<byte[]> bytesCaptor = ArgumentCaptor.forClass(byte[].class);
+        ArgumentCaptor<ObjectMetadata> metadataCaptor = ArgumentCaptor.forClass(ObjectMetadata.class);
+        verify(mockS3Helper).writeBytesToS3(eq(DUMMY_RECORD_ID_OVERRIDE_BUCKET), eq(REDRIVE_FILENAME),
+                bytesCaptor.capture(), metadataCaptor.capture());
+
+        ObjectMetadata metadata = metadataCaptor.getValue();
+        assertEquals(metadata.getContentType(), ExportWorkerManager.CONTENT_TYPE_GZIP);
+        assertEquals(metadata.getSSEAlgorithm(), ObjectMetadata.AES_256_SERVER_SIDE_ENCRYPTION);
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(bytesCaptor.getValue())), StandardCharsets.UTF_8))) {
+            List<String> recordIdList = reader.lines().collect(Collectors.toList());
+            assertEquals(recordIdList.size(), expectedRecordIdSet.size());
+            assertEquals(ImmutableSet.copyOf(recordIdList), expectedRecordIdSet);
+        }
+    }
 }
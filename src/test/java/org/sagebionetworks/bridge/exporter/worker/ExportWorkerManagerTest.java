@@ -13,14 +13,14 @@ import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
 
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.gson.JsonParseException;
 import com.google.gson.stream.MalformedJsonException;
 import org.mockito.ArgumentCaptor;
@@ -244,8 +244,8 @@ public class ExportWorkerManagerTest {
     public void addIosSurveySubtask() throws Exception {
         // mock executor
         ArgumentCaptor<ExportWorker> workerCaptor = ArgumentCaptor.forClass(ExportWorker.class);
-        ExecutorService mockExecutor = mock(ExecutorService.class);
-        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(Future.class));
+        ListeningExecutorService mockExecutor = mock(ListeningExecutorService.class);
+        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(ListenableFuture.class));
 
         // Mock task. This is passed into the subtask and worker, so we don't need real data in it.
         ExportTask mockTask = mock(ExportTask.class);
@@ -291,8 +291,8 @@ public class ExportWorkerManagerTest {
     public void addSchemaBasedHealthDataSubtask() throws Exception {
         // mock executor
         ArgumentCaptor<ExportWorker> workerCaptor = ArgumentCaptor.forClass(ExportWorker.class);
-        ExecutorService mockExecutor = mock(ExecutorService.class);
-        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(Future.class));
+        ListeningExecutorService mockExecutor = mock(ListeningExecutorService.class);
+        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(ListenableFuture.class));
 
         // Mock task. We only need metrics.
         ExportTask mockTask = mock(ExportTask.class);
@@ -364,8 +364,8 @@ public class ExportWorkerManagerTest {
     public void addSchemalessHealthDataSubtask() throws Exception {
         // Mock executor.
         ArgumentCaptor<ExportWorker> workerCaptor = ArgumentCaptor.forClass(ExportWorker.class);
-        ExecutorService mockExecutor = mock(ExecutorService.class);
-        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(Future.class));
+        ListeningExecutorService mockExecutor = mock(ListeningExecutorService.class);
+        when(mockExecutor.submit(workerCaptor.capture())).thenAnswer(invocation -> mock(ListenableFuture.class));
 
         // Mock task. We only need metrics.
         ExportTask mockTask = mock(ExportTask.class);
@@ -1,14 +1,30 @@
 package org.sagebionetworks.bridge.exporter.worker;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -17,6 +33,7 @@ import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterException;
 import org.sagebionetworks.bridge.exporter.exceptions.BridgeExporterTsvException;
+import org.sagebionetworks.bridge.exporter.metrics.Metrics;
 import org.sagebionetworks.bridge.file.InMemoryFileHelper;
 
 public class TsvInfoTest {
@@ -70,6 +87,181 @@ public class TsvInfoTest {
         assertEquals(actualFileContents, expectedFileContents);
     }
 
+    @Test
+    public void latencies() throws Exception {
+        Metrics metrics = new Metrics();
+        tsvInfo.setMetrics(metrics);
+
+        tsvInfo.writeRow(ImmutableMap.of("foo", "foo value", "bar", "bar value"));
+        tsvInfo.writeRow(ImmutableMap.of("foo", "second foo value", "bar", "second bar value"));
+        tsvInfo.flushAndCloseWriter();
+
+        assertEquals(metrics.getLatencyHistograms().get(TsvInfo.METRICS_LATENCY_WRITE_ROW).getCount(), 2);
+        assertEquals(metrics.getLatencyHistograms().get(TsvInfo.METRICS_LATENCY_FLUSH).getCount(), 1);
+    }
+
+    @Test
+    public void uploadedOn() {
+        // No upload times yet.
+        assertTrue(tsvInfo.getUploadedOnCountsByBucket().isEmpty());
+
+        // Upload times are counted per bucket, and buckets are keyed by their start time.
+        long bucketMillis = TsvInfo.UPLOADED_ON_BUCKET_MILLIS;
+        for (int i = 0; i < 40; i++) {
+            tsvInfo.addUploadedOn(10 * bucketMillis + i);
+        }
+        tsvInfo.addUploadedOn(12 * bucketMillis + bucketMillis - 1);
+        tsvInfo.addUploadedOn(11 * bucketMillis);
+
+        Map<Long, Integer> countsByBucket = tsvInfo.getUploadedOnCountsByBucket();
+        assertEquals(countsByBucket, ImmutableMap.of(10 * bucketMillis, 40, 11 * bucketMillis, 1,
+                12 * bucketMillis, 1));
+        assertEquals(ImmutableList.copyOf(countsByBucket.keySet()), ImmutableList.of(10 * bucketMillis,
+                11 * bucketMillis, 12 * bucketMillis));
+    }
+
+    @Test
+    public void sharded() throws Exception {
+        // Sharded TSVs append shards with FileChannels, so they need real files.
+        File tmpDir = Files.createTempDirectory("TsvInfoTest").toFile();
+        try {
+            File shardedTsvFile = new File(tmpDir, "sharded.tsv");
+            TsvInfo shardedTsvInfo = new TsvInfo(COLUMN_NAME_LIST, shardedTsvFile, makeFileWriter(shardedTsvFile),
+                    TsvInfoTest::makeFileWriter);
+
+            // 4 threads write 25 rows each. Wait for all threads to start, so that they all get their own shards.
+            int numThreads = 4;
+            int numRowsPerThread = 25;
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+            CountDownLatch startLatch = new CountDownLatch(numThreads);
+            try {
+                List<Future<?>> futureList = new ArrayList<>();
+                for (int i = 0; i < numThreads; i++) {
+                    int threadNum = i;
+                    futureList.add(executor.submit(() -> {
+                        startLatch.countDown();
+                        startLatch.await();
+                        for (int j = 0; j < numRowsPerThread; j++) {
+                            String recordId = "record-" + threadNum + "-" + j;
+                            shardedTsvInfo.writeRow(ImmutableMap.of("foo", recordId, "bar", "bar value"));
+                            shardedTsvInfo.addRecordId(recordId);
+                            shardedTsvInfo.addUploadedOn(threadNum * 1000L + j);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> oneFuture : futureList) {
+                    oneFuture.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // Shards count before they're appended.
+            int numRows = numThreads * numRowsPerThread;
+            assertEquals(shardedTsvInfo.getLineCount(), numRows);
+            assertEquals(tmpDir.list().length, numThreads + 1);
+
+            shardedTsvInfo.flushAndCloseWriter();
+
+            // Shard files are deleted.
+            assertEquals(tmpDir.list().length, 1);
+
+            // Validate counts and record IDs.
+            assertEquals(shardedTsvInfo.getLineCount(), numRows);
+            assertEquals(shardedTsvInfo.getRecordIds().size(), numRows);
+            int numUploadedOn = 0;
+            for (int oneCount : shardedTsvInfo.getUploadedOnCountsByBucket().values()) {
+                numUploadedOn += oneCount;
+            }
+            assertEquals(numUploadedOn, numRows);
+            assertEquals(shardedTsvInfo.getNumBytes(), shardedTsvFile.length());
+
+            // Validate the TSV file. The header is written once, then each row. Rows from the same thread are in
+            // order, but rows from different threads can be in any order.
+            List<String> lineList = Files.readAllLines(shardedTsvFile.toPath(), StandardCharsets.UTF_8);
+            assertEquals(lineList.size(), numRows + 1);
+            assertEquals(lineList.get(0), "\"foo\"\t\"bar\"");
+
+            Set<String> expectedLineSet = new HashSet<>();
+            for (String oneRecordId : shardedTsvInfo.getRecordIds()) {
+                expectedLineSet.add("\"" + oneRecordId + "\"\t\"bar value\"");
+            }
+            assertEquals(new HashSet<>(lineList.subList(1, lineList.size())), expectedLineSet);
+        } finally {
+            deleteTmpDir(tmpDir);
+        }
+    }
+
+    @Test
+    public void shardedFlushThenWriteMore() throws Exception {
+        File tmpDir = Files.createTempDirectory("TsvInfoTest").toFile();
+        try {
+            File shardedTsvFile = new File(tmpDir, "sharded.tsv");
+            TsvInfo shardedTsvInfo = new TsvInfo(COLUMN_NAME_LIST, shardedTsvFile, makeFileWriter(shardedTsvFile),
+                    TsvInfoTest::makeFileWriter);
+
+            // Flush appends the first shard. Rows written after that go to a new shard.
+            shardedTsvInfo.writeRow(ImmutableMap.of("foo", "foo value", "bar", "bar value"));
+            shardedTsvInfo.addRecordId("first record");
+            shardedTsvInfo.flush();
+            assertEquals(shardedTsvInfo.getLineCount(), 1);
+            assertEquals(shardedTsvInfo.getRecordIds(), ImmutableList.of("first record"));
+
+            shardedTsvInfo.writeRow(ImmutableMap.of("foo", "second foo value", "bar", "second bar value"));
+            shardedTsvInfo.addRecordId("second record");
+            shardedTsvInfo.flushAndCloseWriter();
+            assertEquals(shardedTsvInfo.getLineCount(), 2);
+            assertEquals(shardedTsvInfo.getRecordIds(), ImmutableList.of("first record", "second record"));
+            assertFalse(new File(shardedTsvFile.getPath() + TsvInfo.SHARD_FILE_SUFFIX + "0").exists());
+            assertFalse(new File(shardedTsvFile.getPath() + TsvInfo.SHARD_FILE_SUFFIX + "1").exists());
+
+            String expectedFileContents = "\"foo\"\t\"bar\"\n" +
+                    "\"foo value\"\t\"bar value\"\n" +
+                    "\"second foo value\"\t\"second bar value\"\n";
+            String actualFileContents = new String(Files.readAllBytes(shardedTsvFile.toPath()),
+                    StandardCharsets.UTF_8);
+            assertEquals(actualFileContents, expectedFileContents);
+        } finally {
+            deleteTmpDir(tmpDir);
+        }
+    }
+
+    @Test
+    public void sealWaitsForRowsInProgress() throws Exception {
+        // Start a row, then seal the segment. New rows can't start, but the row in progress can still finish.
+        assertTrue(tsvInfo.tryBeginRow());
+        tsvInfo.seal();
+        assertTrue(tsvInfo.isSealed());
+        assertFalse(tsvInfo.tryBeginRow());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> waitFuture = executor.submit(() -> {
+                tsvInfo.waitForRowsInProgress();
+                return null;
+            });
+            try {
+                waitFuture.get(100, TimeUnit.MILLISECONDS);
+                fail("expected exception");
+            } catch (TimeoutException ex) {
+                // expected exception
+            }
+
+            tsvInfo.writeRow(ImmutableMap.of("foo", "foo value", "bar", "bar value"));
+            tsvInfo.addRecordId(TEST_RECORD_ID);
+            tsvInfo.endRow();
+            waitFuture.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The sealed segment has the row that was in progress.
+        tsvInfo.flushAndCloseWriter();
+        assertEquals(tsvInfo.getLineCount(), 1);
+        assertEquals(tsvInfo.getRecordIds(), ImmutableList.of(TEST_RECORD_ID));
+    }
+
     @Test
     public void initError() {
         Exception testEx = new Exception();
@@ -103,4 +295,19 @@ public class TsvInfoTest {
         assertEquals(errorTsvInfo.getLineCount(), 0);
         assertEquals(errorTsvInfo.getRecordIds().size(), 0);
     }
+
+    // Deletes the temp dir. Sharded tests don't create subdirectories, so this doesn't need to recurse.
+    private static void deleteTmpDir(File tmpDir) throws IOException {
+        File[] fileArray = tmpDir.listFiles();
+        if (fileArray != null) {
+            for (File oneFile : fileArray) {
+                Files.delete(oneFile.toPath());
+            }
+        }
+        Files.delete(tmpDir.toPath());
+    }
+
+    private static Writer makeFileWriter(File file) throws IOException {
+        return new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+    }
 }